@@ -438,10 +438,10 @@ public class ServerGUIController implements Initializable {
             if(username.startsWith("Port: ")){ // if user is not logged in yet
                 username = ":"+username.substring(6);
                 System.out.println("--"+username);
-                clientInfoLabel1.setText("Username: <unknown>");
+                clientInfoLabel1.setText("Username: <unknown>     RTT: " + Server.roundTripTimeToString(server.getClientRoundTripTime(username)));
                 clientInfoLabel2.setText("Address: " + server.getClientAddress(username) + "     Port: " + server.getClientPort(username));
             }else{  // user is already logged in
-                clientInfoLabel1.setText("Username: \""+username+"\"");
+                clientInfoLabel1.setText("Username: \""+username+"\"     RTT: " + Server.roundTripTimeToString(server.getClientRoundTripTime(username)));
                 clientInfoLabel2.setText("Address: " + server.getClientAddress(username) + "     Port: " + server.getClientPort(username));
             }
         }else{ // login is not required
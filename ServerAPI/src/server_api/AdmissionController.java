@@ -0,0 +1,168 @@
+package server_api;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectOutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Is used by the Server class to decide whether a newly accepted connection is let in, before anything else
+ * is done with it.<br>
+ * A connection is rejected if server already has the maximum number of clients, or if connections arrive faster than
+ * allowed either in total or from a single IP address (see {@link TokenBucket}). Rejected clients receive a
+ * {@link Message.Type#LOGIN_DENIED} message that has been serialized in advance (together with the header of the
+ * object stream), so rejecting only writes a few bytes and closes the socket, and a storm of reconnects cannot
+ * keep the accepting Thread busy. Number of rejected connections is counted for every reason.
+ *
+ * @author KRIKKI
+ * @version 1
+ * @since 17. 10. 2026
+ */
+final class AdmissionController {
+    private static final int MAX_TRACKED_ADDRESSES = 10000;
+
+    private final TokenBucket global; // null if unlimited
+    private final int globalRate; // 0 if unlimited
+    private final int globalBurst;
+    private final int addressRate; // 0 if unlimited
+    private final int addressBurst;
+    private final ConcurrentHashMap<InetAddress, TokenBucket> addresses = new ConcurrentHashMap<>();
+    private final AtomicLongArray rejected = new AtomicLongArray(Server.ConnectionRejection.values().length);
+    private final byte[][] denials = new byte[Server.ConnectionRejection.values().length][];
+
+    /**
+     * Creates the controller with limits from preferences.
+     *
+     * @param prefs These are the preferences of the server.
+     * @throws IOException If denial messages could not be serialized.
+     */
+    AdmissionController(PrivateServerPreferences prefs) throws IOException{
+        this.globalRate = prefs.getAcceptRate();
+        this.globalBurst = burst(globalRate, prefs.getAcceptBurst());
+        this.global = globalRate > 0 ? new TokenBucket(globalRate, globalBurst) : null;
+        this.addressRate = prefs.getAcceptRatePerAddress();
+        this.addressBurst = burst(addressRate, prefs.getAcceptBurstPerAddress());
+        denials[Server.ConnectionRejection.TOO_MANY_CLIENTS.ordinal()] = encodeDenial("Connection denied due to too many connected clients");
+        denials[Server.ConnectionRejection.RATE_LIMITED.ordinal()] = encodeDenial("Connection denied because server is busy. Try again later");
+        denials[Server.ConnectionRejection.ADDRESS_RATE_LIMITED.ordinal()] = encodeDenial("Connection denied due to too many connections from your address. Try again later");
+    }
+
+    /**
+     * Creates the controller with new limits from preferences that were changed while server is running.
+     * Numbers of rejected connections are taken over from the previous controller.
+     *
+     * @param prefs These are the new preferences of the server.
+     * @param previous This is the controller that has been used so far.
+     * @throws IOException If denial messages could not be serialized.
+     */
+    AdmissionController(PrivateServerPreferences prefs, AdmissionController previous) throws IOException{
+        this(prefs);
+        for(int i = 0; i < rejected.length(); i++)
+            rejected.set(i, previous.rejected.get(i));
+    }
+
+    /**
+     * Returns true if the controller uses the same limits as given in preferences.
+     *
+     * @param prefs These are the preferences of the server.
+     * @return Returns true if limits have not changed.
+     */
+    boolean isCurrent(PrivateServerPreferences prefs){
+        return globalRate == prefs.getAcceptRate() && globalBurst == burst(globalRate, prefs.getAcceptBurst())
+                && addressRate == prefs.getAcceptRatePerAddress() && addressBurst == burst(addressRate, prefs.getAcceptBurstPerAddress());
+    }
+
+    private static int burst(int rate, int burst){
+        return burst > 0 ? burst : Math.max(1, rate);
+    }
+
+    // header of the object stream followed by the message, exactly what a new ObjectOutputStream would write
+    private static byte[] encodeDenial(String text) throws IOException{
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+        try(ObjectOutputStream out = new ObjectOutputStream(bytes)){
+            out.writeObject(new Message<>("error", Message.Type.LOGIN_DENIED, text, null));
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Decides whether the connection is let in.
+     *
+     * @param address This is the IP address of the client.
+     * @param clients This is the current number of clients (also the ones logging in).
+     * @param maxClients This is the maximum number of clients.
+     * @return Returns null if connection is let in or the reason why it must be rejected.
+     */
+    Server.ConnectionRejection admit(InetAddress address, int clients, int maxClients){
+        if(clients >= maxClients)
+            return Server.ConnectionRejection.TOO_MANY_CLIENTS;
+        if(addressRate > 0 && !addressBucket(address).tryAcquire())
+            return Server.ConnectionRejection.ADDRESS_RATE_LIMITED;
+        if(global != null && !global.tryAcquire())
+            return Server.ConnectionRejection.RATE_LIMITED;
+        return null;
+    }
+
+    private TokenBucket addressBucket(InetAddress address){
+        TokenBucket bucket = addresses.get(address);
+        if(bucket == null){
+            if(addresses.size() >= MAX_TRACKED_ADDRESSES)
+                forgetIdleAddresses();
+            bucket = new TokenBucket(addressRate, addressBurst);
+            TokenBucket previous = addresses.putIfAbsent(address, bucket);
+            if(previous != null)
+                bucket = previous;
+        }
+        return bucket;
+    }
+
+    // buckets that are full behave the same as new ones, so they do not need to be kept
+    private void forgetIdleAddresses(){
+        Iterator<TokenBucket> it = addresses.values().iterator();
+        while(it.hasNext()){
+            if(it.next().isFull())
+                it.remove();
+        }
+        if(addresses.size() >= MAX_TRACKED_ADDRESSES) // too many busy addresses, start over
+            addresses.clear();
+    }
+
+    /**
+     * Counts the rejection, writes the denial message to the client and closes the socket. It never creates any streams.
+     *
+     * @param socket This is the socket of the rejected client.
+     * @param reason This is the reason why it was rejected.
+     */
+    void reject(Socket socket, Server.ConnectionRejection reason){
+        rejected.incrementAndGet(reason.ordinal());
+        try{
+            socket.getOutputStream().write(denials[reason.ordinal()]);
+            socket.shutdownOutput();
+            InputStream in = socket.getInputStream(); // unread data would make closing reset the connection before client reads the denial
+            int available = in.available();
+            if(available > 0)
+                in.skip(available);
+        }catch(IOException e){
+            // client is gone already
+        }finally{
+            try{
+                socket.close();
+            }catch(IOException e){}
+        }
+    }
+
+    /**
+     * Returns the number of connections rejected for given reason.
+     *
+     * @param reason This is the reason.
+     * @return Returns the number of rejected connections.
+     */
+    long getRejected(Server.ConnectionRejection reason){
+        return rejected.get(reason.ordinal());
+    }
+}
@@ -0,0 +1,59 @@
+package server_api;
+
+/**
+ * Is used by the Server class to run regexes written by the administrator on text sent by clients.<br>
+ * Such regexes could backtrack for a very long time on some texts, so characters can only be read a limited number
+ * of times. When there are no reads left, {@link TooManyStepsException} is thrown out of the matcher.
+ *
+ * @author KRIKKI
+ * @version 1
+ * @since 17. 10. 2026
+ */
+final class BoundedCharSequence implements CharSequence {
+    static final int MAX_STEPS = 100000; // characters a single check may look at
+
+    private final String text;
+    private int steps = MAX_STEPS;
+
+    /**
+     * This is thrown when a match has looked at too many characters.
+     */
+    static final class TooManyStepsException extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        private TooManyStepsException(){
+            super(null, null, false, false);
+        }
+    }
+
+    /**
+     * Creates the sequence. Every sequence has its own limit, so it should be used for a single check only.
+     *
+     * @param text This is the text that will be matched.
+     */
+    BoundedCharSequence(String text){
+        this.text = text;
+    }
+
+    @Override
+    public char charAt(int index){
+        if(--steps < 0)
+            throw new TooManyStepsException();
+        return text.charAt(index);
+    }
+
+    @Override
+    public int length(){
+        return text.length();
+    }
+
+    @Override
+    public CharSequence subSequence(int start, int end){
+        return text.subSequence(start, end);
+    }
+
+    @Override
+    public String toString(){
+        return text;
+    }
+}
@@ -0,0 +1,92 @@
+package server_api;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A pool of direct {@link ByteBuffer}s of the same size that are used for reading from and writing to channels.<br>
+ * Direct buffers are expensive to allocate and are not collected quickly, so they are reused instead. A connection only
+ * holds a buffer while it has data in it and gives it back to the pool once it is empty, so idle connections do not
+ * hold any buffers. Buffers can be acquired and released from any Thread.
+ *
+ * @author KRIKKI
+ * @version 1
+ * @since 17. 10. 2026
+ */
+final class BufferPool {
+    /**
+     * This is the size of pooled buffers.
+     */
+    static final int BUFFER_SIZE = 16 * 1024;
+    /**
+     * This is the pool shared by all connections.
+     */
+    static final BufferPool SHARED = new BufferPool(BUFFER_SIZE, 256);
+
+    private final int bufferSize;
+    private final int maxPooled;
+    private final ConcurrentLinkedQueue<ByteBuffer> free = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger pooled = new AtomicInteger();
+
+    /**
+     * Creates an empty pool.
+     *
+     * @param bufferSize This is the size of buffers.
+     * @param maxPooled This is the maximum number of free buffers kept in the pool, others are left to the garbage collector.
+     */
+    BufferPool(int bufferSize, int maxPooled){
+        this.bufferSize = bufferSize;
+        this.maxPooled = maxPooled;
+    }
+
+    /**
+     * Returns a cleared buffer from the pool or allocates a new one if the pool is empty.
+     *
+     * @return Returns a buffer of the pool's size.
+     */
+    ByteBuffer acquire(){
+        ByteBuffer buffer = free.poll();
+        if(buffer == null)
+            return ByteBuffer.allocateDirect(bufferSize);
+        pooled.decrementAndGet();
+        buffer.clear();
+        return buffer;
+    }
+
+    /**
+     * Returns a cleared buffer with at least given capacity. Buffers bigger than the pool's size
+     * are allocated on heap and are not pooled.
+     *
+     * @param capacity This is the minimal capacity.
+     * @return Returns a buffer with at least given capacity.
+     */
+    ByteBuffer acquire(int capacity){
+        if(capacity <= bufferSize)
+            return acquire();
+        return ByteBuffer.allocate(capacity);
+    }
+
+    /**
+     * Gives the buffer back to the pool. Buffer must not be used after that.
+     *
+     * @param buffer This is the buffer. It may be null.
+     */
+    void release(ByteBuffer buffer){
+        if(buffer == null || !buffer.isDirect() || buffer.capacity() != bufferSize)
+            return;
+        if(pooled.incrementAndGet() <= maxPooled)
+            free.offer(buffer);
+        else
+            pooled.decrementAndGet();
+    }
+
+    /**
+     * Returns the size of pooled buffers.
+     *
+     * @return Returns the size of buffers.
+     */
+    int getBufferSize(){
+        return bufferSize;
+    }
+}
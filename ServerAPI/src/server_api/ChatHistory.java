@@ -0,0 +1,327 @@
+package server_api;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Is used by the Server class to store messages sent to all clients, so that clients can ask for them later
+ * (see {@link PrivateServerPreferences#getHistoryDirectory()}).<br>
+ * Messages are appended to files of fixed size (segments) that are mapped into memory. Every record is the time
+ * the message was stored (8 bytes) followed by the whole frame of the message (see {@link FrameCodec}), so frames can be
+ * sent to framed clients directly from the mapped pages, without decoding them. A segment is named after the sequence number
+ * of its first message. When it is full, a new one is started and the oldest segments are deleted once there are too many
+ * bytes or all their messages are too old.<br>
+ * For every segment a sparse index (position and time of every {@value #INDEX_INTERVAL}th record) is kept in memory, so both the
+ * last N messages and messages since a given time are found by a binary search and a short scan, no matter how long history is.
+ * Indexes are built by reading segments once, when history is opened.
+ *
+ * @author KRIKKI
+ * @version 1
+ * @since 17. 10. 2026
+ */
+final class ChatHistory {
+    private static final String SUFFIX = ".log";
+    private static final int RECORD_HEADER_LENGTH = 8; // time in milliseconds in front of every frame
+    private static final int INDEX_INTERVAL = 32;
+    private static final long RETENTION_CHECK_INTERVAL = 60000;
+
+    private final File directory;
+    private final int segmentSize;
+    private final long retentionBytes; // 0 if there is no limit
+    private final long retentionMillis; // 0 if there is no limit
+    // everything below is guarded by this
+    private final ArrayList<Segment> segments = new ArrayList<>(); // oldest first, the last one is being written
+    private long nextSequence = 0;
+    private long lastTime = 0;
+    private long lastRetentionCheck = 0;
+    private boolean closed = false;
+
+    /**
+     * A single file of history.
+     */
+    private static final class Segment {
+        private final File file;
+        private final long base; // sequence number of the first record
+        private final MappedByteBuffer buffer;
+        private int size = 0; // bytes that have been written
+        private int count = 0;
+        private long lastTime = 0;
+        private int[] indexPositions = new int[16];
+        private long[] indexTimes = new long[16];
+
+        /**
+         * Maps the file. A new file is created with given length, an existing one is read to find its records.
+         */
+        private Segment(File file, long base, int length) throws IOException{
+            this.file = file;
+            this.base = base;
+            boolean exists = file.exists();
+            try(RandomAccessFile raf = new RandomAccessFile(file, "rw")){
+                FileChannel channel = raf.getChannel();
+                // mapping stays valid after the file is closed
+                this.buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, exists ? channel.size() : length);
+            }
+            if(exists)
+                recover();
+        }
+
+        // finds records written before, a record whose time has not been written is not complete
+        private void recover(){
+            int position = 0;
+            while(position + RECORD_HEADER_LENGTH + FrameCodec.HEADER_LENGTH <= buffer.capacity()){
+                long time = buffer.getLong(position);
+                int length = buffer.getInt(position + RECORD_HEADER_LENGTH);
+                if(time == 0 || length < 0 || length > buffer.capacity() - position - RECORD_HEADER_LENGTH - FrameCodec.HEADER_LENGTH)
+                    break;
+                added(position, time, RECORD_HEADER_LENGTH + FrameCodec.HEADER_LENGTH + length);
+                position = size;
+            }
+            // bytes of a record that was not complete would otherwise stay behind shorter records appended over them
+            // and could be taken for a record the next time the file is read
+            int end = buffer.capacity();
+            for(position = size; position + 8 <= end; position += 8){
+                if(buffer.getLong(position) != 0)
+                    buffer.putLong(position, 0);
+            }
+            for(; position < end; position++)
+                buffer.put(position, (byte) 0);
+        }
+
+        private void added(int position, long time, int length){
+            if(count % INDEX_INTERVAL == 0){
+                int entry = count / INDEX_INTERVAL;
+                if(entry == indexPositions.length){
+                    indexPositions = Arrays.copyOf(indexPositions, entry * 2);
+                    indexTimes = Arrays.copyOf(indexTimes, entry * 2);
+                }
+                indexPositions[entry] = position;
+                indexTimes[entry] = time;
+            }
+            count++;
+            size = position + length;
+            lastTime = time;
+        }
+
+        private int recordLength(int position){
+            return RECORD_HEADER_LENGTH + FrameCodec.HEADER_LENGTH + buffer.getInt(position + RECORD_HEADER_LENGTH);
+        }
+
+        // position of the record, found through the index
+        private int positionOf(int record){
+            int position = indexPositions[record / INDEX_INTERVAL];
+            for(int i = record / INDEX_INTERVAL * INDEX_INTERVAL; i < record; i++)
+                position += recordLength(position);
+            return position;
+        }
+
+        // number of the first record stored at time or later (count if there is none)
+        private int firstSince(long time){
+            int entries = (count + INDEX_INTERVAL - 1) / INDEX_INTERVAL;
+            int low = 0, high = entries; // index entries before low are older
+            while(low < high){
+                int middle = (low + high) >>> 1;
+                if(indexTimes[middle] < time)
+                    low = middle + 1;
+                else
+                    high = middle;
+            }
+            if(low == 0)
+                return 0;
+            int record = (low - 1) * INDEX_INTERVAL; // the last indexed record that is older
+            int position = indexPositions[low - 1];
+            while(record < count && buffer.getLong(position) < time){
+                position += recordLength(position);
+                record++;
+            }
+            return record;
+        }
+    }
+
+    /**
+     * Opens history in the directory, creating the directory if needed.
+     *
+     * @param directory This is the directory of history.
+     * @param segmentSize This is the size of new files in bytes.
+     * @param retentionBytes This is how many bytes of files are kept or 0 if there is no limit.
+     * @param retentionMillis This is how long messages are kept in milliseconds or 0 if there is no limit.
+     * @throws IOException If directory could not be created or files could not be mapped.
+     */
+    ChatHistory(File directory, int segmentSize, long retentionBytes, long retentionMillis) throws IOException{
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        this.retentionBytes = retentionBytes;
+        this.retentionMillis = retentionMillis;
+        if(!directory.isDirectory() && !directory.mkdirs())
+            throw new IOException("Directory " + directory + " could not be created");
+        File[] files = directory.listFiles(new FileFilter() {
+            @Override
+            public boolean accept(File file){
+                return file.isFile() && file.getName().matches("\\d{20}" + SUFFIX.replace(".", "\\."));
+            }
+        });
+        if(files == null)
+            throw new IOException("Directory " + directory + " could not be read");
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File a, File b){
+                return a.getName().compareTo(b.getName());
+            }
+        });
+        for(File file: files){
+            Segment segment = new Segment(file, Long.parseLong(file.getName().substring(0, 20)), segmentSize);
+            segments.add(segment);
+            nextSequence = segment.base + segment.count;
+            lastTime = Math.max(lastTime, segment.lastTime);
+        }
+        retain(System.currentTimeMillis());
+    }
+
+    /**
+     * Stores the frame at the end of history. Frames longer than a segment are not stored.
+     *
+     * @param frame This is the whole frame of the message (length and payload). It is not consumed.
+     * @throws IOException If a new segment could not be created.
+     */
+    synchronized void append(ByteBuffer frame) throws IOException{
+        int length = RECORD_HEADER_LENGTH + frame.remaining();
+        if(closed || length > segmentSize)
+            return;
+        Segment segment = segments.isEmpty() ? null : segments.get(segments.size() - 1);
+        boolean rolled = false;
+        if(segment == null || segment.size + length > segment.buffer.capacity()){
+            if(segment != null && segment.count == 0){ // like a file left by a crash before anything was written
+                segments.remove(segments.size() - 1);
+                segment.file.delete();
+            }else if(segment != null){
+                segment.buffer.force();
+            }
+            segment = new Segment(new File(directory, String.format("%020d", nextSequence) + SUFFIX), nextSequence, segmentSize);
+            segments.add(segment);
+            rolled = true;
+        }
+        long now = Math.max(System.currentTimeMillis(), lastTime); // times never go back, so they can be searched
+        int position = segment.size;
+        ByteBuffer target = segment.buffer.duplicate();
+        target.position(position + RECORD_HEADER_LENGTH);
+        target.put(frame.duplicate());
+        segment.buffer.putLong(position, now); // written last, so that a record is complete once it has its time
+        segment.added(position, now, length);
+        nextSequence++;
+        lastTime = now;
+        if(rolled || now - lastRetentionCheck > RETENTION_CHECK_INTERVAL)
+            retain(now);
+    }
+
+    // deletes the oldest segments, but never the one that is being written
+    private void retain(long now){
+        lastRetentionCheck = now;
+        long total = 0;
+        for(Segment segment: segments)
+            total += segment.buffer.capacity();
+        while(segments.size() > 1){
+            Segment oldest = segments.get(0);
+            boolean tooOld = retentionMillis > 0 && oldest.lastTime < now - retentionMillis;
+            boolean tooBig = retentionBytes > 0 && total > retentionBytes;
+            if(!tooOld && !tooBig)
+                break;
+            segments.remove(0);
+            total -= oldest.buffer.capacity();
+            oldest.file.delete(); // frames that are still being sent stay readable until the mapping is released
+        }
+    }
+
+    /**
+     * Returns the last messages.
+     *
+     * @param max This is the number of messages.
+     * @return Returns frames of the messages, oldest first.
+     */
+    synchronized List<ByteBuffer> last(int max){
+        long first = segments.isEmpty() ? nextSequence : segments.get(0).base;
+        return read(Math.max(first, nextSequence - max), max);
+    }
+
+    /**
+     * Returns messages that were stored at given time or later.
+     *
+     * @param time This is the time in milliseconds since epoch.
+     * @param max This is the maximum number of messages, the oldest ones are returned if there are more.
+     * @return Returns frames of the messages, oldest first.
+     */
+    synchronized List<ByteBuffer> since(long time, int max){
+        int low = 0, high = segments.size(); // segments before low only have older messages
+        while(low < high){
+            int middle = (low + high) >>> 1;
+            Segment segment = segments.get(middle);
+            if(segment.count == 0 || segment.lastTime < time)
+                low = middle + 1;
+            else
+                high = middle;
+        }
+        if(low == segments.size())
+            return new ArrayList<>();
+        Segment segment = segments.get(low);
+        return read(segment.base + segment.firstSince(time), max);
+    }
+
+    // frames of messages from the sequence number on
+    private List<ByteBuffer> read(long sequence, int max){
+        ArrayList<ByteBuffer> frames = new ArrayList<>();
+        int s = segments.size() - 1;
+        while(s > 0 && segments.get(s).base > sequence)
+            s--;
+        if(s < 0 || max <= 0)
+            return frames;
+        Segment segment = segments.get(s);
+        int record = (int) Math.max(0, sequence - segment.base);
+        int position = record < segment.count ? segment.positionOf(record) : segment.size;
+        while(frames.size() < max){
+            if(record >= segment.count){
+                if(++s == segments.size())
+                    break;
+                segment = segments.get(s);
+                record = 0;
+                position = 0;
+                continue;
+            }
+            int length = segment.recordLength(position);
+            ByteBuffer frame = segment.buffer.duplicate();
+            frame.position(position + RECORD_HEADER_LENGTH);
+            frame.limit(position + length);
+            frames.add(frame.slice().asReadOnlyBuffer());
+            position += length;
+            record++;
+        }
+        return frames;
+    }
+
+    /**
+     * Returns the number of messages in history.
+     *
+     * @return Returns the number of messages.
+     */
+    synchronized long size(){
+        return segments.isEmpty() ? 0 : nextSequence - segments.get(0).base;
+    }
+
+    /**
+     * Writes what is in memory to the disk. History cannot be used anymore afterwards. Files stay mapped until
+     * the garbage collector releases them, since Java cannot unmap them sooner.
+     */
+    synchronized void close(){
+        if(closed)
+            return;
+        closed = true;
+        if(!segments.isEmpty())
+            segments.get(segments.size() - 1).buffer.force();
+    }
+}
@@ -1,11 +1,19 @@
 package server_api;
 
+import java.io.EOFException;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
+import java.io.OutputStream;
 import java.net.Socket;
-import java.text.SimpleDateFormat;
-import java.util.Date;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * The main class for the Client program. It connects to {@link Server} and creates {@link ClientMessageReceiver} as a Thread.<br>
@@ -21,9 +29,22 @@ public class Client implements Runnable{
     private static String username = "";
     private Socket socket;
     private ObjectInputStream in;
-    private ObjectOutputStream out;
+    private ManagedObjectOutputStream out;
+    private InputStream frameIn; // only if framed protocol is used
+    private FrameReader frameReader;
+    private OutputStream frameOut;
+    private int codecVersion = MessageCodec.JAVA_SERIALIZATION; // format of frames sent to server
     private PublicServerPreferences prefs;
     private String timeFormat = "HH:mm:ss";
+    private boolean virtualThreads = false;
+    private final ReentrantLock writeLock = new ReentrantLock();
+    private final LinkedHashSet<String> roster = new LinkedHashSet<>(); // guarded by itself
+    private long rosterVersion = -1;
+    // session that can be resumed after connection has been lost (see SystemEvent.SESSION), token is null if there is none
+    private volatile String sessionToken = null;
+    private volatile String sessionUsername = "";
+    private volatile long sessionReceived = 0; // chat messages received in the session, only changed by the receiving Thread
+    private static ExecutorService receiverExecutor; // shared by all clients that use virtual threads
     
     /**
      * Sets up necessary things for the client program, however it is still missing the
@@ -78,7 +99,7 @@ public class Client implements Runnable{
         try {
             println("[system]: Connecting to chat server on "+serverIP+" at "+serverPort+"...");
             socket = new Socket(serverIP, serverPort); // create socket connection
-            out = new ObjectOutputStream(socket.getOutputStream()); // create output stream for sending messages
+            out = new ManagedObjectOutputStream(socket.getOutputStream(), ManagedObjectOutputStream.DEFAULT_RESET_MESSAGES, ManagedObjectOutputStream.DEFAULT_RESET_BYTES); // create output stream for sending messages
             in = new ObjectInputStream(socket.getInputStream()); // create input stream for listening for incoming messages
             
             while(true){
@@ -99,11 +120,28 @@ public class Client implements Runnable{
                 }
             }
             
+            if(prefs.isFramed()){ // from now on messages are sent as frames
+                frameIn = socket.getInputStream();
+                frameReader = new FrameReader(0);
+                frameOut = socket.getOutputStream();
+                codecVersion = Math.min(prefs.getBinaryCodecVersion(), MessageCodec.VERSION);
+            }
+            // tell server which version this client supports, server then picks the same binary format as above
+            writeMessage(new Message<>(username, Message.Type.PREFERENCES, MessageCodec.VERSION));
+            
             if(prefs.isLoginRequired()) {
                 onLoginRequired();
             }
             
-            new Thread(new ClientMessageReceiver(this, in)).start(); // create a separate thread for listening to messages from the chat server
+            ClientMessageReceiver receiver;
+            if(frameIn != null)
+                receiver = new ClientMessageReceiver(this);
+            else
+                receiver = new ClientMessageReceiver(this, in);
+            if(virtualThreads)
+                getReceiverExecutor().execute(receiver);
+            else
+                new Thread(receiver).start(); // create a separate thread for listening to messages from the chat server
 
             
         } catch (ClassCastException e) {
@@ -115,6 +153,24 @@ public class Client implements Runnable{
         }
     }
     
+    /**
+     * Sets boolean value if {@link ClientMessageReceiver} should run on a virtual thread instead of its own platform Thread.
+     * It is useful when many clients run in the same program. Virtual threads are available from Java 21 on,
+     * on older versions a shared pool of platform Threads is used instead.
+     * This variable is automatically set to false.
+     * 
+     * @param virtualThreads This defines if virtual threads are used.
+     */
+    public void setVirtualThreads(boolean virtualThreads){
+        this.virtualThreads = virtualThreads;
+    }
+    
+    private static synchronized ExecutorService getReceiverExecutor(){
+        if(receiverExecutor == null)
+            receiverExecutor = VirtualThreads.newExecutor("client-message-receiver-");
+        return receiverExecutor;
+    }
+    
     /**
      * Sets server's IP address. This needs to be set before calling the {@link #run()} method,
      * or ServerException will be thrown.
@@ -178,7 +234,10 @@ public class Client implements Runnable{
      * Attempts to login if server demands so, if not nothing happens.<br>
      * It may return an error (on {@link #errPrintln(java.lang.String)}) if the given username
      * does not abide with regulations.<br>
-     * The given username will be sent to {@link Server} and if it does not exist it yet, it will return a success message.
+     * The given username will be sent to {@link Server} and if it does not exist it yet, it will return a success message.<br>
+     * If connection has been lost and client logs in again with the same username, it resumes its session if server allows it
+     * (see {@link PrivateServerPreferences#getSessionResumeWindow()}). Other users do not notice anything and messages
+     * that were sent meanwhile are received after the success message.
      * 
      * @param newName This is your new username.
      * @see #loginReplyReceived(Message)
@@ -198,8 +257,11 @@ public class Client implements Runnable{
                 onLoginDenied("This name is not allowed");
             } else {
                 try {
-                    out.writeObject(new Message<>(newName, Message.Type.LOGIN_REQUEST, "")); // send the message to the chat server
-                    out.flush(); // ensure the message has been sent
+                    String token = sessionToken;
+                    if (token != null && newName.equals(sessionUsername)) // server sends messages that have been missed
+                        writeMessage(new Message<>(newName, Message.Type.LOGIN_REQUEST, new SystemEvent(SystemEvent.SESSION, token, Long.toString(sessionReceived))));
+                    else
+                        writeMessage(new Message<>(newName, Message.Type.LOGIN_REQUEST, "")); // send the message to the chat server
                 } catch (Exception e) {
                     println("[error]: An unknown error has occured. Please try again");
                 }
@@ -224,6 +286,7 @@ public class Client implements Runnable{
                 if(message.getRecipients().length != 1)
                     throw new ServerException("Too many recipients for a LOGIN_SUCCESSFUL type of message ("+message.getRecipients().length+")");
                 username = message.getRecipients()[0];
+                sessionToken = null; // the new one follows if server has it
                 
                 onLoginSuccessful(message.getMessageObject().toString());
             }
@@ -248,15 +311,212 @@ public class Client implements Runnable{
             case "ban":
                 connectionClosed(value);
                 break;
+            case SystemEvent.SHUTDOWN:
+                shutdownReceived(value);
+                break;
+            case SystemEvent.PRESENCE:
+            case SystemEvent.ROSTER:
+            case SystemEvent.ROSTER_DELTA: // old String form, values are separated by comma
+            case SystemEvent.HISTORY:
+                systemEventReceived(new SystemEvent(description, value.split(",")));
+                break;
             default:
                 onSystemMessageReceived(description, value);
         }
     }
     
+    /**
+     * This method is called when message of type {@link server_api.Message.Type#SYSTEM}
+     * carrying a {@link SystemEvent} is received. Values are used as they are, so nothing needs to be parsed.
+     * Events that are not handled here are passed to {@link #onSystemEventReceived(SystemEvent)}.
+     * 
+     * @param event This is the received event.
+     */
+    protected final void systemEventReceived(SystemEvent event){
+        switch(event.getName()){
+            case SystemEvent.USER_DISCONNECT:
+                onUserDisconnected(event.getValue());
+                break;
+            case SystemEvent.USER_CONNECT:
+                onNewUserConnected(event.getValue());
+                break;
+            case SystemEvent.BAN:
+                connectionClosed(event.getValue());
+                break;
+            case SystemEvent.SHUTDOWN:
+                shutdownReceived(event.getValue());
+                break;
+            case SystemEvent.PRESENCE:
+                for(String value: event.getValues()){
+                    if(value.isEmpty() || value.substring(1).equals(username))
+                        continue; // clients are not told about themselves
+                    if(value.startsWith("+"))
+                        onNewUserConnected(value.substring(1));
+                    else if(value.startsWith("-"))
+                        onUserDisconnected(value.substring(1));
+                }
+                break;
+            case SystemEvent.ROSTER:
+            case SystemEvent.ROSTER_DELTA:
+                rosterReceived(event);
+                break;
+            case SystemEvent.SESSION:
+                if(event.getValues().length >= 2){
+                    try{
+                        sessionReceived = Long.parseLong(event.getValues()[1]);
+                        sessionUsername = username;
+                        sessionToken = event.getValues()[0];
+                    }catch(NumberFormatException e){}
+                }
+                break;
+            default:
+                onSystemEventReceived(event);
+        }
+    }
+    
+    /**
+     * Is called by ClientMessageReceiver for every chat message ({@link Message.Type#DATA} or {@link Message.Type#DATA_STRING}),
+     * so that client can tell the server how many it has received when it resumes the session.
+     * 
+     */
+    void chatMessageReceived(){
+        if(sessionToken != null)
+            sessionReceived++;
+    }
+    
+    private void shutdownReceived(String value){
+        int retryAfter;
+        try{
+            retryAfter = Integer.parseInt(value);
+        }catch(NumberFormatException e){
+            retryAfter = 0;
+        }
+        onServerShutdown(retryAfter);
+    }
+    
+    /**
+     * This method is called when server announces that it is shutting down (see {@link SystemEvent#SHUTDOWN}).
+     * Connection is closed by the server shortly after. It can be overriden, by default it prints a notice.
+     * 
+     * @param retryAfter This is the number of seconds after which client may try to connect again.
+     */
+    protected void onServerShutdown(int retryAfter){
+        println("[system]: Server is shutting down, try to connect again in " + retryAfter + " seconds");
+    }
+    
+    /**
+     * Applies the roster or its changes received as a reply to {@link #requestRoster()} and calls
+     * {@link #onRosterChanged(String[], String[])} if anything has changed.
+     * 
+     * @param event This is a {@link SystemEvent#ROSTER} or {@link SystemEvent#ROSTER_DELTA} event.
+     */
+    private void rosterReceived(SystemEvent event){
+        String[] values = event.getValues();
+        long version;
+        try{
+            version = Long.parseLong(values[0]);
+        }catch(NumberFormatException e){
+            return;
+        }
+        ArrayList<String> added = new ArrayList<>();
+        ArrayList<String> removed = new ArrayList<>();
+        synchronized(roster){
+            if(event.getName().equals(SystemEvent.ROSTER)){
+                HashSet<String> names = new HashSet<>(Arrays.asList(values).subList(1, values.length));
+                for(String name: roster)
+                    if(!names.contains(name))
+                        removed.add(name);
+                roster.removeAll(removed);
+                for(int i = 1; i < values.length; i++)
+                    if(roster.add(values[i]))
+                        added.add(values[i]);
+            }else{
+                for(int i = 1; i < values.length; i++){
+                    if(values[i].isEmpty())
+                        continue;
+                    String name = values[i].substring(1);
+                    if(values[i].startsWith("+") && roster.add(name))
+                        added.add(name);
+                    else if(values[i].startsWith("-") && roster.remove(name))
+                        removed.add(name);
+                }
+            }
+            rosterVersion = version;
+        }
+        if(!added.isEmpty() || !removed.isEmpty())
+            onRosterChanged(added.toArray(new String[0]), removed.toArray(new String[0]));
+    }
+    
+    /**
+     * Asks server for connected clients. The first time whole roster is received and after that only
+     * changes since the last reply, so it can be called often even if there are many clients.
+     * When reply arrives, {@link #onRosterChanged(String[], String[])} is called and {@link #getRoster()} returns new clients.
+     */
+    public void requestRoster(){
+        long version;
+        synchronized(roster){
+            version = rosterVersion;
+        }
+        sendMessage(new Message<>(username, Message.Type.COMMAND, "/who -c " + version, null));
+    }
+    
+    /**
+     * Asks server for the last messages that were sent to everyone. They arrive as ordinary messages with their original
+     * sender and time, followed by {@link SystemEvent#HISTORY} (see {@link #onSystemEventReceived(SystemEvent)}).
+     * Server sends at most as many as it allows and replies with an error if it does not keep history.
+     * 
+     * @param count This is the number of messages.
+     */
+    public void requestHistory(int count){
+        sendMessage(new Message<>(username, Message.Type.COMMAND, "/history " + count, null));
+    }
+    
+    /**
+     * Asks server for messages that were sent to everyone since the given time, the same way as {@link #requestHistory(int)}.
+     * If there are more than server allows, the oldest ones are sent.
+     * 
+     * @param timeMillis This is the time in milliseconds since 1. 1. 1970.
+     */
+    public void requestHistorySince(long timeMillis){
+        sendMessage(new Message<>(username, Message.Type.COMMAND, "/history -s " + timeMillis, null));
+    }
+    
+    /**
+     * Returns usernames of connected clients as they were known after the last reply to {@link #requestRoster()}.
+     * 
+     * @return Returns usernames of connected clients.
+     */
+    public String[] getRoster(){
+        synchronized(roster){
+            return roster.toArray(new String[0]);
+        }
+    }
+    
+    /**
+     * This method is called when reply to {@link #requestRoster()} has changed the roster.
+     * It is meant to be overriden, by default it does nothing.
+     * 
+     * @param added These are usernames of clients that have connected since the last reply.
+     * @param removed These are usernames of clients that have disconnected since the last reply.
+     */
+    public void onRosterChanged(String[] added, String[] removed){
+    }
+    
+    /**
+     * This method is called when a {@link SystemEvent} like recipients-not-exist or connected-clients is received.
+     * By default it calls {@link #onSystemMessageReceived(String, String)} with values joined the same way
+     * as in the old String form, so overriding that method is enough. Override this one to get values as an array.
+     * 
+     * @param event This is the received event.
+     */
+    protected void onSystemEventReceived(SystemEvent event){
+        onSystemMessageReceived(event.getName(), event.getJoinedValues());
+    }
+    
     /**
      * This method is called when message of type {@link server_api.Message.Type#SYSTEM}
      * is received. It can be overriden so that different response can be issued for the 
-     * message received. System messages that invoke this method are recipients-not-exist and
+     * message received. System messages that invoke this method are recipients-not-exist, recipients-offline and
      * connected-clients.
      * 
      * @param description This is the type description of the message.
@@ -267,6 +527,9 @@ public class Client implements Runnable{
             case "recipients-not-exist":
                 errPrintln("[error]: Following recipients do not exist: " + value);
                 break;
+            case "recipients-offline":
+                println("[system]: Following recipients are not connected and will receive the message when they log in: " + value);
+                break;
             case "connected-clients":
                 println("[system]: Currently connected clients are: " + value);
                 break;
@@ -303,6 +566,7 @@ public class Client implements Runnable{
             sendMessage(new Message<>(username, Message.Type.LOGOFF, ""));
         }catch(NullPointerException e){}
         username = "";
+        sessionToken = null; // server has ended the session
         connectionClosed("Logoff successful");
     }
         
@@ -392,25 +656,93 @@ public class Client implements Runnable{
         }
         if(this.socket == null || this.socket.isClosed()) return;
         try {
-            out.writeObject(message); // send the message to the server
-            out.flush(); // ensure the message has been sent
+            writeMessage(message); // send the message to the server
         } catch (IOException | ServerException ex) {
             errPrintln("[system]: Could not send message");
             ex.printStackTrace(System.err);
         }
     }
+    
+    /**
+     * Answers the heartbeat of the server with {@link Message.Type#PONG} carrying the same object.
+     * It is allowed before logging in and nothing is printed.
+     * 
+     * @param token This is the object of the {@link Message.Type#PING} message.
+     */
+    void pingReceived(Object token) {
+        if(this.socket == null || this.socket.isClosed()) return;
+        try {
+            writeMessage(new Message<>(username, Message.Type.PONG, token, null));
+        } catch (IOException | ServerException ex) {
+            // connection is closing, receiver will notice
+        }
+    }
+    
+    /**
+     * Writes the message to the server either as a frame or through the object stream.
+     * 
+     * @param message This is the message to be written.
+     * @throws IOException If message could not be written.
+     */
+    private void writeMessage(Message<?> message) throws IOException{
+        if(frameOut != null){
+            ByteBuffer frame = FrameCodec.encode(message, codecVersion);
+            writeLock.lock(); // frames must not interleave
+            try{
+                frameOut.write(frame.array(), frame.arrayOffset() + frame.position(), frame.remaining());
+                frameOut.flush();
+            }finally{
+                writeLock.unlock();
+            }
+        }else{
+            writeLock.lock(); // heartbeats are answered from the receiving Thread
+            try{
+                out.writeMessage(message);
+                out.flush(); // ensure the message has been sent
+            }finally{
+                writeLock.unlock();
+            }
+        }
+    }
+    
+    /**
+     * Returns the number of bytes written to the object stream since it was last reset. The stream keeps
+     * references to all messages written in that time. If framed protocol is used or client is not connected, it is 0.
+     * 
+     * @return Returns the number of bytes retained by the object stream.
+     */
+    public long getRetainedBytes(){
+        ManagedObjectOutputStream stream = out;
+        return stream == null || frameOut != null ? 0 : stream.getRetainedBytes();
+    }
+    
+    /**
+     * Reads the next frame from the server. It is used by {@link ClientMessageReceiver} if framed protocol is used.
+     * It blocks until the whole frame arrives.
+     * 
+     * @return Returns the received message.
+     * @throws IOException If message could not be read.
+     * @throws ClassNotFoundException If message carries an object of unknown class.
+     */
+    Message<?> readMessage() throws IOException, ClassNotFoundException{
+        ByteBuffer payload;
+        while((payload = frameReader.nextFrame()) == null){ // one read usually brings several frames
+            if(frameReader.read(frameIn) < 0)
+                throw new EOFException();
+        }
+        return FrameCodec.decode(payload);
+    }
        
     /**
      * Returns time like specified with argument. <br>
-     * Time format is the same as with SimpleDateFormat. It must look something like: dd.MM.yyyy HH:mm:ss
+     * Time format is the same as with DateTimeFormatter. It must look something like: dd.MM.yyyy HH:mm:ss
      * 
      * @param timeFormat This is the time format.
      * @return Returns a formatted String.
      * @throws IllegalArgumentException If time format is incorrect.
      */
     public String timeToString(String timeFormat) throws IllegalArgumentException{
-        SimpleDateFormat formatter = new SimpleDateFormat(timeFormat);
-        return formatter.format(new Date());
+        return TimeFormats.format(timeFormat, System.currentTimeMillis());
     }
     
     /**
@@ -429,6 +761,14 @@ public class Client implements Runnable{
         socket = null;
         out = null;
         in = null;
+        frameIn = null;
+        frameReader = null;
+        frameOut = null;
+        codecVersion = MessageCodec.JAVA_SERIALIZATION;
+        synchronized(roster){
+            roster.clear();
+            rosterVersion = -1;
+        }
         onConnectionClosed(reason);
     }
     
@@ -1,5 +1,6 @@
 package server_api;
 
+import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.StreamCorruptedException;
 
@@ -26,6 +27,17 @@ public class ClientMessageReceiver implements Runnable{
         this.client = client;
         this.in = in;
     }
+    
+    /**
+     * Sets up all necessary things to start receiving messages as frames
+     * (if {@link PublicServerPreferences#isFramed()} is true). Frames will be read by {@link Client}.
+     * 
+     * @param client This is the {@link Client} class.
+     */
+    ClientMessageReceiver(Client client) {
+        this.client = client;
+        this.in = null;
+    }
 
     /**
      * Starts receiving messages.
@@ -34,9 +46,9 @@ public class ClientMessageReceiver implements Runnable{
      */
     @Override
     public void run() throws ServerException{
-        Message message;
+        Message<?> message;
         try {
-            while ((message = (Message) this.in.readObject()) != null) {                 
+            while ((message = readMessage()) != null) {                 
                 if(null != message.getMessageType()){
                     // read new message
                     switch (message.getMessageType()) {
@@ -44,7 +56,11 @@ public class ClientMessageReceiver implements Runnable{
                             client.setPreferences((PublicServerPreferences)message.getMessageObject());
                             break;
                         case SYSTEM:
-                            try{
+                            if(message.getMessageObject() instanceof SystemEvent){
+                                client.systemEventReceived((SystemEvent) message.getMessageObject());
+                                break;
+                            }
+                            try{ // old String form of the event
                                 String msg = message.getMessageObject().toString();
                                 int pos = msg.indexOf("=");
                                 if(pos == -1) break;
@@ -54,6 +70,7 @@ public class ClientMessageReceiver implements Runnable{
                             break;
                         case DATA_STRING:
                         case DATA:
+                            client.chatMessageReceived();
                             println("["+message.getMessageSender()+"]: "+message.getMessageObject().toString());
                             break;
                         case ERROR:
@@ -63,6 +80,9 @@ public class ClientMessageReceiver implements Runnable{
                         case LOGIN_DENIED:
                             client.loginReplyReceived(message);
                             break;
+                        case PING:
+                            client.pingReceived(message.getMessageObject());
+                            break;
                         default:
                             break;
                     }
@@ -78,6 +98,12 @@ public class ClientMessageReceiver implements Runnable{
         }
     }
     
+    private Message<?> readMessage() throws IOException, ClassNotFoundException{
+        if(in != null)
+            return (Message<?>) this.in.readObject();
+        return client.readMessage();
+    }
+    
     /**
      * It calls the method by the same name from Client class, which prints text to Standard Output, if you wish to print elsewhere simply override the method.<br>
      * You can also override {@link #print(String)} and {@link #errPrintln(String)}.
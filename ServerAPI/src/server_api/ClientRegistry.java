@@ -0,0 +1,308 @@
+package server_api;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Is used by the Server class to keep track of connected clients and clients that are logging in.<br>
+ * All the data is kept in an immutable {@link Snapshot} that is replaced as a whole on every change.
+ * Reading (looking up clients, iterating over them while broadcasting) is therefore lock-free and never
+ * sees a half-done change, while changes are made one at a time under a lock. Moving a client from
+ * clients logging in to connected clients ({@link #loggedIn(String, String, ServerConnector)}) is a single change.<br>
+ * Every change of connected clients increases the version of the roster and is remembered by {@link Roster}, so clients
+ * can ask only for changes since the version they know (see {@link #rosterDelta(long, long)}).
+ *
+ * @author KRIKKI
+ * @version 1
+ * @since 17. 10. 2026
+ */
+final class ClientRegistry {
+    private final ReentrantLock writeLock = new ReentrantLock();
+    private volatile Snapshot snapshot = Snapshot.EMPTY;
+    private final Roster roster = new Roster();
+
+    /**
+     * An immutable state of the registry at some moment.
+     */
+    static final class Snapshot {
+        static final Snapshot EMPTY = new Snapshot(new HashMap<String, ServerConnector>(), Collections.<String, ServerConnector>emptyMap(), 0);
+
+        /**
+         * Connected clients by their usernames. It cannot be modified.
+         */
+        final Map<String, ServerConnector> clients;
+        /**
+         * Clients logging in by their ports (with colon in front). It cannot be modified.
+         */
+        final Map<String, ServerConnector> clientsLoggingIn;
+        /**
+         * Usernames of connected clients, in the same order as {@link #connectors}.
+         */
+        final String[] usernames;
+        /**
+         * Connectors of connected clients, in the same order as {@link #usernames}. It is meant for broadcasting and must not be modified.
+         */
+        final ServerConnector[] connectors;
+        /**
+         * Version of the roster (connected clients). It increases by one with every client that is added or removed.
+         */
+        final long rosterVersion;
+        private volatile String joinedUsernames; // is rendered when first needed
+
+        // clientsLoggingIn must already be unmodifiable, so it can be shared with the previous snapshot
+        private Snapshot(HashMap<String, ServerConnector> clients, Map<String, ServerConnector> clientsLoggingIn, long rosterVersion){
+            this.clients = Collections.unmodifiableMap(clients);
+            this.clientsLoggingIn = clientsLoggingIn;
+            this.rosterVersion = rosterVersion;
+            this.usernames = new String[clients.size()];
+            this.connectors = new ServerConnector[clients.size()];
+            int i = 0;
+            for(Map.Entry<String, ServerConnector> entry: clients.entrySet()){
+                usernames[i] = entry.getKey();
+                connectors[i] = entry.getValue();
+                i++;
+            }
+        }
+
+        // only clients logging in have changed, everything else is shared with the previous snapshot
+        private Snapshot(Snapshot previous, HashMap<String, ServerConnector> clientsLoggingIn){
+            this.clients = previous.clients;
+            this.clientsLoggingIn = Collections.unmodifiableMap(clientsLoggingIn);
+            this.usernames = previous.usernames;
+            this.connectors = previous.connectors;
+            this.rosterVersion = previous.rosterVersion;
+            this.joinedUsernames = previous.joinedUsernames;
+        }
+
+        /**
+         * Returns usernames of connected clients separated by comma and space. It is created only once for every version of the roster.
+         *
+         * @return Returns joined usernames.
+         */
+        String joinedUsernames(){
+            String joined = joinedUsernames;
+            if(joined == null){
+                joined = Server.printArray(usernames, ", ");
+                joinedUsernames = joined;
+            }
+            return joined;
+        }
+
+        /**
+         * Returns the number of all clients (also the ones logging in).
+         *
+         * @return Returns the number of all clients.
+         */
+        int size(){
+            return clients.size() + clientsLoggingIn.size();
+        }
+
+        /**
+         * Returns the connector of the client. If username starts with colon it is first looked up among
+         * clients logging in.
+         *
+         * @param username This is the username of the client or its port with colon in front.
+         * @return Returns the connector or null if client does not exist.
+         */
+        ServerConnector find(String username){
+            ServerConnector connector = null;
+            if(username.startsWith(":"))
+                connector = clientsLoggingIn.get(username);
+            if(connector == null)
+                connector = clients.get(username);
+            return connector;
+        }
+    }
+
+    /**
+     * Returns the current state of the registry. It never blocks.
+     *
+     * @return Returns the current snapshot.
+     */
+    Snapshot snapshot(){
+        return snapshot;
+    }
+
+    /**
+     * Returns changes of the roster between two versions, like: +John, -Ann (added John and removed Ann).
+     *
+     * @param from This is the version the client knows.
+     * @param to This is the version of the roster the client will know after applying changes (usually {@link Snapshot#rosterVersion} of the current snapshot).
+     * @return Returns changes or null if they are not remembered anymore and the whole roster must be sent.
+     */
+    String[] rosterDelta(long from, long to){
+        return roster.delta(from, to);
+    }
+
+    /**
+     * Adds a client that is logging in.
+     *
+     * @param port This is the port of the client with colon in front.
+     * @param connector This is the connector of the client.
+     * @return Returns false if a client with the same port already exists.
+     */
+    boolean addLoggingIn(String port, ServerConnector connector){
+        writeLock.lock();
+        try{
+            Snapshot current = snapshot;
+            if(current.clientsLoggingIn.containsKey(port))
+                return false;
+            HashMap<String, ServerConnector> loggingIn = new HashMap<>(current.clientsLoggingIn);
+            loggingIn.put(port, connector);
+            snapshot = new Snapshot(current, loggingIn);
+            return true;
+        }finally{
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Adds a connected client.
+     *
+     * @param username This is the username of the client.
+     * @param connector This is the connector of the client.
+     * @return Returns false if a client with the same username already exists.
+     */
+    boolean add(String username, ServerConnector connector){
+        return loggedIn(username, null, connector);
+    }
+
+    /**
+     * Moves the client from clients logging in to connected clients. Both happen at once or not at all.
+     *
+     * @param username This is the new username of the client.
+     * @param port This is the port of the client with colon in front. If null, client is only added.
+     * @param connector This is the connector of the client.
+     * @return Returns false if a client with the same username already exists.
+     */
+    boolean loggedIn(String username, String port, ServerConnector connector){
+        writeLock.lock();
+        try{
+            Snapshot current = snapshot;
+            if(current.clients.containsKey(username))
+                return false;
+            HashMap<String, ServerConnector> clients = new HashMap<>(current.clients);
+            clients.put(username, connector);
+            Map<String, ServerConnector> loggingIn = current.clientsLoggingIn;
+            if(port != null && loggingIn.containsKey(port)){
+                HashMap<String, ServerConnector> changed = new HashMap<>(loggingIn);
+                changed.remove(port);
+                loggingIn = Collections.unmodifiableMap(changed);
+            }
+            long version = current.rosterVersion + 1;
+            roster.record(version, username, true);
+            snapshot = new Snapshot(clients, loggingIn, version);
+            return true;
+        }finally{
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Removes a connected client.
+     *
+     * @param username This is the username of the client.
+     * @return Returns true if client existed.
+     */
+    boolean remove(String username){
+        writeLock.lock();
+        try{
+            Snapshot current = snapshot;
+            if(!current.clients.containsKey(username))
+                return false;
+            HashMap<String, ServerConnector> clients = new HashMap<>(current.clients);
+            clients.remove(username);
+            long version = current.rosterVersion + 1;
+            roster.record(version, username, false);
+            snapshot = new Snapshot(clients, current.clientsLoggingIn, version);
+            return true;
+        }finally{
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Removes a connected client, but only if its username still belongs to the given connector.
+     *
+     * @param username This is the username of the client.
+     * @param connector This is the connector of the client.
+     * @return Returns true if client has been removed.
+     */
+    boolean remove(String username, ServerConnector connector){
+        writeLock.lock();
+        try{
+            if(snapshot.clients.get(username) != connector)
+                return false;
+            return remove(username);
+        }finally{
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Gives the username of a connected client to the client logging in that has resumed its session. Roster does not change,
+     * since the same user stays connected.
+     *
+     * @param username This is the username of the client.
+     * @param port This is the port of the new connection with colon in front.
+     * @param previous This is the connector of the connection that has been lost.
+     * @param connector This is the connector of the new connection.
+     * @return Returns false if username does not belong to the previous connector anymore.
+     */
+    boolean resumed(String username, String port, ServerConnector previous, ServerConnector connector){
+        writeLock.lock();
+        try{
+            Snapshot current = snapshot;
+            if(current.clients.get(username) != previous)
+                return false;
+            HashMap<String, ServerConnector> clients = new HashMap<>(current.clients);
+            clients.put(username, connector);
+            Map<String, ServerConnector> loggingIn = current.clientsLoggingIn;
+            if(loggingIn.containsKey(port)){
+                HashMap<String, ServerConnector> changed = new HashMap<>(loggingIn);
+                changed.remove(port);
+                loggingIn = Collections.unmodifiableMap(changed);
+            }
+            snapshot = new Snapshot(clients, loggingIn, current.rosterVersion);
+            return true;
+        }finally{
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Removes a client that is logging in.
+     *
+     * @param port This is the port of the client with colon in front.
+     * @return Returns true if client existed.
+     */
+    boolean removeLoggingIn(String port){
+        writeLock.lock();
+        try{
+            Snapshot current = snapshot;
+            if(!current.clientsLoggingIn.containsKey(port))
+                return false;
+            HashMap<String, ServerConnector> loggingIn = new HashMap<>(current.clientsLoggingIn);
+            loggingIn.remove(port);
+            snapshot = new Snapshot(current, loggingIn);
+            return true;
+        }finally{
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Removes all clients.
+     */
+    void clear(){
+        writeLock.lock();
+        try{
+            roster.clear();
+            snapshot = Snapshot.EMPTY;
+        }finally{
+            writeLock.unlock();
+        }
+    }
+}
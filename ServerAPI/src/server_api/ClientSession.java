@@ -0,0 +1,265 @@
+package server_api;
+
+import java.io.IOException;
+import java.net.SocketException;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Is used by the Server class to let a client resume its session after its connection has been lost
+ * (see {@link PrivateServerPreferences#getSessionResumeWindow()}).<br>
+ * Every message sent to the client goes through the session. Chat messages ({@link Message.Type#DATA} and
+ * {@link Message.Type#DATA_STRING}) are numbered and the last {@link PrivateServerPreferences#getSessionBufferSize()}
+ * of them are kept in a ring. The client counts the same messages, so when it resumes the session on a new connection
+ * it tells how many it has received and the rest are sent again. Numbering and putting messages in the outbound queue
+ * happen under the lock of the session, so numbers always follow the order in which the client receives messages.
+ * Nobody waits for room in the outbound queue while holding the lock, so a slow client does not hold up other senders
+ * (or the carrier Threads of virtual Threads) any longer than the queue itself would.<br>
+ * While the session is detached (its connection has been lost and client has not come back yet) chat messages are
+ * only kept and everything else is thrown away.
+ *
+ * @author KRIKKI
+ * @version 1
+ * @since 17. 10. 2026
+ */
+final class ClientSession {
+    private static final SecureRandom RANDOM = new SecureRandom();
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    /**
+     * This is the username of the client.
+     */
+    final String username;
+    /**
+     * This is the secret token the client needs to resume the session.
+     */
+    final String token;
+    /**
+     * This is the lock of the session. Server also holds it while it gives the username to the new connection, so the session cannot be detached or expire meanwhile.
+     */
+    final ReentrantLock lock = new ReentrantLock();
+    private final Message<?>[] buffer;
+    private long sequence = 0; // number of chat messages sent in the session
+    private ServerConnector connector; // null while detached
+    private ServerConnector detachedFrom; // connector whose connection has been lost, only while detached
+    private boolean expired = false;
+
+    /**
+     * Creates a new session with a random token.
+     *
+     * @param username This is the username of the client.
+     * @param bufferSize This is the number of messages that are kept.
+     * @param connector This is the connector of the client.
+     */
+    ClientSession(String username, int bufferSize, ServerConnector connector){
+        this.username = username;
+        this.buffer = new Message<?>[bufferSize];
+        this.connector = connector;
+        byte[] bytes = new byte[16];
+        RANDOM.nextBytes(bytes);
+        char[] chars = new char[bytes.length * 2];
+        for(int i = 0; i < bytes.length; i++){
+            chars[i * 2] = HEX[(bytes[i] >> 4) & 0xF];
+            chars[i * 2 + 1] = HEX[bytes[i] & 0xF];
+        }
+        this.token = new String(chars);
+    }
+
+    /**
+     * Returns true if the message is numbered and kept.
+     *
+     * @param message This is the message.
+     * @return Returns true for chat messages.
+     */
+    static boolean isReplayable(Message<?> message){
+        return message.getMessageType() == Message.Type.DATA || message.getMessageType() == Message.Type.DATA_STRING;
+    }
+
+    /**
+     * Sends the message to the client. If it is a chat message it is numbered and kept first, so it is sent again if
+     * the client does not receive it. If session is detached only chat messages are kept and nothing is sent.
+     * If the outbound queue is full and sender has to wait for room, it waits without the lock of the session.
+     *
+     * @param message This is the message to be sent.
+     * @param shared This is the same message shared with other recipients or null.
+     * @throws IOException If a message that is not kept could not be sent.
+     */
+    void send(Message<?> message, SharedFrame shared) throws IOException{
+        boolean replayable = isReplayable(message);
+        long nanos = -1;
+        while(true){
+            ServerConnector full;
+            lock.lock();
+            try{
+                try{
+                    if(connector == null || connector.offer(connector.entry(message, shared))){
+                        if(replayable)
+                            keep(message);
+                        return;
+                    }
+                }catch(IOException e){
+                    if(!replayable)
+                        throw e;
+                    keep(message); // kept messages are sent again if client resumes the session
+                    return;
+                }
+                full = connector;
+            }finally{
+                lock.unlock();
+            }
+            try{
+                nanos = full.awaitRoom(nanos); // others may send meanwhile, their messages are numbered in the order they are queued
+            }catch(IOException e){
+                if(!replayable)
+                    throw e; // otherwise next try finds the connection closed and keeps the message
+            }
+        }
+    }
+
+    /**
+     * Puts the entry with chat messages in the outbound queue. They are numbered, but not kept, because they have
+     * been kept elsewhere (history or offline mailbox) and the client asks for them again if it needs them.
+     *
+     * @param entry This is the entry to be written.
+     * @param messages This is the number of chat messages in the entry.
+     * @throws IOException If entry could not be sent or session is detached.
+     */
+    void sendUnkept(OutboundQueue.Entry entry, int messages) throws IOException{
+        long nanos = -1;
+        while(true){
+            ServerConnector full;
+            lock.lock();
+            try{
+                if(connector == null)
+                    throw new SocketException("Session of " + username + " is detached"); // they stay where they were kept
+                if(connector.offer(entry)){
+                    for(int i = 0; i < messages; i++)
+                        keep(null);
+                    return;
+                }
+                full = connector;
+            }finally{
+                lock.unlock();
+            }
+            nanos = full.awaitRoom(nanos);
+        }
+    }
+
+    /**
+     * Sends {@link SystemEvent#SESSION} to the client with the number of chat messages sent so far, from which the client starts counting.
+     * It is sent right after login, so it does not wait for room in the outbound queue.
+     *
+     * @throws IOException If event could not be sent.
+     */
+    void sendToken() throws IOException{
+        lock.lock();
+        try{
+            if(connector != null)
+                connector.enqueue(connector.entry(event(sequence), null), false);
+        }finally{
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Detaches the session from the connector whose connection has been lost.
+     *
+     * @param lost This is the connector.
+     * @return Returns false if session does not belong to that connector anymore.
+     */
+    boolean detach(ServerConnector lost){
+        lock.lock();
+        try{
+            if(connector != lost || expired)
+                return false;
+            connector = null;
+            detachedFrom = lost;
+            return true;
+        }finally{
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Ends the session, if it has stayed detached from the same connector since it was detached.
+     *
+     * @param lost This is the connector the session was detached from.
+     * @return Returns true if session has ended now.
+     */
+    boolean expire(ServerConnector lost){
+        lock.lock();
+        try{
+            if(connector != null || detachedFrom != lost || expired)
+                return false;
+            expired = true;
+            detachedFrom = null;
+            return true;
+        }finally{
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Ends the session, because client has logged off or has been disconnected.
+     *
+     * @param owner This is the connector of the client.
+     * @return Returns false if session does not belong to that connector anymore.
+     */
+    boolean end(ServerConnector owner){
+        lock.lock();
+        try{
+            if(connector != owner || expired)
+                return false;
+            expired = true;
+            connector = null;
+            return true;
+        }finally{
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Attaches the session to the new connection of the client and sends the reply to its login, {@link SystemEvent#SESSION}
+     * and chat messages the client has not received. The outbound queue of the new connection is still empty, so they are
+     * put in it without waiting for room (client is disconnected if they do not fit).
+     *
+     * @param resumed This is the connector of the new connection.
+     * @param received This is the number of chat messages the client has received.
+     * @param reply This is {@link Message.Type#LOGIN_SUCCESSFUL}.
+     * @return Returns the number of messages that have been sent again or -1 if session has already ended or client claims it received more than it was sent.
+     * @throws IOException If messages could not be sent.
+     */
+    int resume(ServerConnector resumed, long received, Message<?> reply) throws IOException{
+        lock.lock();
+        try{
+            if(expired || received < 0 || received > sequence)
+                return -1;
+            connector = resumed;
+            detachedFrom = null;
+            resumed.enqueue(resumed.entry(reply, null), false);
+            long first = Math.max(received, sequence - buffer.length); // older messages are not kept anymore
+            ArrayList<Message<?>> missed = new ArrayList<>();
+            for(long i = first; i < sequence; i++){
+                Message<?> message = buffer[(int) (i % buffer.length)];
+                if(message != null) // messages that were not kept are skipped
+                    missed.add(message);
+            }
+            resumed.enqueue(resumed.entry(event(sequence - missed.size()), null), false); // client counts from there, so it ends at the same number as the session
+            for(Message<?> message: missed)
+                resumed.enqueue(resumed.entry(message, null), false);
+            return missed.size();
+        }finally{
+            lock.unlock();
+        }
+    }
+
+    // numbers the chat message, message is null if it is kept elsewhere
+    private void keep(Message<?> message){
+        buffer[(int) (sequence++ % buffer.length)] = message;
+    }
+
+    private Message<SystemEvent> event(long first){
+        return new Message<>("system", Message.Type.SYSTEM, new SystemEvent(SystemEvent.SESSION, token, Long.toString(first)), new String[]{username});
+    }
+}
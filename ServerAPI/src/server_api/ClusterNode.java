@@ -0,0 +1,589 @@
+package server_api;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Is used by the Server class to make it a node of a cluster of servers (see {@link PrivateServerPreferences#getClusterPort()}).<br>
+ * Every node owns connections of its own clients. Nodes are connected with each other by persistent links, over which
+ * they send the same frames as clients receive (see {@link FrameCodec}). A message for clients of another node is sent
+ * to that node only once, no matter how many of its clients receive it, and a message for everyone is sent once to every node.
+ * Nodes deliver relayed messages only to their own clients, so messages never travel further.<br>
+ * Every node keeps a directory of all usernames in the cluster and the node they belong to. When a client logs in,
+ * the node claims the username at all other nodes and waits for their answers. A node refuses the claim if the username
+ * belongs to someone else or if it is claiming the same username at the same moment and its id is smaller. A node that
+ * does not answer in {@value #CLAIM_TIMEOUT} ms is not waited for, so the cluster keeps working while a node is unreachable.
+ * Its answer is still expected until its link is closed, and if it refuses the claim too late, the client that has
+ * logged in meanwhile is disconnected. Failing the login instead would be safer, but then no client could log in for as
+ * long as a node that has stopped answering keeps its link open. Claims wait on Threads of the node (see {@link #execute(Runnable)})
+ * when the Thread that handles the login must not wait, like event loop Threads.
+ * When a link is lost, all usernames of that node are forgotten until it connects again and tells which clients it has.<br>
+ * Every link has its own reading and writing Thread. Nodes listed in preferences are connected to by Threads that
+ * connect again every {@value #RECONNECT_DELAY} ms while the link is down. If two nodes connect to each other at the
+ * same time, both keep the link opened by the node with smaller id.
+ *
+ * @author KRIKKI
+ * @version 1
+ * @since 17. 10. 2026
+ */
+final class ClusterNode {
+    private static final String HELLO = "node-hello"; // values: id of the node, usernames of its clients
+    private static final String CLAIM = "node-claim"; // values: id of the claim, username
+    private static final String CLAIM_REPLY = "node-claim-reply"; // values: id of the claim, true if username has been given
+    private static final String RELEASE = "node-release"; // values: username
+    private static final long CLAIM_TIMEOUT = 500; // in milliseconds
+    private static final long RECONNECT_DELAY = 1000; // in milliseconds
+    private static final int CONNECT_TIMEOUT = 1000; // in milliseconds
+    private static final int LINK_QUEUE_CAPACITY = 16 * 1024; // frames waiting to be written to a node
+
+    /**
+     * This is the id of this node. It is chosen at random whenever server starts.
+     */
+    final String id = UUID.randomUUID().toString();
+    private final Server server;
+    private final ServerSocket serverSocket;
+    private final ConcurrentHashMap<String, Link> links = new ConcurrentHashMap<>(); // by ids of nodes
+    private final HashMap<String, String> directory = new HashMap<>(); // ids of nodes by usernames, guarded by this
+    private final HashMap<String, Claim> claiming = new HashMap<>(); // claims of this node by usernames, guarded by this
+    private final HashMap<String, Claim> claims = new HashMap<>(); // claims of this node by their ids until all nodes answer, guarded by this
+    private final ExecutorService executor = VirtualThreads.newExecutor("server-cluster-claim-");
+    private final AtomicLong claimIds = new AtomicLong();
+    private final List<Thread> threads = Collections.synchronizedList(new ArrayList<Thread>());
+    private volatile boolean closed = false;
+
+    /**
+     * A username this node is claiming at other nodes.
+     */
+    private static final class Claim {
+        final String id;
+        final String username;
+        final HashSet<String> waiting; // nodes that have not answered yet, guarded by ClusterNode
+        final CountDownLatch replies;
+        boolean refused = false; // guarded by ClusterNode
+        boolean finished = false; // true once this node has stopped waiting, guarded by ClusterNode
+
+        Claim(String id, String username, List<String> nodes){
+            this.id = id;
+            this.username = username;
+            this.waiting = new HashSet<>(nodes);
+            this.replies = new CountDownLatch(nodes.size());
+        }
+    }
+
+    /**
+     * Starts listening for other nodes and connecting to the given ones.
+     *
+     * @param server This is the server of this node.
+     * @param port This is the port at which other nodes connect.
+     * @param nodes These are addresses of other nodes (host:port, separated by comma).
+     * @throws IOException If port could not be opened.
+     */
+    ClusterNode(Server server, int port, String nodes) throws IOException{
+        this.server = server;
+        this.serverSocket = new ServerSocket(port);
+        start(new Runnable() {
+            @Override
+            public void run() {
+                accept();
+            }
+        }, "server-cluster-accept");
+        for(String node: nodes.split(",")){
+            node = node.trim();
+            if(node.isEmpty())
+                continue;
+            int colon = node.lastIndexOf(':');
+            final InetSocketAddress address = InetSocketAddress.createUnresolved(node.substring(0, colon), Integer.parseInt(node.substring(colon + 1)));
+            start(new Runnable() {
+                @Override
+                public void run() {
+                    connect(address);
+                }
+            }, "server-cluster-" + node);
+        }
+    }
+
+    /**
+     * Stops listening, closes all links and stops all Threads of the node.
+     */
+    void close(){
+        closed = true;
+        try{
+            serverSocket.close();
+        }catch(IOException e){}
+        for(Link link: links.values())
+            link.close();
+        executor.shutdownNow();
+        synchronized(threads){
+            for(Thread thread: threads)
+                thread.interrupt();
+        }
+    }
+
+    /**
+     * Claims the username in the whole cluster. It waits for other nodes to answer, but not longer than {@value #CLAIM_TIMEOUT} ms.
+     * It must not be called on event loop Threads.
+     *
+     * @param username This is the username of the client that is logging in at this node.
+     * @return Returns false if username belongs to someone else.
+     */
+    boolean claim(String username){
+        Claim claim;
+        ArrayList<String> nodes = new ArrayList<>(links.keySet());
+        synchronized(this){
+            if(directory.containsKey(username) || claiming.containsKey(username))
+                return false;
+            claim = new Claim(id + "/" + claimIds.incrementAndGet(), username, nodes);
+            claiming.put(username, claim);
+            claims.put(claim.id, claim);
+        }
+        ByteBuffer frame = encode(CLAIM, claim.id, username);
+        for(String node: nodes){
+            Link link = links.get(node);
+            if(frame == null || link == null || !link.send(frame))
+                answered(claim, node);
+        }
+        try{
+            if(!claim.replies.await(CLAIM_TIMEOUT, TimeUnit.MILLISECONDS))
+                server.log(PrivateServerPreferences.LogCategory.SYSTEM, true, "[system]: Not all nodes have answered the claim of username ", username);
+        }catch(InterruptedException e){
+            Thread.currentThread().interrupt();
+        }
+        boolean refused;
+        synchronized(this){
+            claiming.remove(username);
+            claim.finished = true;
+            refused = claim.refused;
+            if(!refused)
+                directory.put(username, id);
+            if(claim.waiting.isEmpty())
+                claims.remove(claim.id); // otherwise nodes that are late can still refuse it
+        }
+        if(refused)
+            broadcast(encode(RELEASE, username)); // nodes that have given it forget it
+        return !refused;
+    }
+
+    /**
+     * Runs the task on a Thread of the node. It is used by connectors whose Thread must not wait for a claim.
+     *
+     * @param task This is the task.
+     * @return Returns false if node has been closed and task will not run.
+     */
+    boolean execute(Runnable task){
+        try{
+            executor.execute(task);
+            return true;
+        }catch(RejectedExecutionException e){
+            return false;
+        }
+    }
+
+    /**
+     * Gives up the username of the client of this node, because it has disconnected.
+     *
+     * @param username This is the username of the client.
+     */
+    void release(String username){
+        boolean released;
+        synchronized(this){
+            released = id.equals(directory.get(username));
+            if(released)
+                directory.remove(username);
+        }
+        if(released)
+            broadcast(encode(RELEASE, username));
+    }
+
+    /**
+     * Returns the node that owns the client.
+     *
+     * @param username This is the username of the client.
+     * @return Returns the id of the node or null if client is not connected to any other node.
+     */
+    synchronized String nodeOf(String username){
+        String node = directory.get(username);
+        return node == null || node.equals(id) ? null : node;
+    }
+
+    /**
+     * Sends the frame with the message to the node. It is delivered to clients of that node that are among its recipients.
+     *
+     * @param node This is the id of the node.
+     * @param frame This is the frame of the message.
+     */
+    void relay(String node, ByteBuffer frame){
+        Link link = links.get(node);
+        if(link != null)
+            link.send(frame);
+    }
+
+    /**
+     * Sends the frame with the message to all other nodes.
+     *
+     * @param frame This is the frame of the message.
+     */
+    void broadcast(ByteBuffer frame){
+        if(frame == null)
+            return;
+        for(Link link: links.values())
+            link.send(frame);
+    }
+
+    /**
+     * Returns ids of connected nodes with the number of their clients, like: 3f2a...: 12 clients.
+     *
+     * @return Returns descriptions of nodes.
+     */
+    List<String> describeNodes(){
+        HashMap<String, Integer> counts = new HashMap<>();
+        synchronized(this){
+            for(String node: directory.values()){
+                Integer count = counts.get(node);
+                counts.put(node, count == null ? 1 : count + 1);
+            }
+        }
+        ArrayList<String> nodes = new ArrayList<>();
+        for(Map.Entry<String, Link> entry: links.entrySet()){
+            Integer count = counts.get(entry.getKey());
+            nodes.add(entry.getKey() + " at " + entry.getValue().socket.getRemoteSocketAddress() + ": " + (count == null ? 0 : count) + " clients");
+        }
+        return nodes;
+    }
+
+    private void start(Runnable task, String name){
+        Thread thread = new Thread(task, name);
+        thread.setDaemon(true);
+        threads.add(thread);
+        thread.start();
+    }
+
+    private void accept(){
+        while(!closed){
+            final Socket socket;
+            try{
+                socket = serverSocket.accept();
+            }catch(IOException e){
+                if(!closed)
+                    server.log(PrivateServerPreferences.LogCategory.SYSTEM, true, "[system]: Cluster could not accept a node: ", e.getMessage());
+                continue;
+            }
+            start(new Runnable() {
+                @Override
+                public void run() {
+                    new Link(socket, false).run();
+                }
+            }, "server-cluster-" + socket.getRemoteSocketAddress());
+        }
+    }
+
+    // keeps the link to the node open, a link it has opened itself is kept instead if it is the one both nodes keep
+    private void connect(InetSocketAddress address){
+        String node = null; // id of the node, once it is known
+        while(!closed){
+            if(node == null || !links.containsKey(node)){
+                Socket socket = new Socket();
+                try{
+                    socket.connect(new InetSocketAddress(address.getHostString(), address.getPort()), CONNECT_TIMEOUT);
+                    Link link = new Link(socket, true);
+                    link.run();
+                    if(link.peer != null)
+                        node = link.peer;
+                }catch(IOException e){
+                    try{
+                        socket.close();
+                    }catch(IOException ex){}
+                }
+            }
+            try{
+                Thread.sleep(RECONNECT_DELAY);
+            }catch(InterruptedException e){
+                return;
+            }
+        }
+    }
+
+    private ByteBuffer encode(String name, String... values){
+        try{
+            return FrameCodec.encode(new Message<>("system", Message.Type.SYSTEM, new SystemEvent(name, values)), MessageCodec.VERSION); // Java serialization would turn the event into a String
+        }catch(IOException e){
+            server.log(PrivateServerPreferences.LogCategory.SYSTEM, true, "[system]: Message for nodes could not be encoded: ", e.getMessage());
+            return null;
+        }
+    }
+
+    // usernames of clients of this node, they are sent to every node that connects
+    private synchronized String[] hello(){
+        ArrayList<String> values = new ArrayList<>();
+        values.add(id);
+        for(Map.Entry<String, String> entry: directory.entrySet()){
+            if(entry.getValue().equals(id))
+                values.add(entry.getKey());
+        }
+        return values.toArray(new String[0]);
+    }
+
+    private void helloReceived(Link link, String[] values){
+        link.peer = values[0];
+        if(link.peer.equals(id)){ // node is connected to itself
+            link.close();
+            return;
+        }
+        String node = link.peer; // link.node can be cleared by a newer link of the same node meanwhile
+        link.node = node;
+        Link previous = links.putIfAbsent(node, link);
+        if(previous != null){
+            // both nodes keep the link opened by the node with smaller id, or the new one if the same node has opened both
+            boolean keepNew = (link.outgoing ? id : link.peer).compareTo(previous.outgoing ? id : previous.peer) <= 0;
+            if(!keepNew){
+                link.node = null;
+                link.close();
+                return;
+            }
+            links.put(node, link);
+            previous.node = null; // its closing must not remove usernames of the node
+            previous.close();
+        }
+        synchronized(this){
+            for(int i = 1; i < values.length; i++){
+                String owner = directory.get(values[i]);
+                if(owner != null && !owner.equals(node))
+                    server.log(PrivateServerPreferences.LogCategory.SYSTEM, true, "[system]: User ", values[i], " is connected to two nodes of the cluster");
+                else
+                    directory.put(values[i], node);
+            }
+        }
+        if(previous == null) // otherwise the node has only opened a new link
+            server.log(PrivateServerPreferences.LogCategory.CONNECTIONS, false, "[system]: Node ", link.peer, " has joined the cluster (", values.length - 1, " clients)");
+    }
+
+    private void claimReceived(Link link, String claimId, String username){
+        String node = link.node; // read once, a newer link of the same node can clear it meanwhile
+        if(node == null)
+            return; // link is being replaced, the node claims again through the new one if needed
+        boolean given;
+        synchronized(this){
+            String owner = directory.get(username);
+            Claim own = claiming.get(username);
+            if(owner != null && !owner.equals(node)){
+                given = false;
+            }else if(own != null && id.compareTo(node) < 0){
+                given = false; // both nodes are claiming it, the one with smaller id gets it
+            }else{
+                given = true;
+                directory.put(username, node);
+                if(own != null)
+                    own.refused = true; // it is set before the claim is finished, which also happens under this lock
+            }
+        }
+        ByteBuffer frame = encode(CLAIM_REPLY, claimId, Boolean.toString(given));
+        if(frame != null)
+            link.send(frame);
+    }
+
+    private void claimReplyReceived(Link link, String claimId, boolean given){
+        String node = link.peer; // an answer counts even if its link has been replaced by a newer one meanwhile
+        final Claim claim;
+        boolean late;
+        synchronized(this){
+            claim = claims.get(claimId);
+            if(claim == null || !claim.waiting.contains(node))
+                return;
+            late = !given && claim.finished && !claim.refused;
+            if(!given)
+                claim.refused = true;
+        }
+        answered(claim, node);
+        if(!late)
+            return;
+        server.log(PrivateServerPreferences.LogCategory.CONNECTIONS, true, "[system]: Node ", node, " has refused the claim of username ", claim.username, " too late, user will be disconnected");
+        execute(new Runnable() {
+            @Override
+            public void run() {
+                server.banClient(claim.username, "Username belongs to a client of another node"); // it also releases the username
+            }
+        });
+    }
+
+    // node has answered the claim or cannot answer anymore
+    private void answered(Claim claim, String node){
+        synchronized(this){
+            if(!claim.waiting.remove(node))
+                return;
+            if(claim.finished && claim.waiting.isEmpty())
+                claims.remove(claim.id);
+        }
+        claim.replies.countDown();
+    }
+
+    private synchronized void releaseReceived(Link link, String username){
+        String node = link.node;
+        if(node != null && node.equals(directory.get(username)))
+            directory.remove(username);
+    }
+
+    private void linkClosed(Link link){
+        String node = link.node;
+        if(node == null || !links.remove(node, link))
+            return;
+        int forgotten = 0;
+        ArrayList<Claim> pending;
+        synchronized(this){
+            for(Iterator<String> it = directory.values().iterator(); it.hasNext();){
+                if(it.next().equals(node)){
+                    it.remove();
+                    forgotten++;
+                }
+            }
+            pending = new ArrayList<>(claims.values());
+        }
+        for(Claim claim: pending)
+            answered(claim, node); // claims do not wait for it anymore
+        if(!closed)
+            server.log(PrivateServerPreferences.LogCategory.CONNECTIONS, true, "[system]: Node ", node, " has left the cluster (", forgotten, " clients)");
+    }
+
+    /**
+     * A link with another node. The Thread that runs it reads from the link, while its own Thread writes to it.
+     */
+    private final class Link implements Runnable {
+        final Socket socket;
+        final boolean outgoing; // true if this node has opened it
+        volatile String peer; // id of the other node, once it has said hello
+        volatile String node; // the same, but only while this is the link to that node
+        private final LinkedBlockingQueue<ByteBuffer> queue = new LinkedBlockingQueue<>(LINK_QUEUE_CAPACITY);
+        private volatile boolean dropping = false; // true while frames are thrown away, so it is only logged once
+
+        Link(Socket socket, boolean outgoing){
+            this.socket = socket;
+            this.outgoing = outgoing;
+        }
+
+        /**
+         * Puts the frame in the queue of the link. If the other node does not read fast enough, the frame is thrown away.
+         *
+         * @param frame This is the frame to be sent.
+         * @return Returns false if frame has been thrown away.
+         */
+        boolean send(ByteBuffer frame){
+            if(queue.offer(frame.duplicate())){
+                dropping = false;
+                return true;
+            }
+            if(!dropping){
+                dropping = true;
+                server.log(PrivateServerPreferences.LogCategory.SYSTEM, true, "[system]: Node ", node, " is not reading messages fast enough, messages for it are thrown away");
+            }
+            return false;
+        }
+
+        void close(){
+            try{
+                socket.close();
+            }catch(IOException e){}
+        }
+
+        @Override
+        public void run(){
+            Thread writer = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    write();
+                }
+            }, Thread.currentThread().getName() + "-writer");
+            writer.setDaemon(true);
+            try{
+                socket.setTcpNoDelay(true);
+                ByteBuffer hello = encode(HELLO, hello());
+                if(hello == null)
+                    return;
+                queue.offer(hello);
+                writer.start();
+                read();
+            }catch(IOException | ClassNotFoundException e){
+                // link has been lost or closed
+            }finally{
+                close();
+                writer.interrupt();
+                linkClosed(this);
+            }
+        }
+
+        private void read() throws IOException, ClassNotFoundException{
+            InputStream in = socket.getInputStream();
+            FrameReader reader = new FrameReader(0);
+            while(!closed){
+                ByteBuffer payload;
+                while((payload = reader.nextFrame()) == null){
+                    if(reader.read(in) < 0)
+                        return;
+                }
+                Message<?> message;
+                try{
+                    message = FrameCodec.decode(payload);
+                }catch(RuntimeException e){ // like a forged object that does not fit the type
+                    server.log(PrivateServerPreferences.LogCategory.SYSTEM, true, "[error]: Message from node ", peer, " could not be decoded and has been thrown away (", e, ")");
+                    continue;
+                }
+                Object object = message.getMessageObject();
+                if(message.getMessageType() == Message.Type.SYSTEM && object instanceof SystemEvent && ((SystemEvent) object).getName().startsWith("node-")){
+                    SystemEvent event = (SystemEvent) object;
+                    String[] values = event.getValues();
+                    if(event.getName().equals(HELLO) && values.length >= 1)
+                        helloReceived(this, values);
+                    else if(node == null)
+                        return; // node must say hello first
+                    else if(event.getName().equals(CLAIM) && values.length == 2)
+                        claimReceived(this, values[0], values[1]);
+                    else if(event.getName().equals(CLAIM_REPLY) && values.length == 2)
+                        claimReplyReceived(this, values[0], Boolean.parseBoolean(values[1]));
+                    else if(event.getName().equals(RELEASE) && values.length == 1)
+                        releaseReceived(this, values[0]);
+                }else if(node != null){
+                    server.relayed(message);
+                }
+            }
+        }
+
+        private void write(){
+            try{
+                OutputStream out = new BufferedOutputStream(socket.getOutputStream(), 64 * 1024);
+                while(true){
+                    ByteBuffer frame = queue.take();
+                    do{
+                        if(frame.hasArray()){
+                            out.write(frame.array(), frame.arrayOffset() + frame.position(), frame.remaining());
+                        }else{
+                            byte[] bytes = new byte[frame.remaining()];
+                            frame.get(bytes);
+                            out.write(bytes);
+                        }
+                    }while((frame = queue.poll()) != null); // everything that is waiting is written at once
+                    out.flush();
+                }
+            }catch(IOException | InterruptedException e){
+                close(); // reading Thread notices it
+            }
+        }
+    }
+}
@@ -0,0 +1,58 @@
+package server_api;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * An InputStream that counts bytes that have been read through it. It is used for measuring
+ * traffic of connections that use object streams.
+ *
+ * @author KRIKKI
+ * @version 1
+ * @since 17. 10. 2026
+ */
+final class CountingInputStream extends FilterInputStream {
+    private volatile long count = 0; // read by other Threads for reporting
+
+    /**
+     * Creates the stream.
+     *
+     * @param in This is the stream to read from.
+     */
+    CountingInputStream(InputStream in){
+        super(in);
+    }
+
+    @Override
+    public int read() throws IOException{
+        int b = in.read();
+        if(b >= 0)
+            count++;
+        return b;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException{
+        int n = in.read(b, off, len);
+        if(n > 0)
+            count += n;
+        return n;
+    }
+
+    @Override
+    public long skip(long n) throws IOException{
+        long skipped = in.skip(n);
+        count += skipped;
+        return skipped;
+    }
+
+    /**
+     * Returns the number of bytes read so far.
+     *
+     * @return Returns the number of bytes read.
+     */
+    long getCount(){
+        return count;
+    }
+}
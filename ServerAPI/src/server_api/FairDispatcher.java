@@ -0,0 +1,304 @@
+package server_api;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Is used by the Server class to deliver messages of clients to other clients on its own Threads, instead of on the Thread
+ * that has received them (see {@link PrivateServerPreferences#getDispatchThreads()}).<br>
+ * Every sender has its own queue and senders take turns with deficit round robin: in every turn a sender may deliver
+ * messages worth {@link PrivateServerPreferences#getDispatchQuantum()} bytes times its weight, and what it has not used is kept
+ * for its next turn only while it still has messages waiting. A client that floods the server therefore gets the same share
+ * of these Threads as any other and messages of quiet clients wait for at most one turn of every busy sender.<br>
+ * Work of the server itself (like presence changes) is in a separate queue that is always taken first.
+ * How long messages have waited is recorded for every sender (see {@link Lane#getDelay(int)}).
+ *
+ * @author KRIKKI
+ * @version 1
+ * @since 17. 10. 2026
+ */
+final class FairDispatcher {
+    private static final ThreadLocal<Boolean> DISPATCH_THREAD = new ThreadLocal<>();
+
+    private final Thread[] threads;
+    private final int quantum;
+    private final int queueLimit;
+    // a lock instead of synchronized, so virtual Threads that wait for room do not pin their carriers
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition(); // work has been added
+    private final Condition notFull = lock.newCondition(); // work has been taken from a sender
+    private final Condition idle = lock.newCondition(); // work has been done
+    // everything below is guarded by lock
+    private final ArrayDeque<Task> system = new ArrayDeque<>();
+    private final ArrayDeque<Lane> ring = new ArrayDeque<>(); // senders that have messages and are not being served
+    private int running = 0; // tasks being executed at the moment
+    private boolean closed = false;
+
+    private static final class Task {
+        private final Runnable work;
+        private final long cost;
+        private final long queued = System.nanoTime();
+
+        private Task(Runnable work, long cost){
+            this.work = work;
+            this.cost = cost;
+        }
+    }
+
+    /**
+     * This is the queue of a single sender together with the delays its messages have had.
+     * Delays are counted in buckets of powers of 2 microseconds.
+     */
+    static final class Lane {
+        private final ArrayDeque<Task> tasks = new ArrayDeque<>(); // guarded by the lock of the dispatcher
+        private long deficit = 0;
+        private int weight = 1;
+        private boolean active = false; // in the ring or being served
+        private final long[] buckets = new long[40]; // guarded by this
+        private long count = 0;
+        private long maxDelay = 0;
+
+        private synchronized void record(long delayNanos){
+            long micros = delayNanos / 1000;
+            buckets[Math.min(buckets.length - 1, 64 - Long.numberOfLeadingZeros(micros))]++;
+            count++;
+            if(micros > maxDelay)
+                maxDelay = micros;
+        }
+
+        /**
+         * Returns how long messages of the sender have waited to be delivered. The result is an upper bound
+         * (rounded up to a power of 2), except for the maximum which is exact.
+         *
+         * @param percentile This is the percentile (from 1 to 100).
+         * @return Returns the delay in microseconds or -1 if no message has been delivered yet.
+         */
+        synchronized long getDelay(int percentile){
+            if(count == 0)
+                return -1;
+            if(percentile >= 100)
+                return maxDelay;
+            long rank = (count * percentile + 99) / 100; // how many delays must be below the result
+            long seen = 0;
+            for(int i = 0; i < buckets.length; i++){
+                seen += buckets[i];
+                if(seen >= rank)
+                    return Math.min(maxDelay, i == 0 ? 0 : 1L << i);
+            }
+            return maxDelay;
+        }
+    }
+
+    /**
+     * Creates the dispatcher and starts its Threads.
+     *
+     * @param threads This is the number of Threads.
+     * @param quantum This is the number of bytes a sender with weight 1 may deliver in a turn.
+     * @param queueLimit This is the number of messages that can wait in the queue of a sender.
+     */
+    FairDispatcher(int threads, int quantum, int queueLimit){
+        this.quantum = quantum;
+        this.queueLimit = queueLimit;
+        this.threads = new Thread[threads];
+        for(int i = 0; i < threads; i++){
+            this.threads[i] = new Thread(new Runnable() {
+                @Override
+                public void run(){
+                    work();
+                }
+            }, "server-dispatch-" + i);
+            this.threads[i].setDaemon(true);
+            this.threads[i].start();
+        }
+    }
+
+    /**
+     * Returns true if called from a Thread of a dispatcher.
+     *
+     * @return Returns true if current Thread belongs to a dispatcher.
+     */
+    static boolean isDispatchThread(){
+        return DISPATCH_THREAD.get() != null;
+    }
+
+    /**
+     * Adds the work to the queue of the sender. Work of the same sender is done in the same order as it has been added.
+     *
+     * @param lane This is the queue of the sender.
+     * @param weight This is the weight of the sender (at least 1), its turns are that many times longer.
+     * @param cost This is the size of the message in bytes.
+     * @param work This is the work.
+     * @param wait This is true if caller can wait while the queue of the sender is full.
+     * @return Returns false if the queue is full and caller cannot wait, or dispatcher has been closed.
+     */
+    boolean dispatch(Lane lane, int weight, long cost, Runnable work, boolean wait){
+        lock.lock();
+        try{
+            while(!closed && lane.tasks.size() >= queueLimit){
+                if(!wait)
+                    return false;
+                try{
+                    notFull.await();
+                }catch(InterruptedException e){
+                    Thread.currentThread().interrupt();
+                    return false;
+                }
+            }
+            if(closed)
+                return false;
+            lane.tasks.add(new Task(work, cost));
+            lane.weight = Math.max(1, weight);
+            if(!lane.active){
+                lane.active = true;
+                ring.add(lane);
+                notEmpty.signal();
+            }
+            return true;
+        }finally{
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Adds work of the server itself. It is done before work of any sender.
+     *
+     * @param work This is the work.
+     * @return Returns false if dispatcher has been closed.
+     */
+    boolean dispatchSystem(Runnable work){
+        lock.lock();
+        try{
+            if(closed)
+                return false;
+            system.add(new Task(work, 0));
+            notEmpty.signal();
+            return true;
+        }finally{
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the number of messages of the sender that are waiting to be delivered.
+     *
+     * @param lane This is the queue of the sender.
+     * @return Returns the number of messages.
+     */
+    int getQueued(Lane lane){
+        lock.lock();
+        try{
+            return lane.tasks.size();
+        }finally{
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Waits until all queued work has been done or time runs out. Work added meanwhile is waited for as well.
+     *
+     * @param deadline This is the value of {@link System#nanoTime()} when it stops waiting.
+     * @return Returns true if nothing is left.
+     */
+    boolean awaitIdle(long deadline){
+        lock.lock();
+        try{
+            while(!system.isEmpty() || !ring.isEmpty() || running > 0){
+                long left = deadline - System.nanoTime();
+                if(left <= 0 || closed)
+                    return false;
+                try{
+                    idle.awaitNanos(left);
+                }catch(InterruptedException e){
+                    Thread.currentThread().interrupt();
+                    return false;
+                }
+            }
+            return true;
+        }finally{
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Stops the Threads. Work that has not been done yet is forgotten, since server is stopping.
+     */
+    void close(){
+        lock.lock();
+        try{
+            closed = true;
+            system.clear();
+            ring.clear();
+            notEmpty.signalAll();
+            notFull.signalAll();
+            idle.signalAll();
+        }finally{
+            lock.unlock();
+        }
+        for(Thread thread: threads)
+            thread.interrupt();
+    }
+
+    private void work(){
+        DISPATCH_THREAD.set(Boolean.TRUE);
+        ArrayDeque<Task> batch = new ArrayDeque<>();
+        while(true){
+            Lane lane;
+            lock.lock();
+            try{
+                while(!closed && system.isEmpty() && ring.isEmpty()){
+                    try{
+                        notEmpty.await();
+                    }catch(InterruptedException e){}
+                }
+                if(closed)
+                    return;
+                if(!system.isEmpty()){
+                    batch.add(system.poll());
+                    lane = null;
+                }else{
+                    lane = ring.poll();
+                    lane.deficit += (long) quantum * lane.weight;
+                    Task task;
+                    while((task = lane.tasks.peek()) != null && task.cost <= lane.deficit){
+                        lane.deficit -= task.cost;
+                        batch.add(lane.tasks.poll());
+                    }
+                    if(!lane.tasks.isEmpty() && batch.size() > 0)
+                        notFull.signalAll(); // senders waiting for room
+                }
+                running += batch.size();
+            }finally{
+                lock.unlock();
+            }
+            // a sender is not in the ring while it is served, so its messages are never delivered by two Threads at once
+            for(Task task: batch){
+                if(lane != null)
+                    lane.record(System.nanoTime() - task.queued);
+                try{
+                    task.work.run();
+                }catch(RuntimeException e){
+                    e.printStackTrace(System.err);
+                }
+            }
+            lock.lock();
+            try{
+                running -= batch.size();
+                batch.clear();
+                if(lane != null){
+                    if(lane.tasks.isEmpty()){
+                        lane.deficit = 0; // unused deficit is not kept by senders that have nothing to send
+                        lane.active = false;
+                    }else if(!closed){
+                        ring.add(lane);
+                        notEmpty.signal();
+                    }
+                    notFull.signalAll();
+                }
+                idle.signalAll();
+            }finally{
+                lock.unlock();
+            }
+        }
+    }
+}
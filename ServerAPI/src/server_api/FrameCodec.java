@@ -0,0 +1,152 @@
+package server_api;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.StreamCorruptedException;
+import java.nio.ByteBuffer;
+
+/**
+ * Encodes and decodes {@link Message} objects for framed protocol.<br>
+ * Every frame consists of 4 bytes that define the length of the payload, followed by the payload,
+ * which is a {@link Message} serialized through its own object stream. Frames therefore do not share
+ * any handles and can be decoded independently of each other. Payload is written either by Java serialization
+ * or in binary format of {@link MessageCodec}, decoding recognizes both.<br>
+ * The first message sent by {@link Server} ({@link Message.Type#PREFERENCES}) is always sent through an ordinary
+ * object stream (see {@link #encodeHandshake(Message)}), so {@link Client} can read it before it knows
+ * which protocol is used.
+ *
+ * @author KRIKKI
+ * @version 1
+ * @since 17. 10. 2026
+ */
+final class FrameCodec {
+    /**
+     * This is the number of bytes in front of every payload that define its length.
+     */
+    static final int HEADER_LENGTH = 4;
+    /**
+     * This is the number of bytes that {@link ObjectOutputStream} writes when it is created.
+     * The other side has to skip them before it starts reading frames.
+     */
+    static final int STREAM_HEADER_LENGTH = 4;
+    /**
+     * Frames with payload longer than this are considered corrupted.
+     */
+    static final int MAX_FRAME_LENGTH = 16 * 1024 * 1024;
+
+    private FrameCodec(){
+    }
+
+    /**
+     * Serializes the message and returns a buffer containing the whole frame (length and payload)
+     * that is ready for writing.
+     *
+     * @param message This is the message to be encoded.
+     * @return Returns a buffer positioned at the beginning of the frame.
+     * @throws IOException If message could not be serialized.
+     */
+    static ByteBuffer encode(Message<?> message) throws IOException{
+        return encode(message, MessageCodec.JAVA_SERIALIZATION);
+    }
+
+    /**
+     * Encodes the message in given version of binary format or by Java serialization, and returns a buffer
+     * containing the whole frame (length and payload) that is ready for writing.
+     *
+     * @param message This is the message to be encoded.
+     * @param codecVersion This is the version of {@link MessageCodec} or {@link MessageCodec#JAVA_SERIALIZATION}.
+     * @return Returns a buffer positioned at the beginning of the frame.
+     * @throws IOException If message could not be encoded.
+     */
+    static ByteBuffer encode(Message<?> message, int codecVersion) throws IOException{
+        if(codecVersion < MessageCodec.SYSTEM_EVENTS)
+            message = SystemEvent.toLegacy(message);
+        FrameOutputStream bytes = new FrameOutputStream();
+        if(codecVersion == MessageCodec.JAVA_SERIALIZATION){
+            try(ObjectOutputStream out = new ObjectOutputStream(bytes)){
+                out.writeObject(message);
+            }
+        }else{
+            MessageCodec.write(message, codecVersion, bytes);
+        }
+        return bytes.toFrame();
+    }
+
+    /**
+     * Decodes the payload of a single frame. Buffer must be positioned at the beginning of the payload and
+     * its limit must be set at the end of it.
+     *
+     * @param payload This is the buffer with payload.
+     * @return Returns the decoded message.
+     * @throws IOException If payload could not be read.
+     * @throws ClassNotFoundException If payload carries an object of unknown class.
+     */
+    static Message<?> decode(ByteBuffer payload) throws IOException, ClassNotFoundException{
+        if(MessageCodec.isBinary(payload))
+            return MessageCodec.read(payload.slice());
+        byte[] bytes;
+        int offset;
+        if(payload.hasArray()){
+            bytes = payload.array();
+            offset = payload.arrayOffset() + payload.position();
+        }else{
+            bytes = new byte[payload.remaining()];
+            payload.duplicate().get(bytes);
+            offset = 0;
+        }
+        try(ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes, offset, payload.remaining()))){
+            return (Message<?>) in.readObject();
+        }catch(ClassCastException e){
+            throw new StreamCorruptedException("Frame does not carry a Message");
+        }
+    }
+
+    /**
+     * Returns the bytes of an ordinary object stream (its header followed by the message) that are used
+     * for the first message sent by {@link Server}.
+     *
+     * @param message This is the message to be encoded.
+     * @return Returns a buffer with the header of the object stream and the message.
+     * @throws IOException If message could not be serialized.
+     */
+    static ByteBuffer encodeHandshake(Message<?> message) throws IOException{
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(512);
+        try(ObjectOutputStream out = new ObjectOutputStream(bytes)){
+            out.writeObject(message);
+        }
+        return ByteBuffer.wrap(bytes.toByteArray());
+    }
+
+    /**
+     * Checks the length read from the header of a frame.
+     *
+     * @param length This is the length of the payload.
+     * @return Returns the same length.
+     * @throws StreamCorruptedException If length is negative or too big.
+     */
+    static int checkLength(int length) throws StreamCorruptedException{
+        if(length < 0 || length > MAX_FRAME_LENGTH)
+            throw new StreamCorruptedException("Illegal frame length ("+length+")");
+        return length;
+    }
+
+    /**
+     * A ByteArrayOutputStream that leaves space for the header at the beginning, so that the frame
+     * does not need to be copied once the payload is written.
+     */
+    private static class FrameOutputStream extends ByteArrayOutputStream{
+        FrameOutputStream(){
+            super(256);
+            count = HEADER_LENGTH;
+        }
+
+        ByteBuffer toFrame(){
+            ByteBuffer frame = ByteBuffer.wrap(buf, 0, count);
+            frame.putInt(0, count - HEADER_LENGTH);
+            return frame;
+        }
+    }
+}
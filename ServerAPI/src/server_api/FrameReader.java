@@ -0,0 +1,183 @@
+package server_api;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+
+/**
+ * Splits incoming bytes into frames (see {@link FrameCodec}).<br>
+ * Bytes are read in big chunks, so one read usually brings several small frames, and every frame is returned as a
+ * view of the buffer instead of a copy. Only the beginning of a frame that has not arrived completely is moved to the
+ * front of the buffer before more is read.<br>
+ * Reader either takes buffers from a {@link BufferPool} (for channels) and gives them back whenever it has no data,
+ * or uses a single heap buffer of its own (for streams).
+ *
+ * @author KRIKKI
+ * @version 1
+ * @since 17. 10. 2026
+ */
+final class FrameReader {
+    private static final int STREAM_BUFFER_SIZE = 8 * 1024;
+
+    private final BufferPool pool; // null if reading from a stream
+    private ByteBuffer buffer; // data is between start and position
+    private int start = 0;
+    private int skip;
+    private volatile long bytesRead = 0; // read by other Threads for reporting
+
+    /**
+     * Creates a reader that uses buffers from the pool. It is meant for reading from channels.
+     *
+     * @param pool This is the pool of buffers.
+     * @param skip This is the number of bytes at the beginning that are not part of any frame.
+     */
+    FrameReader(BufferPool pool, int skip){
+        this.pool = pool;
+        this.skip = skip;
+    }
+
+    /**
+     * Creates a reader with its own heap buffer. It is meant for reading from streams.
+     *
+     * @param skip This is the number of bytes at the beginning that are not part of any frame.
+     */
+    FrameReader(int skip){
+        this.pool = null;
+        this.skip = skip;
+        this.buffer = ByteBuffer.allocate(STREAM_BUFFER_SIZE);
+    }
+
+    /**
+     * Reads as many bytes from the channel as there is room for.
+     *
+     * @param channel This is the channel to read from.
+     * @return Returns the number of bytes read or -1 at the end of the stream.
+     * @throws IOException If reading failed.
+     */
+    int read(ReadableByteChannel channel) throws IOException{
+        prepareRead();
+        int n = channel.read(buffer);
+        if(n > 0)
+            bytesRead += n;
+        return n;
+    }
+
+    /**
+     * Reads as many bytes from the stream as are available and there is room for. It blocks until at least one byte is read.
+     *
+     * @param in This is the stream to read from.
+     * @return Returns the number of bytes read or -1 at the end of the stream.
+     * @throws IOException If reading failed.
+     */
+    int read(InputStream in) throws IOException{
+        prepareRead();
+        int n = in.read(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+        if(n > 0){
+            buffer.position(buffer.position() + n);
+            bytesRead += n;
+        }
+        return n;
+    }
+
+    /**
+     * Returns the payload of the next complete frame. Returned buffer is a view of the reader's buffer,
+     * so it must not be used after any other method of the reader is called.
+     *
+     * @return Returns the payload or null if the next frame has not arrived completely yet.
+     * @throws IOException If length of the frame is not valid.
+     */
+    ByteBuffer nextFrame() throws IOException{
+        if(buffer == null)
+            return null;
+        int available = buffer.position() - start;
+        if(skip > 0){
+            int n = Math.min(skip, available);
+            start += n;
+            skip -= n;
+            available -= n;
+        }
+        if(available < FrameCodec.HEADER_LENGTH){
+            if(available == 0)
+                empty();
+            return null;
+        }
+        int length = FrameCodec.checkLength(buffer.getInt(start));
+        int frameLength = FrameCodec.HEADER_LENGTH + length;
+        if(available < frameLength){
+            makeRoom(frameLength);
+            return null;
+        }
+        ByteBuffer payload = buffer.duplicate();
+        payload.limit(start + frameLength);
+        payload.position(start + FrameCodec.HEADER_LENGTH);
+        start += frameLength;
+        return payload;
+    }
+
+    /**
+     * Returns the number of bytes read so far.
+     *
+     * @return Returns the number of bytes read.
+     */
+    long getBytesRead(){
+        return bytesRead;
+    }
+
+    /**
+     * Gives the buffer back to the pool. Reader must not be used after that.
+     */
+    void close(){
+        if(pool != null){
+            pool.release(buffer);
+            buffer = null;
+        }
+    }
+
+    private void prepareRead(){
+        if(buffer == null){
+            buffer = pool.acquire();
+            start = 0;
+        }else if(!buffer.hasRemaining()){
+            compact();
+        }
+    }
+
+    // there is no data left, pooled buffer is not needed until more arrives
+    private void empty(){
+        start = 0;
+        if(pool != null){
+            pool.release(buffer);
+            buffer = null;
+        }else if(buffer.capacity() > STREAM_BUFFER_SIZE){ // do not keep the memory of a big frame
+            buffer = ByteBuffer.allocate(STREAM_BUFFER_SIZE);
+        }else{
+            buffer.clear();
+        }
+    }
+
+    // the rest of the frame must fit in the buffer
+    private void makeRoom(int frameLength){
+        if(start + frameLength <= buffer.capacity())
+            return;
+        if(frameLength <= buffer.capacity()){
+            compact();
+            return;
+        }
+        ByteBuffer bigger = pool != null ? pool.acquire(frameLength) : ByteBuffer.allocate(frameLength);
+        buffer.flip();
+        buffer.position(start);
+        bigger.put(buffer);
+        if(pool != null)
+            pool.release(buffer);
+        buffer = bigger;
+        start = 0;
+    }
+
+    private void compact(){
+        buffer.flip();
+        buffer.position(start);
+        buffer.compact();
+        start = 0;
+    }
+}
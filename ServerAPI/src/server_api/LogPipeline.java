@@ -0,0 +1,178 @@
+package server_api;
+
+import java.net.InetAddress;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Is used by the Server class to print what is happening without making the Threads that handle clients wait for
+ * the output (console or GUI).<br>
+ * Lines are put in a ring buffer as parts (like "[", port, "]: ", message) that have not been joined yet. A single
+ * background Thread takes them out, joins them and passes consecutive lines at once to {@link Server#println(String)}
+ * or {@link Server#errPrintln(String)}. The buffer has a fixed size and never blocks: any number of Threads can add
+ * lines without locks, and when the buffer is full new lines are dropped and counted instead.
+ *
+ * @author KRIKKI
+ * @version 1
+ * @since 17. 10. 2026
+ */
+final class LogPipeline implements Runnable {
+    private static final int MAX_BATCH = 256; // lines passed to a single println
+    private static final long IDLE_NANOS = 100000000L;
+
+    private final Server server;
+    private final int mask;
+    // slot i can be written when its sequence equals the position being written and read when it is one more
+    private final AtomicLongArray sequences;
+    private final Object[][] lines;
+    private final boolean[] errors;
+    private final AtomicLong tail = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private final StringBuilder builder = new StringBuilder(1024); // only used by the background Thread
+    private final Thread thread;
+    private long head = 0; // only used by the background Thread
+    private volatile boolean running = true;
+    private volatile boolean sleeping = false;
+
+    /**
+     * Creates the pipeline and starts its Thread.
+     *
+     * @param server This is the server that prints the lines.
+     * @param capacity This is the number of lines that can wait to be printed. It must be a power of 2.
+     */
+    LogPipeline(Server server, int capacity){
+        this.server = server;
+        this.mask = capacity - 1;
+        this.sequences = new AtomicLongArray(capacity);
+        for(int i = 0; i < capacity; i++)
+            sequences.set(i, i);
+        this.lines = new Object[capacity][];
+        this.errors = new boolean[capacity];
+        this.thread = new Thread(this, "server-log");
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+
+    /**
+     * Adds the line to the buffer. It never waits.
+     *
+     * @param error This is true if line should be printed with {@link Server#errPrintln(String)}.
+     * @param parts These are the parts of the line.
+     * @return Returns false if pipeline has been closed. If it is only full, line is dropped and counted.
+     */
+    boolean offer(boolean error, Object[] parts){
+        if(!running)
+            return false;
+        long position = tail.get();
+        while(true){
+            int index = (int) (position & mask);
+            long difference = sequences.get(index) - position;
+            if(difference == 0){
+                if(tail.compareAndSet(position, position + 1))
+                    break;
+                position = tail.get();
+            }else if(difference < 0){ // the slot from the previous round has not been read yet
+                dropped.incrementAndGet();
+                return true;
+            }else{
+                position = tail.get();
+            }
+        }
+        int index = (int) (position & mask);
+        lines[index] = parts;
+        errors[index] = error;
+        sequences.lazySet(index, position + 1); // publishes the line
+        if(sleeping)
+            LockSupport.unpark(thread);
+        return true;
+    }
+
+    /**
+     * Returns the number of lines that were dropped because the buffer was full.
+     *
+     * @return Returns the number of dropped lines.
+     */
+    long getDropped(){
+        return dropped.get();
+    }
+
+    /**
+     * Prints the lines that are still in the buffer and stops the Thread. Lines added after that are refused.
+     */
+    void close(){
+        running = false;
+        LockSupport.unpark(thread);
+        try{
+            thread.join(1000);
+        }catch(InterruptedException e){
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Joins parts of the line.
+     *
+     * @param parts These are the parts of the line.
+     * @return Returns the line.
+     */
+    static String format(Object[] parts){
+        StringBuilder sb = new StringBuilder();
+        append(sb, parts);
+        return sb.toString();
+    }
+
+    private static void append(StringBuilder sb, Object[] parts){
+        for(Object part: parts){
+            if(part instanceof InetAddress) // host name may need a lookup, so it is done here
+                sb.append(((InetAddress) part).getHostName());
+            else
+                sb.append(part);
+        }
+    }
+
+    private boolean hasNext(){
+        return sequences.get((int) (head & mask)) == head + 1;
+    }
+
+    @Override
+    public void run(){
+        while(true){
+            if(hasNext()){
+                printBatch();
+                continue;
+            }
+            if(!running && !hasNext())
+                return;
+            sleeping = true;
+            if(!hasNext() && running)
+                LockSupport.parkNanos(this, IDLE_NANOS);
+            sleeping = false;
+        }
+    }
+
+    // prints consecutive lines of the same kind with a single call
+    private void printBatch(){
+        builder.setLength(0);
+        int index = (int) (head & mask);
+        boolean error = errors[index];
+        int count = 0;
+        while(count < MAX_BATCH && hasNext() && errors[index = (int) (head & mask)] == error){
+            Object[] parts = lines[index];
+            lines[index] = null;
+            sequences.lazySet(index, head + mask + 1); // slot can be used in the next round
+            head++;
+            if(count++ > 0)
+                builder.append('\n');
+            append(builder, parts);
+        }
+        try{
+            if(error)
+                server.errPrintln(builder.toString());
+            else
+                server.println(builder.toString());
+        }catch(RuntimeException e){
+            e.printStackTrace(System.err);
+        }
+    }
+}
@@ -0,0 +1,119 @@
+package server_api;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+
+/**
+ * An {@link ObjectOutputStream} that does not keep references to everything it has ever written.<br>
+ * ObjectOutputStream remembers every object it writes, so it can write a short handle instead if the same object
+ * is written again. On a connection that lives for days that means every {@link Message} ever sent stays in memory.
+ * This stream calls {@link #reset()} after given number of messages or bytes, which makes both this stream and the
+ * {@link java.io.ObjectInputStream} on the other side forget them.<br>
+ * Objects must be written with {@link #writeMessage(Object)} for resets to happen.
+ *
+ * @author KRIKKI
+ * @version 1
+ * @since 17. 10. 2026
+ */
+final class ManagedObjectOutputStream extends ObjectOutputStream {
+    /**
+     * This is the default number of messages after which the stream is reset.
+     */
+    static final int DEFAULT_RESET_MESSAGES = 100;
+    /**
+     * This is the default number of bytes after which the stream is reset.
+     */
+    static final int DEFAULT_RESET_BYTES = 1024 * 1024;
+
+    private final CountingOutputStream counter;
+    private final int resetMessages;
+    private final long resetBytes;
+    // these are read by other Threads for reporting
+    private volatile int messagesSinceReset = 0;
+    private volatile long bytesAtReset = 0;
+
+    /**
+     * Creates the stream and writes its header.
+     *
+     * @param out This is the stream to write to.
+     * @param resetMessages This is the number of messages after which the stream is reset. If it equals 0, messages are not counted.
+     * @param resetBytes This is the number of bytes after which the stream is reset. If it equals 0, bytes are not counted.
+     * @throws IOException If header could not be written.
+     */
+    ManagedObjectOutputStream(OutputStream out, int resetMessages, long resetBytes) throws IOException{
+        this(new CountingOutputStream(out), resetMessages, resetBytes);
+    }
+
+    private ManagedObjectOutputStream(CountingOutputStream counter, int resetMessages, long resetBytes) throws IOException{
+        super(counter);
+        this.counter = counter;
+        this.resetMessages = resetMessages;
+        this.resetBytes = resetBytes;
+    }
+
+    /**
+     * Writes the object and resets the stream if it has written enough messages or bytes since the last reset.
+     *
+     * @param obj This is the object to be written.
+     * @throws IOException If object could not be written.
+     */
+    void writeMessage(Object obj) throws IOException{
+        writeObject(obj);
+        messagesSinceReset++;
+        if((resetMessages > 0 && messagesSinceReset >= resetMessages) || (resetBytes > 0 && getRetainedBytes() >= resetBytes)){
+            reset();
+            messagesSinceReset = 0;
+            bytesAtReset = counter.count;
+        }
+    }
+
+    /**
+     * Returns the number of bytes written since the last reset. Objects written in that time are still
+     * referenced by the stream, so this is an estimate of memory the stream is holding.
+     *
+     * @return Returns the number of bytes since the last reset.
+     */
+    long getRetainedBytes(){
+        return counter.count - bytesAtReset;
+    }
+
+    /**
+     * Returns the number of bytes written so far.
+     *
+     * @return Returns the number of bytes written.
+     */
+    long getBytesWritten(){
+        return counter.count;
+    }
+
+    /**
+     * Returns the number of messages written since the last reset.
+     *
+     * @return Returns the number of messages since the last reset.
+     */
+    int getRetainedMessages(){
+        return messagesSinceReset;
+    }
+
+    private static final class CountingOutputStream extends FilterOutputStream {
+        private volatile long count = 0;
+
+        CountingOutputStream(OutputStream out){
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException{
+            out.write(b);
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException{
+            out.write(b, off, len);
+            count += len;
+        }
+    }
+}
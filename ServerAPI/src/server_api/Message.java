@@ -1,7 +1,11 @@
 package server_api;
 
+import java.io.IOException;
+import java.io.InvalidObjectException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamField;
 import java.io.Serializable;
-import java.text.SimpleDateFormat;
 import java.util.Arrays;
 import java.util.Calendar;
 
@@ -66,15 +70,34 @@ public class Message<T> implements Serializable{
          * It is used for exchanging objects other than String between Clients and/or Server, if you send String with Type set to DATA,
          * it will change automatically convert Type to {@link Type#DATA_STRING}.
          */
-        DATA;
+        DATA,
+        /**
+         * It is sent by Server every now and then to check that the connection still works. The object is the time of sending,
+         * which the receiver returns unchanged in a message of type {@link Type#PONG}. It is only sent to clients that support it.
+         */
+        PING,
+        /**
+         * It is the reply to {@link Type#PING} and carries the same object.
+         */
+        PONG;
     }
     
     private static final long serialVersionUID = 0x602E23;
-    private final T messageObject; 
-    private final String messageSender;
-    private final Type messageType;
-    private final String[] recipients;
-    private final Calendar timeSent;
+    // timeSent is still written as Calendar, so that older clients and servers can read messages and the other way around
+    private static final ObjectStreamField[] serialPersistentFields = {
+        new ObjectStreamField("messageObject", Object.class),
+        new ObjectStreamField("messageSender", String.class),
+        new ObjectStreamField("messageType", Type.class),
+        new ObjectStreamField("recipients", String[].class),
+        new ObjectStreamField("timeSent", Calendar.class),
+        new ObjectStreamField("replyAllowed", boolean.class)
+    };
+    // fields are not final only because readObject sets them
+    private T messageObject; 
+    private String messageSender;
+    private Type messageType;
+    private String[] recipients;
+    private long timeSent; // milliseconds since epoch
     private boolean replyAllowed;
     // replyAllowed je zato da se ne bi zgodil, da bi nekdo poslou sporočilo nekomu, ki ne obstaja in se takoj zatem odjavil, potem pa bi dobil nazaj sporočilo
     // da je prejemnik ne obstaja ampak tudi prvotni pošiljatelj ne bi več in bi prišlo do zanke
@@ -92,7 +115,7 @@ public class Message<T> implements Serializable{
         this.messageSender = messageSender;
         this.recipients = null;
         this.replyAllowed = true;
-        this.timeSent = Calendar.getInstance();
+        this.timeSent = System.currentTimeMillis();
         
         if(String.class.isInstance(messageObject) && messageType == Type.DATA){
             messageType = Type.DATA_STRING;
@@ -116,7 +139,7 @@ public class Message<T> implements Serializable{
         this.messageSender = messageSender;
         this.recipients = recipients;
         this.replyAllowed = true;
-        this.timeSent = Calendar.getInstance();
+        this.timeSent = System.currentTimeMillis();
         
         if(String.class.isInstance(messageObject) && messageType == Type.DATA){
             messageType = Type.DATA_STRING;
@@ -141,7 +164,7 @@ public class Message<T> implements Serializable{
         this.messageSender = messageSender;
         this.recipients = recipients;
         this.replyAllowed = replyAllowed;
-        this.timeSent = Calendar.getInstance();
+        this.timeSent = System.currentTimeMillis();
         
         if(String.class.isInstance(messageObject) && messageType == Type.DATA){
             messageType = Type.DATA_STRING;
@@ -150,6 +173,29 @@ public class Message<T> implements Serializable{
             throw new ServerException("Message is not String, but message Type was defined to be String");
         }
     }
+    
+    /**
+     * Creates Message with time when it was originally sent. It is used when message is decoded
+     * from binary format (see {@link MessageCodec}).
+     * 
+     * @param messageSender name of the sender.
+     * @param messageType This is the {@link Type} of the message.
+     * @param messageObject This is the object that is carried by the message.
+     * @param recipients This is an array of names of recipients or null if it is sent to all.
+     * @param replyAllowed This boolean determines if a reply to this message is allowed.
+     * @param timeSent This is the time when message was created in milliseconds since epoch.
+     */
+    Message(String messageSender, Type messageType, T messageObject, String[] recipients, boolean replyAllowed, long timeSent) {
+        if(!String.class.isInstance(messageObject) && messageType == Type.DATA_STRING){
+            throw new ServerException("Message is not String, but message Type was defined to be String");
+        }
+        this.messageObject = messageObject;
+        this.messageType = messageType;
+        this.messageSender = messageSender;
+        this.recipients = recipients;
+        this.replyAllowed = replyAllowed;
+        this.timeSent = timeSent;
+    }
 
     /**
      * Returns the object that was passed in the message.
@@ -199,11 +245,24 @@ public class Message<T> implements Serializable{
     
     /**
      * Returns {@link java.util.Calendar} of the moment the message was sent,
-     * or more precisely when Message was created.
+     * or more precisely when Message was created. A new Calendar is created on every call,
+     * so use {@link #getTimeSentMillis()} where possible.
      * 
      * @return This is the time when of sending.
      */
     public Calendar getTimeSent() {
+        Calendar calendar = Calendar.getInstance();
+        calendar.setTimeInMillis(timeSent);
+        return calendar;
+    }
+    
+    /**
+     * Returns the moment the message was sent (or more precisely when Message was created)
+     * in milliseconds since epoch.
+     * 
+     * @return This is the time of sending in milliseconds.
+     */
+    public long getTimeSentMillis() {
         return timeSent;
     }
     
@@ -220,15 +279,14 @@ public class Message<T> implements Serializable{
     /**
      * Formats a String suited for command line outputs like: "[12:34:22][John]: Hi Mate!"
      * How time format will look like needs to be passed as a String.<br>
-     * Time format is the same as with SimpleDateFormat. It must look something like: dd.MM.yyyy HH:mm:ss
+     * Time format is the same as with DateTimeFormatter. It must look something like: dd.MM.yyyy HH:mm:ss
      * 
      * @param timeFormat This is the time format.
      * @return Returns a formatted String.
      * @throws IllegalArgumentException If time format is incorrect.
      */
     public String toStringNicelyWithTime(String timeFormat) throws IllegalArgumentException{
-        SimpleDateFormat formatter = new SimpleDateFormat(timeFormat);
-        return "[%s][%s]: %s".format(formatter.format(timeSent), messageSender, messageObject.toString());
+        return String.format("[%s][%s]: %s", TimeFormats.format(timeFormat, timeSent), messageSender, messageObject.toString());
     }
     
     /**
@@ -256,14 +314,39 @@ public class Message<T> implements Serializable{
     
     /**
      * Returns time like specified with argument. <br>
-     * Time format is the same as with SimpleDateFormat. It must look something like: dd.MM.yyyy HH:mm:ss
+     * Time format is the same as with DateTimeFormatter. It must look something like: dd.MM.yyyy HH:mm:ss
      * 
      * @param timeFormat This is the time format.
      * @return Returns a formatted String.
      * @throws IllegalArgumentException If time format is incorrect.
      */
     public String getTimeAsString(String timeFormat) throws IllegalArgumentException{
-        SimpleDateFormat formatter = new SimpleDateFormat(timeFormat);
-        return formatter.format(timeSent);
+        return TimeFormats.format(timeFormat, timeSent);
+    }
+    
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        ObjectOutputStream.PutField fields = out.putFields();
+        fields.put("messageObject", messageObject);
+        fields.put("messageSender", messageSender);
+        fields.put("messageType", messageType);
+        fields.put("recipients", recipients);
+        fields.put("timeSent", getTimeSent());
+        fields.put("replyAllowed", replyAllowed);
+        out.writeFields();
+    }
+    
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        ObjectInputStream.GetField fields = in.readFields();
+        @SuppressWarnings("unchecked")
+        T object = (T) fields.get("messageObject", null);
+        messageObject = object;
+        messageSender = (String) fields.get("messageSender", null);
+        messageType = (Type) fields.get("messageType", null);
+        recipients = (String[]) fields.get("recipients", null);
+        Calendar calendar = (Calendar) fields.get("timeSent", null);
+        timeSent = calendar != null ? calendar.getTimeInMillis() : 0;
+        replyAllowed = fields.get("replyAllowed", false);
+        if(messageType == Type.DATA_STRING && !(messageObject instanceof String))
+            throw new InvalidObjectException("Message is not String, but message Type was defined to be String");
     }
 }
@@ -0,0 +1,274 @@
+package server_api;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.StreamCorruptedException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Encodes and decodes {@link Message} objects in a compact binary format that is used in payloads of frames
+ * (see {@link FrameCodec}) instead of Java serialization, if both sides agree on it during the handshake.<br>
+ * Payload looks like this:
+ * <pre>
+ * byte    version (payloads of Java serialization always start with 0xAC, so they can be told apart)
+ * byte    type of the message
+ * byte    flags (reply allowed, has sender, has recipients)
+ * long    time sent in milliseconds
+ * string  sender (only if it exists)
+ * varint  number of recipients, followed by that many strings (only if they exist)
+ * byte    kind of the object (none, string, serialized or event)
+ * ...     object as a string, as varint length followed by bytes of Java serialization, or as an event
+ * </pre>
+ * Events ({@link SystemEvent}, since version 2) are written as their name followed by varint number of values and
+ * that many strings.
+ * Strings are written as varint length followed by UTF-8 bytes. Objects that are Strings (like with
+ * {@link Message.Type#DATA_STRING} and {@link Message.Type#SYSTEM}) never go through Java serialization.
+ *
+ * @author KRIKKI
+ * @version 1
+ * @since 17. 10. 2026
+ */
+final class MessageCodec {
+    /**
+     * This is the newest version of the format this class can read and write. It can also read all older versions.
+     */
+    static final int VERSION = 3;
+    /**
+     * This is the first version that can carry {@link SystemEvent}s. Older versions receive them as Strings.
+     */
+    static final int SYSTEM_EVENTS = 2;
+    /**
+     * This is the first version that knows message types {@link Message.Type#PING} and {@link Message.Type#PONG}.
+     * They are never sent to clients of older versions, no matter which format is used.
+     */
+    static final int HEARTBEATS = 3;
+    /**
+     * Is used when binary format has not been agreed on, so Java serialization is used.
+     */
+    static final int JAVA_SERIALIZATION = 0;
+
+    // order must never change, new types can only be added at the end
+    private static final Message.Type[] TYPES = {
+        Message.Type.ERROR, Message.Type.SYSTEM, Message.Type.LOGIN_REQUEST, Message.Type.LOGIN_SUCCESSFUL, Message.Type.LOGIN_DENIED,
+        Message.Type.PREFERENCES, Message.Type.COMMAND, Message.Type.LOGOFF, Message.Type.DATA_STRING, Message.Type.DATA,
+        Message.Type.PING, Message.Type.PONG
+    };
+    private static final byte[] TYPE_IDS = new byte[Message.Type.values().length];
+    static {
+        for(int i = 0; i < TYPES.length; i++)
+            TYPE_IDS[TYPES[i].ordinal()] = (byte) i;
+    }
+
+    private static final int FLAG_REPLY_ALLOWED = 1;
+    private static final int FLAG_SENDER = 2;
+    private static final int FLAG_RECIPIENTS = 4;
+
+    private static final int OBJECT_NONE = 0;
+    private static final int OBJECT_STRING = 1;
+    private static final int OBJECT_SERIALIZED = 2;
+    private static final int OBJECT_EVENT = 3;
+
+    private MessageCodec(){
+    }
+
+    /**
+     * Returns true if payload was written in binary format and not by Java serialization.
+     *
+     * @param payload This is the buffer positioned at the beginning of the payload.
+     * @return Returns true if payload is in binary format.
+     */
+    static boolean isBinary(ByteBuffer payload){
+        return payload.hasRemaining() && payload.get(payload.position()) > 0;
+    }
+
+    /**
+     * Writes the message in given version of binary format.
+     *
+     * @param message This is the message to be written.
+     * @param version This is the version of the format (from 1 to {@link #VERSION}).
+     * @param out This is the stream the message is written to.
+     * @throws IOException If object of the message could not be serialized.
+     */
+    static void write(Message<?> message, int version, ByteArrayOutputStream out) throws IOException{
+        if(version < 1 || version > VERSION)
+            throw new IOException("Unsupported version of binary format ("+version+")");
+        out.write(version);
+        out.write(TYPE_IDS[message.getMessageType().ordinal()]);
+        String sender = message.getMessageSender();
+        String[] recipients = message.getRecipients();
+        int flags = 0;
+        if(message.getReplyAllowed()) flags |= FLAG_REPLY_ALLOWED;
+        if(sender != null) flags |= FLAG_SENDER;
+        if(recipients != null) flags |= FLAG_RECIPIENTS;
+        out.write(flags);
+        writeLong(message.getTimeSentMillis(), out);
+        if(sender != null)
+            writeString(sender, out);
+        if(recipients != null){
+            writeVarint(recipients.length, out);
+            for(String recipient: recipients)
+                writeString(recipient, out);
+        }
+        Object object = message.getMessageObject();
+        if(object == null){
+            out.write(OBJECT_NONE);
+        }else if(object instanceof String){ // DATA_STRING, SYSTEM and most of the others
+            out.write(OBJECT_STRING);
+            writeString((String) object, out);
+        }else if(object instanceof SystemEvent && version >= SYSTEM_EVENTS){
+            SystemEvent event = (SystemEvent) object;
+            out.write(OBJECT_EVENT);
+            writeString(event.getName(), out);
+            String[] values = event.getValues();
+            writeVarint(values.length, out);
+            for(String value: values)
+                writeString(value, out);
+        }else if(object instanceof SystemEvent){ // older version, old String form is used
+            out.write(OBJECT_STRING);
+            writeString(object.toString(), out);
+        }else{
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+            try(ObjectOutputStream objectOut = new ObjectOutputStream(bytes)){
+                objectOut.writeObject(object);
+            }
+            out.write(OBJECT_SERIALIZED);
+            writeVarint(bytes.size(), out);
+            bytes.writeTo(out);
+        }
+    }
+
+    /**
+     * Reads the message in binary format. Buffer must be positioned at the beginning of the payload and its
+     * limit must be set at the end of it. It can also be a direct buffer.
+     *
+     * @param payload This is the buffer with payload.
+     * @return Returns the decoded message.
+     * @throws IOException If payload is not correct or its version is not supported.
+     * @throws ClassNotFoundException If payload carries an object of unknown class.
+     */
+    static Message<?> read(ByteBuffer payload) throws IOException, ClassNotFoundException{
+        try{
+            int version = payload.get();
+            if(version < 1 || version > VERSION)
+                throw new StreamCorruptedException("Unsupported version of binary format ("+version+")");
+            int typeId = payload.get();
+            if(typeId < 0 || typeId >= TYPES.length)
+                throw new StreamCorruptedException("Unknown message type ("+typeId+")");
+            Message.Type type = TYPES[typeId];
+            int flags = payload.get();
+            long timeSent = payload.getLong();
+            String sender = (flags & FLAG_SENDER) != 0 ? readString(payload) : null;
+            String[] recipients = null;
+            if((flags & FLAG_RECIPIENTS) != 0){
+                recipients = new String[readCount(payload)];
+                for(int i = 0; i < recipients.length; i++)
+                    recipients[i] = readString(payload);
+            }
+            Object object;
+            int kind = payload.get();
+            switch(kind){
+                case OBJECT_NONE:
+                    object = null;
+                    break;
+                case OBJECT_STRING:
+                    object = readString(payload);
+                    break;
+                case OBJECT_SERIALIZED:
+                    int length = readVarint(payload);
+                    if(length > payload.remaining())
+                        throw new StreamCorruptedException("Object is longer than payload");
+                    ByteArrayInputStream bytes;
+                    if(payload.hasArray()){
+                        bytes = new ByteArrayInputStream(payload.array(), payload.arrayOffset() + payload.position(), length);
+                        payload.position(payload.position() + length);
+                    }else{
+                        byte[] copy = new byte[length];
+                        payload.get(copy);
+                        bytes = new ByteArrayInputStream(copy);
+                    }
+                    try(ObjectInputStream in = new ObjectInputStream(bytes)){
+                        object = in.readObject();
+                    }
+                    break;
+                case OBJECT_EVENT:
+                    if(version < SYSTEM_EVENTS)
+                        throw new StreamCorruptedException("Events are not supported by version "+version);
+                    String name = readString(payload);
+                    String[] values = new String[readCount(payload)];
+                    for(int i = 0; i < values.length; i++)
+                        values[i] = readString(payload);
+                    object = new SystemEvent(name, values);
+                    break;
+                default:
+                    throw new StreamCorruptedException("Unknown kind of object ("+kind+")");
+            }
+            if(type == Message.Type.DATA_STRING && !(object instanceof String))
+                throw new StreamCorruptedException("Message is not String, but message Type was defined to be String");
+            return new Message<>(sender, type, object, recipients, (flags & FLAG_REPLY_ALLOWED) != 0, timeSent);
+        }catch(BufferUnderflowException e){
+            throw new StreamCorruptedException("Payload is too short");
+        }catch(ServerException e){ // object does not match the type
+            throw new StreamCorruptedException(e.getMessage());
+        }
+    }
+
+    private static void writeLong(long value, ByteArrayOutputStream out){
+        for(int shift = 56; shift >= 0; shift -= 8)
+            out.write((int) (value >>> shift));
+    }
+
+    private static void writeVarint(int value, ByteArrayOutputStream out){
+        while((value & ~0x7F) != 0){
+            out.write((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.write(value);
+    }
+
+    private static int readVarint(ByteBuffer in) throws StreamCorruptedException{
+        int value = 0;
+        for(int shift = 0; shift < 32; shift += 7){
+            int b = in.get();
+            value |= (b & 0x7F) << shift;
+            if((b & 0x80) == 0){
+                if(value < 0)
+                    break;
+                return value;
+            }
+        }
+        throw new StreamCorruptedException("Invalid length");
+    }
+
+    // every element takes at least one byte, so a larger count cannot be correct and must not be allocated
+    private static int readCount(ByteBuffer in) throws StreamCorruptedException{
+        int count = readVarint(in);
+        if(count > in.remaining())
+            throw new StreamCorruptedException("Count is larger than payload ("+count+")");
+        return count;
+    }
+
+    private static void writeString(String s, ByteArrayOutputStream out){
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        writeVarint(bytes.length, out);
+        out.write(bytes, 0, bytes.length);
+    }
+
+    private static String readString(ByteBuffer in) throws StreamCorruptedException{
+        int length = readVarint(in);
+        if(length > in.remaining())
+            throw new StreamCorruptedException("String is longer than payload");
+        if(!in.hasArray()){
+            byte[] bytes = new byte[length];
+            in.get(bytes);
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+        String s = new String(in.array(), in.arrayOffset() + in.position(), length, StandardCharsets.UTF_8);
+        in.position(in.position() + length);
+        return s;
+    }
+}
@@ -0,0 +1,147 @@
+package server_api;
+
+import java.io.IOException;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Is used by the Server class when {@link PrivateServerPreferences.ServerEngine#NIO} engine is selected.
+ * Every event loop owns a {@link Selector} and a Thread that handles all reading and writing for the
+ * {@link NioServerConnector}s registered with it. Other Threads never touch the channels directly, they
+ * only pass tasks to the event loop with {@link #execute(Runnable)}.
+ *
+ * @author KRIKKI
+ * @version 1
+ * @since 17. 10. 2026
+ */
+final class NioEventLoop implements Runnable {
+    private static final ThreadLocal<Boolean> EVENT_LOOP_THREAD = new ThreadLocal<>();
+
+    private final Server server;
+    private final Selector selector;
+    private final Thread thread;
+    private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    private volatile boolean running = true;
+
+    /**
+     * Opens a new {@link Selector}, but does not start the Thread yet.
+     *
+     * @param server This is the {@link Server} that owns the event loop.
+     * @param name This is the name of the Thread.
+     * @throws IOException If selector could not be opened.
+     */
+    NioEventLoop(Server server, String name) throws IOException{
+        this.server = server;
+        this.selector = Selector.open();
+        this.thread = new Thread(this, name);
+        this.thread.setDaemon(true);
+    }
+
+    /**
+     * Starts the Thread of the event loop.
+     */
+    void start(){
+        thread.start();
+    }
+
+    /**
+     * Stops the event loop. All channels that are still registered will be closed.
+     */
+    void stop(){
+        running = false;
+        selector.wakeup();
+    }
+
+    /**
+     * Passes the task to the event loop Thread. It can be called from any Thread.
+     *
+     * @param task This is the task that will be run on the event loop Thread.
+     */
+    void execute(Runnable task){
+        tasks.add(task);
+        if(Thread.currentThread() != thread)
+            selector.wakeup();
+    }
+
+    /**
+     * Returns true if calling Thread belongs to any event loop.
+     *
+     * @return Returns true if called on an event loop Thread.
+     */
+    static boolean isEventLoopThread(){
+        return EVENT_LOOP_THREAD.get() != null;
+    }
+
+    /**
+     * Registers the channel for reading. It must be called on the event loop Thread.
+     *
+     * @param channel This is the channel of the new client.
+     * @param connector This is the {@link NioServerConnector} handling the channel.
+     * @return Returns the key of the registered channel.
+     * @throws IOException If channel could not be registered.
+     */
+    SelectionKey register(SocketChannel channel, NioServerConnector connector) throws IOException{
+        channel.configureBlocking(false);
+        return channel.register(selector, SelectionKey.OP_READ, connector);
+    }
+
+    /**
+     * Waits for ready channels and runs tasks until the event loop is stopped.
+     */
+    @Override
+    public void run(){
+        EVENT_LOOP_THREAD.set(Boolean.TRUE);
+        while(running){
+            try{
+                if(tasks.isEmpty())
+                    selector.select();
+                else
+                    selector.selectNow(); // tasks added by the event loop itself do not wake up the selector
+            }catch(IOException e){
+                server.errPrintln("[error]: Event loop has failed (" + e.getMessage() + ")");
+                break;
+            }
+            runTasks();
+            Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+            while(keys.hasNext()){
+                SelectionKey key = keys.next();
+                keys.remove();
+                NioServerConnector connector = (NioServerConnector) key.attachment();
+                try{
+                    if(key.isValid() && key.isWritable())
+                        connector.writeReady();
+                    if(key.isValid() && key.isReadable())
+                        connector.readReady();
+                }catch(CancelledKeyException e){
+                    // connection was closed while handling the other operation
+                }catch(RuntimeException e){
+                    connector.failed(e); // only this connection is closed, the loop keeps serving the others
+                }
+            }
+        }
+        for(SelectionKey key: selector.keys()){
+            ((NioServerConnector) key.attachment()).closeNow();
+        }
+        try{
+            selector.close();
+        }catch(IOException e){
+        }
+    }
+
+    private void runTasks(){
+        Runnable task;
+        while((task = tasks.poll()) != null){
+            try{
+                task.run();
+            }catch(CancelledKeyException e){
+                // connection was closed in the meantime
+            }catch(RuntimeException e){
+                server.log(PrivateServerPreferences.LogCategory.SYSTEM, true, "[error]: Task of event loop has failed (", e, ")");
+            }
+        }
+    }
+}
@@ -0,0 +1,312 @@
+package server_api;
+
+import java.io.IOException;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Is used by the Server class as a connection handler for every individual client when
+ * {@link PrivateServerPreferences.ServerEngine#NIO} engine is selected.<br>
+ * It does not have its own Thread. Reading and writing is done by the {@link NioEventLoop} the connector
+ * is registered with, while messages are handled the same way as by {@link ServerConnector}.
+ * Messages sent from any Thread are put in the outbound queue and written by the event loop.<br>
+ * Reading and writing goes through direct buffers from {@link BufferPool#SHARED}. A connection only holds them
+ * while there is unread or unwritten data, and small frames are written several at once from the same buffer.
+ *
+ * @author KRIKKI
+ * @version 1
+ * @since 17. 10. 2026
+ */
+class NioServerConnector extends ServerConnector {
+    private final SocketChannel channel;
+    private final NioEventLoop eventLoop;
+    private final AtomicBoolean flushScheduled = new AtomicBoolean(false);
+    private final BufferPool pool = BufferPool.SHARED;
+    // client always starts with the header of an object stream
+    private final FrameReader reader = new FrameReader(pool, FrameCodec.STREAM_HEADER_LENGTH);
+    private SelectionKey key;
+    private ByteBuffer current; // frames that have been taken out of the queue, but not yet written completely
+    private OutboundQueue.Entry pending; // entry that did not fit in the previous buffer
+    private volatile boolean closeRequested = false;
+    private boolean closed = false;
+    private boolean lost = false;
+    private boolean readPaused = false; // while login waits for other nodes of the cluster
+
+    /**
+     * It sets up necessary things. Connector will start working once it is registered with
+     * {@link NioEventLoop} by running it on the event loop Thread.
+     *
+     * @param server This is the {@link Server} object with which connector will be communicating.
+     * @param channel This is the channel which connects to the new user.
+     * @param eventLoop This is the event loop that will handle the channel.
+     */
+    NioServerConnector(Server server, SocketChannel channel, NioEventLoop eventLoop){
+        super(server, channel.socket());
+        this.channel = channel;
+        this.eventLoop = eventLoop;
+    }
+
+    /**
+     * Passes the connector to its event loop, which will then run it.
+     */
+    void start(){
+        eventLoop.execute(this);
+    }
+
+    /**
+     * Registers the channel with the event loop and sends {@link Message.Type#PREFERENCES}.
+     * It must be run on the event loop Thread (see {@link NioEventLoop#execute(Runnable)}).
+     */
+    @Override
+    public void run(){
+        try{
+            key = eventLoop.register(channel, this);
+        }catch(IOException e){
+            server.log(PrivateServerPreferences.LogCategory.SYSTEM, true, "[system]: Could not register connection at ", port, " with event loop (", e, ")");
+            this.server.removeClientLoggingIn(port);
+            closeNow();
+            return;
+        }
+        server.log(PrivateServerPreferences.LogCategory.CONNECTIONS, false, "[system]: Connected with ", this.socket.getInetAddress().getHostName(), ":", port);
+        connected = true;
+        server.connectionStarted(this);
+        connectionOpened();
+        writeReady(); // messages might have been queued before the channel was registered
+    }
+
+    /**
+     * Is called by the event loop when there is data to be read. It reads as much as possible and handles all
+     * complete frames.
+     */
+    void readReady(){
+        if(closeRequested || closed)
+            return;
+        int read;
+        try{
+            read = reader.read(channel);
+        }catch(IOException e){
+            server.log(PrivateServerPreferences.LogCategory.CONNECTIONS, true, "[system]: Reading from ", port, " has failed (", e, ")");
+            read = -1;
+        }
+        if(read < 0){
+            lose();
+            return;
+        }
+        handleFrames();
+    }
+
+    private void handleFrames(){
+        try{
+            ByteBuffer payload;
+            while(!readPaused && (payload = reader.nextFrame()) != null){
+                if(!messageReceived(FrameCodec.decode(payload)) || closeRequested)
+                    return;
+            }
+        }catch(IOException | ClassNotFoundException | ClassCastException e){
+            server.log(PrivateServerPreferences.LogCategory.CONNECTIONS, true, "[error]: Incorrect message received from ", port, " (", e.getMessage(), ")");
+            lose();
+        }catch(RuntimeException e){
+            failed(e);
+        }
+    }
+
+    /**
+     * Closes the connection because handling it has thrown an exception. Other connections of the event loop are not affected.
+     * It must be called on the event loop Thread.
+     *
+     * @param e This is the exception.
+     */
+    void failed(RuntimeException e){
+        server.log(PrivateServerPreferences.LogCategory.SYSTEM, true, "[error]: Connection at ", port, " has failed and will be closed (", e, ")");
+        lose();
+    }
+
+    /**
+     * Claiming the username in a cluster waits for other nodes, so login is done by a Thread of the cluster. Meanwhile
+     * nothing else is read from the client, so its next messages are handled after it has logged in, as with other engines.
+     */
+    @Override
+    void loginRequested(final String wantedUsername){
+        readPaused = true;
+        boolean started = server.runLoginInCluster(new Runnable() {
+            @Override
+            public void run(){
+                try{
+                    logIn(wantedUsername);
+                }finally{
+                    eventLoop.execute(new Runnable() {
+                        @Override
+                        public void run(){
+                            resumeReading();
+                        }
+                    });
+                }
+            }
+        });
+        if(!started){
+            readPaused = false;
+            logIn(wantedUsername);
+            return;
+        }
+        key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+    }
+
+    private void resumeReading(){
+        readPaused = false;
+        if(closeRequested || closed || !key.isValid())
+            return;
+        key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+        handleFrames(); // frames that had already been read
+    }
+
+    /**
+     * Is called by the event loop when the channel is ready for writing or when new messages were queued.
+     * It writes as much as possible and if connection was requested to be closed, it closes it once everything has been written.
+     */
+    void writeReady(){
+        if(closed || key == null)
+            return;
+        try{
+            while(true){
+                if(current == null){
+                    current = nextBuffer();
+                    if(current == null)
+                        break;
+                }
+                bytesOut += channel.write(current);
+                if(current.hasRemaining()){
+                    key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+                    return;
+                }
+                pool.release(current);
+                current = null;
+            }
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+        }catch(IOException e){
+            server.log(PrivateServerPreferences.LogCategory.CONNECTIONS, true, "[system]: Writing to ", port, " has failed (", e, ")");
+            lose();
+            return;
+        }catch(RuntimeException e){
+            failed(e);
+            return;
+        }
+        if(closeRequested)
+            closeNow();
+    }
+
+    /**
+     * Takes entries out of the queue and copies as many of them as possible in a pooled buffer. Frames that are bigger
+     * than pooled buffers are written as they are.
+     *
+     * @return Returns a buffer ready for writing or null if there is nothing to write.
+     */
+    private ByteBuffer nextBuffer(){
+        OutboundQueue.Entry entry = pending != null ? pending : outbound.poll();
+        pending = null;
+        if(entry == null)
+            return null;
+        if(entry.bytes.remaining() > pool.getBufferSize())
+            return entry.bytes;
+        ByteBuffer buffer = pool.acquire();
+        do{
+            if(entry.bytes.remaining() > buffer.remaining()){
+                pending = entry;
+                break;
+            }
+            buffer.put(entry.bytes);
+        }while((entry = outbound.poll()) != null);
+        buffer.flip();
+        return buffer;
+    }
+
+    @Override
+    public long getBytesIn(){
+        return reader.getBytesRead();
+    }
+
+    @Override
+    void queued(){
+        if(flushScheduled.compareAndSet(false, true)){
+            eventLoop.execute(new Runnable() {
+                @Override
+                public void run(){
+                    flushScheduled.set(false);
+                    writeReady();
+                }
+            });
+        }
+    }
+
+    /**
+     * Event loop Threads never wait for room in the outbound queue, since they also write to other clients.
+     * Neither does the Thread of the timer wheel.
+     */
+    @Override
+    boolean mayBlock(){
+        return !NioEventLoop.isEventLoopThread() && super.mayBlock();
+    }
+
+    /**
+     * Closes the connection once all queued messages have been written. It can be called from any Thread.
+     */
+    @Override
+    int closeGracefully(){
+        server.log(PrivateServerPreferences.LogCategory.CONNECTIONS, false, "[system]: Connection at ", port, " is closing");
+        connected = false;
+        closeRequested = true;
+        int queued = outbound.close();
+        eventLoop.execute(new Runnable() {
+            @Override
+            public void run(){
+                if(key == null)
+                    closeNow();
+                else
+                    writeReady();
+            }
+        });
+        return queued;
+    }
+
+    /**
+     * Closes the channel immediately and throws away all queued messages. It can be called from any Thread.
+     */
+    @Override
+    int abort(){
+        int discarded = outbound.discard();
+        eventLoop.execute(new Runnable() {
+            @Override
+            public void run(){
+                lose();
+            }
+        });
+        return discarded;
+    }
+
+    /**
+     * Closes the channel immediately. It must be called on the event loop Thread.
+     */
+    void closeNow(){
+        closed = true;
+        reader.close();
+        pool.release(current);
+        current = null;
+        pending = null;
+        if(key != null)
+            key.cancel();
+        try{
+            channel.close();
+        }catch(IOException e){
+        }
+    }
+
+    private void lose(){
+        closeNow();
+        if(!lost){
+            lost = true;
+            connectionLost();
+        }
+    }
+}
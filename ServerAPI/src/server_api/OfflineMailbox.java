@@ -0,0 +1,406 @@
+package server_api;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileFilter;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+
+/**
+ * Is used by the Server class to keep messages for clients that are not connected until they log in
+ * (see {@link PrivateServerPreferences#getMailboxDirectory()}).<br>
+ * Every client has its own file, named after the username in hexadecimal, so that any allowed username is a valid file name.
+ * Every record is the time the message was stored (8 bytes) followed by the whole frame of the message (see {@link FrameCodec}),
+ * so records can be sent to framed clients without decoding them. Files are only appended to while client is away.<br>
+ * When client logs in, its file is renamed (see {@link #take(String)}), so that new messages go to a new file while
+ * the old one is being delivered. What could not be delivered is put back in front of the new messages, and files
+ * left by a server that stopped while delivering are put back when the mailbox is opened.
+ *
+ * @author KRIKKI
+ * @version 1
+ * @since 17. 10. 2026
+ */
+final class OfflineMailbox {
+    private static final String SUFFIX = ".mbox";
+    private static final String DRAIN_SUFFIX = ".drain";
+    private static final int RECORD_HEADER_LENGTH = 8; // time in milliseconds in front of every frame
+
+    private final Server server;
+    private final File directory;
+    private final int maxMessages;
+    private final int maxBytes;
+    private final long ttlMillis; // 0 if messages do not expire
+    private final int maxUsers;
+    // everything below is guarded by this
+    private final HashMap<String, Usage> usages = new HashMap<>(); // usernames whose file exists and has been read
+    private final HashSet<String> delivering = new HashSet<>();
+    private int users; // number of files
+    private boolean closed = false;
+
+    /**
+     * What is in the file of a single client.
+     */
+    private static final class Usage {
+        private int count = 0;
+        private long bytes = 0;
+        private long oldest = Long.MAX_VALUE; // time of the oldest message
+    }
+
+    /**
+     * Opens the mailbox in the directory, creating the directory if needed.
+     *
+     * @param server This is the server that logs what goes wrong with files.
+     * @param directory This is the directory of the mailbox.
+     * @param maxMessages This is how many messages can wait for a single client.
+     * @param maxBytes This is how many bytes of messages can wait for a single client.
+     * @param ttlMillis This is how long messages wait in milliseconds or 0 if they do not expire.
+     * @param maxUsers This is for how many clients messages can wait.
+     * @throws IOException If directory could not be created or files could not be put back.
+     */
+    OfflineMailbox(Server server, File directory, int maxMessages, int maxBytes, long ttlMillis, int maxUsers) throws IOException{
+        this.server = server;
+        this.directory = directory;
+        this.maxMessages = maxMessages;
+        this.maxBytes = maxBytes;
+        this.ttlMillis = ttlMillis;
+        this.maxUsers = maxUsers;
+        if(!directory.isDirectory() && !directory.mkdirs())
+            throw new IOException("Directory " + directory + " could not be created");
+        for(File file: list(DRAIN_SUFFIX)) // delivery was interrupted
+            merge(file, 0, mailboxFile(file));
+        users = list(SUFFIX).length;
+    }
+
+    private File[] list(final String suffix) throws IOException{
+        File[] files = directory.listFiles(new FileFilter() {
+            @Override
+            public boolean accept(File file){
+                return file.isFile() && file.getName().matches("([0-9a-f]{2})+" + suffix.replace(".", "\\."));
+            }
+        });
+        if(files == null)
+            throw new IOException("Directory " + directory + " could not be read");
+        return files;
+    }
+
+    private File mailboxFile(File drainFile){
+        String name = drainFile.getName();
+        return new File(directory, name.substring(0, name.length() - DRAIN_SUFFIX.length()) + SUFFIX);
+    }
+
+    private File file(String username, String suffix){
+        byte[] bytes = username.getBytes(StandardCharsets.UTF_8);
+        StringBuilder sb = new StringBuilder(bytes.length * 2 + suffix.length());
+        for(byte b: bytes){
+            sb.append(Character.forDigit((b >> 4) & 0xF, 16));
+            sb.append(Character.forDigit(b & 0xF, 16));
+        }
+        return new File(directory, sb.append(suffix).toString());
+    }
+
+    private boolean isExpired(long time, long now){
+        return ttlMillis > 0 && time < now - ttlMillis;
+    }
+
+    /**
+     * Stores the message for the client, unless there is no room for it.
+     *
+     * @param username This is the username of the client.
+     * @param frame This is the whole frame of the message (length and payload). It is not consumed.
+     * @return Returns true if message has been stored.
+     * @throws IOException If message could not be written.
+     */
+    synchronized boolean store(String username, ByteBuffer frame) throws IOException{
+        if(closed)
+            return false;
+        long now = System.currentTimeMillis();
+        File file = file(username, SUFFIX);
+        Usage usage = usage(username, file, now);
+        int length = RECORD_HEADER_LENGTH + frame.remaining();
+        if(usage.count >= maxMessages || usage.bytes + length > maxBytes)
+            return false;
+        boolean created = !file.exists();
+        if(created && users >= maxUsers)
+            return false;
+        try(DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file, true), length))){
+            out.writeLong(now);
+            ByteBuffer bytes = frame.duplicate();
+            if(bytes.hasArray()){
+                out.write(bytes.array(), bytes.arrayOffset() + bytes.position(), bytes.remaining());
+            }else{
+                byte[] copy = new byte[bytes.remaining()];
+                bytes.get(copy);
+                out.write(copy);
+            }
+        }
+        if(created)
+            users++;
+        usages.put(username, usage);
+        usage.count++;
+        usage.bytes += length;
+        usage.oldest = Math.min(usage.oldest, now);
+        return true;
+    }
+
+    // reads the file once, and again when its oldest message expires, so that expired messages do not take room.
+    // Usage is only kept while the file exists, so names whose messages are refused do not fill the map
+    private Usage usage(String username, File file, long now) throws IOException{
+        Usage usage = usages.get(username);
+        if(usage != null && !isExpired(usage.oldest, now))
+            return usage;
+        usages.remove(username);
+        usage = new Usage();
+        if(!file.exists())
+            return usage;
+        boolean expired = false;
+        try(Reader reader = new Reader(file)){
+            ByteBuffer frame;
+            while((frame = reader.next()) != null){
+                if(isExpired(reader.time, now)){
+                    expired = true;
+                    continue;
+                }
+                usage.count++;
+                usage.bytes += RECORD_HEADER_LENGTH + frame.remaining();
+                usage.oldest = Math.min(usage.oldest, reader.time);
+            }
+        }
+        if(expired){ // file is rewritten without them
+            merge(file, 0, file);
+            if(usage.count == 0)
+                users--;
+        }
+        if(file.exists())
+            usages.put(username, usage);
+        return usage;
+    }
+
+    /**
+     * Takes all messages of the client out of the mailbox, so that they can be delivered. Messages stored meanwhile
+     * wait for the next time. Only one delivery for the same client can be going on.
+     *
+     * @param username This is the username of the client.
+     * @return Returns the messages or null if there are none or they are already being delivered.
+     * @throws IOException If file could not be renamed.
+     */
+    synchronized Delivery take(String username) throws IOException{
+        File file = file(username, SUFFIX);
+        if(closed || delivering.contains(username) || !file.exists())
+            return null;
+        File drain = file(username, DRAIN_SUFFIX);
+        if(!file.renameTo(drain))
+            throw new IOException("File " + file + " could not be renamed");
+        usages.remove(username);
+        users--;
+        delivering.add(username);
+        try{
+            return new Delivery(username, drain);
+        }catch(IOException e){
+            delivering.remove(username);
+            throw e;
+        }
+    }
+
+    // writes records of the drained file from the position on and then the records of the target file to the target file,
+    // expired ones are left out
+    private void merge(File drain, long position, File target) throws IOException{
+        File temporary = new File(directory, drain.getName() + ".tmp");
+        long now = System.currentTimeMillis();
+        boolean empty = true;
+        try(DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temporary)))){
+            for(File source: drain.equals(target) ? new File[]{drain} : new File[]{drain, target}){
+                if(!source.exists())
+                    continue;
+                try(Reader reader = new Reader(source)){
+                    reader.skip(source == drain ? position : 0);
+                    ByteBuffer frame;
+                    while((frame = reader.next()) != null){
+                        if(isExpired(reader.time, now))
+                            continue;
+                        out.writeLong(reader.time);
+                        out.write(frame.array(), 0, frame.limit());
+                        empty = false;
+                    }
+                }
+            }
+        }
+        if(empty){
+            temporary.delete();
+            target.delete();
+        }else if(!(target.delete() || !target.exists()) || !temporary.renameTo(target)){
+            throw new IOException("File " + target + " could not be replaced");
+        }
+        if(!drain.equals(target))
+            drain.delete();
+    }
+
+    /**
+     * Closes the mailbox. Messages are not stored anymore and what is being delivered is put back by the deliveries themselves.
+     */
+    synchronized void close(){
+        closed = true;
+        usages.clear();
+    }
+
+    /**
+     * Reads records of a file one after another.
+     */
+    private static final class Reader implements AutoCloseable {
+        private final DataInputStream in;
+        private final long length;
+        private long position = 0; // of the next record
+        private long time; // of the record that has been read last
+
+        private Reader(File file) throws IOException{
+            this.length = file.length();
+            this.in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        }
+
+        private void skip(long bytes) throws IOException{
+            in.skipBytes((int) bytes);
+            position += bytes;
+        }
+
+        // frame of the next record or null if there are no more complete records
+        private ByteBuffer next() throws IOException{
+            if(position + RECORD_HEADER_LENGTH + FrameCodec.HEADER_LENGTH > length)
+                return null;
+            try{
+                long recordTime = in.readLong();
+                int frameLength = in.readInt();
+                if(frameLength < 0 || position + RECORD_HEADER_LENGTH + FrameCodec.HEADER_LENGTH + frameLength > length)
+                    return null; // written only in part
+                byte[] frame = new byte[FrameCodec.HEADER_LENGTH + frameLength];
+                ByteBuffer.wrap(frame).putInt(frameLength);
+                in.readFully(frame, FrameCodec.HEADER_LENGTH, frameLength);
+                position += RECORD_HEADER_LENGTH + frame.length;
+                time = recordTime;
+                return ByteBuffer.wrap(frame);
+            }catch(EOFException e){
+                return null;
+            }
+        }
+
+        @Override
+        public void close() throws IOException{
+            in.close();
+        }
+    }
+
+    /**
+     * Messages of a single client that are being delivered. They are read in batches and every batch
+     * is confirmed once it has been handed over, so that whatever has not been confirmed can be put back.
+     */
+    final class Delivery {
+        private final String username;
+        private final File file;
+        private final Reader reader;
+        private long confirmed = 0; // position in the file up to which messages have been handed over
+        private ByteBuffer pending; // frame that did not fit in the previous batch
+        private long pendingTime;
+        private boolean finished = false;
+
+        private Delivery(String username, File file) throws IOException{
+            this.username = username;
+            this.file = file;
+            this.reader = new Reader(file);
+        }
+
+        /**
+         * Returns the username of the client.
+         *
+         * @return Returns the username.
+         */
+        String getUsername(){
+            return username;
+        }
+
+        /**
+         * Reads the next messages that have not expired. The batch holds at least one message if there is any.
+         *
+         * @param maxCount This is the maximum number of messages in the batch.
+         * @param maxBytes This is the number of bytes after which no more messages are added to the batch.
+         * @return Returns frames of the messages, oldest first, or an empty list if there are no more.
+         * @throws IOException If file could not be read.
+         */
+        List<ByteBuffer> next(int maxCount, int maxBytes) throws IOException{
+            ArrayList<ByteBuffer> frames = new ArrayList<>();
+            long now = System.currentTimeMillis();
+            int bytes = 0;
+            while(true){
+                ByteBuffer frame;
+                long time;
+                if(pending != null){
+                    frame = pending;
+                    time = pendingTime;
+                    pending = null;
+                }else if((frame = reader.next()) != null){
+                    time = reader.time;
+                }else{
+                    break;
+                }
+                if(isExpired(time, now))
+                    continue;
+                if(!frames.isEmpty() && (frames.size() >= maxCount || bytes + frame.remaining() > maxBytes)){
+                    pending = frame;
+                    pendingTime = time;
+                    break;
+                }
+                frames.add(frame);
+                bytes += frame.remaining();
+            }
+            return frames;
+        }
+
+        /**
+         * Confirms that all messages returned by {@link #next(int, int)} so far have been handed over to the client.
+         */
+        void confirm(){
+            confirmed = reader.position - (pending == null ? 0 : RECORD_HEADER_LENGTH + pending.remaining());
+        }
+
+        /**
+         * Ends the delivery. If everything has been confirmed, file is deleted, otherwise messages that have not been confirmed
+         * are put back in front of messages that were stored meanwhile.
+         */
+        void finish(){
+            if(finished)
+                return;
+            finished = true;
+            try{
+                reader.close();
+            }catch(IOException e){}
+            synchronized(OfflineMailbox.this){
+                delivering.remove(username);
+                try{
+                    if(confirmed >= file.length()){
+                        file.delete();
+                        return;
+                    }
+                    File target = file(username, SUFFIX);
+                    boolean existed = target.exists();
+                    usages.remove(username);
+                    merge(file, confirmed, target);
+                    if(!existed && target.exists())
+                        users++;
+                    else if(existed && !target.exists())
+                        users--;
+                }catch(IOException e){
+                    server.log(PrivateServerPreferences.LogCategory.SYSTEM, true, "[system]: Messages for ", username,
+                            " that have not been delivered could not be put back in the mailbox: ", e.getMessage());
+                }
+            }
+        }
+    }
+}
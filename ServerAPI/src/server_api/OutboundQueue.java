@@ -0,0 +1,271 @@
+package server_api;
+
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Is used by {@link ServerConnector} to hold messages that wait to be written to the client.<br>
+ * Any Thread can add messages, but only one writer takes them out and writes them, so writes to the
+ * same connection never interleave and a slow client only holds up its own writer. The queue is bounded and
+ * {@link PrivateServerPreferences.SlowConsumerPolicy} decides what happens when it is full.
+ *
+ * @author KRIKKI
+ * @version 1
+ * @since 17. 10. 2026
+ */
+final class OutboundQueue {
+    /**
+     * A single message waiting to be written. If bytes are not null, they are written as they are,
+     * otherwise the message is written to the object stream.
+     */
+    static final class Entry {
+        final Message<?> message;
+        final ByteBuffer bytes;
+
+        Entry(Message<?> message, ByteBuffer bytes){
+            this.message = message;
+            this.bytes = bytes;
+        }
+
+        private boolean isDroppable(){
+            return message != null && (message.getMessageType() == Message.Type.DATA || message.getMessageType() == Message.Type.DATA_STRING);
+        }
+    }
+
+    private final ArrayDeque<Entry> entries = new ArrayDeque<>();
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private final Condition notFull = lock.newCondition();
+    private final int capacity;
+    private final PrivateServerPreferences.SlowConsumerPolicy policy;
+    private final long timeoutNanos;
+    private boolean closed = false;
+    private long dropped = 0;
+    private long taken = 0;
+
+    /**
+     * Creates an empty queue.
+     *
+     * @param capacity This is the maximum number of waiting messages.
+     * @param policy This defines what happens when the queue is full.
+     * @param timeoutMillis This is how long a sender waits for room if policy is {@link PrivateServerPreferences.SlowConsumerPolicy#BLOCK}.
+     */
+    OutboundQueue(int capacity, PrivateServerPreferences.SlowConsumerPolicy policy, int timeoutMillis){
+        this.capacity = capacity;
+        this.policy = policy;
+        this.timeoutNanos = TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+    }
+
+    /**
+     * Adds the entry at the end of the queue. If the queue is full, the policy is applied.
+     *
+     * @param entry This is the entry to be written.
+     * @param mayBlock This is false if calling Thread must not wait for room (like event loop Threads).
+     * @return Returns false if client is too slow and should be disconnected. Entry is not added in that case.
+     * @throws SocketException If the queue has already been closed.
+     */
+    boolean offer(Entry entry, boolean mayBlock) throws SocketException{
+        lock.lock();
+        try{
+            if(closed)
+                throw new SocketException("Connection is closed");
+            if(entries.size() >= capacity){
+                switch(policy){
+                    case DROP_OLDEST:
+                        if(!dropOldest())
+                            return false;
+                        break;
+                    case BLOCK:
+                        if(!mayBlock || awaitRoom(timeoutNanos) <= 0)
+                            return false;
+                        break;
+                    default:
+                        return false;
+                }
+            }
+            entries.addLast(entry);
+            notEmpty.signal();
+            return true;
+        }finally{
+            lock.unlock();
+        }
+    }
+
+    private boolean dropOldest(){
+        Iterator<Entry> iterator = entries.iterator();
+        while(iterator.hasNext()){
+            if(iterator.next().isDroppable()){
+                iterator.remove();
+                dropped++;
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private long awaitRoom(long nanos) throws SocketException{
+        while(entries.size() >= capacity && !closed){
+            if(nanos <= 0)
+                return 0;
+            try{
+                nanos = notFull.awaitNanos(nanos);
+            }catch(InterruptedException e){
+                Thread.currentThread().interrupt();
+                return 0;
+            }
+        }
+        if(closed)
+            throw new SocketException("Connection is closed");
+        return Math.max(nanos, 1);
+    }
+
+    /**
+     * Waits until there is room in the queue, but does not add anything. It is used by senders that must not
+     * hold their own locks while they wait, so they add the entry afterwards (and may have to wait again).
+     *
+     * @param nanos This is the longest time to wait in nanoseconds or a negative number for the timeout of the policy.
+     * @return Returns the time that is left or 0 if there is still no room.
+     * @throws SocketException If the queue has been closed.
+     */
+    long waitForRoom(long nanos) throws SocketException{
+        lock.lock();
+        try{
+            return awaitRoom(nanos < 0 ? timeoutNanos : nanos);
+        }finally{
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns true if senders wait for room when the queue is full ({@link PrivateServerPreferences.SlowConsumerPolicy#BLOCK}).
+     *
+     * @return Returns true if policy is BLOCK.
+     */
+    boolean isBlocking(){
+        return policy == PrivateServerPreferences.SlowConsumerPolicy.BLOCK;
+    }
+
+    /**
+     * Takes the first entry out of the queue. It waits until there is one.
+     *
+     * @return Returns the first entry or null if the queue has been closed and all entries have been taken.
+     * @throws InterruptedException If waiting Thread was interrupted.
+     */
+    Entry take() throws InterruptedException{
+        lock.lock();
+        try{
+            while(entries.isEmpty() && !closed)
+                notEmpty.await();
+            Entry entry = entries.pollFirst();
+            if(entry != null){
+                taken++;
+                notFull.signal();
+            }
+            return entry;
+        }finally{
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Takes the first entry out of the queue. It never waits.
+     *
+     * @return Returns the first entry or null if the queue is empty.
+     */
+    Entry poll(){
+        lock.lock();
+        try{
+            Entry entry = entries.pollFirst();
+            if(entry != null){
+                taken++;
+                notFull.signal();
+            }
+            return entry;
+        }finally{
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Closes the queue. No more entries can be added, but the ones already in the queue can still be taken.
+     *
+     * @return Returns the number of entries that were still waiting when the queue was closed.
+     */
+    int close(){
+        lock.lock();
+        try{
+            closed = true;
+            notEmpty.signalAll();
+            notFull.signalAll();
+            return entries.size();
+        }finally{
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Closes the queue and throws away all waiting entries.
+     *
+     * @return Returns the number of entries that were thrown away.
+     */
+    int discard(){
+        lock.lock();
+        try{
+            closed = true;
+            int discarded = entries.size();
+            entries.clear();
+            notEmpty.signalAll();
+            notFull.signalAll();
+            return discarded;
+        }finally{
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the number of entries waiting to be written.
+     *
+     * @return Returns the number of waiting entries.
+     */
+    int size(){
+        lock.lock();
+        try{
+            return entries.size();
+        }finally{
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the number of entries that have been taken out of the queue by the writer so far.
+     *
+     * @return Returns the number of taken entries.
+     */
+    long getTaken(){
+        lock.lock();
+        try{
+            return taken;
+        }finally{
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the number of entries that were dropped because the queue was full.
+     *
+     * @return Returns the number of dropped entries.
+     */
+    long getDropped(){
+        lock.lock();
+        try{
+            return dropped;
+        }finally{
+            lock.unlock();
+        }
+    }
+}
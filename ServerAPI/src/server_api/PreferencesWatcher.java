@@ -0,0 +1,106 @@
+package server_api;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Is used by the Server class to apply changes of the file its preferences were read from while it is running
+ * (see {@link PrivateServerPreferences#getSourceFile()}).<br>
+ * The directory of the file is watched with a {@link WatchService} on a single background Thread. Editors often write
+ * a file in several steps or replace it with a new one, so the file is only read once no more changes have arrived
+ * for {@value #SETTLE_MILLIS} ms. New preferences are passed to {@link Server#reloadPreferences(PrivateServerPreferences)},
+ * which checks them before they replace the current ones, so a file that is not valid changes nothing.
+ *
+ * @author KRIKKI
+ * @version 1
+ * @since 17. 10. 2026
+ */
+final class PreferencesWatcher implements Runnable {
+    private static final long SETTLE_MILLIS = 200;
+
+    private final Server server;
+    private final File file;
+    private final boolean binary;
+    private final WatchService watchService;
+    private final Thread thread;
+
+    /**
+     * Starts watching the file.
+     *
+     * @param server This is the server whose preferences are replaced.
+     * @param file This is the file of preferences.
+     * @param binary This is true if file is binary (see {@link PrivateServerPreferences#readFromBinaryFile(String)}).
+     * @throws IOException If directory of the file cannot be watched.
+     */
+    PreferencesWatcher(Server server, File file, boolean binary) throws IOException{
+        this.server = server;
+        this.file = file.getAbsoluteFile();
+        this.binary = binary;
+        Path directory = this.file.getParentFile().toPath();
+        this.watchService = directory.getFileSystem().newWatchService();
+        try{
+            directory.register(watchService, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+        }catch(IOException e){
+            watchService.close();
+            throw e;
+        }
+        this.thread = new Thread(this, "server-preferences");
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+
+    /**
+     * Stops watching the file.
+     */
+    void close(){
+        try{
+            watchService.close();
+        }catch(IOException e){}
+        thread.interrupt();
+    }
+
+    @Override
+    public void run(){
+        try{
+            while(true){
+                if(!isFileChanged(watchService.take()))
+                    continue;
+                WatchKey key;
+                while((key = watchService.poll(SETTLE_MILLIS, TimeUnit.MILLISECONDS)) != null) // file is still being written
+                    isFileChanged(key);
+                reload();
+            }
+        }catch(InterruptedException | ClosedWatchServiceException e){
+            // watcher has been closed
+        }
+    }
+
+    // events of other files in the same directory are ignored
+    private boolean isFileChanged(WatchKey key){
+        boolean changed = false;
+        for(WatchEvent<?> event: key.pollEvents()){
+            if(event.kind() == StandardWatchEventKinds.OVERFLOW || file.getName().equals(String.valueOf(event.context())))
+                changed = true;
+        }
+        key.reset();
+        return changed;
+    }
+
+    private void reload(){
+        if(!file.isFile())
+            return; // it has been deleted or is being replaced, the new one will be read once it is there
+        try{
+            PrivateServerPreferences prefs = binary ? PrivateServerPreferences.readFromBinaryFile(file.getPath()) : PrivateServerPreferences.readFromTextFile(file.getPath());
+            server.reloadPreferences(prefs);
+        }catch(IOException | ServerException e){
+            server.log(PrivateServerPreferences.LogCategory.SYSTEM, true, "[system]: Preferences from ", file, " have not been applied: ", e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,127 @@
+package server_api;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Is used by the Server class to tell clients about other clients connecting and disconnecting.<br>
+ * Instead of sending a message to every client for every change, changes are collected for a short time
+ * (see {@link PrivateServerPreferences#getPresenceBatchWindow()}) and then sent as a single {@link SystemEvent#PRESENCE}
+ * event. When many clients reconnect at once (after a network failure for example) the number of messages therefore
+ * grows with the number of clients and not with its square. A client that connects and disconnects within the same
+ * window (or the other way around) is not announced at all, since nothing has changed for others.
+ *
+ * @author KRIKKI
+ * @version 1
+ * @since 17. 10. 2026
+ */
+final class PresenceAggregator {
+    private final Server server;
+    private final long window;
+    private final ScheduledExecutorService timer;
+    // for every username: was it connected before the window and is it connected now, guarded by this
+    private LinkedHashMap<String, boolean[]> pending = new LinkedHashMap<>();
+    private boolean scheduled = false;
+
+    /**
+     * Creates the aggregator.
+     *
+     * @param server This is the server that sends events.
+     * @param window This is the window in milliseconds. If it equals 0, events are sent immediately.
+     */
+    PresenceAggregator(Server server, long window){
+        this.server = server;
+        this.window = window;
+        if(window == 0){
+            this.timer = null;
+        }else{
+            this.timer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r){
+                    Thread thread = new Thread(r, "server-presence");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+    }
+
+    /**
+     * Is called when a client has logged in.
+     *
+     * @param username This is the username of the client.
+     */
+    void connected(String username){
+        changed(username, true);
+    }
+
+    /**
+     * Is called when a client has disconnected.
+     *
+     * @param username This is the username of the client.
+     */
+    void disconnected(String username){
+        changed(username, false);
+    }
+
+    private void changed(String username, boolean connected){
+        if(timer == null){
+            server.sendPresence(new String[]{(connected ? "+" : "-") + username});
+            return;
+        }
+        synchronized(this){
+            boolean[] state = pending.get(username);
+            if(state == null)
+                pending.put(username, new boolean[]{!connected, connected});
+            else
+                state[1] = connected;
+            if(!scheduled){
+                try{
+                    timer.schedule(new Runnable() {
+                        @Override
+                        public void run(){
+                            flush();
+                        }
+                    }, window, TimeUnit.MILLISECONDS);
+                    scheduled = true;
+                }catch(RejectedExecutionException e){ // server has stopped
+                    pending.clear();
+                }
+            }
+        }
+    }
+
+    /**
+     * Sends all collected changes now.
+     */
+    void flush(){
+        LinkedHashMap<String, boolean[]> changes;
+        synchronized(this){
+            changes = pending;
+            pending = new LinkedHashMap<>();
+            scheduled = false;
+        }
+        ArrayList<String> presence = new ArrayList<>();
+        for(Map.Entry<String, boolean[]> entry: changes.entrySet()){
+            boolean[] state = entry.getValue();
+            if(state[0] != state[1]) // connecting and disconnecting cancel out
+                presence.add((state[1] ? "+" : "-") + entry.getKey());
+        }
+        if(!presence.isEmpty())
+            server.sendPresence(presence.toArray(new String[0]));
+    }
+
+    /**
+     * Stops the timer. Changes that have not been sent yet are forgotten, since server is stopping.
+     */
+    void close(){
+        if(timer != null)
+            timer.shutdownNow();
+    }
+}
@@ -9,7 +9,8 @@ import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.io.PrintWriter;
 import java.io.Serializable;
-import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Scanner;
 
 
@@ -26,142 +27,1521 @@ import java.util.Scanner;
  * @since 23. 6. 2017
  */
 public class PrivateServerPreferences extends PublicServerPreferences implements Serializable {
+    // the same as before new fields were added, so files saved by older versions can still be read
+    private static final long serialVersionUID = 7725006191112912140L;
+    
+    /**
+     * Defines which engine {@link Server} uses for handling connections.
+     * 
+     */
+    public static enum ServerEngine {
+        /**
+         * Every connected client gets its own Thread that blocks while waiting for messages. This is the default.
+         */
+        BLOCKING,
+        /**
+         * Every connected client gets its own virtual thread from an executor owned by {@link Server}, so idle connections
+         * do not need memory of platform Threads. Virtual threads are available from Java 21 on, on older versions
+         * platform Threads are used instead.
+         */
+        VIRTUAL,
+        /**
+         * A small fixed number of event loop Threads handle all connections through non-blocking
+         * {@link java.nio.channels.SocketChannel}s. It requires framed protocol, which is turned on automatically.
+         */
+        NIO;
+    }
+    
+    /**
+     * Defines what happens when a client does not read messages as fast as they are being sent to it
+     * and its outbound queue becomes full.
+     * 
+     */
+    public static enum SlowConsumerPolicy {
+        /**
+         * The oldest queued chat message ({@link Message.Type#DATA} or {@link Message.Type#DATA_STRING}) is dropped
+         * to make room. If there is no such message, the client is disconnected. This is the default.
+         */
+        DROP_OLDEST,
+        /**
+         * The client is disconnected immediately.
+         */
+        DISCONNECT,
+        /**
+         * The sender waits for room in the queue at most {@link #getSlowConsumerTimeout()} milliseconds, after that
+         * the client is disconnected. Event loop Threads of {@link ServerEngine#NIO} engine never wait.
+         */
+        BLOCK;
+    }
+    
+    /**
+     * Defines what happens with a message from a client that sends messages faster than allowed
+     * (see {@link PrivateServerPreferences#getMessageRate(Message.Type)}).
+     * 
+     */
+    public static enum FloodPolicy {
+        /**
+         * Message is processed only when sending it would not exceed the rate, meanwhile nothing else is read from the client.
+         * Event loop Threads of {@link ServerEngine#NIO} engine never wait, so message is dropped as with {@link #DROP}.
+         */
+        DELAY,
+        /**
+         * Message is dropped and client receives an error. This is the default.
+         */
+        DROP,
+        /**
+         * Client is banned.
+         */
+        BAN;
+    }
+    
+    /**
+     * Defines kinds of lines server prints, so that each of them can be printed in more or less detail (see {@link LogLevel}).
+     * 
+     */
+    public static enum LogCategory {
+        /**
+         * Messages received from clients.
+         */
+        MESSAGES,
+        /**
+         * Clients connecting, logging in, disconnecting and being disconnected.
+         */
+        CONNECTIONS,
+        /**
+         * Everything else, like problems while sending messages.
+         */
+        SYSTEM;
+    }
+    
+    /**
+     * Defines which lines of a {@link LogCategory} are printed.
+     * 
+     */
+    public static enum LogLevel {
+        /**
+         * Nothing is printed.
+         */
+        OFF,
+        /**
+         * Only errors are printed.
+         */
+        ERROR,
+        /**
+         * Everything is printed. This is the default.
+         */
+        INFO;
+    }
+    
+    /**
+     * Defines what server does with a chat message that contains forbidden words (see {@link #getForbiddenWords()}).
+     * 
+     */
+    public static enum ForbiddenWordsAction {
+        /**
+         * Message is not delivered and sender receives an error. This is the default.
+         */
+        REJECT,
+        /**
+         * Every character of forbidden words is replaced with * and message is delivered.
+         */
+        MASK,
+        /**
+         * Message is delivered as it is, server only reports it.
+         */
+        FLAG;
+    }
+    
+    /**
+     * This defines how many clients can be connected to Server at once. Others will receive a denial message.
+     */
+    private int maxNumberOfClients = -1;
+    /**
+     * This defines how time stamps will look like. String is used by DateTimeFormatter, so you should use something like dd.MM.yyyy HH:mm:ss
+     */
+    private String timeStampFormat = "";
+    /**
+     * This defines which engine {@link Server} uses for handling connections.
+     */
+    private ServerEngine serverEngine = ServerEngine.BLOCKING;
+    /**
+     * This defines how many event loop Threads are used by {@link ServerEngine#NIO} engine. If it equals 0, the number of available processors is used.
+     */
+    private int eventLoopThreads = 0;
+    /**
+     * This defines how many messages can wait to be written to a single client.
+     */
+    private int outboundQueueCapacity = 1024;
+    /**
+     * This defines what happens when outbound queue of a client is full.
+     */
+    private SlowConsumerPolicy slowConsumerPolicy = SlowConsumerPolicy.DROP_OLDEST;
+    /**
+     * This defines what happens with chat messages that contain forbidden words.
+     */
+    private ForbiddenWordsAction forbiddenWordsAction = ForbiddenWordsAction.REJECT;
+    /**
+     * This defines which lines are printed for every {@link LogCategory}.
+     */
+    private LogLevel[] logLevels = {LogLevel.INFO, LogLevel.INFO, LogLevel.INFO};
+    /**
+     * This defines how many lines can wait to be printed. When there are more of them, new lines are dropped.
+     */
+    private int logBufferSize = 8192;
+    /**
+     * This defines how long (in milliseconds) a sender waits for room in outbound queue if policy is {@link SlowConsumerPolicy#BLOCK}.
+     */
+    private int slowConsumerTimeout = 5000;
+    /**
+     * These define how many messages of type {@link Message.Type#DATA}, {@link Message.Type#DATA_STRING} and {@link Message.Type#COMMAND}
+     * (in that order) a client can send every second. If it equals 0, there is no limit.
+     */
+    private int[] messageRates = {0, 0, 0};
+    /**
+     * These define how many bytes of messages of each type a client can send every second. If it equals 0, there is no limit.
+     */
+    private int[] byteRates = {0, 0, 0};
+    /**
+     * This defines for how many seconds a client can send at once what rates allow, after it has not been sending for a while.
+     */
+    private int rateLimitBurst = 3;
+    /**
+     * This defines what happens when a client sends faster than allowed.
+     */
+    private FloodPolicy floodPolicy = FloodPolicy.DROP;
+    /**
+     * This defines for how long (in milliseconds) the same text from the same client is not delivered again. If it equals 0, repeated messages are delivered.
+     */
+    private int duplicateWindow = 0;
+    /**
+     * This defines after how many messages object stream of a client is reset, so it forgets messages it has written. It is irrelevant if framed protocol is used.
+     */
+    private int streamResetMessages = ManagedObjectOutputStream.DEFAULT_RESET_MESSAGES;
+    /**
+     * This defines after how many bytes object stream of a client is reset, so it forgets messages it has written. It is irrelevant if framed protocol is used.
+     */
+    private int streamResetBytes = ManagedObjectOutputStream.DEFAULT_RESET_BYTES;
+    /**
+     * This defines for how long (in milliseconds) clients connecting and disconnecting are collected before others are told about them
+     * in a single message. If it equals 0, others are told about every client immediately.
+     */
+    private int presenceBatchWindow = 100;
+    /**
+     * This defines how many connections can wait to be accepted. If it equals 0, the default of the system is used.
+     */
+    private int acceptBacklog = 0;
+    /**
+     * This defines how many new connections per second are accepted. If it equals 0, there is no limit.
+     */
+    private int acceptRate = 0;
+    /**
+     * This defines how many new connections are accepted at once after a quiet period. If it equals 0, it is the same as {@link #acceptRate}.
+     */
+    private int acceptBurst = 0;
+    /**
+     * This defines how many new connections per second are accepted from a single IP address. If it equals 0, there is no limit.
+     */
+    private int acceptRatePerAddress = 0;
+    /**
+     * This defines how many new connections are accepted at once from a single IP address after a quiet period. If it equals 0, it is the same as {@link #acceptRatePerAddress}.
+     */
+    private int acceptBurstPerAddress = 0;
+    /**
+     * This defines how often (in milliseconds) server sends {@link Message.Type#PING} to clients. If it equals 0, heartbeats are not sent.
+     */
+    private int heartbeatInterval = 15000;
+    /**
+     * This defines after how many heartbeats without any answer a client is disconnected.
+     */
+    private int heartbeatMisses = 3;
+    /**
+     * This defines how long (in milliseconds) a client can stay connected without logging in. If it equals 0, there is no limit.
+     */
+    private int loginTimeout = 60000;
+    /**
+     * This defines how long (in milliseconds) {@link Server#drain()} waits for queued messages to be written.
+     */
+    private int drainTimeout = 5000;
+    /**
+     * This defines after how many seconds clients are told to reconnect when server is drained.
+     */
+    private int retryAfter = 30;
+    /**
+     * This defines how many Threads deliver messages of clients to other clients, taking turns between senders.
+     * If it equals 0, messages are delivered by the Thread that has received them.
+     */
+    private int dispatchThreads = 0;
+    /**
+     * This defines how many bytes of messages of a single client are delivered before the next client gets its turn.
+     */
+    private int dispatchQuantum = 8192;
+    /**
+     * This defines how many messages of a single client can wait to be delivered.
+     */
+    private int dispatchQueueLimit = 256;
+    /**
+     * This defines the directory where messages sent to all clients are stored. If it is empty, messages are not stored.
+     */
+    private String historyDirectory = "";
+    /**
+     * This defines the size (in bytes) of every file of history.
+     */
+    private int historySegmentSize = 16 * 1024 * 1024;
+    /**
+     * This defines how many megabytes of history are kept. If it equals 0, there is no limit.
+     */
+    private int historyRetentionSize = 256;
+    /**
+     * This defines for how many hours messages are kept in history. If it equals 0, there is no limit.
+     */
+    private int historyRetentionHours = 168;
+    /**
+     * This defines how many messages from history a client can receive at once.
+     */
+    private int historyMaxMessages = 100;
+    /**
+     * This defines the directory where messages for clients that are not connected are kept. If it is empty, such messages are not kept.
+     */
+    private String mailboxDirectory = "";
+    /**
+     * This defines how many messages can wait for a single client.
+     */
+    private int mailboxMaxMessages = 100;
+    /**
+     * This defines how many bytes of messages can wait for a single client.
+     */
+    private int mailboxMaxBytes = 1024 * 1024;
+    /**
+     * This defines for how many hours messages wait for a client. If it equals 0, they wait until client connects.
+     */
+    private int mailboxTtlHours = 72;
+    /**
+     * This defines for how many clients messages can wait at the same time.
+     */
+    private int mailboxMaxUsers = 1000;
+    /**
+     * This defines for how many milliseconds a client whose connection has been lost can resume its session. If it equals 0, sessions cannot be resumed.
+     */
+    private int sessionResumeWindow = 0;
+    /**
+     * This defines how many messages are kept for every session, so that they can be sent again when it is resumed.
+     */
+    private int sessionBufferSize = 256;
+    /**
+     * This is the port at which server listens for other nodes of the cluster. If it equals 0, server is not part of a cluster.
+     */
+    private int clusterPort = 0;
+    /**
+     * These are addresses of other nodes of the cluster (host:port), separated by comma.
+     */
+    private String clusterNodes = "";
+    /**
+     * This is the file these preferences were read from or null. It is not saved.
+     */
+    private transient String sourceFile = null;
+    private transient boolean sourceBinary = false;
+    
+    /**
+     * Constructs the object, but does not set any variables. These need to be set using setter methods,
+     * before passing it to {@link Server} and starting it (or ServerException is imminent).
+     */
+    public PrivateServerPreferences() {
+    }
+    
+    /**
+     * Creates a copy of the PrivateServerPreferences object passed in as an argument.
+     * 
+     * @param prefs2 This is the PrivateServerPreferences object you want duplicated.
+     */
+    public PrivateServerPreferences(PrivateServerPreferences prefs2) {
+        super(prefs2);
+        if(prefs2 == null){
+            return;
+        }
+        this.maxNumberOfClients = prefs2.getMaxNumberOfClients();
+        this.sourceFile = prefs2.sourceFile;
+        this.sourceBinary = prefs2.sourceBinary;
+        this.timeStampFormat = prefs2.getTimeStampFormat();
+        copyAddedVariables(prefs2);
+    }
+    
+    // copies variables that preferences saved by older versions do not have
+    private void copyAddedVariables(PrivateServerPreferences prefs2){
+        this.serverEngine = prefs2.getServerEngine();
+        this.eventLoopThreads = prefs2.getEventLoopThreads();
+        this.outboundQueueCapacity = prefs2.getOutboundQueueCapacity();
+        this.slowConsumerPolicy = prefs2.getSlowConsumerPolicy();
+        this.forbiddenWordsAction = prefs2.getForbiddenWordsAction();
+        this.logLevels = prefs2.logLevels.clone();
+        this.logBufferSize = prefs2.getLogBufferSize();
+        this.messageRates = prefs2.messageRates.clone();
+        this.byteRates = prefs2.byteRates.clone();
+        this.rateLimitBurst = prefs2.getRateLimitBurst();
+        this.floodPolicy = prefs2.getFloodPolicy();
+        this.duplicateWindow = prefs2.getDuplicateWindow();
+        this.slowConsumerTimeout = prefs2.getSlowConsumerTimeout();
+        this.streamResetMessages = prefs2.getStreamResetMessages();
+        this.streamResetBytes = prefs2.getStreamResetBytes();
+        this.presenceBatchWindow = prefs2.getPresenceBatchWindow();
+        this.acceptBacklog = prefs2.getAcceptBacklog();
+        this.acceptRate = prefs2.getAcceptRate();
+        this.acceptBurst = prefs2.getAcceptBurst();
+        this.acceptRatePerAddress = prefs2.getAcceptRatePerAddress();
+        this.acceptBurstPerAddress = prefs2.getAcceptBurstPerAddress();
+        this.heartbeatInterval = prefs2.getHeartbeatInterval();
+        this.heartbeatMisses = prefs2.getHeartbeatMisses();
+        this.loginTimeout = prefs2.getLoginTimeout();
+        this.drainTimeout = prefs2.getDrainTimeout();
+        this.retryAfter = prefs2.getRetryAfter();
+        this.dispatchThreads = prefs2.getDispatchThreads();
+        this.dispatchQuantum = prefs2.getDispatchQuantum();
+        this.dispatchQueueLimit = prefs2.getDispatchQueueLimit();
+        this.historyDirectory = prefs2.getHistoryDirectory();
+        this.historySegmentSize = prefs2.getHistorySegmentSize();
+        this.historyRetentionSize = prefs2.getHistoryRetentionSize();
+        this.historyRetentionHours = prefs2.getHistoryRetentionHours();
+        this.historyMaxMessages = prefs2.getHistoryMaxMessages();
+        this.mailboxDirectory = prefs2.getMailboxDirectory();
+        this.mailboxMaxMessages = prefs2.getMailboxMaxMessages();
+        this.mailboxMaxBytes = prefs2.getMailboxMaxBytes();
+        this.mailboxTtlHours = prefs2.getMailboxTtlHours();
+        this.mailboxMaxUsers = prefs2.getMailboxMaxUsers();
+        this.sessionResumeWindow = prefs2.getSessionResumeWindow();
+        this.sessionBufferSize = prefs2.getSessionBufferSize();
+        this.clusterPort = prefs2.getClusterPort();
+        this.clusterNodes = prefs2.getClusterNodes();
+    }
+    
+    // preferences saved by older versions do not have all the fields, those keep their default values
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        copyAddedVariables(new PrivateServerPreferences());
+        in.defaultReadObject();
+    }
+
+    /**
+     * Constructs the object by setting all variables at once. If loginRequired will be false, values of variables 
+     * <i>int minUsernameLength, int maxUsernameLength, String forbiddenUsernames, String allowedCharacters</i> are irrelevant and constructor
+     * {@link #PrivateServerPreferences(int, int, boolean, String)} can be used instead.
+     * 
+     * @param maxNumberOfClients This is the maximum amount of clients that can be connected to Server at once.
+     * @param port This is the port at which the Server will be listening.
+     * @param loginRequired This defines if clients will have to connect with username.
+     * @param minUsernameLength This defines the minimal length of the username if login is required. Otherwise value of this variable is irrelevant.
+     * @param maxUsernameLength This defines the maximal length of the username if login is required. Otherwise value of this variable is irrelevant.
+     * @param forbiddenUsernames This defines which usernames are forbidden using regex if login is required. Otherwise value of this variable is irrelevant.
+     * @param allowedUsernames This defines how username can be like using regex if login is required. Otherwise value of this variable is irrelevant.
+     * @param forbiddenWords This defines which words are forbidden for sending using regex.
+     * @param timeStampFormat This is the format in which time stamp will be displayed (like dd.MM.yyyy HH:mm:ss).
+     */
+    public PrivateServerPreferences(int maxNumberOfClients, int port, boolean loginRequired, int minUsernameLength, int maxUsernameLength, String forbiddenUsernames, String allowedUsernames, String forbiddenWords, String timeStampFormat) {
+        super(port, loginRequired, minUsernameLength, maxUsernameLength, forbiddenUsernames, allowedUsernames, forbiddenWords);
+        this.maxNumberOfClients = maxNumberOfClients;
+        this.timeStampFormat = timeStampFormat;
+    }
+
+    /**
+     * Constructs the object by setting some variables at once. It is meant to have loginRequired set to false, since
+     * it does not set variables about usernames (<i>int minUsernameLength, int maxUsernameLength, String forbiddenUsernames, String allowedCharacters</i>).
+     * If you want to set all of them consider using constructor {@link #PrivateServerPreferences(int, int, boolean, int, int, java.lang.String, java.lang.String, java.lang.String, java.lang.String)}
+     * 
+     * @param maxNumberOfClients This is the maximum amount of clients that can be connected to Server at once.
+     * @param port This is the port at which the Server will be listening.
+     * @param loginRequired This defines if clients will have to connect with username.
+     * @param forbiddenWords This defines which words are forbidden for sending using regex.
+     */
+    public PrivateServerPreferences(int maxNumberOfClients, int port, boolean loginRequired, String forbiddenWords) {
+        super(port, loginRequired, forbiddenWords);
+        this.maxNumberOfClients = maxNumberOfClients;
+    }
+    
+    /**
+     * Returns maximum number of clients that can be connected at once.
+     * If variable has not been set it will throw ServerException.
+     * 
+     * @return Returns maximum number of clients.
+     * @throws ServerException If variable has not been set.
+     */
+    public int getMaxNumberOfClients() throws ServerException{
+        if(!isMaxNumberOfClientsValid()) throw new ServerException("Preference for variable 'maxNumberOfClients' has not been set or is not valid");
+        return maxNumberOfClients;
+    }
+
+    /**
+     * Returns true if value has been set and is valid. It is valid if it is greater than 0.
+     * 
+     * @return Returns true if value has been set and is valid.
+     */
+    public boolean isMaxNumberOfClientsValid(){
+        return (maxNumberOfClients > 0);
+    }
+    
+    /**
+     * Sets maximum number of clients that can be connected at once. It can be set to any number,
+     * however it should be set to number greater than 0 to be valid and ServerException later on will be avoided.
+     * 
+     * @param maxNumberOfClients This is the maximum number of clients that connected at once.
+     * @see #isMaxNumberOfClientsValid() 
+     */
+    public void setMaxNumberOfClients(int maxNumberOfClients) {
+        this.maxNumberOfClients = maxNumberOfClients;
+    }
+    
+    /**
+     * Returns format for the time stamp that is shown in front of every message displayed on the Server.
+     * It may be equal to "", which means no time stamp will be displayed.
+     * If value is incorrect it will throw ServerException. Value should look something like dd.MM.yyyy HH:mm:ss
+     * 
+     * @return Returns maximum number of clients.
+     * @throws ServerException If variable has not been set.
+     */
+    public String getTimeStampFormat() throws ServerException{
+        if(!isTimeStampFormatValid()) throw new ServerException("Preference for variable 'timeStampFormat' has not been set or is not valid");
+        return timeStampFormat;
+    }
+    
+    /**
+     * Returns true, if format for time stamps is correct, or if it equals "" 
+     * (which means no time stamp will be displayed).
+     * 
+     * @return Returns true if  time stamp format is correct or equals "".
+     */
+    public boolean isTimeStampFormatValid(){
+        if(timeStampFormat.equals("")) return true;
+        return TimeFormats.isValid(timeStampFormat);
+    }
+    
+    /**
+     * Sets time stamp format to the new value.
+     * This method does not check for validity of the new format.
+     * That can be done with {@link #isTimeStampFormatValid()}.
+     * 
+     * @param newFormat This is the new format for time stamps.
+     */
+    public void setTimeStampFormat(String newFormat){
+        timeStampFormat = newFormat;
+    }
+    
+    /**
+     * Returns the engine {@link Server} uses for handling connections.
+     * 
+     * @return Returns the server engine.
+     */
+    public ServerEngine getServerEngine(){
+        return serverEngine;
+    }
+    
+    /**
+     * Sets the engine {@link Server} uses for handling connections. If it is set to {@link ServerEngine#NIO},
+     * framed protocol will be used no matter what value {@link #isFramed()} had before.
+     * 
+     * @param serverEngine This is the new server engine.
+     */
+    public void setServerEngine(ServerEngine serverEngine){
+        this.serverEngine = serverEngine;
+    }
+    
+    /**
+     * Returns the number of event loop Threads used by {@link ServerEngine#NIO} engine.
+     * If it equals 0, the number of available processors will be used.
+     * 
+     * @return Returns the number of event loop Threads.
+     */
+    public int getEventLoopThreads(){
+        return eventLoopThreads;
+    }
+    
+    /**
+     * Returns true if number of event loop Threads is greater or equal to 0.
+     * 
+     * @return Returns true if number of event loop Threads is valid.
+     */
+    public boolean isEventLoopThreadsValid(){
+        return eventLoopThreads >= 0;
+    }
+    
+    /**
+     * Sets the number of event loop Threads used by {@link ServerEngine#NIO} engine.
+     * If it is set to 0, the number of available processors will be used.
+     * 
+     * @param eventLoopThreads This is the number of event loop Threads.
+     * @see #isEventLoopThreadsValid() 
+     */
+    public void setEventLoopThreads(int eventLoopThreads){
+        this.eventLoopThreads = eventLoopThreads;
+    }
+    
+    /**
+     * Returns how many messages can wait to be written to a single client.
+     * 
+     * @return Returns the capacity of outbound queue.
+     */
+    public int getOutboundQueueCapacity(){
+        return outboundQueueCapacity;
+    }
+    
+    /**
+     * Returns true if capacity of outbound queue is greater than 0.
+     * 
+     * @return Returns true if capacity of outbound queue is valid.
+     */
+    public boolean isOutboundQueueCapacityValid(){
+        return outboundQueueCapacity > 0;
+    }
+    
+    /**
+     * Sets how many messages can wait to be written to a single client. When queue is full
+     * {@link #getSlowConsumerPolicy()} decides what happens.
+     * 
+     * @param outboundQueueCapacity This is the capacity of outbound queue.
+     * @see #isOutboundQueueCapacityValid() 
+     */
+    public void setOutboundQueueCapacity(int outboundQueueCapacity){
+        this.outboundQueueCapacity = outboundQueueCapacity;
+    }
+    
+    /**
+     * Returns what happens when outbound queue of a client is full.
+     * 
+     * @return Returns the slow consumer policy.
+     */
+    public SlowConsumerPolicy getSlowConsumerPolicy(){
+        return slowConsumerPolicy;
+    }
+    
+    /**
+     * Sets what happens when outbound queue of a client is full.
+     * 
+     * @param slowConsumerPolicy This is the new slow consumer policy.
+     */
+    public void setSlowConsumerPolicy(SlowConsumerPolicy slowConsumerPolicy){
+        this.slowConsumerPolicy = slowConsumerPolicy;
+    }
+    
+    /**
+     * Returns what server does with chat messages that contain forbidden words.
+     * 
+     * @return Returns the action for forbidden words.
+     */
+    public ForbiddenWordsAction getForbiddenWordsAction(){
+        return forbiddenWordsAction;
+    }
+    
+    /**
+     * Sets what server does with chat messages ({@link Message.Type#DATA_STRING}) that contain forbidden words.
+     * Server checks them no matter what clients do, but only whole words are found.
+     * 
+     * @param forbiddenWordsAction This is the new action for forbidden words.
+     */
+    public void setForbiddenWordsAction(ForbiddenWordsAction forbiddenWordsAction){
+        this.forbiddenWordsAction = forbiddenWordsAction;
+    }
+    
+    private static int rateIndex(Message.Type type){
+        switch(type){
+            case DATA:
+                return 0;
+            case DATA_STRING:
+                return 1;
+            case COMMAND:
+                return 2;
+            default:
+                throw new ServerException("Rates can only be set for DATA, DATA_STRING and COMMAND messages");
+        }
+    }
+    
+    /**
+     * Returns how many messages of given type a client can send every second.
+     * 
+     * @param type This is {@link Message.Type#DATA}, {@link Message.Type#DATA_STRING} or {@link Message.Type#COMMAND}.
+     * @return Returns the number of messages per second or 0 if there is no limit.
+     * @throws ServerException If type is not one of the above.
+     */
+    public int getMessageRate(Message.Type type){
+        return messageRates[rateIndex(type)];
+    }
+    
+    /**
+     * Sets how many messages of given type a client can send every second. Messages over the limit are handled
+     * as {@link #getFloodPolicy()} says.
+     * 
+     * @param type This is {@link Message.Type#DATA}, {@link Message.Type#DATA_STRING} or {@link Message.Type#COMMAND}.
+     * @param messageRate This is the number of messages per second or 0 if there is no limit.
+     * @throws ServerException If type is not one of the above.
+     */
+    public void setMessageRate(Message.Type type, int messageRate){
+        messageRates[rateIndex(type)] = messageRate;
+    }
+    
+    /**
+     * Returns how many bytes of messages of given type a client can send every second.
+     * 
+     * @param type This is {@link Message.Type#DATA}, {@link Message.Type#DATA_STRING} or {@link Message.Type#COMMAND}.
+     * @return Returns the number of bytes per second or 0 if there is no limit.
+     * @throws ServerException If type is not one of the above.
+     */
+    public int getByteRate(Message.Type type){
+        return byteRates[rateIndex(type)];
+    }
+    
+    /**
+     * Sets how many bytes of messages of given type a client can send every second. Messages over the limit are handled
+     * as {@link #getFloodPolicy()} says.
+     * 
+     * @param type This is {@link Message.Type#DATA}, {@link Message.Type#DATA_STRING} or {@link Message.Type#COMMAND}.
+     * @param byteRate This is the number of bytes per second or 0 if there is no limit.
+     * @throws ServerException If type is not one of the above.
+     */
+    public void setByteRate(Message.Type type, int byteRate){
+        byteRates[rateIndex(type)] = byteRate;
+    }
+    
+    /**
+     * Returns for how many seconds a client can send at once what rates allow.
+     * 
+     * @return Returns the burst in seconds.
+     */
+    public int getRateLimitBurst(){
+        return rateLimitBurst;
+    }
+    
+    /**
+     * Sets for how many seconds a client can send at once what rates allow, after it has not been sending for a while.
+     * For example with rate 2 and burst 3 a client can send 6 messages at once, but only 2 every second after that.
+     * 
+     * @param rateLimitBurst This is the burst in seconds (at least 1).
+     */
+    public void setRateLimitBurst(int rateLimitBurst){
+        this.rateLimitBurst = rateLimitBurst;
+    }
+    
+    /**
+     * Returns what happens when a client sends faster than allowed.
+     * 
+     * @return Returns the flood policy.
+     */
+    public FloodPolicy getFloodPolicy(){
+        return floodPolicy;
+    }
+    
+    /**
+     * Sets what happens when a client sends faster than allowed.
+     * 
+     * @param floodPolicy This is the new flood policy.
+     */
+    public void setFloodPolicy(FloodPolicy floodPolicy){
+        this.floodPolicy = floodPolicy;
+    }
+    
+    /**
+     * Returns for how long (in milliseconds) the same text from the same client is not delivered again.
+     * 
+     * @return Returns the window in milliseconds or 0 if repeated messages are delivered.
+     */
+    public int getDuplicateWindow(){
+        return duplicateWindow;
+    }
+    
+    /**
+     * Sets for how long (in milliseconds) the same text ({@link Message.Type#DATA_STRING}) from the same client is not delivered again.
+     * Only the previous message of the client is remembered and client receives an error instead.
+     * 
+     * @param duplicateWindow This is the window in milliseconds or 0 if repeated messages are delivered.
+     */
+    public void setDuplicateWindow(int duplicateWindow){
+        this.duplicateWindow = duplicateWindow;
+    }
+    
+    /**
+     * Returns true if any rate or duplicate window is set, so that clients need to be checked.
+     * 
+     * @return Returns true if clients are rate limited.
+     */
+    public boolean isRateLimited(){
+        for(int i = 0; i < messageRates.length; i++){
+            if(messageRates[i] > 0 || byteRates[i] > 0)
+                return true;
+        }
+        return duplicateWindow > 0;
+    }
+    
+    /**
+     * Returns true if rates and duplicate window are greater or equal to 0, burst is at least 1 and flood policy is set.
+     * 
+     * @return Returns true if values for rate limiting are valid.
+     */
+    public boolean isRateLimitValid(){
+        for(int i = 0; i < messageRates.length; i++){
+            if(messageRates[i] < 0 || byteRates[i] < 0)
+                return false;
+        }
+        return rateLimitBurst >= 1 && floodPolicy != null && duplicateWindow >= 0;
+    }
+    
+    /**
+     * Returns which lines of the category are printed.
+     * 
+     * @param category This is the category of lines.
+     * @return Returns the level of the category.
+     */
+    public LogLevel getLogLevel(LogCategory category){
+        return logLevels[category.ordinal()];
+    }
+    
+    /**
+     * Sets which lines of the category are printed. It can be changed while server is running.
+     * 
+     * @param category This is the category of lines.
+     * @param level This is the new level of the category.
+     */
+    public void setLogLevel(LogCategory category, LogLevel level){
+        logLevels[category.ordinal()] = level;
+    }
+    
+    /**
+     * Returns how many lines can wait to be printed.
+     * 
+     * @return Returns the size of the log buffer.
+     */
+    public int getLogBufferSize(){
+        return logBufferSize;
+    }
+    
+    /**
+     * Returns true if every category has a level and size of the log buffer is valid.
+     * 
+     * @return Returns true if values for logging are valid.
+     */
+    public boolean isLogValid(){
+        for(LogLevel level: logLevels){
+            if(level == null)
+                return false;
+        }
+        return isLogBufferSizeValid();
+    }
+    
+    /**
+     * Returns true if size of the log buffer is a power of 2.
+     * 
+     * @return Returns true if size of the log buffer is valid.
+     */
+    public boolean isLogBufferSizeValid(){
+        return logBufferSize > 0 && (logBufferSize & (logBufferSize - 1)) == 0;
+    }
+    
+    /**
+     * Sets how many lines can wait to be printed. Lines are printed by a separate Thread, so clients never wait for the output.
+     * When the output is too slow and there are more lines waiting, new lines are dropped (see {@link Server#getDroppedLogLines()}).
+     * 
+     * @param logBufferSize This is the size of the log buffer. It must be a power of 2.
+     * @see #isLogBufferSizeValid() 
+     */
+    public void setLogBufferSize(int logBufferSize){
+        this.logBufferSize = logBufferSize;
+    }
+    
+    /**
+     * Returns how long (in milliseconds) a sender waits for room in outbound queue if policy is {@link SlowConsumerPolicy#BLOCK}.
+     * 
+     * @return Returns the timeout in milliseconds.
+     */
+    public int getSlowConsumerTimeout(){
+        return slowConsumerTimeout;
+    }
+    
+    /**
+     * Returns true if timeout is greater or equal to 0.
+     * 
+     * @return Returns true if timeout is valid.
+     */
+    public boolean isSlowConsumerTimeoutValid(){
+        return slowConsumerTimeout >= 0;
+    }
+    
+    /**
+     * Sets how long (in milliseconds) a sender waits for room in outbound queue if policy is {@link SlowConsumerPolicy#BLOCK}.
+     * 
+     * @param slowConsumerTimeout This is the timeout in milliseconds.
+     * @see #isSlowConsumerTimeoutValid() 
+     */
+    public void setSlowConsumerTimeout(int slowConsumerTimeout){
+        this.slowConsumerTimeout = slowConsumerTimeout;
+    }
+    
+    /**
+     * Returns after how many messages object stream of a client is reset. Stream remembers every message it has written
+     * until it is reset. If it equals 0, number of messages does not cause resets.
+     * 
+     * @return Returns the number of messages between resets or 0.
+     */
+    public int getStreamResetMessages(){
+        return streamResetMessages;
+    }
+    
+    /**
+     * Sets after how many messages object stream of a client is reset. If it is set to 0, number of messages does not cause resets.
+     * If both this and {@link #getStreamResetBytes()} equal 0, streams are never reset and use more and more memory.
+     * 
+     * @param streamResetMessages This is the number of messages between resets or 0.
+     */
+    public void setStreamResetMessages(int streamResetMessages){
+        this.streamResetMessages = streamResetMessages;
+    }
+    
+    /**
+     * Returns after how many bytes object stream of a client is reset. If it equals 0, number of bytes does not cause resets.
+     * 
+     * @return Returns the number of bytes between resets or 0.
+     */
+    public int getStreamResetBytes(){
+        return streamResetBytes;
+    }
+    
+    /**
+     * Sets after how many bytes object stream of a client is reset. If it is set to 0, number of bytes does not cause resets.
+     * 
+     * @param streamResetBytes This is the number of bytes between resets or 0.
+     */
+    public void setStreamResetBytes(int streamResetBytes){
+        this.streamResetBytes = streamResetBytes;
+    }
+    
+    /**
+     * Returns true if both values for resetting object streams are greater or equal to 0.
+     * 
+     * @return Returns true if values for resetting object streams are valid.
+     */
+    public boolean isStreamResetValid(){
+        return streamResetMessages >= 0 && streamResetBytes >= 0;
+    }
+    
+    /**
+     * Returns for how long (in milliseconds) clients connecting and disconnecting are collected before others are told about them.
+     * 
+     * @return Returns the window in milliseconds or 0 if others are told immediately.
+     */
+    public int getPresenceBatchWindow(){
+        return presenceBatchWindow;
+    }
+    
+    /**
+     * Returns true if presence batch window is greater or equal to 0.
+     * 
+     * @return Returns true if presence batch window is valid.
+     */
+    public boolean isPresenceBatchWindowValid(){
+        return presenceBatchWindow >= 0;
+    }
+    
+    /**
+     * Sets for how long (in milliseconds) clients connecting and disconnecting are collected before others are told about them
+     * in a single message. A client that connects and disconnects within the same window is not announced at all.
+     * If it is set to 0, others are told about every client immediately.
+     * 
+     * @param presenceBatchWindow This is the window in milliseconds or 0.
+     * @see #isPresenceBatchWindowValid() 
+     */
+    public void setPresenceBatchWindow(int presenceBatchWindow){
+        this.presenceBatchWindow = presenceBatchWindow;
+    }
+    
+    /**
+     * Returns how many connections can wait to be accepted.
+     * 
+     * @return Returns the backlog or 0 if the default of the system is used.
+     */
+    public int getAcceptBacklog(){
+        return acceptBacklog;
+    }
+    
+    /**
+     * Sets how many connections can wait to be accepted. Connections over that are refused by the system.
+     * If it is set to 0, the default of the system is used.
+     * 
+     * @param acceptBacklog This is the backlog or 0.
+     */
+    public void setAcceptBacklog(int acceptBacklog){
+        this.acceptBacklog = acceptBacklog;
+    }
+    
+    /**
+     * Returns how many new connections per second are accepted.
+     * 
+     * @return Returns the number of connections per second or 0 if there is no limit.
+     */
+    public int getAcceptRate(){
+        return acceptRate;
+    }
+    
+    /**
+     * Sets how many new connections per second are accepted. Others receive {@link Message.Type#LOGIN_DENIED}.
+     * If it is set to 0, there is no limit.
+     * 
+     * @param acceptRate This is the number of connections per second or 0.
+     */
+    public void setAcceptRate(int acceptRate){
+        this.acceptRate = acceptRate;
+    }
+    
+    /**
+     * Returns how many new connections are accepted at once after a quiet period.
+     * 
+     * @return Returns the number of connections or 0 if it is the same as {@link #getAcceptRate()}.
+     */
+    public int getAcceptBurst(){
+        return acceptBurst;
+    }
+    
+    /**
+     * Sets how many new connections are accepted at once after a quiet period. If it is set to 0, it is the same as {@link #getAcceptRate()}.
+     * 
+     * @param acceptBurst This is the number of connections or 0.
+     */
+    public void setAcceptBurst(int acceptBurst){
+        this.acceptBurst = acceptBurst;
+    }
+    
+    /**
+     * Returns how many new connections per second are accepted from a single IP address.
+     * 
+     * @return Returns the number of connections per second or 0 if there is no limit.
+     */
+    public int getAcceptRatePerAddress(){
+        return acceptRatePerAddress;
+    }
+    
+    /**
+     * Sets how many new connections per second are accepted from a single IP address. Others receive {@link Message.Type#LOGIN_DENIED}.
+     * If it is set to 0, there is no limit.
+     * 
+     * @param acceptRatePerAddress This is the number of connections per second or 0.
+     */
+    public void setAcceptRatePerAddress(int acceptRatePerAddress){
+        this.acceptRatePerAddress = acceptRatePerAddress;
+    }
+    
+    /**
+     * Returns how many new connections are accepted at once from a single IP address after a quiet period.
+     * 
+     * @return Returns the number of connections or 0 if it is the same as {@link #getAcceptRatePerAddress()}.
+     */
+    public int getAcceptBurstPerAddress(){
+        return acceptBurstPerAddress;
+    }
+    
+    /**
+     * Sets how many new connections are accepted at once from a single IP address after a quiet period.
+     * If it is set to 0, it is the same as {@link #getAcceptRatePerAddress()}.
+     * 
+     * @param acceptBurstPerAddress This is the number of connections or 0.
+     */
+    public void setAcceptBurstPerAddress(int acceptBurstPerAddress){
+        this.acceptBurstPerAddress = acceptBurstPerAddress;
+    }
+    
+    /**
+     * Returns true if backlog and all values for limiting new connections are greater or equal to 0.
+     * 
+     * @return Returns true if values for accepting connections are valid.
+     */
+    public boolean isAdmissionValid(){
+        return acceptBacklog >= 0 && acceptRate >= 0 && acceptBurst >= 0 && acceptRatePerAddress >= 0 && acceptBurstPerAddress >= 0;
+    }
+    
+    /**
+     * Returns how often (in milliseconds) server sends {@link Message.Type#PING} to clients.
+     * 
+     * @return Returns the interval in milliseconds or 0 if heartbeats are not sent.
+     */
+    public int getHeartbeatInterval(){
+        return heartbeatInterval;
+    }
+    
+    /**
+     * Sets how often (in milliseconds) server sends {@link Message.Type#PING} to clients. Answers are used to measure
+     * round trip time and clients that stop answering are disconnected (see {@link #getHeartbeatMisses()}).
+     * Clients that do not support heartbeats never receive them. If it is set to 0, heartbeats are not sent.
+     * 
+     * @param heartbeatInterval This is the interval in milliseconds or 0.
+     */
+    public void setHeartbeatInterval(int heartbeatInterval){
+        this.heartbeatInterval = heartbeatInterval;
+    }
+    
+    /**
+     * Returns after how many heartbeats without any answer a client is disconnected.
+     * 
+     * @return Returns the number of missed heartbeats.
+     */
+    public int getHeartbeatMisses(){
+        return heartbeatMisses;
+    }
+    
+    /**
+     * Sets after how many heartbeats without any answer a client is disconnected. Any message from the client counts as an answer.
+     * 
+     * @param heartbeatMisses This is the number of missed heartbeats (at least 1).
+     */
+    public void setHeartbeatMisses(int heartbeatMisses){
+        this.heartbeatMisses = heartbeatMisses;
+    }
+    
+    /**
+     * Returns how long (in milliseconds) a client can stay connected without logging in.
+     * 
+     * @return Returns the timeout in milliseconds or 0 if there is no limit.
+     */
+    public int getLoginTimeout(){
+        return loginTimeout;
+    }
+    
+    /**
+     * Sets how long (in milliseconds) a client can stay connected without logging in, after that it is disconnected.
+     * It is irrelevant if login is not required. If it is set to 0, there is no limit.
+     * 
+     * @param loginTimeout This is the timeout in milliseconds or 0.
+     */
+    public void setLoginTimeout(int loginTimeout){
+        this.loginTimeout = loginTimeout;
+    }
+    
+    /**
+     * Returns true if heartbeat interval and login timeout are greater or equal to 0 and number of missed heartbeats is at least 1.
+     * 
+     * @return Returns true if values for heartbeats are valid.
+     */
+    public boolean isHeartbeatValid(){
+        return heartbeatInterval >= 0 && heartbeatMisses >= 1 && loginTimeout >= 0;
+    }
+    
+    /**
+     * Returns how long (in milliseconds) {@link Server#drain()} waits for queued messages to be written.
+     * 
+     * @return Returns the timeout in milliseconds.
+     */
+    public int getDrainTimeout(){
+        return drainTimeout;
+    }
+    
+    /**
+     * Sets how long (in milliseconds) {@link Server#drain()} waits for queued messages to be written. Messages
+     * that have not been written by then are thrown away and connections are closed.
+     * 
+     * @param drainTimeout This is the timeout in milliseconds.
+     */
+    public void setDrainTimeout(int drainTimeout){
+        this.drainTimeout = drainTimeout;
+    }
+    
+    /**
+     * Returns after how many seconds clients are told to reconnect when server is drained.
+     * 
+     * @return Returns the number of seconds.
+     */
+    public int getRetryAfter(){
+        return retryAfter;
+    }
+    
+    /**
+     * Sets after how many seconds clients are told to reconnect when server is drained (see {@link SystemEvent#SHUTDOWN}).
+     * 
+     * @param retryAfter This is the number of seconds.
+     */
+    public void setRetryAfter(int retryAfter){
+        this.retryAfter = retryAfter;
+    }
+    
+    /**
+     * Returns true if drain timeout and retry after are greater or equal to 0.
+     * 
+     * @return Returns true if values for draining are valid.
+     */
+    public boolean isDrainValid(){
+        return drainTimeout >= 0 && retryAfter >= 0;
+    }
+    
+    /**
+     * Returns how many Threads deliver messages of clients to other clients.
+     * 
+     * @return Returns the number of Threads or 0 if messages are delivered by the Thread that has received them.
+     */
+    public int getDispatchThreads(){
+        return dispatchThreads;
+    }
+    
+    /**
+     * Sets how many Threads deliver messages of clients to other clients. Senders take turns, so a client that sends a lot
+     * gets the same share of these Threads as any other, and messages of clients that send rarely do not wait behind its messages.
+     * If it equals 0, every message is delivered by the Thread that has received it (which is faster if nobody is flooding).
+     * 
+     * @param dispatchThreads This is the number of Threads.
+     */
+    public void setDispatchThreads(int dispatchThreads){
+        this.dispatchThreads = dispatchThreads;
+    }
+    
+    /**
+     * Returns how many bytes of messages of a single client are delivered before the next client gets its turn.
+     * 
+     * @return Returns the number of bytes.
+     */
+    public int getDispatchQuantum(){
+        return dispatchQuantum;
+    }
+    
+    /**
+     * Sets how many bytes of messages of a single client are delivered before the next client gets its turn
+     * (it is multiplied by {@link Server#getDispatchWeight(java.lang.String)}). Bigger quantum means fewer turns,
+     * smaller means that senders take turns more evenly.
+     * 
+     * @param dispatchQuantum This is the number of bytes (at least 1).
+     */
+    public void setDispatchQuantum(int dispatchQuantum){
+        this.dispatchQuantum = dispatchQuantum;
+    }
+    
+    /**
+     * Returns how many messages of a single client can wait to be delivered.
+     * 
+     * @return Returns the number of messages.
+     */
+    public int getDispatchQueueLimit(){
+        return dispatchQueueLimit;
+    }
+    
+    /**
+     * Sets how many messages of a single client can wait to be delivered. When there are that many, server stops reading
+     * from the client until some of them are delivered or, if it cannot wait (NIO engine), tells the client that the message
+     * has not been sent.
+     * 
+     * @param dispatchQueueLimit This is the number of messages (at least 1).
+     */
+    public void setDispatchQueueLimit(int dispatchQueueLimit){
+        this.dispatchQueueLimit = dispatchQueueLimit;
+    }
+    
+    /**
+     * Returns true if number of dispatch Threads is greater or equal to 0 and quantum and queue limit are at least 1.
+     * 
+     * @return Returns true if values for dispatching are valid.
+     */
+    public boolean isDispatchValid(){
+        return dispatchThreads >= 0 && dispatchQuantum >= 1 && dispatchQueueLimit >= 1;
+    }
+    
+    /**
+     * Returns the directory where messages sent to all clients are stored.
+     * 
+     * @return Returns the directory or "" if messages are not stored.
+     */
+    public String getHistoryDirectory(){
+        return historyDirectory;
+    }
+    
+    /**
+     * Sets the directory where messages ({@link Message.Type#DATA} and {@link Message.Type#DATA_STRING}) sent to all clients
+     * are stored, so that clients can ask for them later with command /history. Messages sent to specific clients are never stored.
+     * Directory is created if it does not exist.
+     * 
+     * @param historyDirectory This is the directory or "" if messages should not be stored.
+     */
+    public void setHistoryDirectory(String historyDirectory){
+        this.historyDirectory = historyDirectory;
+    }
+    
+    /**
+     * Returns the size (in bytes) of every file of history.
+     * 
+     * @return Returns the size in bytes.
+     */
+    public int getHistorySegmentSize(){
+        return historySegmentSize;
+    }
+    
+    /**
+     * Sets the size (in bytes) of every file of history. When a file is full, a new one is started and the oldest files
+     * are deleted according to retention. Messages bigger than a file are not stored.
+     * 
+     * @param historySegmentSize This is the size in bytes (at least 4096).
+     */
+    public void setHistorySegmentSize(int historySegmentSize){
+        this.historySegmentSize = historySegmentSize;
+    }
+    
     /**
-     * This defines how many clients can be connected to Server at once. Others will receive a denial message.
+     * Returns how many megabytes of history are kept.
+     * 
+     * @return Returns the number of megabytes or 0 if there is no limit.
      */
-    private int maxNumberOfClients = -1;
+    public int getHistoryRetentionSize(){
+        return historyRetentionSize;
+    }
+    
     /**
-     * This defines how time stamps will look like. String is used by SimpleDateFormat, so you should use something like dd.MM.yyyy HH:mm:ss
+     * Sets how many megabytes of history are kept. Whole files are deleted, oldest first, but the file that is being written is always kept.
+     * 
+     * @param historyRetentionSize This is the number of megabytes or 0 if there is no limit.
      */
-    private String timeStampFormat = "";
+    public void setHistoryRetentionSize(int historyRetentionSize){
+        this.historyRetentionSize = historyRetentionSize;
+    }
     
     /**
-     * Constructs the object, but does not set any variables. These need to be set using setter methods,
-     * before passing it to {@link Server} and starting it (or ServerException is imminent).
+     * Returns for how many hours messages are kept in history.
+     * 
+     * @return Returns the number of hours or 0 if there is no limit.
      */
-    public PrivateServerPreferences() {
+    public int getHistoryRetentionHours(){
+        return historyRetentionHours;
     }
     
     /**
-     * Creates a copy of the PrivateServerPreferences object passed in as an argument.
+     * Sets for how many hours messages are kept in history. A file is deleted once all of its messages are older than that.
      * 
-     * @param prefs2 This is the PrivateServerPreferences object you want duplicated.
+     * @param historyRetentionHours This is the number of hours or 0 if there is no limit.
      */
-    public PrivateServerPreferences(PrivateServerPreferences prefs2) {
-        super(prefs2);
-        if(prefs2 == null){
-            return;
-        }
-        this.maxNumberOfClients = prefs2.getMaxNumberOfClients();
-        this.timeStampFormat = prefs2.getTimeStampFormat();
+    public void setHistoryRetentionHours(int historyRetentionHours){
+        this.historyRetentionHours = historyRetentionHours;
     }
-
+    
     /**
-     * Constructs the object by setting all variables at once. If loginRequired will be false, values of variables 
-     * <i>int minUsernameLength, int maxUsernameLength, String forbiddenUsernames, String allowedCharacters</i> are irrelevant and constructor
-     * {@link #PrivateServerPreferences(int, int, boolean, String)} can be used instead.
+     * Returns how many messages from history a client can receive at once.
      * 
-     * @param maxNumberOfClients This is the maximum amount of clients that can be connected to Server at once.
-     * @param port This is the port at which the Server will be listening.
-     * @param loginRequired This defines if clients will have to connect with username.
-     * @param minUsernameLength This defines the minimal length of the username if login is required. Otherwise value of this variable is irrelevant.
-     * @param maxUsernameLength This defines the maximal length of the username if login is required. Otherwise value of this variable is irrelevant.
-     * @param forbiddenUsernames This defines which usernames are forbidden using regex if login is required. Otherwise value of this variable is irrelevant.
-     * @param allowedUsernames This defines how username can be like using regex if login is required. Otherwise value of this variable is irrelevant.
-     * @param forbiddenWords This defines which words are forbidden for sending using regex.
-     * @param timeStampFormat This is the format in which time stamp will be displayed (like dd.MM.yyyy HH:mm:ss).
+     * @return Returns the number of messages.
      */
-    public PrivateServerPreferences(int maxNumberOfClients, int port, boolean loginRequired, int minUsernameLength, int maxUsernameLength, String forbiddenUsernames, String allowedUsernames, String forbiddenWords, String timeStampFormat) {
-        super(port, loginRequired, minUsernameLength, maxUsernameLength, forbiddenUsernames, allowedUsernames, forbiddenWords);
-        this.maxNumberOfClients = maxNumberOfClients;
-        this.timeStampFormat = timeStampFormat;
+    public int getHistoryMaxMessages(){
+        return historyMaxMessages;
     }
-
+    
     /**
-     * Constructs the object by setting some variables at once. It is meant to have loginRequired set to false, since
-     * it does not set variables about usernames (<i>int minUsernameLength, int maxUsernameLength, String forbiddenUsernames, String allowedCharacters</i>).
-     * If you want to set all of them consider using constructor {@link #PrivateServerPreferences(int, int, boolean, int, int, java.lang.String, java.lang.String, java.lang.String, java.lang.String)}
+     * Sets how many messages from history a client can receive at once. It should be smaller than
+     * {@link #getOutboundQueueCapacity()}, otherwise some of them may be dropped.
      * 
-     * @param maxNumberOfClients This is the maximum amount of clients that can be connected to Server at once.
-     * @param port This is the port at which the Server will be listening.
-     * @param loginRequired This defines if clients will have to connect with username.
-     * @param forbiddenWords This defines which words are forbidden for sending using regex.
+     * @param historyMaxMessages This is the number of messages (at least 1).
      */
-    public PrivateServerPreferences(int maxNumberOfClients, int port, boolean loginRequired, String forbiddenWords) {
-        super(port, loginRequired, forbiddenWords);
-        this.maxNumberOfClients = maxNumberOfClients;
+    public void setHistoryMaxMessages(int historyMaxMessages){
+        this.historyMaxMessages = historyMaxMessages;
     }
     
     /**
-     * Returns maximum number of clients that can be connected at once.
-     * If variable has not been set it will throw ServerException.
+     * Returns true if directory is set (it can be empty), segment size is at least 4096, retention is greater or equal to 0
+     * and number of messages is at least 1.
      * 
-     * @return Returns maximum number of clients.
-     * @throws ServerException If variable has not been set.
+     * @return Returns true if values for history are valid.
      */
-    public int getMaxNumberOfClients() throws ServerException{
-        if(!isMaxNumberOfClientsValid()) throw new ServerException("Preference for variable 'maxNumberOfClients' has not been set or is not valid");
-        return maxNumberOfClients;
+    public boolean isHistoryValid(){
+        return historyDirectory != null && historySegmentSize >= 4096 && historyRetentionSize >= 0 && historyRetentionHours >= 0 && historyMaxMessages >= 1;
     }
-
+    
     /**
-     * Returns true if value has been set and is valid. It is valid if it is greater than 0.
+     * Returns the directory where messages for clients that are not connected are kept.
      * 
-     * @return Returns true if value has been set and is valid.
+     * @return Returns the directory or "" if such messages are not kept.
      */
-    public boolean isMaxNumberOfClientsValid(){
-        return (maxNumberOfClients > 0);
+    public String getMailboxDirectory(){
+        return mailboxDirectory;
     }
     
     /**
-     * Sets maximum number of clients that can be connected at once. It can be set to any number,
-     * however it should be set to number greater than 0 to be valid and ServerException later on will be avoided.
+     * Sets the directory where messages ({@link Message.Type#DATA} and {@link Message.Type#DATA_STRING}) for clients that
+     * are not connected are kept until they log in. It is only used if login is required, since otherwise clients have no names.
+     * Sender receives {@link SystemEvent#RECIPIENTS_OFFLINE} instead of {@link SystemEvent#RECIPIENTS_NOT_EXIST} for clients whose
+     * messages have been kept. Directory is created if it does not exist.
      * 
-     * @param maxNumberOfClients This is the maximum number of clients that connected at once.
-     * @see #isMaxNumberOfClientsValid() 
+     * @param mailboxDirectory This is the directory or "" if such messages should not be kept.
      */
-    public void setMaxNumberOfClients(int maxNumberOfClients) {
-        this.maxNumberOfClients = maxNumberOfClients;
+    public void setMailboxDirectory(String mailboxDirectory){
+        this.mailboxDirectory = mailboxDirectory;
     }
     
     /**
-     * Returns format for the time stamp that is shown in front of every message displayed on the Server.
-     * It may be equal to "", which means no time stamp will be displayed.
-     * If value is incorrect it will throw ServerException. Value should look something like dd.MM.yyyy HH:mm:ss
+     * Returns how many messages can wait for a single client.
      * 
-     * @return Returns maximum number of clients.
-     * @throws ServerException If variable has not been set.
+     * @return Returns the number of messages.
      */
-    public String getTimeStampFormat() throws ServerException{
-        if(!isTimeStampFormatValid()) throw new ServerException("Preference for variable 'timeStampFormat' has not been set or is not valid");
-        return timeStampFormat;
+    public int getMailboxMaxMessages(){
+        return mailboxMaxMessages;
     }
     
     /**
-     * Returns true, if format for time stamps is correct, or if it equals "" 
-     * (which means no time stamp will be displayed).
+     * Sets how many messages can wait for a single client. Further messages are treated as if client did not exist.
      * 
-     * @return Returns true if  time stamp format is correct or equals "".
+     * @param mailboxMaxMessages This is the number of messages (at least 1).
      */
-    public boolean isTimeStampFormatValid(){
-        if(timeStampFormat.equals("")) return true;
-        try{
-            new SimpleDateFormat(timeStampFormat);
-            return true;
-        }catch(Exception e){
-            return false;
-        }
+    public void setMailboxMaxMessages(int mailboxMaxMessages){
+        this.mailboxMaxMessages = mailboxMaxMessages;
     }
     
     /**
-     * Sets time stamp format to the new value.
-     * This method does not check for validity of the new format.
-     * That can be done with {@link #isTimeStampFormatValid()}.
+     * Returns how many bytes of messages can wait for a single client.
      * 
-     * @param newFormat This is the new format for time stamps.
+     * @return Returns the number of bytes.
      */
-    public void setTimeStampFormat(String newFormat){
-        timeStampFormat = newFormat;
+    public int getMailboxMaxBytes(){
+        return mailboxMaxBytes;
+    }
+    
+    /**
+     * Sets how many bytes of messages can wait for a single client. Further messages are treated as if client did not exist.
+     * 
+     * @param mailboxMaxBytes This is the number of bytes (at least 1).
+     */
+    public void setMailboxMaxBytes(int mailboxMaxBytes){
+        this.mailboxMaxBytes = mailboxMaxBytes;
+    }
+    
+    /**
+     * Returns for how many hours messages wait for a client.
+     * 
+     * @return Returns the number of hours or 0 if they wait until client connects.
+     */
+    public int getMailboxTtlHours(){
+        return mailboxTtlHours;
+    }
+    
+    /**
+     * Sets for how many hours messages wait for a client. Older messages are not delivered and are deleted.
+     * 
+     * @param mailboxTtlHours This is the number of hours or 0 if they wait until client connects.
+     */
+    public void setMailboxTtlHours(int mailboxTtlHours){
+        this.mailboxTtlHours = mailboxTtlHours;
+    }
+    
+    /**
+     * Returns for how many clients messages can wait at the same time.
+     * 
+     * @return Returns the number of clients.
+     */
+    public int getMailboxMaxUsers(){
+        return mailboxMaxUsers;
+    }
+    
+    /**
+     * Sets for how many clients messages can wait at the same time. It limits how much disk space can be taken,
+     * since any allowed username can receive messages.
+     * 
+     * @param mailboxMaxUsers This is the number of clients (at least 1).
+     */
+    public void setMailboxMaxUsers(int mailboxMaxUsers){
+        this.mailboxMaxUsers = mailboxMaxUsers;
+    }
+    
+    /**
+     * Returns true if directory is set (it can be empty), limits are at least 1 and time to live is greater or equal to 0.
+     * 
+     * @return Returns true if values for offline messages are valid.
+     */
+    public boolean isMailboxValid(){
+        return mailboxDirectory != null && mailboxMaxMessages >= 1 && mailboxMaxBytes >= 1 && mailboxTtlHours >= 0 && mailboxMaxUsers >= 1;
+    }
+    
+    /**
+     * Returns for how many milliseconds a client whose connection has been lost can resume its session.
+     * 
+     * @return Returns the time in milliseconds or 0 if sessions cannot be resumed.
+     */
+    public int getSessionResumeWindow(){
+        return sessionResumeWindow;
+    }
+    
+    /**
+     * Sets for how many milliseconds a client whose connection has been lost can resume its session. It is only used if login
+     * is required and only by clients that receive {@link SystemEvent}s. Such clients receive {@link SystemEvent#SESSION} after they log in.
+     * If they connect again in time, they log in with it and receive messages they have missed, while other clients
+     * see no disconnect and no new connection. Until then the username stays taken.
+     * 
+     * @param sessionResumeWindow This is the time in milliseconds or 0 if sessions cannot be resumed.
+     */
+    public void setSessionResumeWindow(int sessionResumeWindow){
+        this.sessionResumeWindow = sessionResumeWindow;
+    }
+    
+    /**
+     * Returns how many messages are kept for every session.
+     * 
+     * @return Returns the number of messages.
+     */
+    public int getSessionBufferSize(){
+        return sessionBufferSize;
+    }
+    
+    /**
+     * Sets how many of the last messages ({@link Message.Type#DATA} and {@link Message.Type#DATA_STRING}) sent to a client are kept, so
+     * that they can be sent again when its session is resumed. Client misses older messages if more have been sent meanwhile.
+     * 
+     * @param sessionBufferSize This is the number of messages (at least 1).
+     */
+    public void setSessionBufferSize(int sessionBufferSize){
+        this.sessionBufferSize = sessionBufferSize;
+    }
+    
+    /**
+     * Returns true if time is greater or equal to 0 and buffer size is at least 1.
+     * 
+     * @return Returns true if values for resuming sessions are valid.
+     */
+    public boolean isSessionResumeValid(){
+        return sessionResumeWindow >= 0 && sessionBufferSize >= 1;
+    }
+    
+    /**
+     * Returns the port at which server listens for other nodes of the cluster.
+     * 
+     * @return Returns the port or 0 if server is not part of a cluster.
+     */
+    public int getClusterPort(){
+        return clusterPort;
+    }
+    
+    /**
+     * Sets the port at which server listens for other nodes of the cluster. It is only used if login is required.
+     * Every node of the cluster owns connections of its own clients and relays messages for clients of other nodes
+     * to them. Usernames are unique in the whole cluster. Other nodes connect to this port without any password,
+     * so it must only be reachable from the nodes.
+     * 
+     * @param clusterPort This is the port or 0 if server is not part of a cluster.
+     */
+    public void setClusterPort(int clusterPort){
+        this.clusterPort = clusterPort;
+    }
+    
+    /**
+     * Returns addresses of other nodes of the cluster.
+     * 
+     * @return Returns addresses like: localhost:4001, 10.0.0.2:4001
+     */
+    public String getClusterNodes(){
+        return clusterNodes;
+    }
+    
+    /**
+     * Sets addresses of other nodes of the cluster this server connects to (host and cluster port of each node, separated by comma).
+     * It is enough if one of every two nodes knows the address of the other one, since they connect in both directions.
+     * 
+     * @param clusterNodes These are addresses like: localhost:4001, 10.0.0.2:4001
+     */
+    public void setClusterNodes(String clusterNodes){
+        this.clusterNodes = clusterNodes;
+    }
+    
+    /**
+     * Returns true if port is valid and addresses of nodes are in form host:port.
+     * 
+     * @return Returns true if values for cluster are valid.
+     */
+    public boolean isClusterValid(){
+        return clusterPort >= 0 && clusterPort <= 65535 && clusterNodes != null
+                && clusterNodes.matches("\\s*|\\s*[^,:\\s]+:\\d{1,5}(\\s*,\\s*[^,:\\s]+:\\d{1,5})*\\s*");
+    }
+    
+    /**
+     * Returns true if framed protocol is used. It is always true if server engine is {@link ServerEngine#NIO}.
+     * 
+     * @return Returns true if framed protocol is used.
+     */
+    @Override
+    public boolean isFramed(){
+        return super.isFramed() || serverEngine == ServerEngine.NIO;
     }
     
     /**
@@ -172,7 +1552,9 @@ public class PrivateServerPreferences extends PublicServerPreferences implements
      */
     @Override
     public boolean isValid(){
-        return super.isValid() && isMaxNumberOfClientsValid() && isTimeStampFormatValid();
+        return super.isValid() && isMaxNumberOfClientsValid() && isTimeStampFormatValid() && serverEngine != null && isEventLoopThreadsValid()
+                && isOutboundQueueCapacityValid() && slowConsumerPolicy != null && forbiddenWordsAction != null && isLogValid() && isRateLimitValid() && isSlowConsumerTimeoutValid() && isStreamResetValid()
+                && isPresenceBatchWindowValid() && isAdmissionValid() && isHeartbeatValid() && isDrainValid() && isDispatchValid() && isHistoryValid() && isMailboxValid() && isSessionResumeValid() && isClusterValid();
     }
 
     /**
@@ -233,6 +1615,180 @@ public class PrivateServerPreferences extends PublicServerPreferences implements
                         case "timestampformat":
                             prefs.setTimeStampFormat(value);
                             break;
+                        case "serverengine":
+                            try{
+                                prefs.setServerEngine(ServerEngine.valueOf(value.toUpperCase()));
+                            }catch(IllegalArgumentException e){
+                                throw new ServerException("Variable serverEngine has irregular value ("+value+")");
+                            }
+                            break;
+                        case "eventloopthreads":
+                            prefs.setEventLoopThreads(Integer.parseInt(value));
+                            break;
+                        case "binarycodecversion":
+                            prefs.setBinaryCodecVersion(Integer.parseInt(value));
+                            break;
+                        case "outboundqueuecapacity":
+                            prefs.setOutboundQueueCapacity(Integer.parseInt(value));
+                            break;
+                        case "slowconsumerpolicy":
+                            try{
+                                prefs.setSlowConsumerPolicy(SlowConsumerPolicy.valueOf(value.toUpperCase()));
+                            }catch(IllegalArgumentException e){
+                                throw new ServerException("Variable slowConsumerPolicy has irregular value ("+value+")");
+                            }
+                            break;
+                        case "messagesloglevel":
+                        case "connectionsloglevel":
+                        case "systemloglevel":
+                            try{
+                                prefs.setLogLevel(LogCategory.valueOf(var.substring(0, var.length() - 8).toUpperCase()), LogLevel.valueOf(value.toUpperCase()));
+                            }catch(IllegalArgumentException e){
+                                throw new ServerException("Variable " + var + " has irregular value ("+value+")");
+                            }
+                            break;
+                        case "logbuffersize":
+                            prefs.setLogBufferSize(Integer.parseInt(value));
+                            break;
+                        case "datamessagerate":
+                            prefs.setMessageRate(Message.Type.DATA, Integer.parseInt(value));
+                            break;
+                        case "datastringmessagerate":
+                            prefs.setMessageRate(Message.Type.DATA_STRING, Integer.parseInt(value));
+                            break;
+                        case "commandmessagerate":
+                            prefs.setMessageRate(Message.Type.COMMAND, Integer.parseInt(value));
+                            break;
+                        case "databyterate":
+                            prefs.setByteRate(Message.Type.DATA, Integer.parseInt(value));
+                            break;
+                        case "datastringbyterate":
+                            prefs.setByteRate(Message.Type.DATA_STRING, Integer.parseInt(value));
+                            break;
+                        case "commandbyterate":
+                            prefs.setByteRate(Message.Type.COMMAND, Integer.parseInt(value));
+                            break;
+                        case "ratelimitburst":
+                            prefs.setRateLimitBurst(Integer.parseInt(value));
+                            break;
+                        case "floodpolicy":
+                            try{
+                                prefs.setFloodPolicy(FloodPolicy.valueOf(value.toUpperCase()));
+                            }catch(IllegalArgumentException e){
+                                throw new ServerException("Variable floodPolicy has irregular value ("+value+")");
+                            }
+                            break;
+                        case "duplicatewindow":
+                            prefs.setDuplicateWindow(Integer.parseInt(value));
+                            break;
+                        case "forbiddenwordsaction":
+                            try{
+                                prefs.setForbiddenWordsAction(ForbiddenWordsAction.valueOf(value.toUpperCase()));
+                            }catch(IllegalArgumentException e){
+                                throw new ServerException("Variable forbiddenWordsAction has irregular value ("+value+")");
+                            }
+                            break;
+                        case "slowconsumertimeout":
+                            prefs.setSlowConsumerTimeout(Integer.parseInt(value));
+                            break;
+                        case "streamresetmessages":
+                            prefs.setStreamResetMessages(Integer.parseInt(value));
+                            break;
+                        case "streamresetbytes":
+                            prefs.setStreamResetBytes(Integer.parseInt(value));
+                            break;
+                        case "presencebatchwindow":
+                            prefs.setPresenceBatchWindow(Integer.parseInt(value));
+                            break;
+                        case "acceptbacklog":
+                            prefs.setAcceptBacklog(Integer.parseInt(value));
+                            break;
+                        case "acceptrate":
+                            prefs.setAcceptRate(Integer.parseInt(value));
+                            break;
+                        case "acceptburst":
+                            prefs.setAcceptBurst(Integer.parseInt(value));
+                            break;
+                        case "acceptrateperaddress":
+                            prefs.setAcceptRatePerAddress(Integer.parseInt(value));
+                            break;
+                        case "acceptburstperaddress":
+                            prefs.setAcceptBurstPerAddress(Integer.parseInt(value));
+                            break;
+                        case "dispatchthreads":
+                            prefs.setDispatchThreads(Integer.parseInt(value));
+                            break;
+                        case "dispatchquantum":
+                            prefs.setDispatchQuantum(Integer.parseInt(value));
+                            break;
+                        case "dispatchqueuelimit":
+                            prefs.setDispatchQueueLimit(Integer.parseInt(value));
+                            break;
+                        case "historydirectory":
+                            prefs.setHistoryDirectory(value);
+                            break;
+                        case "historysegmentsize":
+                            prefs.setHistorySegmentSize(Integer.parseInt(value));
+                            break;
+                        case "historyretentionsize":
+                            prefs.setHistoryRetentionSize(Integer.parseInt(value));
+                            break;
+                        case "historyretentionhours":
+                            prefs.setHistoryRetentionHours(Integer.parseInt(value));
+                            break;
+                        case "historymaxmessages":
+                            prefs.setHistoryMaxMessages(Integer.parseInt(value));
+                            break;
+                        case "clusterport":
+                            prefs.setClusterPort(Integer.parseInt(value));
+                            break;
+                        case "clusternodes":
+                            prefs.setClusterNodes(value);
+                            break;
+                        case "mailboxdirectory":
+                            prefs.setMailboxDirectory(value);
+                            break;
+                        case "mailboxmaxmessages":
+                            prefs.setMailboxMaxMessages(Integer.parseInt(value));
+                            break;
+                        case "mailboxmaxbytes":
+                            prefs.setMailboxMaxBytes(Integer.parseInt(value));
+                            break;
+                        case "mailboxttlhours":
+                            prefs.setMailboxTtlHours(Integer.parseInt(value));
+                            break;
+                        case "mailboxmaxusers":
+                            prefs.setMailboxMaxUsers(Integer.parseInt(value));
+                            break;
+                        case "sessionresumewindow":
+                            prefs.setSessionResumeWindow(Integer.parseInt(value));
+                            break;
+                        case "sessionbuffersize":
+                            prefs.setSessionBufferSize(Integer.parseInt(value));
+                            break;
+                        case "heartbeatinterval":
+                            prefs.setHeartbeatInterval(Integer.parseInt(value));
+                            break;
+                        case "heartbeatmisses":
+                            prefs.setHeartbeatMisses(Integer.parseInt(value));
+                            break;
+                        case "logintimeout":
+                            prefs.setLoginTimeout(Integer.parseInt(value));
+                            break;
+                        case "draintimeout":
+                            prefs.setDrainTimeout(Integer.parseInt(value));
+                            break;
+                        case "retryafter":
+                            prefs.setRetryAfter(Integer.parseInt(value));
+                            break;
+                        case "framed":
+                            if(value.equals("true") || value.equals("1"))
+                                prefs.setFramed(true);
+                            else if(value.equals("false") || value.equals("0"))
+                                prefs.setFramed(false);
+                            else
+                                throw new ServerException("Variable framed has irregular value ("+value+")");
+                            break;
                         default:
                             throw new ServerException("Unrecognized variable in: '"+vrstica+"'");
                     }
@@ -241,6 +1797,7 @@ public class PrivateServerPreferences extends PublicServerPreferences implements
         }catch(NumberFormatException e){
             throw new ServerException("Variable "+var+" does not have an integer value ("+value+")");
         }
+        prefs.sourceFile = new File(fileName).getAbsolutePath();
         return prefs;
     }
     
@@ -273,6 +1830,87 @@ public class PrivateServerPreferences extends PublicServerPreferences implements
                 writer.println("maxNumberOfClients = \"" + prefs.getMaxNumberOfClients() +"\"");
             if(prefs.isTimeStampFormatValid())
                 writer.println("timestampformat = \"" + prefs.getTimeStampFormat() +"\"");
+            if(prefs.getServerEngine() != null)
+                writer.println("serverEngine = \"" + prefs.getServerEngine().toString().toLowerCase() +"\"");
+            if(prefs.isEventLoopThreadsValid())
+                writer.println("eventLoopThreads = \"" + prefs.getEventLoopThreads() +"\"");
+            writer.println("framed = " + prefs.framed);
+            if(prefs.isBinaryCodecVersionValid())
+                writer.println("binaryCodecVersion = \"" + prefs.getBinaryCodecVersion() +"\"");
+            if(prefs.isOutboundQueueCapacityValid())
+                writer.println("outboundQueueCapacity = \"" + prefs.getOutboundQueueCapacity() +"\"");
+            if(prefs.getSlowConsumerPolicy() != null)
+                writer.println("slowConsumerPolicy = \"" + prefs.getSlowConsumerPolicy().toString().toLowerCase() +"\"");
+            if(prefs.getForbiddenWordsAction() != null)
+                writer.println("forbiddenWordsAction = \"" + prefs.getForbiddenWordsAction().toString().toLowerCase() +"\"");
+            for(LogCategory category: LogCategory.values()){
+                if(prefs.getLogLevel(category) != null)
+                    writer.println(category.toString().toLowerCase() + "LogLevel = \"" + prefs.getLogLevel(category).toString().toLowerCase() +"\"");
+            }
+            if(prefs.isRateLimitValid()){
+                writer.println("dataMessageRate = \"" + prefs.getMessageRate(Message.Type.DATA) +"\"");
+                writer.println("dataStringMessageRate = \"" + prefs.getMessageRate(Message.Type.DATA_STRING) +"\"");
+                writer.println("commandMessageRate = \"" + prefs.getMessageRate(Message.Type.COMMAND) +"\"");
+                writer.println("dataByteRate = \"" + prefs.getByteRate(Message.Type.DATA) +"\"");
+                writer.println("dataStringByteRate = \"" + prefs.getByteRate(Message.Type.DATA_STRING) +"\"");
+                writer.println("commandByteRate = \"" + prefs.getByteRate(Message.Type.COMMAND) +"\"");
+                writer.println("rateLimitBurst = \"" + prefs.getRateLimitBurst() +"\"");
+                writer.println("floodPolicy = \"" + prefs.getFloodPolicy().toString().toLowerCase() +"\"");
+                writer.println("duplicateWindow = \"" + prefs.getDuplicateWindow() +"\"");
+            }
+            if(prefs.isLogBufferSizeValid())
+                writer.println("logBufferSize = \"" + prefs.getLogBufferSize() +"\"");
+            if(prefs.isSlowConsumerTimeoutValid())
+                writer.println("slowConsumerTimeout = \"" + prefs.getSlowConsumerTimeout() +"\"");
+            if(prefs.isStreamResetValid()){
+                writer.println("streamResetMessages = \"" + prefs.getStreamResetMessages() +"\"");
+                writer.println("streamResetBytes = \"" + prefs.getStreamResetBytes() +"\"");
+            }
+            if(prefs.isPresenceBatchWindowValid())
+                writer.println("presenceBatchWindow = \"" + prefs.getPresenceBatchWindow() +"\"");
+            if(prefs.isAdmissionValid()){
+                writer.println("acceptBacklog = \"" + prefs.getAcceptBacklog() +"\"");
+                writer.println("acceptRate = \"" + prefs.getAcceptRate() +"\"");
+                writer.println("acceptBurst = \"" + prefs.getAcceptBurst() +"\"");
+                writer.println("acceptRatePerAddress = \"" + prefs.getAcceptRatePerAddress() +"\"");
+                writer.println("acceptBurstPerAddress = \"" + prefs.getAcceptBurstPerAddress() +"\"");
+            }
+            if(prefs.isHeartbeatValid()){
+                writer.println("heartbeatInterval = \"" + prefs.getHeartbeatInterval() +"\"");
+                writer.println("heartbeatMisses = \"" + prefs.getHeartbeatMisses() +"\"");
+                writer.println("loginTimeout = \"" + prefs.getLoginTimeout() +"\"");
+            }
+            if(prefs.isDrainValid()){
+                writer.println("drainTimeout = \"" + prefs.getDrainTimeout() +"\"");
+                writer.println("retryAfter = \"" + prefs.getRetryAfter() +"\"");
+            }
+            if(prefs.isDispatchValid()){
+                writer.println("dispatchThreads = \"" + prefs.getDispatchThreads() +"\"");
+                writer.println("dispatchQuantum = \"" + prefs.getDispatchQuantum() +"\"");
+                writer.println("dispatchQueueLimit = \"" + prefs.getDispatchQueueLimit() +"\"");
+            }
+            if(prefs.isHistoryValid()){
+                writer.println("historyDirectory = \"" + prefs.getHistoryDirectory() +"\"");
+                writer.println("historySegmentSize = \"" + prefs.getHistorySegmentSize() +"\"");
+                writer.println("historyRetentionSize = \"" + prefs.getHistoryRetentionSize() +"\"");
+                writer.println("historyRetentionHours = \"" + prefs.getHistoryRetentionHours() +"\"");
+                writer.println("historyMaxMessages = \"" + prefs.getHistoryMaxMessages() +"\"");
+            }
+            if(prefs.isMailboxValid()){
+                writer.println("mailboxDirectory = \"" + prefs.getMailboxDirectory() +"\"");
+                writer.println("mailboxMaxMessages = \"" + prefs.getMailboxMaxMessages() +"\"");
+                writer.println("mailboxMaxBytes = \"" + prefs.getMailboxMaxBytes() +"\"");
+                writer.println("mailboxTtlHours = \"" + prefs.getMailboxTtlHours() +"\"");
+                writer.println("mailboxMaxUsers = \"" + prefs.getMailboxMaxUsers() +"\"");
+            }
+            if(prefs.isSessionResumeValid()){
+                writer.println("sessionResumeWindow = \"" + prefs.getSessionResumeWindow() +"\"");
+                writer.println("sessionBufferSize = \"" + prefs.getSessionBufferSize() +"\"");
+            }
+            if(prefs.isClusterValid()){
+                writer.println("clusterPort = \"" + prefs.getClusterPort() +"\"");
+                writer.println("clusterNodes = \"" + prefs.getClusterNodes() +"\"");
+            }
             System.out.println("timestampformat: "+prefs.timeStampFormat);
         }
     }
@@ -296,7 +1934,10 @@ public class PrivateServerPreferences extends PublicServerPreferences implements
             if(output.readShort() != 1240){
                 throw new ServerException("The file you entered is not in the correct format for private server preferences");
             }
-            return (PrivateServerPreferences) output.readObject();
+            PrivateServerPreferences prefs = (PrivateServerPreferences) output.readObject();
+            prefs.sourceFile = new File(fileName).getAbsolutePath();
+            prefs.sourceBinary = true;
+            return prefs;
         } catch (ClassNotFoundException|ClassCastException ex) {
             throw new ServerException("The file you entered is not in the correct format for private server preferences");
         }
@@ -319,6 +1960,91 @@ public class PrivateServerPreferences extends PublicServerPreferences implements
         }
     }
     
+    /**
+     * Returns the file these preferences were read from with {@link #readFromTextFile(java.lang.String)} or
+     * {@link #readFromBinaryFile(java.lang.String)}. Server watches this file while it is running and applies changes
+     * without a restart (see {@link Server#reloadPreferences(server_api.PrivateServerPreferences)}).
+     * 
+     * @return Returns the absolute path of the file or null if preferences were not read from a file.
+     */
+    public String getSourceFile(){
+        return sourceFile;
+    }
+    
+    /**
+     * Returns true if these preferences were read from a binary file.
+     * 
+     */
+    boolean isSourceBinary(){
+        return sourceBinary;
+    }
+    
+    /**
+     * Takes values that are only used when server starts from preferences of the running server, so that only
+     * values that can change while server is running are different.
+     * 
+     * @param running These are the preferences of the running server.
+     * @return Returns names of values that were different and will only change after restart.
+     */
+    List<String> keepRestartValues(PrivateServerPreferences running){
+        ArrayList<String> changed = new ArrayList<>();
+        if(port != running.port)
+            changed.add("port");
+        if(loginRequired != running.loginRequired)
+            changed.add("loginRequired");
+        if(framed != running.framed)
+            changed.add("framed");
+        if(binaryCodecVersion != running.binaryCodecVersion)
+            changed.add("binaryCodecVersion");
+        if(serverEngine != running.serverEngine || eventLoopThreads != running.eventLoopThreads || acceptBacklog != running.acceptBacklog)
+            changed.add("serverEngine");
+        if(logBufferSize != running.logBufferSize)
+            changed.add("logBufferSize");
+        if(presenceBatchWindow != running.presenceBatchWindow)
+            changed.add("presenceBatchWindow");
+        if(heartbeatInterval != running.heartbeatInterval)
+            changed.add("heartbeatInterval");
+        if((sessionResumeWindow > 0) != (running.sessionResumeWindow > 0))
+            changed.add("sessionResumeWindow");
+        if(dispatchThreads != running.dispatchThreads || dispatchQuantum != running.dispatchQuantum || dispatchQueueLimit != running.dispatchQueueLimit)
+            changed.add("dispatch");
+        if(!running.historyDirectory.equals(historyDirectory) || historySegmentSize != running.historySegmentSize
+                || historyRetentionSize != running.historyRetentionSize || historyRetentionHours != running.historyRetentionHours)
+            changed.add("history");
+        if(!running.mailboxDirectory.equals(mailboxDirectory) || mailboxMaxMessages != running.mailboxMaxMessages || mailboxMaxBytes != running.mailboxMaxBytes
+                || mailboxTtlHours != running.mailboxTtlHours || mailboxMaxUsers != running.mailboxMaxUsers)
+            changed.add("mailbox");
+        if(clusterPort != running.clusterPort || !running.clusterNodes.equals(clusterNodes))
+            changed.add("cluster");
+        port = running.port;
+        loginRequired = running.loginRequired;
+        framed = running.framed;
+        binaryCodecVersion = running.binaryCodecVersion;
+        serverEngine = running.serverEngine;
+        eventLoopThreads = running.eventLoopThreads;
+        acceptBacklog = running.acceptBacklog;
+        logBufferSize = running.logBufferSize;
+        presenceBatchWindow = running.presenceBatchWindow;
+        heartbeatInterval = running.heartbeatInterval;
+        if((sessionResumeWindow > 0) != (running.sessionResumeWindow > 0))
+            sessionResumeWindow = running.sessionResumeWindow;
+        dispatchThreads = running.dispatchThreads;
+        dispatchQuantum = running.dispatchQuantum;
+        dispatchQueueLimit = running.dispatchQueueLimit;
+        historyDirectory = running.historyDirectory;
+        historySegmentSize = running.historySegmentSize;
+        historyRetentionSize = running.historyRetentionSize;
+        historyRetentionHours = running.historyRetentionHours;
+        mailboxDirectory = running.mailboxDirectory;
+        mailboxMaxMessages = running.mailboxMaxMessages;
+        mailboxMaxBytes = running.mailboxMaxBytes;
+        mailboxTtlHours = running.mailboxTtlHours;
+        mailboxMaxUsers = running.mailboxMaxUsers;
+        clusterPort = running.clusterPort;
+        clusterNodes = running.clusterNodes;
+        return changed;
+    }
+    
     /**
      * Returns an object of type {@link PublicServerPreferences}, which is the super class of PrivateServerPreferences.
      * 
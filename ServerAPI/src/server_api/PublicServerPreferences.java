@@ -1,5 +1,7 @@
 package server_api;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
 import java.io.Serializable;
 
 /**
@@ -11,6 +13,8 @@ import java.io.Serializable;
  * @since 23. 6. 2017
  */
 public class PublicServerPreferences implements Serializable {
+    // the same as before new fields were added, so older clients can still read preferences (fields they do not know are skipped)
+    private static final long serialVersionUID = 8933309899570502559L;
     /**
      * This is the port on which Server is listening. It needs to have value between 0 and 65535 inclusive.
      */
@@ -47,6 +51,22 @@ public class PublicServerPreferences implements Serializable {
      * An example: "broccoli|cauliflower"
      */
     protected String forbiddenWords = ""; 
+    /**
+     * This defines if messages are sent as frames (length of the message followed by the serialized message) after
+     * the first {@link Message.Type#PREFERENCES} message, instead of through a continuous object stream.
+     */
+    protected boolean framed = false;
+    /**
+     * This is the newest version of binary format (see {@link MessageCodec}) Server can use in frames instead of Java serialization.
+     * If it equals 0, binary format is not used. It is irrelevant if framed protocol is not used.
+     */
+    protected int binaryCodecVersion = MessageCodec.VERSION;
+    
+    // preferences from older servers do not have all the fields, those keep their default values
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        binaryCodecVersion = MessageCodec.VERSION;
+        in.defaultReadObject();
+    }
     
     /**
      * This zero argument constructor does not set any variables. It is expected that they will be set using setter methods.
@@ -72,6 +92,8 @@ public class PublicServerPreferences implements Serializable {
         this.forbiddenUsernames = prefs2.getForbiddenUsernames();
         this.allowedUsernames = prefs2.getAllowedUsernames();
         this.forbiddenWords = prefs2.getForbiddenWords();
+        this.framed = prefs2.framed;
+        this.binaryCodecVersion = prefs2.binaryCodecVersion;
     }
 
     /**
@@ -134,7 +156,7 @@ public class PublicServerPreferences implements Serializable {
      * @return Returns true if all variables are valid.
      */
     public boolean isValid(){
-        return isPortValid() && (!isLoginRequired() || (isMinUsernameLengthValid() && isMaxUsernameLengthValid() && isForbiddenUsernamesValid() && isAllowedUsernamesValid())) && isForbiddenWordsValid();
+        return isPortValid() && (!isLoginRequired() || (isMinUsernameLengthValid() && isMaxUsernameLengthValid() && isForbiddenUsernamesValid() && isAllowedUsernamesValid())) && isForbiddenWordsValid() && isBinaryCodecVersionValid();
     }
     
     /**
@@ -361,4 +383,68 @@ public class PublicServerPreferences implements Serializable {
     public void setForbiddenWords(String forbiddenWords) {
         this.forbiddenWords = forbiddenWords;
     }
+    
+    /**
+     * Returns true if messages are sent as frames after the first {@link Message.Type#PREFERENCES} message.
+     * If it is false, messages are sent through a continuous object stream.
+     * 
+     * @return Returns true if framed protocol is used.
+     */
+    public boolean isFramed(){
+        return framed;
+    }
+    
+    /**
+     * Sets boolean value if messages are sent as frames after the first {@link Message.Type#PREFERENCES} message.
+     * This variable is automatically set to false.
+     * 
+     * @param framed This defines if framed protocol is used.
+     */
+    public void setFramed(boolean framed){
+        this.framed = framed;
+    }
+    
+    /**
+     * Returns the newest version of binary format that Server can use in frames instead of Java serialization.
+     * Client picks the newest version it also supports and tells it to Server after receiving preferences.
+     * If it equals 0, messages in frames are always serialized by Java serialization.
+     * 
+     * @return Returns the newest version of binary format or 0.
+     */
+    public int getBinaryCodecVersion(){
+        return binaryCodecVersion;
+    }
+    
+    /**
+     * Returns true if version of binary format is between 0 and the newest version this library supports (inclusive on both sides).
+     * 
+     * @return Returns true if version of binary format is valid.
+     */
+    public boolean isBinaryCodecVersionValid(){
+        return binaryCodecVersion >= 0 && binaryCodecVersion <= MessageCodec.VERSION;
+    }
+    
+    /**
+     * Sets the newest version of binary format that Server can use in frames instead of Java serialization.
+     * It is automatically set to the newest version this library supports. If set to 0, binary format will not be used.
+     * 
+     * @param binaryCodecVersion This is the version of binary format or 0.
+     * @see #isBinaryCodecVersionValid() 
+     */
+    public void setBinaryCodecVersion(int binaryCodecVersion){
+        this.binaryCodecVersion = binaryCodecVersion;
+    }
+    
+    /**
+     * Returns true if all values are the same as in the other object.
+     * 
+     * @param prefs2 These are the other preferences.
+     * @return Returns true if clients would see no difference between them.
+     */
+    boolean sameAs(PublicServerPreferences prefs2){
+        return port == prefs2.port && loginRequired == prefs2.loginRequired && minUsernameLength == prefs2.minUsernameLength
+                && maxUsernameLength == prefs2.maxUsernameLength && forbiddenUsernames.equals(prefs2.forbiddenUsernames)
+                && allowedUsernames.equals(prefs2.allowedUsernames) && forbiddenWords.equals(prefs2.forbiddenWords)
+                && framed == prefs2.framed && binaryCodecVersion == prefs2.binaryCodecVersion;
+    }
 }
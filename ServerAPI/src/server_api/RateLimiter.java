@@ -0,0 +1,105 @@
+package server_api;
+
+/**
+ * Is used by {@link ServerConnector} to keep a single client from flooding the server, since every message it sends
+ * may have to be delivered to all other clients.<br>
+ * Every type of messages that clients send ({@link Message.Type#DATA}, {@link Message.Type#DATA_STRING} and
+ * {@link Message.Type#COMMAND}) has its own budget of messages and bytes per second (see {@link TokenBucket}).
+ * Besides that the hash of the previous text is remembered, so that the same text sent over and over again can be recognised
+ * without keeping the text itself. A limiter belongs to a single connection and is only used by its reading Thread.
+ *
+ * @author KRIKKI
+ * @version 1
+ * @since 17. 10. 2026
+ */
+final class RateLimiter {
+    private static final Message.Type[] TYPES = {Message.Type.DATA, Message.Type.DATA_STRING, Message.Type.COMMAND};
+
+    private final TokenBucket[] messages = new TokenBucket[TYPES.length]; // null if unlimited
+    private final TokenBucket[] bytes = new TokenBucket[TYPES.length];
+    private final long duplicateWindow; // in nanoseconds
+    private int lastHash;
+    private int lastLength = -1;
+    private long lastTime;
+
+    /**
+     * Creates the limiter with limits from preferences.
+     *
+     * @param prefs These are the preferences of the server.
+     */
+    RateLimiter(PrivateServerPreferences prefs){
+        int burst = prefs.getRateLimitBurst();
+        for(int i = 0; i < TYPES.length; i++){
+            int rate = prefs.getMessageRate(TYPES[i]);
+            if(rate > 0)
+                messages[i] = new TokenBucket(rate, (double) rate * burst);
+            rate = prefs.getByteRate(TYPES[i]);
+            if(rate > 0)
+                bytes[i] = new TokenBucket(rate, (double) rate * burst);
+        }
+        this.duplicateWindow = prefs.getDuplicateWindow() * 1000000L;
+    }
+
+    private static int index(Message.Type type){
+        switch(type){
+            case DATA:
+                return 0;
+            case DATA_STRING:
+                return 1;
+            case COMMAND:
+                return 2;
+            default:
+                return -1;
+        }
+    }
+
+    /**
+     * Takes the message from the budget of its type if it fits in.
+     *
+     * @param type This is the type of the message.
+     * @param size This is the size of the message in bytes.
+     * @return Returns true if message is within the limits. Other types of messages are always within.
+     */
+    boolean tryAcquire(Message.Type type, long size){
+        int i = index(type);
+        if(i < 0)
+            return true;
+        if(messages[i] != null && !messages[i].tryAcquire(1))
+            return false;
+        return bytes[i] == null || bytes[i].tryAcquire(size);
+    }
+
+    /**
+     * Takes the message from the budget of its type even if it does not fit in and tells how long it should wait.
+     *
+     * @param type This is the type of the message.
+     * @param size This is the size of the message in bytes.
+     * @return Returns the delay in nanoseconds or 0 if message is within the limits.
+     */
+    long reserve(Message.Type type, long size){
+        int i = index(type);
+        if(i < 0)
+            return 0;
+        long delay = messages[i] == null ? 0 : messages[i].reserve(1);
+        return bytes[i] == null ? delay : Math.max(delay, bytes[i].reserve(size));
+    }
+
+    /**
+     * Returns true if text is the same as the previous one and it was sent recently.
+     * Texts are compared only by their hash and length, so it takes no time no matter how long they are.
+     *
+     * @param text This is the text of the message.
+     * @return Returns true if text is a repeated one.
+     */
+    boolean isDuplicate(String text){
+        if(duplicateWindow == 0)
+            return false;
+        long now = System.nanoTime();
+        int hash = text.hashCode();
+        boolean duplicate = hash == lastHash && text.length() == lastLength && now - lastTime < duplicateWindow;
+        lastHash = hash;
+        lastLength = text.length();
+        lastTime = now;
+        return duplicate;
+    }
+}
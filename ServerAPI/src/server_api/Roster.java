@@ -0,0 +1,104 @@
+package server_api;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Is used by {@link ClientRegistry} to remember recent changes of connected clients, so that a client who already
+ * knows who is connected only needs to receive what has changed since then.<br>
+ * Every change (a client added or removed) increases the version of the roster by one. The version of the current
+ * roster is kept in {@link ClientRegistry.Snapshot#rosterVersion} together with usernames, while this class keeps the
+ * last {@link #MAX_CHANGES} changes. If a client asks for changes since a version that is older than that, it has
+ * to receive the whole roster.
+ *
+ * @author KRIKKI
+ * @version 1
+ * @since 17. 10. 2026
+ */
+final class Roster {
+    /**
+     * This is the number of changes that are remembered.
+     */
+    static final int MAX_CHANGES = 4096;
+
+    private final ArrayDeque<Change> changes = new ArrayDeque<>();
+
+    /**
+     * This is a single change of the roster.
+     */
+    private static final class Change {
+        final long version;
+        final String username;
+        final boolean added;
+
+        Change(long version, String username, boolean added){
+            this.version = version;
+            this.username = username;
+            this.added = added;
+        }
+    }
+
+    /**
+     * Remembers a change. Versions of changes must follow each other.
+     *
+     * @param version This is the version of the roster after the change.
+     * @param username This is the username of the client.
+     * @param added This is true if client was added and false if it was removed.
+     */
+    synchronized void record(long version, String username, boolean added){
+        if(changes.size() == MAX_CHANGES)
+            changes.removeFirst();
+        changes.addLast(new Change(version, username, added));
+    }
+
+    /**
+     * Forgets all changes. Clients will have to receive the whole roster.
+     */
+    synchronized void clear(){
+        changes.clear();
+    }
+
+    /**
+     * Returns changes between two versions, like: +John, -Ann (added John and removed Ann). A client that was
+     * added and then removed again (or the other way around) is left out.
+     *
+     * @param from This is the version the client knows.
+     * @param to This is the version of the roster the client will know after applying changes.
+     * @return Returns changes or null if they are not remembered anymore and the whole roster must be sent.
+     */
+    synchronized String[] delta(long from, long to){
+        if(from == to)
+            return new String[0];
+        if(from < 0 || from > to || changes.isEmpty() || changes.peekFirst().version > from + 1)
+            return null;
+        // for every username: was it there at version from, and is it there at version to
+        LinkedHashMap<String, boolean[]> net = new LinkedHashMap<>();
+        Iterator<Change> it = changes.descendingIterator(); // newest first, the ones we need are at the end
+        ArrayList<Change> needed = new ArrayList<>();
+        while(it.hasNext()){
+            Change change = it.next();
+            if(change.version <= from)
+                break;
+            if(change.version <= to)
+                needed.add(change);
+        }
+        for(int i = needed.size() - 1; i >= 0; i--){
+            Change change = needed.get(i);
+            boolean[] state = net.get(change.username);
+            if(state == null)
+                net.put(change.username, new boolean[]{!change.added, change.added});
+            else
+                state[1] = change.added;
+        }
+        ArrayList<String> delta = new ArrayList<>();
+        for(Map.Entry<String, boolean[]> entry: net.entrySet()){
+            boolean[] state = entry.getValue();
+            if(state[0] != state[1])
+                delta.add((state[1] ? "+" : "-") + entry.getKey());
+        }
+        return delta.toArray(new String[0]);
+    }
+}
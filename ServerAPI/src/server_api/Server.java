@@ -1,18 +1,20 @@
 package server_api;
 
+import java.io.File;
 import java.io.IOException;
-import java.io.NotActiveException;
-import java.io.ObjectOutputStream;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.ConcurrentModificationException;
-import java.util.HashMap;
 import java.util.HashSet;
-import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
 
 /**
  * The main class for Server API. 
@@ -25,11 +27,84 @@ import java.util.Set;
  * @since 23.6.2017
  */
 public class Server implements Runnable{
+    /**
+     * Defines why a new connection was rejected before the client could log in.
+     * 
+     */
+    public static enum ConnectionRejection {
+        /**
+         * Server already had the maximum number of clients (see {@link PrivateServerPreferences#getMaxNumberOfClients()}).
+         */
+        TOO_MANY_CLIENTS,
+        /**
+         * New connections were arriving faster than allowed (see {@link PrivateServerPreferences#getAcceptRate()}).
+         */
+        RATE_LIMITED,
+        /**
+         * New connections from the same IP address were arriving faster than allowed (see {@link PrivateServerPreferences#getAcceptRatePerAddress()}).
+         */
+        ADDRESS_RATE_LIMITED;
+    }
+    
+    /**
+     * This is returned by {@link Server#drain()} and tells what happened to messages that were waiting to be
+     * written when server was stopping.
+     * 
+     */
+    public static final class DrainResult {
+        private final long flushed;
+        private final long dropped;
+        
+        private DrainResult(long flushed, long dropped){
+            this.flushed = flushed;
+            this.dropped = dropped;
+        }
+        
+        /**
+         * Returns the number of messages (including the shutdown notices) that were written before connections were closed.
+         * 
+         * @return Returns the number of flushed messages.
+         */
+        public long getFlushedMessages(){
+            return flushed;
+        }
+        
+        /**
+         * Returns the number of messages that were thrown away because they had not been written in time.
+         * 
+         * @return Returns the number of dropped messages.
+         */
+        public long getDroppedMessages(){
+            return dropped;
+        }
+    }
+    
+    private static final long MAILBOX_TICK = 10; // in milliseconds
+    private static final int MAILBOX_BATCH_BYTES = 64 * 1024;
+    
     private ServerSocket serverSocket;
-    private HashMap <String, ServerConnector> clients;
-    private HashMap <String, ServerConnector> clientsLoggingIn; // only if login is required
-    private PrivateServerPreferences preferences;
+    private ServerSocketChannel serverChannel; // only with NIO engine
+    private NioEventLoop[] eventLoops;
+    private int nextEventLoop = 0;
+    private ExecutorService connectionExecutor; // only with VIRTUAL engine
+    private final ClientRegistry registry = new ClientRegistry(); // clients logging in are only used if login is required
+    private volatile PrivateServerPreferences preferences; // replaced as a whole when preferences are reloaded
+    private PresenceAggregator presence;
+    private volatile AdmissionController admission; // replaced when limits are reloaded
+    private TimerWheel timers; // null if there are no heartbeats, login deadlines or sessions to resume
     boolean requestToStop = false;
+    private volatile boolean draining = false;
+    private volatile WordFilter wordFilter;
+    private volatile String wordFilterSource; // differs from the source of the filter if regex was not valid
+    private volatile UsernamePolicy usernamePolicy;
+    private volatile LogPipeline logPipeline;
+    private volatile FairDispatcher dispatcher; // null if messages are delivered by Threads that receive them
+    private volatile ChatHistory history; // null if messages are not stored
+    private volatile OfflineMailbox mailbox; // null if messages for clients that are not connected are not kept
+    private volatile TimerWheel mailboxTimers; // delivers kept messages in batches
+    private volatile ClusterNode cluster; // null if server is not part of a cluster
+    private PreferencesWatcher preferencesWatcher; // null if preferences were not read from a file
+    private final ConcurrentHashMap<String, ClientSession> sessions = new ConcurrentHashMap<>(); // by their tokens
     
     // when number of clients reaches maximum, server will still be listening for
     // new connections, but it will send LOGIN_DENIED (no matter what value is loginRequired)
@@ -43,8 +118,6 @@ public class Server implements Runnable{
      */
     public Server(PrivateServerPreferences prefs){  
         preferences = prefs;
-        this.clients = new HashMap<>();
-        this.clientsLoggingIn = new HashMap<>();
     }
     
     /**
@@ -56,8 +129,6 @@ public class Server implements Runnable{
      */
     public Server(){  
         preferences = null;
-        this.clients = new HashMap<>();
-        this.clientsLoggingIn = new HashMap<>();
     }
     
     /**
@@ -69,6 +140,54 @@ public class Server implements Runnable{
         preferences = prefs;
     }
     
+    /**
+     * Replaces preferences of the running server without closing any connections. Preferences are copied, checked and then
+     * swapped at once, so every operation sees either old or new preferences and never a mix of them. If preferences were read
+     * from a file, server calls this method by itself whenever the file changes (see {@link PrivateServerPreferences#getSourceFile()}).<br>
+     * Word filter, username rules and limits of new connections are prepared before preferences are swapped, so that
+     * they are not built while messages are being delivered. Values that are only used when server starts (like port, engine,
+     * framing, dispatching, history and mailbox) keep their current values until restart. Limits of a single connection
+     * (like outbound queue and rates) apply to new connections. If values that clients see have changed, all clients
+     * receive new {@link PublicServerPreferences} as {@link Message.Type#PREFERENCES}.<br>
+     * If server is not running, it is the same as {@link #setPrivateServerPreferences(server_api.PrivateServerPreferences)}.
+     * 
+     * @param prefs These are the new preferences.
+     * @throws ServerException If preferences are not valid. Current preferences are kept in that case.
+     */
+    public synchronized void reloadPreferences(PrivateServerPreferences prefs) throws ServerException{
+        PrivateServerPreferences current = preferences;
+        if(current == null || admission == null || serverSocket == null || serverSocket.isClosed()){
+            setPrivateServerPreferences(prefs);
+            return;
+        }
+        PrivateServerPreferences snapshot = new PrivateServerPreferences(prefs);
+        List<String> restartValues = snapshot.keepRestartValues(current);
+        if(!snapshot.isValid())
+            throw new ServerException("Preferences are not valid");
+        WordFilter filter = new WordFilter(snapshot.getForbiddenWords()); // both throw ServerException if a regex is not valid
+        UsernamePolicy policy = new UsernamePolicy(snapshot);
+        AdmissionController controller = admission;
+        if(!controller.isCurrent(snapshot)){
+            try{
+                controller = new AdmissionController(snapshot, controller);
+            }catch(IOException e){
+                throw new ServerException("Denial messages could not be prepared: " + e.getMessage());
+            }
+        }
+        boolean publicChanged = !snapshot.sameAs(current);
+        preferences = snapshot;
+        wordFilter = filter;
+        wordFilterSource = snapshot.getForbiddenWords();
+        usernamePolicy = policy;
+        admission = controller;
+        log(PrivateServerPreferences.LogCategory.SYSTEM, false, "[system]: Preferences have been reloaded");
+        if(!restartValues.isEmpty())
+            log(PrivateServerPreferences.LogCategory.SYSTEM, true, "[system]: Following preferences will only change after restart: ", String.join(", ", restartValues));
+        if(publicChanged)
+            sendToAllClients(new Message<>("system", Message.Type.PREFERENCES, new PublicServerPreferences(snapshot), null));
+        onPreferencesReloaded(snapshot);
+    }
+    
     /**
      * Starts the Server. It is very important that {@link PrivateServerPreferences} have been set. Otherwise 
      * ServerException will be thrown.
@@ -78,41 +197,102 @@ public class Server implements Runnable{
     @Override
     public void run() throws ServerException{
         requestToStop = false;
+        draining = false;
         if(preferences == null)
             throw new ServerException("PrivateServerPreferences are null");
         else if (!preferences.isValid())
             throw new ServerException("PrivateServerPreferences have not been set correctly");
                 
         try{ // create new serverSocket
-            serverSocket = new ServerSocket(this.preferences.getPort()); 
+            if(this.preferences.getServerEngine() == PrivateServerPreferences.ServerEngine.NIO){
+                serverChannel = ServerSocketChannel.open();
+                serverSocket = serverChannel.socket();
+                serverSocket.bind(new InetSocketAddress(this.preferences.getPort()), this.preferences.getAcceptBacklog());
+                startEventLoops();
+            }else{
+                serverChannel = null;
+                serverSocket = new ServerSocket(this.preferences.getPort(), this.preferences.getAcceptBacklog()); 
+                if(this.preferences.getServerEngine() == PrivateServerPreferences.ServerEngine.VIRTUAL){
+                    if(!VirtualThreads.isSupported())
+                        println("[system]: Virtual threads are not supported by this JVM, platform Threads will be used instead");
+                    connectionExecutor = VirtualThreads.newExecutor("server-connector-");
+                }
+            }
         } catch (IOException ioException){
             ioException.printStackTrace();
             return;
         }
         
         // start listening for new connections
+        try{
+            admission = new AdmissionController(this.preferences);
+        }catch(IOException e){
+            throw new ServerException("Denial messages could not be prepared: " + e.getMessage());
+        }
+        if(!this.preferences.getHistoryDirectory().isEmpty()){
+            try{
+                history = new ChatHistory(new File(this.preferences.getHistoryDirectory()), this.preferences.getHistorySegmentSize(),
+                        this.preferences.getHistoryRetentionSize() * 1024L * 1024L, this.preferences.getHistoryRetentionHours() * 3600000L);
+            }catch(IOException e){
+                throw new ServerException("Chat history could not be opened: " + e.getMessage());
+            }
+        }
+        if(!this.preferences.getMailboxDirectory().isEmpty() && this.preferences.isLoginRequired()){
+            try{
+                mailbox = new OfflineMailbox(this, new File(this.preferences.getMailboxDirectory()), this.preferences.getMailboxMaxMessages(),
+                        this.preferences.getMailboxMaxBytes(), this.preferences.getMailboxTtlHours() * 3600000L, this.preferences.getMailboxMaxUsers());
+            }catch(IOException e){
+                throw new ServerException("Offline mailbox could not be opened: " + e.getMessage());
+            }
+            mailboxTimers = new TimerWheel("server-mailbox", MAILBOX_TICK, 64);
+        }
+        if(this.preferences.getClusterPort() > 0 && this.preferences.isLoginRequired()){
+            try{
+                cluster = new ClusterNode(this, this.preferences.getClusterPort(), this.preferences.getClusterNodes());
+            }catch(IOException e){
+                throw new ServerException("Cluster port could not be opened: " + e.getMessage());
+            }
+            println("[system]: Node " + cluster.id + " is listening for other nodes at " + this.preferences.getClusterPort() + "...");
+        }
+        logPipeline = new LogPipeline(this, this.preferences.getLogBufferSize());
+        presence = new PresenceAggregator(this, this.preferences.getPresenceBatchWindow());
+        if(this.preferences.getHeartbeatInterval() > 0 || (this.preferences.isLoginRequired() && (this.preferences.getLoginTimeout() > 0 || this.preferences.getSessionResumeWindow() > 0)))
+            timers = new TimerWheel("server-timers", 100, 512);
+        if(this.preferences.getDispatchThreads() > 0)
+            dispatcher = new FairDispatcher(this.preferences.getDispatchThreads(), this.preferences.getDispatchQuantum(), this.preferences.getDispatchQueueLimit());
+        if(this.preferences.getSourceFile() != null){
+            try{
+                preferencesWatcher = new PreferencesWatcher(this, new File(this.preferences.getSourceFile()), this.preferences.isSourceBinary());
+            }catch(IOException e){
+                errPrintln("[error]: Changes of preferences file will not be applied until restart: " + e.getMessage());
+            }
+        }
         println("[system]: Listening at " + this.serverSocket.getLocalPort() + "...");
         onServerStarted();
         try {
             while (!requestToStop) {
-                Socket newClientSocket = serverSocket.accept(); // wait for a new client connection
+                Socket newClientSocket; // wait for a new client connection
+                if(serverChannel != null)
+                    newClientSocket = serverChannel.accept().socket();
+                else
+                    newClientSocket = serverSocket.accept();
 
-                // to many clients, deny new request
-                if(clients.size() + clientsLoggingIn.size() >= this.preferences.getMaxNumberOfClients()){
-                    ObjectOutputStream output = new ObjectOutputStream(newClientSocket.getOutputStream()); // create input stream for listening for incoming messages
-                    Message<String> denialMessage = new Message<>("error", Message.Type.LOGIN_DENIED, "Connection denied due to too many connected clients", new String[]{""+newClientSocket.getPort()});
-                    output.writeObject(denialMessage);
-                    output.flush();
-                    println("[system]: User at port "+newClientSocket.getPort()+" has been denied because the maximum amount of clients has been reached");
+                // to many clients or too many new connections, deny new request
+                ConnectionRejection rejection = admission.admit(newClientSocket.getInetAddress(), registry.snapshot().size(), this.preferences.getMaxNumberOfClients());
+                if(rejection != null){
+                    admission.reject(newClientSocket, rejection);
+                    if(rejection == ConnectionRejection.TOO_MANY_CLIENTS) // the others are counted only, there can be a lot of them
+                        log(PrivateServerPreferences.LogCategory.CONNECTIONS, false, "[system]: User at port ", newClientSocket.getPort(), " has been denied because the maximum amount of clients has been reached");
                 }else{
                     int newPort = newClientSocket.getPort();
+                    ServerConnector connector = newConnector(newClientSocket);
                     if(this.preferences.isLoginRequired()){
-                        if(addClientLoggingIn(newPort, new ServerConnector(this, newClientSocket)))
-                            new Thread(clientsLoggingIn.get(":"+newPort)).start();
+                        if(addClientLoggingIn(newPort, connector))
+                            startConnector(connector);
                         onNewConnectionOpened(newClientSocket.getPort());
                     }else{
-                        if(addClient(":"+newPort, new ServerConnector(this, newClientSocket)))
-                            new Thread(clients.get(":"+newPort)).start();
+                        if(addClient(":"+newPort, connector))
+                            startConnector(connector);
                         onNewConnectionOpened(newClientSocket.getPort());
                     }
                 }
@@ -133,26 +313,204 @@ public class Server implements Runnable{
         
     }
     
+    /**
+     * Creates and starts event loops for NIO engine.
+     * 
+     * @throws IOException If selectors could not be opened.
+     */
+    private void startEventLoops() throws IOException{
+        int n = this.preferences.getEventLoopThreads();
+        if(n == 0)
+            n = Runtime.getRuntime().availableProcessors();
+        eventLoops = new NioEventLoop[n];
+        for(int i = 0; i < n; i++){
+            eventLoops[i] = new NioEventLoop(this, "server-event-loop-" + i);
+            eventLoops[i].start();
+        }
+        nextEventLoop = 0;
+    }
+    
+    /**
+     * Creates a connector for the new client depending on the selected engine.
+     * 
+     * @param socket This is the socket of the new client.
+     * @return Returns the new connector.
+     */
+    private ServerConnector newConnector(Socket socket){
+        if(serverChannel != null){
+            NioEventLoop eventLoop = eventLoops[nextEventLoop];
+            nextEventLoop = (nextEventLoop + 1) % eventLoops.length;
+            return new NioServerConnector(this, socket.getChannel(), eventLoop);
+        }
+        return new ServerConnector(this, socket);
+    }
+    
+    /**
+     * Starts the connector, either on its own Thread (virtual if VIRTUAL engine is selected) or on the event loop it belongs to.
+     * 
+     * @param connector This is the connector of the new client.
+     */
+    private void startConnector(ServerConnector connector){
+        if(connector instanceof NioServerConnector)
+            ((NioServerConnector) connector).start();
+        else if(connectionExecutor != null)
+            connectionExecutor.execute(connector);
+        else
+            new Thread(connector).start();
+    }
     
+    /**
+     * Starts the writer of a connection that is not handled by an event loop. It runs on
+     * the same kind of Thread as connectors do.
+     * 
+     * @param writer This is the writer.
+     * @param port This is the port of the client.
+     */
+    void startWriter(Runnable writer, int port){
+        ExecutorService executor = connectionExecutor;
+        if(executor != null){
+            executor.execute(writer);
+        }else{
+            Thread thread = new Thread(writer, "server-writer-" + port);
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
     
     /**
      * Closes all running resources and stops server.
      * 
      */
     public void stop(){
+        closeServerSocket();
+        
+        if(preferencesWatcher != null){
+            preferencesWatcher.close();
+            preferencesWatcher = null;
+        }
+        if(presence != null){
+            presence.close();
+            presence = null;
+        }
+        if(timers != null){
+            timers.stop();
+            timers = null;
+        }
+        sessions.clear();
+        if(dispatcher != null){
+            dispatcher.close();
+            dispatcher = null;
+        }
+        if(history != null){
+            history.close();
+            history = null;
+        }
+        if(mailboxTimers != null){
+            mailboxTimers.stop(); // deliveries that have not finished are put back when mailbox is opened again
+            mailboxTimers = null;
+        }
+        if(mailbox != null){
+            mailbox.close();
+            mailbox = null;
+        }
+        if(cluster != null){
+            cluster.close();
+            cluster = null;
+        }
+        for(ServerConnector conn: registry.snapshot().connectors){
+            conn.close();
+        }
+        if(eventLoops != null){
+            for(NioEventLoop eventLoop: eventLoops)
+                eventLoop.stop();
+            eventLoops = null;
+        }
+        if(connectionExecutor != null){
+            connectionExecutor.shutdown(); // connectors end on their own once their sockets are closed
+            connectionExecutor = null;
+        }
+        registry.clear();
+        requestToStop = true;
+        LogPipeline pipeline = logPipeline;
+        if(pipeline != null){
+            pipeline.close();
+            if(pipeline.getDropped() > 0)
+                errPrintln("[system]: " + pipeline.getDropped() + " lines were not printed because output was too slow");
+        }
+    }
+    
+    /**
+     * Stops the server without losing messages that are on their way to clients, if possible.<br>
+     * New connections are not accepted anymore and every client receives {@link SystemEvent#SHUTDOWN} telling it when
+     * to connect again (see {@link PrivateServerPreferences#getRetryAfter()}), after messages waiting for dispatch Threads
+     * have been delivered. Then all connections are closed at once,
+     * each one as soon as its queued messages have been written. Connections that are still writing when
+     * {@link PrivateServerPreferences#getDrainTimeout()} runs out are closed immediately and their messages are dropped.
+     * After that it does the same as {@link #stop()}. It returns once all of that is done.
+     * 
+     * @return Returns the number of flushed and dropped messages.
+     */
+    public DrainResult drain(){
+        draining = true; // senders must not wait for room in queues anymore
+        closeServerSocket();
+        if(presence != null)
+            presence.flush();
+        long deadline = System.nanoTime() + preferences.getDrainTimeout() * 1000000L;
+        FairDispatcher d = dispatcher;
+        if(d != null) // messages that have been received are delivered before clients are told to leave
+            d.awaitIdle(deadline);
+        
+        ServerConnector[] connectors = registry.snapshot().connectors;
+        SharedFrame notice = new SharedFrame(new Message<>("system", Message.Type.SYSTEM,
+                new SystemEvent(SystemEvent.SHUTDOWN, Integer.toString(preferences.getRetryAfter())), null));
+        long[] written = new long[connectors.length];
+        for(int i = 0; i < connectors.length; i++){
+            written[i] = connectors[i].getWrittenMessages();
+            try{
+                connectors[i].send(notice);
+            }catch(IOException e){} // connection is closing already
+            connectors[i].closeGracefully();
+        }
+        
+        for(ServerConnector conn: connectors){
+            while(!conn.isClosed() && System.nanoTime() < deadline){
+                try{
+                    Thread.sleep(10);
+                }catch(InterruptedException e){
+                    Thread.currentThread().interrupt();
+                    deadline = 0;
+                }
+            }
+        }
+        long flushed = 0, dropped = 0;
+        for(int i = 0; i < connectors.length; i++){
+            if(!connectors[i].isClosed())
+                dropped += connectors[i].abort();
+            flushed += connectors[i].getWrittenMessages() - written[i];
+        }
+        
+        stop();
+        DrainResult result = new DrainResult(flushed, dropped);
+        println("[system]: Server drained, messages flushed: " + result.getFlushedMessages() + ", dropped: " + result.getDroppedMessages());
+        return result;
+    }
+    
+    /**
+     * Returns true while {@link #drain()} is in progress.
+     * 
+     */
+    boolean isDraining(){
+        return draining;
+    }
+    
+    private void closeServerSocket(){
         try{
             if(serverSocket != null && !serverSocket.isClosed())
                 serverSocket.close();
             
         }catch(Exception e){}
         serverSocket = null;
-        
-        for(ServerConnector conn: clients.values()){
-            conn.close();
-        }
-        clients.clear();
-        clientsLoggingIn.clear();
-        requestToStop = true;
+        serverChannel = null;
     }   
     
     /**
@@ -204,24 +562,31 @@ public class Server implements Runnable{
     public void serverCommand(String command){
         if(!command.startsWith("/")) return;
         String[] comm = command.split(" ");
+        ClientRegistry.Snapshot snapshot = registry.snapshot();
+        Set<String> clients = snapshot.clients.keySet();
+        Set<String> clientsLoggingIn = snapshot.clientsLoggingIn.keySet();
         switch(comm[0]){
             case "/who":
                 if(comm.length==1){
-                    println("[server]: Connected clients: " + printSet(clients.keySet(), ", "));
+                    println("[server]: Connected clients: " + printSet(clients, ", "));
                 }else if(comm.length == 2){
                     if(comm[1].startsWith("-")){
                         if(comm[1].equals("-l")){
-                            println("[server]: Clients logging in: " + printSet(clientsLoggingIn.keySet(), ", "));
+                            println("[server]: Clients logging in: " + printSet(clientsLoggingIn, ", "));
                         }else if (comm[1].equals("-a")){
-                            println("[server]: All clients: " + printSet(clients.keySet(), ", ") + "; " + printSet(clientsLoggingIn.keySet(), ", "));
+                            println("[server]: All clients: " + printSet(clients, ", ") + "; " + printSet(clientsLoggingIn, ", "));
                         }else if(comm[1].equals("-?")){
                             println("[server]: /who: Shows connected clients (not the ones that are currently logging in). You can also use switches:\n  -l : Shows only the clients that are logging in\n  -a : Shows all the clients (also ones that are logging in)");
                         }else{
                             println("[server]: /who: Unknown switch. Use -l or -a, or use -? for help");
                         }
                     }else{
-                        if(clients.containsKey(comm[1]) || clientsLoggingIn.containsKey(comm[1])){
-                            println("[server]: "+comm[1] + ", IP address: " + getClientAddress(comm[1]) + ", Port: " + getClientPort(comm[1]));
+                        if(clients.contains(comm[1]) || clientsLoggingIn.contains(comm[1])){
+                            println("[server]: "+comm[1] + ", IP address: " + getClientAddress(comm[1]) + ", Port: " + getClientPort(comm[1])
+                                    + ", Queued messages: " + getClientQueueSize(comm[1]) + ", Dropped messages: " + getClientDroppedMessages(comm[1])
+                                    + ", Retained bytes: " + getClientRetainedBytes(comm[1])
+                                    + ", Bytes in: " + getClientBytesIn(comm[1]) + ", Bytes out: " + getClientBytesOut(comm[1])
+                                    + ", Round trip time: " + roundTripTimeToString(getClientRoundTripTime(comm[1])) + dispatchStatistics(comm[1]));
                         }else
                             println("[server]: Client with username " + comm[1] + " does not exist (for ports use colon at the beginning)");
                     }
@@ -232,8 +597,10 @@ public class Server implements Runnable{
             case "/stop":
                 if(comm.length == 1)
                     this.stop();
+                else if(comm.length == 2 && comm[1].equals("-d"))
+                    this.drain();
                 else if(comm.length == 2 && comm[1].equals("-?"))
-                    println("[system]: /stop: Stops server, if it is running at the moment");
+                    println("[system]: /stop: Stops server, if it is running at the moment. You can also use switch:\n  -d : Tells clients that server is going away and waits for queued messages to be written first");
                 break;                
             case "/ban":
                 if(comm.length == 1){
@@ -249,9 +616,53 @@ public class Server implements Runnable{
                     println("[server]: /ban: Unknown switch. Use -? for help");
                 }
                 break;
+            case "/dispatch":
+                if(comm.length == 1){
+                    if(dispatcher == null){
+                        println("[server]: /dispatch: Server has no dispatch Threads, messages are delivered by Threads that receive them");
+                    }else{
+                        StringBuilder sb = new StringBuilder("[server]: Dispatch delays:");
+                        for(String username: snapshot.clients.keySet())
+                            sb.append("\n  ").append(username).append(dispatchStatistics(username));
+                        println(sb.toString());
+                    }
+                }else if(comm.length == 2 && comm[1].equals("-?")){
+                    println("[server]: /dispatch: Shows for every client how many of its messages are waiting for dispatch Threads and how long they have waited (median, 99th percentile and maximum)");
+                }else{
+                    println("[server]: /dispatch: Command takes no arguments. Use -? for help");
+                }
+                break;
+            case "/rejected":
+                if(comm.length == 1){
+                    println("[server]: Rejected connections: too many clients: " + getRejectedConnections(ConnectionRejection.TOO_MANY_CLIENTS)
+                            + ", rate limited: " + getRejectedConnections(ConnectionRejection.RATE_LIMITED)
+                            + ", rate limited by address: " + getRejectedConnections(ConnectionRejection.ADDRESS_RATE_LIMITED));
+                }else if(comm.length == 2 && comm[1].equals("-?")){
+                    println("[server]: /rejected: Shows how many new connections have been rejected since server was started and why");
+                }else{
+                    println("[server]: /rejected: Command takes no arguments. Use -? for help");
+                }
+                break;
+            case "/cluster":
+                if(comm.length == 1){
+                    ClusterNode c = cluster;
+                    if(c == null){
+                        println("[server]: /cluster: Server is not part of a cluster");
+                    }else{
+                        StringBuilder sb = new StringBuilder("[server]: Node ").append(c.id).append(", other nodes:");
+                        for(String node: c.describeNodes())
+                            sb.append("\n  ").append(node);
+                        println(sb.toString());
+                    }
+                }else if(comm.length == 2 && comm[1].equals("-?")){
+                    println("[server]: /cluster: Shows other nodes of the cluster this server is connected to and how many clients they have");
+                }else{
+                    println("[server]: /cluster: Command takes no arguments. Use -? for help");
+                }
+                break;
             case "/help":
                 if(comm.length == 1){
-                    println("[server]: /help: Supported commands:\n  /who : prints out connected users\n  /ban : bans user specified as an argument\n  /stop : stops the server");
+                    println("[server]: /help: Supported commands:\n  /who : prints out connected users\n  /ban : bans user specified as an argument\n  /rejected : shows how many connections have been rejected\n  /dispatch : shows how long messages wait to be delivered\n  /cluster : shows other nodes of the cluster\n  /stop : stops the server");
                 }else{
                     println("[server]: /help: Command takes no arguments. If you want more information about specific command, use switch -? at that command");
                 } 
@@ -261,6 +672,60 @@ public class Server implements Runnable{
         }
     }
        
+    private String dispatchStatistics(String username){
+        if(dispatcher == null)
+            return "";
+        return ", Dispatch queue: " + getClientDispatchQueueSize(username)
+                + ", Dispatch delay: " + dispatchDelayToString(getClientDispatchDelay(username, 50))
+                + " / " + dispatchDelayToString(getClientDispatchDelay(username, 99))
+                + " / " + dispatchDelayToString(getClientDispatchDelay(username, 100));
+    }
+    
+    /**
+     * Checks the chat message for forbidden words and does what {@link PrivateServerPreferences#getForbiddenWordsAction()} says.
+     * Filter is built again only when forbidden words change.
+     * 
+     * @param message This is the message received from a client.
+     * @return Returns the message that should be delivered (masked if needed) or null if it must not be delivered.
+     */
+    Message<?> filterForbiddenWords(Message<?> message){
+        if(message.getMessageType() != Message.Type.DATA_STRING)
+            return message;
+        if(!(message.getMessageObject() instanceof String))
+            return null; // type says String, but it is not
+        WordFilter filter = getWordFilter();
+        String text = (String) message.getMessageObject();
+        PrivateServerPreferences.ForbiddenWordsAction action = preferences.getForbiddenWordsAction();
+        if(action == PrivateServerPreferences.ForbiddenWordsAction.MASK){
+            String masked = filter.mask(text);
+            if(masked == text)
+                return message;
+            onForbiddenWordsFound(message.getMessageSender(), text, action);
+            return new Message<>(message.getMessageSender(), Message.Type.DATA_STRING, masked, message.getRecipients(),
+                    message.getReplyAllowed(), message.getTimeSentMillis());
+        }
+        if(!filter.contains(text))
+            return message;
+        onForbiddenWordsFound(message.getMessageSender(), text, action);
+        return action == PrivateServerPreferences.ForbiddenWordsAction.REJECT ? null : message;
+    }
+    
+    private WordFilter getWordFilter(){
+        String words = preferences.getForbiddenWords();
+        WordFilter filter = wordFilter;
+        if(filter == null || !words.equals(wordFilterSource)){
+            try{
+                filter = new WordFilter(words);
+            }catch(ServerException e){
+                errPrintln("[error]: " + e.getMessage());
+                filter = new WordFilter("");
+            }
+            wordFilter = filter;
+            wordFilterSource = words;
+        }
+        return filter;
+    }
+    
     /**
      * Sends the message to clients that were passed to {@link Message} when it was created.<br>
      * If some clients do not exist, it will return their usernames in a String.<br>
@@ -271,11 +736,24 @@ public class Server implements Runnable{
      * @throws ServerException If message could not be sent.
      */
     public String[] sendToClients(Message<?> message) throws ServerException{
+        return sendToClients(message, null);
+    }
+    
+    /**
+     * Sends the message the same way as {@link #sendToClients(Message)}. Usernames of clients that are not connected, but whose
+     * message has been kept until they log in (see {@link PrivateServerPreferences#getMailboxDirectory()}), are added to the list.
+     * 
+     * @param message This is the message that will be send to clients.
+     * @param offline This is the list for clients whose message has been kept or null.
+     * @return It returns names of clients that it could not sent message to, if any are specified in Message.
+     * @throws ServerException If message could not be sent.
+     */
+    String[] sendToClients(Message<?> message, List<String> offline) throws ServerException{
         if(message.getRecipients() == null){
             sendToAllClients(message);
             return new String[0];
         }else{
-            return sendToSomeClients(message);
+            return sendToSomeClients(message, offline);
         }
     }
     
@@ -287,53 +765,220 @@ public class Server implements Runnable{
      * @throws ServerException If message could not be sent.
      */
     private void sendToAllClients(Message<?> message) throws ServerException {
-        Iterator<String> i = clients.keySet().iterator();
-        System.out.println("ClientsLoggingIn: "+clientsLoggingIn);
-        System.out.println("Clients:          "+clients);
-        while (i.hasNext()) { // iterate through the client list
+        SharedFrame shared = new SharedFrame(message); // serialized at most once for all recipients
+        sendToLocalClients(shared);
+        ClusterNode c = cluster;
+        Message.Type type = message.getMessageType();
+        if(c != null && (type == Message.Type.DATA || type == Message.Type.DATA_STRING)){
             try {
-                String s=i.next();
-                System.out.println("s: "+s);
-                if(clients.get(s) != null)  {
-                    System.out.println("   also not null");
-                    ObjectOutputStream output = clients.get(s).output;
-                    output.writeObject(message);
-                    output.flush();
-                }
-            } catch(ConcurrentModificationException | NullPointerException | NotActiveException ex){
-                ex.printStackTrace();
+                c.broadcast(shared.frame(MessageCodec.JAVA_SERIALIZATION)); // once for every node
+            } catch (IOException e) {
+                log(PrivateServerPreferences.LogCategory.SYSTEM, true, "[system]: Message could not be sent to other nodes: ", e.getMessage());
+            }
+        }
+    }
+    
+    // sends the message to all clients of this server and stores it in history
+    private void sendToLocalClients(SharedFrame shared) {
+        for(ServerConnector connector: registry.snapshot().connectors){ // snapshot does not change while iterating
+            try {
+                connector.send(shared);
             }catch (Exception e) {
-                errPrintln("[system]: Could not send message to a client");
+                log(PrivateServerPreferences.LogCategory.SYSTEM, true, "[system]: Could not send message to a client");
                 e.printStackTrace(System.err);
             }
         }
+        addToHistory(shared);
+    }
+    
+    /**
+     * Delivers the message that another node of the cluster has relayed (see {@link PrivateServerPreferences#getClusterPort()})
+     * to clients of this server. It is never relayed further.
+     * 
+     * @param message This is the message.
+     */
+    void relayed(Message<?> message) {
+        SharedFrame shared = new SharedFrame(message);
+        if(message.getRecipients() == null){
+            sendToLocalClients(shared);
+            return;
+        }
+        Map<String, ServerConnector> clients = registry.snapshot().clients;
+        for(String recipient: message.getRecipients()){
+            ServerConnector connector = clients.get(recipient); // others belong to other nodes
+            if(connector != null){
+                try {
+                    connector.send(shared);
+                } catch (Exception e) {
+                    log(PrivateServerPreferences.LogCategory.SYSTEM, true, "[system]: Could not send message to a client");
+                    e.printStackTrace(System.err);
+                }
+            }
+        }
+    }
+    
+    /**
+     * Stores the message in history, if server keeps it (see {@link PrivateServerPreferences#getHistoryDirectory()})
+     * and it is a chat message. It is stored as a frame serialized by Java, so that every framed client can read it.
+     * 
+     * @param shared This is the message that has been sent to all clients.
+     */
+    private void addToHistory(SharedFrame shared) {
+        ChatHistory h = history;
+        Message.Type type = shared.getMessage().getMessageType();
+        if(h == null || (type != Message.Type.DATA && type != Message.Type.DATA_STRING))
+            return;
+        try {
+            h.append(shared.frame(MessageCodec.JAVA_SERIALIZATION));
+        } catch (IOException e) {
+            log(PrivateServerPreferences.LogCategory.SYSTEM, true, "[system]: Message could not be stored in history: ", e.getMessage());
+        }
+    }
+    
+    /**
+     * Keeps the message for the client that is not connected, if server keeps such messages
+     * (see {@link PrivateServerPreferences#getMailboxDirectory()}), it is a chat message and the username is allowed.
+     * If client has logged in meanwhile, delivery is started at once.
+     * 
+     * @param recipient This is the username of the client.
+     * @param shared This is the message.
+     * @return Returns true if message has been kept.
+     */
+    private boolean addToMailbox(String recipient, SharedFrame shared) {
+        OfflineMailbox m = mailbox;
+        Message.Type type = shared.getMessage().getMessageType();
+        if(m == null || (type != Message.Type.DATA && type != Message.Type.DATA_STRING) || checkUsername(recipient) != null)
+            return false;
+        try {
+            if(!m.store(recipient, shared.frame(MessageCodec.JAVA_SERIALIZATION)))
+                return false;
+        } catch (IOException e) {
+            log(PrivateServerPreferences.LogCategory.SYSTEM, true, "[system]: Message for ", recipient, " could not be kept: ", e.getMessage());
+            return false;
+        }
+        ServerConnector connector = registry.snapshot().clients.get(recipient); // delivery might have started already
+        if(connector != null)
+            deliverMailbox(connector);
+        return true;
+    }
+    
+    /**
+     * Starts delivering messages that were kept for the client while it was not connected. Messages are delivered in batches
+     * on a Thread of the mailbox and the next batch is only read once the outbound queue of the client is at most half full.
+     * It is called when client has logged in.
+     * 
+     * @param connector This is the connector of the client.
+     */
+    void deliverMailbox(final ServerConnector connector) {
+        OfflineMailbox m = mailbox;
+        final TimerWheel wheel = mailboxTimers;
+        if(m == null || wheel == null)
+            return;
+        final OfflineMailbox.Delivery delivery;
+        try {
+            delivery = m.take(connector.username);
+        } catch (IOException e) {
+            log(PrivateServerPreferences.LogCategory.SYSTEM, true, "[system]: Kept messages could not be delivered to ", connector.username, ": ", e.getMessage());
+            return;
+        }
+        if(delivery != null)
+            scheduleMailboxBatch(wheel, connector, delivery, 0, 0);
+    }
+    
+    // every batch is a single entry of the outbound queue for framed clients, so it is written at once
+    private void scheduleMailboxBatch(final TimerWheel wheel, final ServerConnector connector, final OfflineMailbox.Delivery delivery, final int delivered, long delay) {
+        wheel.schedule(new Runnable() {
+            @Override
+            public void run() {
+                if(!connector.connected || !connector.username.equals(delivery.getUsername())){
+                    delivery.finish(); // the rest is put back
+                    return;
+                }
+                int room = Math.max(1, preferences.getOutboundQueueCapacity() / 2) - connector.getOutboundQueueSize();
+                if(room <= 0){ // client has not read the previous batch yet
+                    scheduleMailboxBatch(wheel, connector, delivery, delivered, MAILBOX_TICK);
+                    return;
+                }
+                List<ByteBuffer> frames;
+                try {
+                    frames = delivery.next(connector.isFramed() ? Integer.MAX_VALUE : room, MAILBOX_BATCH_BYTES);
+                    if(!frames.isEmpty()){
+                        connector.sendKept(frames);
+                        delivery.confirm();
+                    }
+                } catch (IOException | ClassNotFoundException e) {
+                    log(PrivateServerPreferences.LogCategory.SYSTEM, true, "[system]: Kept messages could not be delivered to ", delivery.getUsername(), ": ", e.getMessage());
+                    delivery.finish();
+                    return;
+                }
+                if(!frames.isEmpty()){
+                    scheduleMailboxBatch(wheel, connector, delivery, delivered + frames.size(), 0);
+                    return;
+                }
+                delivery.finish();
+                log(PrivateServerPreferences.LogCategory.MESSAGES, false, "[system]: ", delivered, " kept messages have been delivered to ", delivery.getUsername());
+                deliverMailbox(connector); // messages kept meanwhile
+            }
+        }, delay);
+    }
+    
+    /**
+     * Returns history of messages.
+     * 
+     * @return Returns the history or null if server does not keep it.
+     */
+    ChatHistory getHistory() {
+        return history;
     }
     
     /**
      * Private method that is called by sendToClients(Message).<br>
      * Sends the message to clients specified in array Message.recipients if they exist
      * in HashMap clients.<br>
-     * Returns the ones that could not send to as a String array.
+     * Returns the ones that could not send to as a String array. Messages for clients of other nodes of the cluster are relayed
+     * to every such node once. Messages for clients that do not exist are kept for them if possible and they are not returned in that case.
      * 
      * @param message This is the message to be sent.
+     * @param offline This is the list for clients whose message has been kept or null.
      * @return It returns names of clients that it could not sent message to (or an empty array).
      * @throws ServerException If message could not be sent.
      */
-    private String[] sendToSomeClients(Message<?> message) throws ServerException {
+    private String[] sendToSomeClients(Message<?> message, List<String> offline) throws ServerException {
         ArrayList<String> failedRecipients = new ArrayList<>();
+        Map<String, ServerConnector> clients = registry.snapshot().clients;
+        SharedFrame shared = new SharedFrame(message);
+        ClusterNode c = cluster;
+        Set<String> nodes = null; // nodes of recipients that are not connected to this server
+        String node;
         for(String recipient: message.getRecipients()){
-            if(clients.containsKey(recipient)){
+            ServerConnector connector = clients.get(recipient);
+            if(connector != null){
                 try {
-                    if(clients.get(recipient) != null)
-                        clients.get(recipient).output.writeObject(message);
+                    connector.send(shared);
                 } catch (Exception e) {
-                    errPrintln("[system]: Could not send message to a client");
+                    log(PrivateServerPreferences.LogCategory.SYSTEM, true, "[system]: Could not send message to a client");
                     e.printStackTrace(System.err);
                 }
+            }else if(c != null && (node = c.nodeOf(recipient)) != null){
+                if(nodes == null)
+                    nodes = new HashSet<>();
+                nodes.add(node);
+            }else if(addToMailbox(recipient, shared)){
+                if(offline != null)
+                    offline.add(recipient);
             }else{
                 failedRecipients.add(recipient);
             }
         }
+        if(nodes != null){
+            try {
+                ByteBuffer frame = shared.frame(MessageCodec.JAVA_SERIALIZATION);
+                for(String n: nodes)
+                    c.relay(n, frame); // every node delivers it to its own recipients
+            } catch (IOException e) {
+                log(PrivateServerPreferences.LogCategory.SYSTEM, true, "[system]: Message could not be sent to other nodes: ", e.getMessage());
+            }
+        }
         if(failedRecipients.isEmpty()) return new String[0];
         return failedRecipients.toArray(new String[0]);
     }
@@ -347,38 +992,265 @@ public class Server implements Runnable{
      * @throws ServerException If message could not be sent.
      */
     public void sendToOtherClients(Message<?> message, String[] dontSendTo) throws ServerException {
-        List<String> asList = Arrays.asList(dontSendTo);
-        Set<String> sendTo = new HashSet<>(clients.keySet());
-        sendTo.removeAll(asList);
-        for(String recipient: sendTo){
-            if(clients.containsKey(recipient)){
-                try {
-                    if(clients.get(recipient) != null)
-                        clients.get(recipient).output.writeObject(message);
-                } catch (Exception e) {
-                    errPrintln("[system]: Could not send message to a client");
-                    e.printStackTrace(System.err);
+        Set<String> skip = new HashSet<>(Arrays.asList(dontSendTo));
+        ClientRegistry.Snapshot snapshot = registry.snapshot();
+        SharedFrame shared = new SharedFrame(message);
+        for(int i = 0; i < snapshot.connectors.length; i++){
+            if(skip.contains(snapshot.usernames[i])) continue;
+            try {
+                snapshot.connectors[i].send(shared);
+            } catch (Exception e) {
+                log(PrivateServerPreferences.LogCategory.SYSTEM, true, "[system]: Could not send message to a client");
+                e.printStackTrace(System.err);
+            }
+        }
+    }
+    
+    /**
+     * Returns round trip time as a String, like: 12 ms or unknown.
+     * 
+     * @param roundTripTime This is the round trip time in milliseconds or -1 if it is not known.
+     * @return Returns round trip time as a String.
+     */
+    public static String roundTripTimeToString(long roundTripTime) {
+        return roundTripTime < 0 ? "unknown" : roundTripTime + " ms";
+    }
+    
+    /**
+     * Returns how many new connections have been rejected for given reason since server was started.
+     * 
+     * @param reason This is the reason of rejection.
+     * @return Returns the number of rejected connections.
+     */
+    public long getRejectedConnections(ConnectionRejection reason) {
+        AdmissionController controller = admission;
+        return controller == null ? 0 : controller.getRejected(reason);
+    }
+    
+    /**
+     * Is called by the connector once its connection is ready. It schedules the first heartbeat
+     * and, if login is required, the deadline for logging in.
+     * 
+     * @param connector This is the connector of the new client.
+     */
+    void connectionStarted(final ServerConnector connector) {
+        TimerWheel wheel = timers;
+        if(wheel == null)
+            return;
+        if(preferences.isLoginRequired() && preferences.getLoginTimeout() > 0){
+            wheel.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    if(connector.connected && connector.username.equals("")){
+                        log(PrivateServerPreferences.LogCategory.CONNECTIONS, false, "[system]: User at ", connector.port, " has not logged in in time and will be disconnected");
+                        connector.abort();
+                    }
+                }
+            }, preferences.getLoginTimeout());
+        }
+        if(preferences.getHeartbeatInterval() > 0)
+            scheduleHeartbeat(wheel, connector);
+    }
+    
+    // every heartbeat checks when client was last heard from, sends a ping and schedules the next one
+    private void scheduleHeartbeat(final TimerWheel wheel, final ServerConnector connector) {
+        final int interval = preferences.getHeartbeatInterval();
+        final int misses = preferences.getHeartbeatMisses();
+        wheel.schedule(new Runnable() {
+            @Override
+            public void run() {
+                if(!connector.connected)
+                    return;
+                if(connector.supportsHeartbeats()){
+                    if(connector.getSilentTime() > (long) interval * misses){
+                        log(PrivateServerPreferences.LogCategory.CONNECTIONS, true, "[system]: Client at ", connector.port, " has not answered ", misses, " heartbeats and will be disconnected");
+                        connector.abort();
+                        return;
+                    }
+                    connector.sendPing();
+                }
+                scheduleHeartbeat(wheel, connector);
+            }
+        }, interval);
+    }
+    
+    /**
+     * Returns the smoothed round trip time of the client, measured with heartbeats (see {@link PrivateServerPreferences#getHeartbeatInterval()}).
+     * 
+     * @param username This is the username of the client or its port with colon in front.
+     * @return Returns the round trip time in milliseconds or -1 if client does not exist or it has not been measured yet.
+     */
+    public long getClientRoundTripTime(String username) {
+        ServerConnector connector = registry.snapshot().find(username);
+        return connector == null ? -1 : connector.getRoundTripTime();
+    }
+    
+    /**
+     * Delivers the message of the client to other clients. If server has dispatch Threads (see {@link PrivateServerPreferences#getDispatchThreads()}),
+     * it is queued and delivered when the client gets its turn, otherwise it is delivered immediately.
+     * 
+     * @param sender This is the connector of the client that has sent the message.
+     * @param size This is the size of the message in bytes.
+     * @param work This is what delivers the message.
+     * @return Returns false if the queue of the client is full and its Thread cannot wait, or server is stopping.
+     */
+    boolean dispatch(ServerConnector sender, long size, Runnable work) {
+        FairDispatcher d = dispatcher;
+        if(d == null){
+            work.run();
+            return true;
+        }
+        return d.dispatch(sender.lane, getDispatchWeight(sender.username), size, work, sender.mayBlock());
+    }
+    
+    /**
+     * Returns the weight of the client for dispatch Threads. A client with weight 2 may deliver twice as many bytes in
+     * its turn as a client with weight 1 (see {@link PrivateServerPreferences#getDispatchQuantum()}). All clients have weight 1,
+     * override this method to give some of them more.
+     * 
+     * @param username This is the username of the client or its port with colon in front if it has not logged in.
+     * @return Returns the weight (at least 1).
+     */
+    public int getDispatchWeight(String username) {
+        return 1;
+    }
+    
+    /**
+     * Returns how long messages of the client have waited for dispatch Threads before they were delivered. The result
+     * is rounded up to a power of 2 microseconds, except for percentile 100, which is the exact maximum.
+     * 
+     * @param username This is the username of the client or its port with colon in front.
+     * @param percentile This is the percentile (from 1 to 100), like 50 for median or 99.
+     * @return Returns the delay in microseconds or -1 if client does not exist or no message has been dispatched yet.
+     */
+    public long getClientDispatchDelay(String username, int percentile) {
+        ServerConnector connector = registry.snapshot().find(username);
+        return connector == null ? -1 : connector.lane.getDelay(percentile);
+    }
+    
+    /**
+     * Returns the number of messages of the client that are waiting for dispatch Threads.
+     * 
+     * @param username This is the username of the client or its port with colon in front.
+     * @return Returns the number of messages or 0 if client does not exist or server has no dispatch Threads.
+     */
+    public int getClientDispatchQueueSize(String username) {
+        ServerConnector connector = registry.snapshot().find(username);
+        FairDispatcher d = dispatcher;
+        return connector == null || d == null ? 0 : d.getQueued(connector.lane);
+    }
+    
+    /**
+     * Returns the delay of dispatching as a String, like: 12 us or unknown.
+     * 
+     * @param delay This is the delay in microseconds or -1 if it is not known.
+     * @return Returns the delay as a String.
+     */
+    public static String dispatchDelayToString(long delay) {
+        if(delay < 0)
+            return "unknown";
+        return delay < 10000 ? delay + " us" : delay / 1000 + " ms";
+    }
+    
+    /**
+     * Tells other clients that the client has logged in. Depending on {@link PrivateServerPreferences#getPresenceBatchWindow()}
+     * they are told immediately or together with other clients that connect or disconnect at about the same time.
+     * 
+     * @param username This is the username of the client.
+     */
+    void clientConnected(String username) {
+        PresenceAggregator aggregator = presence;
+        if(aggregator != null)
+            aggregator.connected(username);
+    }
+    
+    /**
+     * Tells other clients that the client has disconnected. Depending on {@link PrivateServerPreferences#getPresenceBatchWindow()}
+     * they are told immediately or together with other clients that connect or disconnect at about the same time.
+     * 
+     * @param username This is the username of the client.
+     */
+    void clientDisconnected(String username) {
+        ClusterNode c = cluster;
+        if(c != null)
+            c.release(username);
+        PresenceAggregator aggregator = presence;
+        if(aggregator != null && !draining) // everyone is leaving while draining
+            aggregator.disconnected(username);
+    }
+    
+    /**
+     * Sends changes of connected clients to all clients. Clients that support {@link SystemEvent}s receive them
+     * in a single {@link SystemEvent#PRESENCE} event, others receive a user-connect or user-disconnect message for each of them
+     * (but not the one about themselves). If server has dispatch Threads, one of them sends the changes before any message of clients.
+     * 
+     * @param changes These are usernames with + in front if client has connected or - if it has disconnected.
+     */
+    void sendPresence(final String[] changes) {
+        FairDispatcher d = dispatcher;
+        if(d != null && !FairDispatcher.isDispatchThread()){ // it does not wait behind messages of clients
+            boolean dispatched = d.dispatchSystem(new Runnable() {
+                @Override
+                public void run() {
+                    sendPresence(changes);
+                }
+            });
+            if(dispatched)
+                return;
+        }
+        ClientRegistry.Snapshot snapshot = registry.snapshot();
+        SharedFrame batch = new SharedFrame(new Message<>("system", Message.Type.SYSTEM, new SystemEvent(SystemEvent.PRESENCE, changes), null));
+        SharedFrame[] single = new SharedFrame[changes.length]; // created when first needed
+        for(int i = 0; i < snapshot.connectors.length; i++){
+            ServerConnector connector = snapshot.connectors[i];
+            try {
+                if(connector.receivesEvents()){
+                    connector.send(batch);
+                    continue;
+                }
+                for(int j = 0; j < changes.length; j++){
+                    String username = changes[j].substring(1);
+                    if(username.equals(snapshot.usernames[i])) continue;
+                    if(single[j] == null){
+                        String name = changes[j].startsWith("+") ? SystemEvent.USER_CONNECT : SystemEvent.USER_DISCONNECT;
+                        single[j] = new SharedFrame(new Message<>("system", Message.Type.SYSTEM, new SystemEvent(name, username), null));
+                    }
+                    connector.send(single[j]);
                 }
+            } catch (Exception e) {
+                log(PrivateServerPreferences.LogCategory.SYSTEM, true, "[system]: Could not send message to a client");
+                e.printStackTrace(System.err);
             }
         }
     }
     
     /**
-     * Returns a Set of usernames of clients.
+     * Returns the registry of clients.
+     * 
+     * @return Returns the registry.
+     */
+    ClientRegistry getRegistry() {
+        return registry;
+    }
+    
+    /**
+     * Returns a Set of usernames of clients. The Set cannot be modified and does not change
+     * when clients connect or disconnect later on.
      * 
      * @return Returns a Set of usernames of clients.
      */
     public Set<String> getClients() {
-        return clients.keySet();
+        return registry.snapshot().clients.keySet();
     }
     
      /**
-     * Returns a Set of usernames of clients currently logging in.
+     * Returns a Set of usernames of clients currently logging in. The Set cannot be modified and does not change
+     * when clients connect or disconnect later on.
      * 
      * @return Returns a Set of usernames of clients currently logging in.
      */
     public Set<String> getClientsLoggingIn() {
-        return clientsLoggingIn.keySet();
+        return registry.snapshot().clientsLoggingIn.keySet();
     }
     
     /**
@@ -390,10 +1262,9 @@ public class Server implements Runnable{
      * @return Returns the IP address of the client.
      */
     public String getClientAddress(String username){
-        if(clientsLoggingIn.containsKey(username))
-            return clientsLoggingIn.get(username).socket.getInetAddress().getHostName();
-        if(clients.containsKey(username))
-            return clients.get(username).socket.getInetAddress().getHostName();
+        ServerConnector connector = registry.snapshot().find(username);
+        if(connector != null)
+            return connector.socket.getInetAddress().getHostName();
         return "";
     }
     
@@ -406,10 +1277,9 @@ public class Server implements Runnable{
      * @return Returns the port of the client.
      */
     public int getClientPort(String username){
-        if(clientsLoggingIn.containsKey(username))
-            return clientsLoggingIn.get(username).socket.getPort();
-        if(clients.containsKey(username))
-            return clients.get(username).socket.getPort();
+        ServerConnector connector = registry.snapshot().find(username);
+        if(connector != null)
+            return connector.port;
         return -1;
     }
     
@@ -424,11 +1294,8 @@ public class Server implements Runnable{
      * @return Returns true if adding was successful.
      */
     boolean addClientLoggingIn(int port, ServerConnector serverConnector){
-        synchronized(this) {
-            if(clientsLoggingIn.containsKey(":"+port)){
-                throw new RuntimeException("Holy crap! That is f*cking impossible");
-            }
-            clientsLoggingIn.put(":"+port, serverConnector);
+        if(!registry.addLoggingIn(":"+port, serverConnector)){
+            throw new RuntimeException("Holy crap! That is f*cking impossible");
         }
         return true;
     }
@@ -436,7 +1303,8 @@ public class Server implements Runnable{
     /**
      * This method should only be used if login is required and only when client
      * has successfully logged in with new username. It removes client from Map of clients
-     * if login phase to Map of connected clients.
+     * if login phase to Map of connected clients. If server is part of a cluster, username is claimed at other nodes first.
+     * If sessions can be resumed and client receives events, a new session is started before any message can be sent to the client.
      * 
      * @param username This is the new username of the client.
      * @param port This is the port on which client is connected.
@@ -444,13 +1312,161 @@ public class Server implements Runnable{
      * @return Returns true if operation was successful.
      */
     boolean clientLoggedIn(String username, int port, ServerConnector serverConnector){
-        synchronized(this){
-            if(addClient(username, serverConnector)){
-                removeClientLoggingIn(":"+port);
-                return true;
+        ClusterNode c = cluster;
+        if(c != null && (registry.snapshot().clients.containsKey(username) || !c.claim(username)))
+            return false;
+        ClientSession session = null;
+        if(timers != null && preferences.getSessionResumeWindow() > 0 && serverConnector.receivesEvents())
+            session = new ClientSession(username, preferences.getSessionBufferSize(), serverConnector);
+        serverConnector.session = session;
+        if(!registry.loggedIn(username, ":"+port, serverConnector)){
+            serverConnector.session = null;
+            if(c != null)
+                c.release(username);
+            return false;
+        }
+        if(session != null)
+            sessions.put(session.token, session);
+        return true;
+    }
+    
+    /**
+     * Runs the login of a client on a Thread of the cluster, because claiming the username waits for other nodes.
+     * It is used by connectors whose Thread must not wait, like event loop Threads.
+     * 
+     * @param login This is the task that logs the client in.
+     * @return Returns false if server is not part of a cluster, in which case the task is not run.
+     */
+    boolean runLoginInCluster(Runnable login){
+        ClusterNode c = cluster;
+        return c != null && c.execute(login);
+    }
+    
+    /**
+     * Resumes the session of the client that has connected again (see {@link PrivateServerPreferences#getSessionResumeWindow()}).
+     * The new connection takes the username of the previous one, which is closed if it is still open, and receives
+     * {@link Message.Type#LOGIN_SUCCESSFUL} followed by messages it has missed. Other clients are not notified.
+     * 
+     * @param connector This is the connector of the new connection.
+     * @param username This is the username the client wants.
+     * @param request This is {@link SystemEvent#SESSION} with the token and the number of messages client has received.
+     * @return Returns false if session cannot be resumed and client has to log in as usual.
+     */
+    boolean resumeSession(ServerConnector connector, String username, SystemEvent request){
+        String[] values = request.getValues();
+        if(!SystemEvent.SESSION.equals(request.getName()) || values.length < 2 || !connector.receivesEvents())
+            return false;
+        ClientSession session = sessions.get(values[0]);
+        if(session == null || !session.username.equals(username))
+            return false;
+        long received;
+        try{
+            received = Long.parseLong(values[1]);
+        }catch(NumberFormatException e){
+            return false;
+        }
+        ServerConnector previous;
+        int replayed;
+        session.lock.lock(); // the previous connection cannot detach the session or let it expire meanwhile
+        try{
+            previous = registry.snapshot().clients.get(username);
+            if(previous == null || previous.session != session)
+                return false;
+            connector.username = username;
+            connector.session = session;
+            try{
+                replayed = session.resume(connector, received, new Message<>("system", Message.Type.LOGIN_SUCCESSFUL, "Login was successful", new String[]{username}));
+            }catch(IOException e){
+                replayed = 0; // connection has been lost again, it will be detached once reading fails
+            }
+            if(replayed < 0){
+                connector.username = "";
+                connector.session = null;
+                return false;
+            }
+            previous.connected = false; // it still sends through the session, which now belongs to the new connection
+            registry.resumed(username, ":"+connector.port, previous, connector); // username belongs to the previous connection until now
+        }finally{
+            session.lock.unlock();
+        }
+        previous.abort();
+        log(PrivateServerPreferences.LogCategory.CONNECTIONS, false, "[system]: User ", username, " has resumed the session at ", connector.port, " (", replayed, " messages sent again)");
+        deliverMailbox(connector);
+        return true;
+    }
+    
+    /**
+     * Keeps the session of the client whose connection has been lost, so that the client can resume it
+     * (see {@link PrivateServerPreferences#getSessionResumeWindow()}). Client stays connected for everyone else until the session expires.
+     * 
+     * @param connector This is the connector whose connection has been lost.
+     * @return Returns false if client has no session or it cannot be resumed.
+     */
+    boolean detachSession(final ServerConnector connector){
+        final ClientSession session = connector.session;
+        TimerWheel wheel = timers;
+        int window = preferences.getSessionResumeWindow();
+        if(session == null || wheel == null || window <= 0 || requestToStop || !session.detach(connector))
+            return false;
+        wheel.schedule(new Runnable() {
+            @Override
+            public void run() {
+                sessionExpired(session, connector);
             }
+        }, window);
+        log(PrivateServerPreferences.LogCategory.CONNECTIONS, false, "[system]: Connection of ", session.username, " has been lost, session can be resumed for ", window, " ms");
+        return true;
+    }
+    
+    // client has not come back in time, so it is disconnected as if the connection had just been lost
+    private void sessionExpired(ClientSession session, ServerConnector connector){
+        boolean removed;
+        session.lock.lock();
+        try{
+            if(!session.expire(connector))
+                return; // it has been resumed
+            sessions.remove(session.token, session);
+            removed = registry.remove(session.username, connector); // false if client has been banned meanwhile
+        }finally{
+            session.lock.unlock();
+        }
+        if(removed){
+            log(PrivateServerPreferences.LogCategory.CONNECTIONS, false, "[system]: Session of ", session.username, " has expired");
+            clientDisconnected(session.username);
+            onConnectionClosed(session.username, connector.port, "unknown");
         }
-        return false;
+    }
+    
+    /**
+     * Ends the session of the client, because it has logged off or its connection has been closed.
+     * 
+     * @param connector This is the connector of the client.
+     */
+    void endSession(ServerConnector connector){
+        ClientSession session = connector.session;
+        if(session != null && session.end(connector))
+            sessions.remove(session.token, session);
+    }
+    
+    /**
+     * Checks if the username abides with the rules in preferences (length, forbidden signs, forbidden and allowed usernames).
+     * Policy is created again only when those preferences change.
+     * 
+     * @param username This is the wanted username.
+     * @return Returns null if username is allowed or the reason why it is not.
+     */
+    String checkUsername(String username){
+        UsernamePolicy policy = usernamePolicy;
+        if(policy == null || !policy.isCurrent(preferences)){
+            try{
+                policy = new UsernamePolicy(preferences);
+            }catch(ServerException e){
+                errPrintln("[error]: " + e.getMessage());
+                return "This name is not allowed";
+            }
+            usernamePolicy = policy;
+        }
+        return policy.check(username);
     }
     
     
@@ -462,13 +1478,7 @@ public class Server implements Runnable{
      * @return It returns true, if it was successful.
      */
     public boolean removeClientLoggingIn(int port) {
-        synchronized(this) {
-            if(clientsLoggingIn.containsKey(":"+port)){
-                clientsLoggingIn.remove(":"+port);
-                return true;
-            }
-            return false;
-        }
+        return registry.removeLoggingIn(":"+port);
     }
     
     /**
@@ -479,13 +1489,7 @@ public class Server implements Runnable{
      * @return It returns true, if it was successful.
      */
     public boolean removeClientLoggingIn(String port) {
-        synchronized(this) {
-            if(clientsLoggingIn.containsKey(port)){
-                clientsLoggingIn.remove(port);
-                return true;
-            }
-            return false;
-        }
+        return registry.removeLoggingIn(port);
     }
     
     /**
@@ -496,13 +1500,7 @@ public class Server implements Runnable{
      * @return It returns true if it was successful.
      */
     boolean addClient(String username, ServerConnector serverConnector) {
-        synchronized(this) {
-            if(!clients.containsKey(username)){
-                clients.put(username, serverConnector);
-                return true;
-            }
-            return false;
-        }
+        return registry.add(username, serverConnector);
     }
     
     
@@ -516,23 +1514,22 @@ public class Server implements Runnable{
      * @return It returns true, if it was successful.
      */
     public boolean removeClient(String username) {
-        if(username.startsWith(":") && isLoginRequired()){
-            synchronized(this) {
-                if(clientsLoggingIn.containsKey(username)){
-                    clientsLoggingIn.remove(username);
-                    return true;
-                }
-                return false;
-            }
-        }else{
-            synchronized(this) {
-                if(clients.containsKey(username)){
-                    clients.remove(username);
-                    return true;
-                }
-                return false;
-            }
-        }
+        if(username.startsWith(":") && isLoginRequired())
+            return registry.removeLoggingIn(username);
+        return registry.remove(username);
+    }
+    
+    /**
+     * Removes the client the same way as {@link #removeClient(String)}, but only if its username still belongs to the given connector.
+     * 
+     * @param username This is the username of the client.
+     * @param connector This is the connector of the client.
+     * @return It returns true, if it was successful.
+     */
+    boolean removeClient(String username, ServerConnector connector) {
+        if(username.startsWith(":") && isLoginRequired())
+            return registry.removeLoggingIn(username);
+        return registry.remove(username, connector);
     }
     
     /**
@@ -546,17 +1543,14 @@ public class Server implements Runnable{
     public void banClient(String username, String reason){
         ServerConnector connector;
         if(username.startsWith(":") && isLoginRequired())
-            connector = clientsLoggingIn.get(username);
+            connector = registry.snapshot().clientsLoggingIn.get(username);
         else
-            connector = clients.get(username);
-        int port = connector.socket.getPort();
+            connector = registry.snapshot().clients.get(username);
+        if(connector == null) return;
+        int port = connector.port;
         if(reason != null && !reason.equals("")){
-            try {
-                synchronized(this){
-                    ObjectOutputStream ous = connector.output;
-                    ous.writeObject(new Message<>("system", Message.Type.SYSTEM, "ban=\""+reason+"\"", new String[]{username}));
-                    ous.flush();
-                }
+            try { // no lock is held here, sending may block
+                connector.send(new Message<>("system", Message.Type.SYSTEM, new SystemEvent(SystemEvent.BAN, reason), new String[]{username}));
             } catch (IOException ex) {
                 System.out.println("Could not send message");
             }
@@ -564,7 +1558,7 @@ public class Server implements Runnable{
         connector.close();
         removeClient(username);
         onConnectionClosed(username, port, "ban");
-        sendToAllClients(new Message<>("system", Message.Type.SYSTEM, "user-disconnect=\""+username+"\"", null));
+        clientDisconnected(username);
     }
     
     /**
@@ -638,14 +1632,116 @@ public class Server implements Runnable{
             addition = "at ";
         switch(description){
             case "logoff": 
-                println("[system]: User " + addition + username + " has logged off"); break;
+                log(PrivateServerPreferences.LogCategory.CONNECTIONS, false, "[system]: User ", addition, username, " has logged off"); break;
             case "ban": 
-                println("[system]: User " + addition + username + " has been banned"); break;
+                log(PrivateServerPreferences.LogCategory.CONNECTIONS, false, "[system]: User ", addition, username, " has been banned"); break;
+            default:
+                log(PrivateServerPreferences.LogCategory.CONNECTIONS, false, "[system]: User ", addition, username, " has disconnected"); break;
+        }
+    }
+    
+    /**
+     * This method is called when a chat message from a client contains forbidden words (see
+     * {@link PrivateServerPreferences#getForbiddenWordsAction()}).<br>
+     * By default it prints a message describing event throguh {@link #println(java.lang.String)} method.<br>
+     * It is meant to be overriden so user can do something on that event.
+     * 
+     * @param username This is the username of the sender.
+     * @param message This is the original text of the message.
+     * @param action This is what has been done with the message.
+     */
+    public void onForbiddenWordsFound(String username, String message, PrivateServerPreferences.ForbiddenWordsAction action){
+        switch(action){
+            case REJECT:
+                log(PrivateServerPreferences.LogCategory.MESSAGES, false, "[system]: Message from ", username, " contains forbidden words and has been rejected"); break;
+            case MASK:
+                log(PrivateServerPreferences.LogCategory.MESSAGES, false, "[system]: Message from ", username, " contains forbidden words and has been masked"); break;
             default:
-                println("[system]: User " + addition + username + " has disconnected"); break;
+                log(PrivateServerPreferences.LogCategory.MESSAGES, false, "[system]: Message from ", username, " contains forbidden words"); break;
         }
     }
     
+    /**
+     * This method is called when preferences of the running server have been replaced
+     * (see {@link #reloadPreferences(server_api.PrivateServerPreferences)}).<br>
+     * It is meant to be overriden so user can do something on that event.
+     * 
+     * @param prefs These are the new preferences.
+     */
+    public void onPreferencesReloaded(PrivateServerPreferences prefs){
+    }
+    
+    /**
+     * Returns the number of messages waiting to be written to the client. If a client with the username
+     * does not exist, it returns -1.
+     * 
+     * @param username This is the username of the client (or its port with colon in front).
+     * @return Returns the number of waiting messages.
+     */
+    public int getClientQueueSize(String username){
+        ServerConnector connector = registry.snapshot().find(username);
+        if(connector != null)
+            return connector.getOutboundQueueSize();
+        return -1;
+    }
+    
+    /**
+     * Returns the number of messages that were not sent to the client because it was not reading fast enough.
+     * If a client with the username does not exist, it returns -1.
+     * 
+     * @param username This is the username of the client (or its port with colon in front).
+     * @return Returns the number of dropped messages.
+     */
+    public long getClientDroppedMessages(String username){
+        ServerConnector connector = registry.snapshot().find(username);
+        if(connector != null)
+            return connector.getDroppedMessages();
+        return -1;
+    }
+    
+    /**
+     * Returns the number of bytes the object stream of the client has written since it was last reset.
+     * Messages written in that time are still kept in memory by the stream. It is 0 if framed protocol is used.
+     * If a client with the username does not exist, it returns -1.
+     * 
+     * @param username This is the username of the client (or its port with colon in front).
+     * @return Returns the number of retained bytes.
+     */
+    public long getClientRetainedBytes(String username){
+        ServerConnector connector = registry.snapshot().find(username);
+        if(connector != null)
+            return connector.getRetainedBytes();
+        return -1;
+    }
+    
+    /**
+     * Returns the number of bytes received from the client so far.
+     * If a client with the username does not exist, it returns -1.
+     * 
+     * @param username This is the username of the client (or its port with colon in front).
+     * @return Returns the number of received bytes.
+     */
+    public long getClientBytesIn(String username){
+        ServerConnector connector = registry.snapshot().find(username);
+        if(connector != null)
+            return connector.getBytesIn();
+        return -1;
+    }
+    
+    /**
+     * Returns the number of bytes sent to the client so far.
+     * If a client with the username does not exist, it returns -1.
+     * 
+     * @param username This is the username of the client (or its port with colon in front).
+     * @return Returns the number of sent bytes.
+     */
+    public long getClientBytesOut(String username){
+        ServerConnector connector = registry.snapshot().find(username);
+        if(connector != null)
+            return connector.getBytesOut();
+        return -1;
+    }
+    
     /**
      * Returns the socket of user specified by username.
      * 
@@ -653,7 +1749,45 @@ public class Server implements Runnable{
      * @return Returns socket of the user, if the user does not exist null.
      */
     public Socket getUserSocket(String username){
-        return clients.get(username).socket;
+        ServerConnector connector = registry.snapshot().clients.get(username);
+        return connector == null ? null : connector.socket;
+    }
+    
+    /**
+     * Prints the line without making calling Thread wait for the output. Parts of the line are joined later by
+     * a separate Thread, which then calls {@link #println(String)} or {@link #errPrintln(String)}, several lines at once
+     * if there are more of them waiting. If server is not running, line is printed immediately.<br>
+     * Line is not printed at all if level of its category does not allow it (see {@link PrivateServerPreferences#getLogLevel(PrivateServerPreferences.LogCategory)}).
+     * 
+     * @param category This is the category of the line.
+     * @param error This is true if line is an error.
+     * @param parts These are the parts of the line. They are converted to String only when line is printed.
+     */
+    void log(PrivateServerPreferences.LogCategory category, boolean error, Object... parts){
+        PrivateServerPreferences prefs = preferences;
+        if(prefs != null){
+            PrivateServerPreferences.LogLevel level = prefs.getLogLevel(category);
+            if(level == PrivateServerPreferences.LogLevel.OFF || (level == PrivateServerPreferences.LogLevel.ERROR && !error))
+                return;
+        }
+        LogPipeline pipeline = logPipeline;
+        if(pipeline == null || !pipeline.offer(error, parts)){
+            if(error)
+                errPrintln(LogPipeline.format(parts));
+            else
+                println(LogPipeline.format(parts));
+        }
+    }
+    
+    /**
+     * Returns the number of lines that were not printed because they were being produced faster than they could be
+     * printed (see {@link PrivateServerPreferences#getLogBufferSize()}).
+     * 
+     * @return Returns the number of dropped lines since server was last started.
+     */
+    public long getDroppedLogLines(){
+        LogPipeline pipeline = logPipeline;
+        return pipeline == null ? 0 : pipeline.getDropped();
     }
     
     /**
@@ -696,11 +1830,12 @@ public class Server implements Runnable{
     public static String printArray(String[] array, String separator){
         if(array == null || array.length == 0) return "";
         
-        String toPrint="";
+        StringBuilder toPrint = new StringBuilder();
         for(String s: array){
-            toPrint += s + separator;
+            toPrint.append(s).append(separator);
         }
-        return toPrint.substring(0, toPrint.length()-separator.length());
+        toPrint.setLength(toPrint.length()-separator.length());
+        return toPrint.toString();
     }
     
     /**
@@ -713,10 +1848,11 @@ public class Server implements Runnable{
     public static String printSet(Set<String> set, String separator){
         if(set.isEmpty()) return "";
         
-        String toPrint="";
+        StringBuilder toPrint = new StringBuilder();
         for(String s: set){
-            toPrint += s + separator;
+            toPrint.append(s).append(separator);
         }
-        return toPrint.substring(0, toPrint.length()-separator.length());
+        toPrint.setLength(toPrint.length()-separator.length());
+        return toPrint.toString();
     }
 }
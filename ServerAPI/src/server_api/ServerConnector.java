@@ -1,11 +1,17 @@
 package server_api;
 
+import java.io.BufferedOutputStream;
+import java.io.InputStream;
 import java.io.EOFException;
 import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
+import java.io.OutputStream;
 import java.net.Socket;
 import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
 
 
 /**
@@ -32,9 +38,40 @@ public class ServerConnector implements Runnable {
      * messages to Client.
      */
     public ObjectOutputStream output;
-    private Server server;
-    private String username = "";
-    private boolean connected = false;
+    final Server server;
+    /**
+     * This is the port of the client. It is kept separately, so it is known even after the socket has been closed.
+     */
+    final int port;
+    String username = "";
+    volatile boolean connected = false;
+    /**
+     * This is the session of the client, if it can be resumed (see {@link PrivateServerPreferences#getSessionResumeWindow()}), otherwise null.
+     * All messages to the client go through it.
+     */
+    volatile ClientSession session;
+    private final boolean framed;
+    // format of payload in frames sent to the client, it changes once client tells which version of binary format it supports
+    private volatile int codecVersion = MessageCodec.JAVA_SERIALIZATION;
+    private volatile int clientVersion = 0; // version of MessageCodec the client knows, 0 if it has not told
+    private volatile long lastHeard = System.nanoTime(); // when the last message arrived
+    private volatile long roundTripTime = -1; // smoothed, in nanoseconds
+    private InputStream frameInput;
+    private FrameReader frameReader;
+    private OutputStream frameOutput;
+    private CountingInputStream countingInput; // only if framed protocol is not used
+    volatile long bytesOut = 0; // only counted for frames, object stream counts its own bytes
+    private ManagedObjectOutputStream managedOutput; // the same as output, only if framed protocol is not used
+    private final RateLimiter limiter; // null if clients are not rate limited
+    private long lastBytesIn = 0; // bytes received until the previous message, only used by the reading Thread
+    /**
+     * Messages of this client waiting to be delivered to other clients, if server has dispatch Threads.
+     */
+    final FairDispatcher.Lane lane = new FairDispatcher.Lane();
+    /**
+     * Messages waiting to be written to the client. Only the writer of this connection takes them out.
+     */
+    final OutboundQueue outbound;
 
     /**
      * It sets up necessary things.
@@ -47,6 +84,17 @@ public class ServerConnector implements Runnable {
     public ServerConnector(Server server, Socket socket) {
         this.server = server;
         this.socket = socket;
+        this.port = socket.getPort();
+        PrivateServerPreferences prefs = server.getPrivateServerPreferences();
+        this.outbound = new OutboundQueue(prefs.getOutboundQueueCapacity(), prefs.getSlowConsumerPolicy(), prefs.getSlowConsumerTimeout());
+        this.framed = prefs.isFramed();
+        this.limiter = prefs.isRateLimited() ? new RateLimiter(prefs) : null;
+        // queued before the connector can be found in the registry, so nothing sent to all clients gets ahead of it
+        try {
+            sendHandshake(new Message<>("system", Message.Type.PREFERENCES, server.getPublicServerPreferences(), new String[]{":" + port}));
+        } catch (IOException ex) {
+            System.out.println("error");
+        }
     }
 
     /**
@@ -59,145 +107,413 @@ public class ServerConnector implements Runnable {
      */
     @Override
     public void run() throws ClassCastException, ServerException {
-        println("[system]: Connected with " + this.socket.getInetAddress().getHostName() + ":" + this.socket.getPort());
+        server.log(PrivateServerPreferences.LogCategory.CONNECTIONS, false, "[system]: Connected with ", this.socket.getInetAddress(), ":", port);
         connected = true;
+        server.connectionStarted(this); // before the object stream is opened, since it waits for the client
         try {
-            output = new ObjectOutputStream(this.socket.getOutputStream()); // create input stream for listening for incoming messages
-            output.flush();
+            if (framed) {
+                frameOutput = new BufferedOutputStream(this.socket.getOutputStream());
+                frameInput = this.socket.getInputStream();
+                frameReader = new FrameReader(FrameCodec.STREAM_HEADER_LENGTH); // client always starts with the header of an object stream
+            } else {
+                PrivateServerPreferences prefs = server.getPrivateServerPreferences();
+                managedOutput = new ManagedObjectOutputStream(this.socket.getOutputStream(), prefs.getStreamResetMessages(), prefs.getStreamResetBytes());
+                output = managedOutput; // create output stream for sending messages
+                output.flush();
 
-            input = new ObjectInputStream(this.socket.getInputStream()); // create input stream for listening for incoming messages
+                countingInput = new CountingInputStream(this.socket.getInputStream());
+                input = new ObjectInputStream(countingInput); // create input stream for listening for incoming messages
+            }
         } catch (IOException e) {
             errPrintln("[system]: Could not open input stream!");
             e.printStackTrace(System.err);
             connected = false;
-            this.server.removeClientLoggingIn(this.socket.getPort());
+            this.server.removeClientLoggingIn(port);
             return;
         }
-        try {
-            output.writeObject(new Message<>("system", Message.Type.PREFERENCES, server.getPublicServerPreferences(), new String[]{":" + this.socket.getPort()}));
-        } catch (IOException ex) {
-            System.out.println("error");
-        }
-
-        // if server does not require login, LOGIN_SUCCESSFUL will be sent automatically as soon connection is established
-        if (!server.isLoginRequired()) {
-            int port1 = this.socket.getPort();
-            username = ":" + port1;
-            Message<String> message = new Message<>("system", Message.Type.LOGIN_SUCCESSFUL, "Login was successful", new String[]{username});
-            server.onSuccessfulLogin(username, port1);
-            server.sendToOtherClients(new Message<>("system", Message.Type.SYSTEM, "user-connect=\""+username+"\"", null), new String[]{username});
-            try {
-                output.writeObject(message);
-            } catch (IOException ex) {
-                System.out.println("error");
+        server.startWriter(new Runnable() {
+            @Override
+            public void run() {
+                writeQueued();
             }
-        }
+        }, port);
+        connectionOpened();
+        
         while (!server.requestToStop) { // infinite loop input which this thread waits for incoming messages and processes them
             Message<?> msg_received;
             try {
-                msg_received = (Message) input.readObject(); // read the message from the client
+                msg_received = readMessage(); // read the message from the client
             } catch (ClassCastException e) {
                 throw new ServerException("The object received was not correct of correct Class");
             } catch (EOFException | SocketException e) {
                 // user has probably quit
                 System.out.println(e.getClass().toString()+" caught in ServerConnector (" + e.getMessage() + ")");
-                int port1 = this.socket.getPort();
-                if (this.username.equals("")) { // not logged in yet
-                    this.server.removeClientLoggingIn(port1);
-                    //clients dont need to know that
-                    //server.sendToClients(new Message<>("system", Message.Type.SYSTEM, "user-disconnect=\":" + port1 + "\""));
-                    if (connected) {
-                        server.onConnectionClosed(":" + port1, port1, "unknown");
-                    }
-                } else {
-                    this.server.removeClient(username);
-                    if (connected) { // if connection was fine until this moment (it is false if connection was closed intentionally - the one closing it will set connected to false)
-                        server.sendToClients(new Message<>("system", Message.Type.SYSTEM, "user-disconnect=\"" + username + "\""));
-                        server.onConnectionClosed(username, port1, "unknown");
-                    }
-                }
-                connected = false;
+                connectionLost();
                 return;
             } catch (Exception ex) {
                 errPrintln(ex.getMessage());
                 return;
             }
-
-            // print to server's output
+            if (!messageReceived(msg_received)) {
+                return;
+            }
+        }
+    }
+    
+    /**
+     * Reads the next message from the client. It blocks until the whole message arrives.
+     * 
+     */
+    private Message<?> readMessage() throws IOException, ClassNotFoundException {
+        if (!framed) {
+            return (Message) input.readObject();
+        }
+        ByteBuffer payload;
+        while ((payload = frameReader.nextFrame()) == null) { // one read usually brings several frames
+            if (frameReader.read(frameInput) < 0) {
+                throw new EOFException();
+            }
+        }
+        return FrameCodec.decode(payload);
+    }
+    
+    /**
+     * This is called once the connection is ready. If login is not required it sends {@link Message.Type#LOGIN_SUCCESSFUL}
+     * ({@link Message.Type#PREFERENCES} has been queued when connector was created).
+     * 
+     */
+    void connectionOpened() {
+        // if server does not require login, LOGIN_SUCCESSFUL will be sent automatically as soon connection is established
+        if (!server.isLoginRequired()) {
+            int port1 = port;
+            username = ":" + port1;
+            Message<String> message = new Message<>("system", Message.Type.LOGIN_SUCCESSFUL, "Login was successful", new String[]{username});
+            server.onSuccessfulLogin(username, port1);
+            server.clientConnected(username);
             try {
-                String nameToPrint = "";
-                if (msg_received.getMessageType() != Message.Type.LOGIN_REQUEST && server.isLoginRequired()) {
-                    nameToPrint = " [" + msg_received.getMessageSender() + "]";
-                }
-                if (null != msg_received.getMessageType()) {
-                    switch (msg_received.getMessageType()) {
-                        case DATA_STRING:
-                            println("[" + this.socket.getPort() + "]" + nameToPrint + ": " + msg_received.getMessageObject()); // print the incoming message input the console
-                            break;
-                        case DATA:
-                            println("[" + this.socket.getPort() + "]" + nameToPrint + ": " + msg_received.getMessageObject().getClass()); // print the incoming message input the console
-                            break;
-                        case COMMAND:
-                            println("[" + this.socket.getPort() + "]" + nameToPrint + ": " + "COMMAND: " + msg_received.getMessageObject().toString()); // print the incoming message input the console
-                            break;
-                        default:
-                            println("[" + this.socket.getPort() + "]" + nameToPrint + ": " + msg_received.getMessageType().toString()); // print the incoming message input the console
-                            break; // print the incoming message input the console
-                    }
-                }
-            } catch (IllegalArgumentException e) {
-                errPrintln("[error]: You are using incorrect time format");
+                send(message);
+            } catch (IOException ex) {
+                System.out.println("error");
+            }
+        }
+    }
+    
+    /**
+     * This is called when connection with the client has been lost (not when it was closed intentionally).
+     * It removes the client and notifies others about it.
+     * 
+     */
+    void connectionLost() {
+        int port1 = port;
+        if (this.username.equals("")) { // not logged in yet
+            this.server.removeClientLoggingIn(port1);
+            //clients dont need to know that
+            //server.sendToClients(new Message<>("system", Message.Type.SYSTEM, "user-disconnect=\":" + port1 + "\""));
+            if (connected) {
+                server.onConnectionClosed(":" + port1, port1, "unknown");
+            }
+        } else {
+            if (connected && server.detachSession(this)) { // client may come back, others are not notified until then
+                connected = false;
+                return;
+            }
+            server.endSession(this);
+            this.server.removeClient(username, this); // username might already belong to the connection that has resumed the session
+            if (connected) { // if connection was fine until this moment (it is false if connection was closed intentionally - the one closing it will set connected to false)
+                server.clientDisconnected(username);
+                server.onConnectionClosed(username, port1, "unknown");
+            }
+        }
+        connected = false;
+    }
+    
+    /**
+     * This is called for every message that arrives from the client. It prints the message
+     * and acts upon it depending on its type.
+     * 
+     * @param msg_received This is the received message.
+     * @return Returns false if no more messages should be read (client has logged off).
+     */
+    boolean messageReceived(Message<?> msg_received) {
+        lastHeard = System.nanoTime();
+        if (msg_received.getMessageType() == Message.Type.PONG) { // heartbeats are not printed
+            pongReceived(msg_received.getMessageObject());
+            return true;
+        } else if (msg_received.getMessageType() == Message.Type.PING) {
+            try {
+                send(new Message<>("system", Message.Type.PONG, msg_received.getMessageObject(), new String[]{username}));
+            } catch (IOException ex) { }
+            return true;
+        }
+        Message.Type type = msg_received.getMessageType();
+        if ((type == Message.Type.DATA || type == Message.Type.DATA_STRING || type == Message.Type.COMMAND) && msg_received.getMessageObject() == null) {
+            sendError("Message has no content and has not been sent");
+            return true;
+        }
+        if (type == Message.Type.DATA_STRING && !(msg_received.getMessageObject() instanceof String)) {
+            sendError("Message is not String and has not been sent");
+            return true;
+        }
+        long bytesIn = getBytesIn();
+        long size = bytesIn - lastBytesIn; // estimated size of the message
+        lastBytesIn = bytesIn;
+        if (limiter != null && !withinLimits(msg_received, size)) {
+            return connected; // false if client has been banned
+        }
+        // print to server's output, parts are joined by the log pipeline
+        if (null != msg_received.getMessageType()) {
+            String kind = "";
+            Object printed;
+            switch (msg_received.getMessageType()) {
+                case DATA_STRING:
+                    printed = msg_received.getMessageObject();
+                    break;
+                case DATA:
+                    printed = msg_received.getMessageObject().getClass();
+                    break;
+                case COMMAND:
+                    kind = "COMMAND: ";
+                    printed = msg_received.getMessageObject();
+                    break;
+                default:
+                    printed = msg_received.getMessageType();
+                    break;
             }
+            if (msg_received.getMessageType() != Message.Type.LOGIN_REQUEST && server.isLoginRequired())
+                server.log(PrivateServerPreferences.LogCategory.MESSAGES, false, "[", port, "] [", msg_received.getMessageSender(), "]: ", kind, printed);
+            else
+                server.log(PrivateServerPreferences.LogCategory.MESSAGES, false, "[", port, "]: ", kind, printed);
+        }
 
-            // what to do with the received message (depends on the type)
-            if (msg_received.getMessageType() == Message.Type.LOGIN_REQUEST) {
-                if (server.isLoginRequired()) {
-                    // clientLoggedIn() adds client to the Map
-                    String wantedUsername = msg_received.getMessageSender();
-                    if (server.clientLoggedIn(wantedUsername, this.socket.getPort(), this)) {
-                        username = wantedUsername;
-                        Message<String> message = new Message<>("system", Message.Type.LOGIN_SUCCESSFUL, "Login was successful", new String[]{username});
-                        println("[system]: User " + username + " has connected");
-                        server.onSuccessfulLogin(username, this.socket.getPort());
-                        server.sendToOtherClients(new Message<>("system", Message.Type.SYSTEM, "user-connect=\""+username+"\"", null), new String[]{username});
-                        try {
-                            output.writeObject(message);
-                        } catch (IOException ex) {
-                            System.out.println("error");
-                        }
-                    } else {
-                        Message<String> message = new Message<>("system", Message.Type.LOGIN_DENIED, "Username already exists. Pick another one", new String[]{""+this.socket.getPort()});
-                        println("[system]: User at " + this.socket.getPort() + " has been denied because of duplicated username");
-                        try {
-                            output.writeObject(message);
-                        } catch (IOException ex) {
-                            System.out.println("error");
-                        }
+        // what to do with the received message (depends on the type)
+        if (msg_received.getMessageType() == Message.Type.LOGIN_REQUEST) {
+            if (server.isLoginRequired()) {
+                // clientLoggedIn() adds client to the Map
+                String wantedUsername = msg_received.getMessageSender();
+                String denial;
+                if (!username.equals("")) {
+                    sendError("You are already logged in as " + username);
+                } else if (msg_received.getMessageObject() instanceof SystemEvent && server.resumeSession(this, wantedUsername, (SystemEvent) msg_received.getMessageObject())) {
+                    // session has been resumed, other clients have not noticed anything
+                } else if ((denial = server.checkUsername(wantedUsername)) != null) {
+                    server.log(PrivateServerPreferences.LogCategory.CONNECTIONS, false, "[system]: User at ", port, " has been denied because username is not allowed");
+                    try {
+                        send(new Message<>("system", Message.Type.LOGIN_DENIED, denial, new String[]{""+port}));
+                    } catch (IOException ex) {
+                        System.out.println("error");
                     }
+                } else {
+                    loginRequested(wantedUsername);
                 }
-            } else if (msg_received.getMessageType() == Message.Type.LOGOFF) {
-                logoff();
-                return;
-            } else if (msg_received.getMessageType() == Message.Type.DATA || msg_received.getMessageType() == Message.Type.DATA_STRING) {
-                try {
-                    String failedRecipients = Server.printArray(server.sendToClients(msg_received), ", "); // send message to clients
-                    // return warning message to sender if some recipients did not exist
-                    if (!failedRecipients.equals("") && msg_received.getReplyAllowed()) {
-                        Message<String> returnWarningMsg = new Message<>("system", Message.Type.SYSTEM, "recipients-not-exist=\"" + failedRecipients + "\"", new String[]{msg_received.getMessageSender()}, false);
-                        server.sendToClients(returnWarningMsg);
-                    }
-
-                } catch (Exception e) {
-                    errPrintln("[system]: There was a problem while sending the message to clients");
-                    e.printStackTrace(System.err);
+            }
+        } else if (msg_received.getMessageType() == Message.Type.LOGOFF) {
+            logoff();
+            return false;
+        } else if (msg_received.getMessageType() == Message.Type.DATA || msg_received.getMessageType() == Message.Type.DATA_STRING) {
+            final Message<?> message = msg_received;
+            boolean dispatched = server.dispatch(this, size, new Runnable() {
+                @Override
+                public void run() {
+                    deliver(message);
                 }
-            } else if (msg_received.getMessageType() == Message.Type.COMMAND) {
-                clientCommand(msg_received.getMessageObject().toString());
+            });
+            if (!dispatched) {
+                sendError("Server is busy, message has not been sent");
+            }
+        } else if (msg_received.getMessageType() == Message.Type.COMMAND) {
+            clientCommand(msg_received.getMessageObject().toString());
+        } else if (msg_received.getMessageType() == Message.Type.PREFERENCES) {
+            versionReceived(msg_received.getMessageObject());
+        }
+        return true;
+    }
+    
+    /**
+     * Logs the client in with the username it wants, which has already been checked. If server is part of a cluster,
+     * logging in waits for other nodes, so connectors whose Thread must not wait override it and call {@link #logIn(String)} elsewhere.
+     * 
+     * @param wantedUsername This is the username the client wants.
+     */
+    void loginRequested(String wantedUsername) {
+        logIn(wantedUsername);
+    }
+    
+    /**
+     * Logs the client in and sends it the reply. It can be called from any Thread, but only once per login request.
+     * 
+     * @param wantedUsername This is the username the client wants.
+     */
+    void logIn(String wantedUsername) {
+        if (server.clientLoggedIn(wantedUsername, port, this)) {
+            username = wantedUsername;
+            Message<String> message = new Message<>("system", Message.Type.LOGIN_SUCCESSFUL, "Login was successful", new String[]{username});
+            server.log(PrivateServerPreferences.LogCategory.CONNECTIONS, false, "[system]: User ", username, " has connected");
+            server.onSuccessfulLogin(username, port);
+            server.clientConnected(username);
+            try {
+                send(message);
+                ClientSession s = session;
+                if (s != null)
+                    s.sendToken();
+            } catch (IOException ex) {
+                System.out.println("error");
+            }
+            server.deliverMailbox(this);
+        } else {
+            Message<String> message = new Message<>("system", Message.Type.LOGIN_DENIED, "Username already exists. Pick another one", new String[]{""+port});
+            server.log(PrivateServerPreferences.LogCategory.CONNECTIONS, false, "[system]: User at ", port, " has been denied because of duplicated username");
+            try {
+                send(message);
+            } catch (IOException ex) {
+                System.out.println("error");
             }
-
         }
     }
 
+    /**
+     * Delivers the message to its recipients, either on the Thread that has received it or on a dispatch Thread
+     * (see {@link PrivateServerPreferences#getDispatchThreads()}).
+     * 
+     * @param msg_received This is the received message.
+     */
+    private void deliver(Message<?> msg_received) {
+        Message<?> toSend = server.filterForbiddenWords(msg_received);
+        if (toSend == null) {
+            sendError("Message contains forbidden words and has not been sent");
+            return;
+        }
+        try {
+            ArrayList<String> offline = new ArrayList<>();
+            String[] failedRecipients = server.sendToClients(toSend, offline); // send message to clients
+            // return warning message to sender if some recipients did not exist
+            if (failedRecipients.length > 0 && msg_received.getReplyAllowed()) {
+                Message<SystemEvent> returnWarningMsg = new Message<>("system", Message.Type.SYSTEM, new SystemEvent(SystemEvent.RECIPIENTS_NOT_EXIST, failedRecipients), new String[]{msg_received.getMessageSender()}, false);
+                server.sendToClients(returnWarningMsg);
+            }
+            if (!offline.isEmpty() && msg_received.getReplyAllowed()) {
+                Message<SystemEvent> returnOfflineMsg = new Message<>("system", Message.Type.SYSTEM, new SystemEvent(SystemEvent.RECIPIENTS_OFFLINE, offline.toArray(new String[0])), new String[]{msg_received.getMessageSender()}, false);
+                server.sendToClients(returnOfflineMsg);
+            }
+
+        } catch (Exception e) {
+            server.log(PrivateServerPreferences.LogCategory.SYSTEM, true, "[system]: There was a problem while sending the message to clients");
+            e.printStackTrace(System.err);
+        }
+    }
+    
+    /**
+     * Checks if client is sending faster than allowed or is repeating itself and does what
+     * {@link PrivateServerPreferences#getFloodPolicy()} says.
+     * 
+     * @param message This is the received message.
+     * @param size This is the size of the message, estimated from the number of bytes received since the previous message.
+     * @return Returns true if message can be processed, or false if it has been dropped or client has been banned.
+     */
+    private boolean withinLimits(Message<?> message, long size) {
+        Message.Type type = message.getMessageType();
+        if (type == Message.Type.DATA_STRING && message.getMessageObject() instanceof String
+                && limiter.isDuplicate((String) message.getMessageObject())) {
+            sendError("Repeated message has not been sent");
+            return false;
+        }
+        PrivateServerPreferences.FloodPolicy policy = server.getPrivateServerPreferences().getFloodPolicy();
+        if (policy == PrivateServerPreferences.FloodPolicy.DELAY && mayBlock()) {
+            long delay = limiter.reserve(type, size);
+            if (delay > 0) { // nothing is read from the client meanwhile, so it is slowed down as well
+                try {
+                    Thread.sleep(delay / 1000000, (int) (delay % 1000000));
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            return true;
+        }
+        if (limiter.tryAcquire(type, size))
+            return true;
+        if (policy == PrivateServerPreferences.FloodPolicy.BAN) {
+            server.log(PrivateServerPreferences.LogCategory.CONNECTIONS, true, "[system]: Client at ", port, " is sending messages too fast and will be banned");
+            server.banClient(username.equals("") ? ":" + port : username, "You have been sending messages too fast");
+        } else {
+            sendError("You are sending messages too fast, message has not been sent");
+        }
+        return false;
+    }
+    
+    private void sendError(String text) {
+        try {
+            send(new Message<>("system", Message.Type.ERROR, text, new String[]{username}));
+        } catch (IOException ex) { }
+    }
+    
+    /**
+     * Is called when client replies to {@link Message.Type#PREFERENCES} with the newest version of {@link MessageCodec}
+     * it knows. If connection is framed, frames sent to the client from then on use the newest binary format that both
+     * the client and server preferences allow (client picks the same one). The version also tells which message types
+     * the client understands, for example {@link Message.Type#PING}.
+     * 
+     * @param version This is the object of the reply. It should be an Integer.
+     */
+    private void versionReceived(Object version) {
+        if (!(version instanceof Integer))
+            return;
+        int v = (Integer) version;
+        clientVersion = v;
+        if (framed) {
+            int codec = Math.min(v, server.getPublicServerPreferences().getBinaryCodecVersion());
+            if (codec > MessageCodec.JAVA_SERIALIZATION)
+                codecVersion = codec;
+        }
+    }
+    
+    /**
+     * Returns true if client answers to {@link Message.Type#PING}.
+     * 
+     * @return Returns true if client supports heartbeats.
+     */
+    boolean supportsHeartbeats() {
+        return clientVersion >= MessageCodec.HEARTBEATS;
+    }
+    
+    /**
+     * Sends {@link Message.Type#PING} to the client. It never waits for room in the outbound queue.
+     * 
+     */
+    void sendPing() {
+        try {
+            send(new Message<>("system", Message.Type.PING, System.nanoTime(), new String[]{username}));
+        } catch (IOException ex) { } // connection has been aborted
+    }
+    
+    // measures time since the ping was sent and smooths it like TCP does (new value counts 1/8)
+    private void pongReceived(Object sent) {
+        if (!(sent instanceof Long))
+            return;
+        long sample = System.nanoTime() - (Long) sent;
+        if (sample < 0)
+            return;
+        long previous = roundTripTime;
+        roundTripTime = previous < 0 ? sample : previous + (sample - previous) / 8;
+    }
+    
+    /**
+     * Returns the smoothed time it takes for a {@link Message.Type#PING} to be answered.
+     * 
+     * @return Returns the round trip time in milliseconds or -1 if it has not been measured yet.
+     */
+    public long getRoundTripTime() {
+        long rtt = roundTripTime;
+        return rtt < 0 ? -1 : rtt / 1000000;
+    }
+    
+    /**
+     * Returns how long ago the last message arrived from the client.
+     * 
+     * @return Returns the time since the last message in milliseconds.
+     */
+    long getSilentTime() {
+        return (System.nanoTime() - lastHeard) / 1000000;
+    }
+    
     /**
      * Receives a command from client that must start with a slash /. You can use following
      * commands: /who, /logoff, /help.
@@ -213,23 +529,35 @@ public class ServerConnector implements Runnable {
         String[] comm = command.split(" ");
         switch(comm[0]){
             case "/who":
+                ClientRegistry.Snapshot snapshot = server.getRegistry().snapshot();
                 if(comm.length==1){
-                    sendToThisClient("system", Message.Type.DATA_STRING, "Connected clients: " + Server.printSet(server.getClients(), ", "));
+                    sendToThisClient("system", Message.Type.DATA_STRING, "Connected clients: " + snapshot.joinedUsernames());
                 }else if(comm.length == 2){
                     if(comm[1].equals("-c")){
-                        System.out.println("printSet: "+ Server.printSet(server.getClients(), ","));
-                        sendToThisClient("system", Message.Type.SYSTEM, "connected-clients=\"" + Server.printSet(server.getClients(), ",") + "\"");
+                        sendToThisClient(new SystemEvent(SystemEvent.CONNECTED_CLIENTS, snapshot.usernames));
                     }else if(comm[1].equals("-?")){
-                        sendToThisClient("system", Message.Type.DATA_STRING, "/who: Shows connected clients. You can use switch:\n  -c : This returns a reply for easy computer reading. Message looks like 'connected-clients=\"client1,client2,clientN\"' where clients are written between quotation marks separated with comma");
+                        sendToThisClient("system", Message.Type.DATA_STRING, "/who: Shows connected clients. You can use switch:\n  -c : This returns a reply for easy computer reading. Message looks like 'connected-clients=\"client1,client2,clientN\"' where clients are written between quotation marks separated with comma\n  -c version : This returns only changes since the given version of the roster. Message looks like 'roster-delta=\"version,+client1,-client2\"' where + means connected and - disconnected. If changes are not known anymore, the whole roster is returned like 'roster=\"version,client1,client2\"'");
                     }else if(comm[1].startsWith("-")){
                         sendToThisClient("system", Message.Type.ERROR, "/who: Unknown switch. Use -c or -? for help");
                     }else{
                         sendToThisClient("system", Message.Type.ERROR, "/who: Too many arguments. Use -? for help");
                     }
+                }else if(comm.length == 3 && comm[1].equals("-c")){
+                    long knownVersion;
+                    try{
+                        knownVersion = Long.parseLong(comm[2]);
+                    }catch(NumberFormatException e){
+                        sendToThisClient("system", Message.Type.ERROR, "/who: Version must be a number. Use -? for help");
+                        break;
+                    }
+                    sendToThisClient(rosterSince(snapshot, knownVersion));
                 }else{
                     sendToThisClient("system", Message.Type.ERROR, "/who: Too many arguments. Use -? for help");
                 }
                 break;
+            case "/history":
+                sendHistory(comm);
+                break;
             case "/logoff":
                 if(comm.length == 1){
                     logoff();
@@ -240,7 +568,7 @@ public class ServerConnector implements Runnable {
                 break;                
             case "/help":
                 if(comm.length == 1){
-                    println("[server]: /help: Supported commands:\n  /who : prints out connected users\n  /logoff : logs off the user\nServer can send you system messages. They are formatted like: type-of-message=\"value1,value2\"\nValues are between the quotation marks and are separated by comma. There are following types of messages:\n  user-connect : Contains a username of a single user that has connected\n  user-disconnect : Contains a username of a single user that has disconnected\n  recipients-not-exist : It is a reply message when message that was sent to specific clients that did not exist\n  connected-clients : Lists all the clients that are currently connected. It can be requested by command /who");
+                    println("[server]: /help: Supported commands:\n  /who : prints out connected users\n  /logoff : logs off the user\n  /history : sends you the last messages that were sent to everyone\nServer can send you system messages. They are formatted like: type-of-message=\"value1,value2\"\nValues are between the quotation marks and are separated by comma. There are following types of messages:\n  user-connect : Contains a username of a single user that has connected\n  user-disconnect : Contains a username of a single user that has disconnected\n  recipients-not-exist : It is a reply message when message that was sent to specific clients that did not exist\n  recipients-offline : It is a reply message when message was sent to specific clients that are not connected and it will be delivered when they log in\n  connected-clients : Lists all the clients that are currently connected. It can be requested by command /who");
                 }else{
                     println("[server]: /help: Command takes no arguments. If you want more information about specific command, use switch -? at that command");
                 }  
@@ -250,12 +578,68 @@ public class ServerConnector implements Runnable {
         }
     }
     
+    /**
+     * Sends messages from history that client has asked for, followed by {@link SystemEvent#HISTORY}. Framed clients
+     * receive frames exactly as they are stored, others receive decoded messages.
+     * 
+     * @param comm These are the parts of the command.
+     */
+    private void sendHistory(String[] comm) {
+        ChatHistory history = server.getHistory();
+        int max = server.getPrivateServerPreferences().getHistoryMaxMessages();
+        if (comm.length == 2 && comm[1].equals("-?")) {
+            sendToThisClient("system", Message.Type.DATA_STRING, "/history: Sends you the last messages that were sent to everyone (at most " + max + "). You can also use:\n  /history n : Sends you the last n messages\n  -s time : Sends you messages since the given time (in milliseconds since 1. 1. 1970)\nMessages are followed by a system message like 'history=\"n\"' where n is the number of messages");
+            return;
+        }
+        if (history == null) {
+            sendToThisClient("system", Message.Type.ERROR, "/history: Server does not keep history");
+            return;
+        }
+        if (username.equals("")) {
+            sendToThisClient("system", Message.Type.ERROR, "/history: You must log in first");
+            return;
+        }
+        List<ByteBuffer> frames;
+        try {
+            if (comm.length == 1) {
+                frames = history.last(max);
+            } else if (comm.length == 2 && !comm[1].startsWith("-")) {
+                frames = history.last(Math.max(0, Math.min(max, Integer.parseInt(comm[1]))));
+            } else if (comm.length == 3 && comm[1].equals("-s")) {
+                frames = history.since(Long.parseLong(comm[2]), max);
+            } else {
+                sendToThisClient("system", Message.Type.ERROR, "/history: Unknown switch or too many arguments. Use -? for help");
+                return;
+            }
+        } catch (NumberFormatException e) {
+            sendToThisClient("system", Message.Type.ERROR, "/history: Number of messages and time must be numbers. Use -? for help");
+            return;
+        }
+        int sent = 0;
+        try {
+            for (ByteBuffer frame: frames) {
+                if (framed) {
+                    enqueueUnkept(new OutboundQueue.Entry(null, frame), 1);
+                } else {
+                    ByteBuffer payload = frame.duplicate();
+                    payload.position(payload.position() + FrameCodec.HEADER_LENGTH);
+                    send(FrameCodec.decode(payload));
+                }
+                sent++;
+            }
+        } catch (IOException | ClassNotFoundException e) {
+            server.log(PrivateServerPreferences.LogCategory.SYSTEM, true, "[system]: History could not be sent to client at ", port, ": ", e.getMessage());
+        }
+        sendToThisClient(new SystemEvent(SystemEvent.HISTORY, Integer.toString(sent)));
+    }
+    
     private void logoff(){
+        server.endSession(this);
         close();
         server.removeClient(this.username);
         connected = false;
-        server.sendToClients(new Message<>("system", Message.Type.SYSTEM, "user-disconnect=\"" + username + "\""));
-        int port1 = this.socket.getPort();
+        server.clientDisconnected(username);
+        int port1 = port;
         if (server.isLoginRequired()) {
             server.onConnectionClosed(this.username, port1, "logoff");
         } else {
@@ -267,29 +651,412 @@ public class ServerConnector implements Runnable {
      * Sends message to client with which this object is communicating.
      * 
      */
+    private void sendToThisClient(SystemEvent event){
+        try {
+            send(new Message<>("system", Message.Type.SYSTEM, event, new String[]{username}));
+        } catch (IOException ex){ }
+    }
+    
+    /**
+     * Returns changes of connected clients since the version the client knows, or the whole roster if
+     * those changes are not remembered anymore. The first value of the event is always the current version.
+     * 
+     * @param snapshot This is the current state of clients.
+     * @param knownVersion This is the version of the roster the client knows (negative if none).
+     * @return Returns a {@link SystemEvent#ROSTER_DELTA} or {@link SystemEvent#ROSTER} event.
+     */
+    private SystemEvent rosterSince(ClientRegistry.Snapshot snapshot, long knownVersion){
+        String[] delta = server.getRegistry().rosterDelta(knownVersion, snapshot.rosterVersion);
+        String[] values = delta != null ? delta : snapshot.usernames;
+        String[] withVersion = new String[values.length + 1];
+        withVersion[0] = Long.toString(snapshot.rosterVersion);
+        System.arraycopy(values, 0, withVersion, 1, values.length);
+        return new SystemEvent(delta != null ? SystemEvent.ROSTER_DELTA : SystemEvent.ROSTER, withVersion);
+    }
+    
     private void sendToThisClient(String sender, Message.Type type, String text){
         try {
-            this.output.writeObject(new Message<>(sender, type, text, new String[]{username}));
-            this.output.flush();
+            send(new Message<>(sender, type, text, new String[]{username}));
         } catch (IOException ex){ }
     }
+    
+    /**
+     * Sends the message to the client. It is used by {@link Server} whenever a message
+     * needs to be delivered to this client. Message is only put in the outbound queue, it is
+     * written later by the writer of this connection.
+     * 
+     * @param message This is the message to be sent.
+     * @throws IOException If message could not be sent.
+     */
+    void send(Message<?> message) throws IOException {
+        ClientSession s = session;
+        if (s != null)
+            s.send(message, null);
+        else
+            sendNow(message);
+    }
+    
+    /**
+     * Sends the message the same way as {@link #send(Message)}, but not through the session of the client.
+     * It is used by {@link ClientSession}.
+     * 
+     * @param message This is the message to be sent.
+     * @throws IOException If message could not be sent.
+     */
+    void sendNow(Message<?> message) throws IOException {
+        enqueue(entry(message, null));
+    }
+    
+    /**
+     * Creates the entry of the outbound queue for the message in the format of this client.
+     * 
+     * @param message This is the message to be sent.
+     * @param shared This is the same message shared with other recipients or null.
+     * @return Returns the entry.
+     * @throws IOException If message could not be encoded.
+     */
+    OutboundQueue.Entry entry(Message<?> message, SharedFrame shared) throws IOException {
+        if (shared != null)
+            return framed ? new OutboundQueue.Entry(shared.getMessage(), shared.frame(codecVersion)) : new OutboundQueue.Entry(shared.getLegacyMessage(), null);
+        return framed ? new OutboundQueue.Entry(message, FrameCodec.encode(message, codecVersion)) : new OutboundQueue.Entry(SystemEvent.toLegacy(message), null);
+    }
+    
+    /**
+     * Sends messages that were kept for the client while it was not connected. Framed clients receive frames of the whole batch
+     * in a single entry of the outbound queue, so that they are written at once, others receive decoded messages.
+     * 
+     * @param frames These are the frames of the messages.
+     * @throws IOException If messages could not be sent.
+     * @throws ClassNotFoundException If a message could not be decoded.
+     */
+    void sendKept(List<ByteBuffer> frames) throws IOException, ClassNotFoundException {
+        if (framed) {
+            int length = 0;
+            for (ByteBuffer frame: frames)
+                length += frame.remaining();
+            ByteBuffer batch = ByteBuffer.allocate(length);
+            for (ByteBuffer frame: frames)
+                batch.put(frame.duplicate());
+            batch.flip();
+            enqueueUnkept(new OutboundQueue.Entry(null, batch), frames.size());
+        } else {
+            for (ByteBuffer frame: frames) {
+                ByteBuffer payload = frame.duplicate();
+                payload.position(payload.position() + FrameCodec.HEADER_LENGTH);
+                send(FrameCodec.decode(payload));
+            }
+        }
+    }
+    
+    /**
+     * Returns true if messages to the client are written as frames (see {@link FrameCodec}).
+     * 
+     * @return Returns true if connection is framed.
+     */
+    boolean isFramed() {
+        return framed;
+    }
+    
+    /**
+     * Returns true if client receives {@link SystemEvent}s as they are and not in their old String form.
+     * 
+     * @return Returns true if client supports events.
+     */
+    boolean receivesEvents() {
+        return framed && codecVersion >= MessageCodec.SYSTEM_EVENTS;
+    }
+    
+    /**
+     * Sends the message that is shared with other recipients. If connection is framed, the message is
+     * encoded only by the first recipient that uses the same format and the rest of them write the same bytes.
+     * 
+     * @param shared This is the message to be sent.
+     * @throws IOException If message could not be sent.
+     */
+    void send(SharedFrame shared) throws IOException {
+        ClientSession s = session;
+        if (s != null)
+            s.send(shared.getMessage(), shared);
+        else
+            sendNow(shared);
+    }
+    
+    /**
+     * Sends the shared message the same way as {@link #send(SharedFrame)}, but not through the session of the client.
+     * It is used by {@link ClientSession}.
+     * 
+     * @param shared This is the message to be sent.
+     * @throws IOException If message could not be sent.
+     */
+    void sendNow(SharedFrame shared) throws IOException {
+        enqueue(entry(shared.getMessage(), shared));
+    }
+    
+    /**
+     * Sends the first message ({@link Message.Type#PREFERENCES}) to the client. It is always sent
+     * through an ordinary object stream, so that the client can read it before it knows which protocol is used.
+     * It is called by the constructor, so it puts the message in the empty queue directly and the writer takes it out once it starts.
+     * 
+     * @param preferences This is the message carrying preferences.
+     * @throws IOException If message could not be sent.
+     */
+    private void sendHandshake(Message<?> preferences) throws IOException {
+        outbound.offer(new OutboundQueue.Entry(preferences, framed ? FrameCodec.encodeHandshake(preferences) : null), false);
+    }
+    
+    // chat messages from history or offline mailbox are only counted by the session, they are kept where they came from
+    private void enqueueUnkept(OutboundQueue.Entry entry, int messages) throws IOException {
+        ClientSession s = session;
+        if (s != null)
+            s.sendUnkept(entry, messages);
+        else
+            enqueue(entry);
+    }
+    
+    /**
+     * Puts the entry in the outbound queue. If the queue is full and client has to be disconnected
+     * because of {@link PrivateServerPreferences.SlowConsumerPolicy}, connection is aborted.
+     * 
+     * @param entry This is the entry to be written.
+     * @throws IOException If connection is closed or client is too slow.
+     */
+    void enqueue(OutboundQueue.Entry entry) throws IOException {
+        enqueue(entry, mayBlock());
+    }
+    
+    /**
+     * Puts the entry in the outbound queue the same way as {@link #enqueue(OutboundQueue.Entry)}.
+     * 
+     * @param entry This is the entry to be written.
+     * @param mayBlock This is false if calling Thread must not wait for room.
+     * @throws IOException If connection is closed or client is too slow.
+     */
+    void enqueue(OutboundQueue.Entry entry, boolean mayBlock) throws IOException {
+        if (!outbound.offer(entry, mayBlock))
+            throw tooSlow();
+        queued();
+    }
+    
+    /**
+     * Puts the entry in the outbound queue without waiting for room. It is used by {@link ClientSession}, which
+     * must not wait while it holds its lock, so it waits with {@link #awaitRoom(long)} and tries again.
+     * 
+     * @param entry This is the entry to be written.
+     * @return Returns false if the queue is full and calling Thread should wait for room.
+     * @throws IOException If connection is closed or client is too slow.
+     */
+    boolean offer(OutboundQueue.Entry entry) throws IOException {
+        if (outbound.offer(entry, false)) {
+            queued();
+            return true;
+        }
+        if (outbound.isBlocking() && mayBlock())
+            return false;
+        throw tooSlow();
+    }
+    
+    /**
+     * Waits until there is room in the outbound queue. If client does not make room in time, connection is aborted.
+     * 
+     * @param nanos This is the time left to wait in nanoseconds or a negative number before the first wait.
+     * @return Returns the time that is left.
+     * @throws IOException If connection is closed or client is too slow.
+     */
+    long awaitRoom(long nanos) throws IOException {
+        long left = outbound.waitForRoom(nanos);
+        if (left <= 0)
+            throw tooSlow();
+        return left;
+    }
+    
+    /**
+     * Is called after an entry has been put in the outbound queue. The writer Thread takes entries out on its own,
+     * so nothing needs to be done here, but event loop connections have to schedule the write.
+     */
+    void queued() {
+    }
+    
+    private SocketException tooSlow() {
+        server.log(PrivateServerPreferences.LogCategory.CONNECTIONS, true, "[system]: Client at ", port, " is not reading messages fast enough and will be disconnected");
+        abort();
+        return new SocketException("Client at " + port + " is too slow");
+    }
+    
+    /**
+     * Returns true if calling Thread may wait for room in the outbound queue. Timer and dispatch Threads are shared by
+     * all clients, so they never wait for a single one.
+     * 
+     */
+    boolean mayBlock() {
+        return !TimerWheel.isTimerThread() && !FairDispatcher.isDispatchThread() && !server.isDraining();
+    }
+    
+    /**
+     * Returns the number of messages waiting to be written to the client.
+     * 
+     * @return Returns the number of waiting messages.
+     */
+    public int getOutboundQueueSize() {
+        return outbound.size();
+    }
+    
+    /**
+     * Returns the number of messages the writer has taken out of the outbound queue so far.
+     * 
+     */
+    long getWrittenMessages() {
+        return outbound.getTaken();
+    }
+    
+    /**
+     * Returns the number of messages that were not sent to the client because its outbound queue was full.
+     * 
+     * @return Returns the number of dropped messages.
+     */
+    public long getDroppedMessages() {
+        return outbound.getDropped();
+    }
+    
+    /**
+     * Returns the number of bytes written to the object stream since it was last reset. The stream keeps
+     * references to all messages written in that time. If framed protocol is used, it is always 0.
+     * 
+     * @return Returns the number of bytes retained by the object stream.
+     */
+    public long getRetainedBytes() {
+        ManagedObjectOutputStream out = managedOutput;
+        return out == null ? 0 : out.getRetainedBytes();
+    }
+    
+    /**
+     * Returns the number of messages written to the object stream since it was last reset.
+     * If framed protocol is used, it is always 0.
+     * 
+     * @return Returns the number of messages retained by the object stream.
+     */
+    public int getRetainedMessages() {
+        ManagedObjectOutputStream out = managedOutput;
+        return out == null ? 0 : out.getRetainedMessages();
+    }
+    
+    /**
+     * Returns the number of bytes received from the client so far.
+     * 
+     * @return Returns the number of received bytes.
+     */
+    public long getBytesIn() {
+        FrameReader reader = frameReader;
+        if (reader != null)
+            return reader.getBytesRead();
+        CountingInputStream in = countingInput;
+        return in == null ? 0 : in.getCount();
+    }
+    
+    /**
+     * Returns the number of bytes sent to the client so far.
+     * 
+     * @return Returns the number of sent bytes.
+     */
+    public long getBytesOut() {
+        ManagedObjectOutputStream out = managedOutput;
+        return out == null ? bytesOut : out.getBytesWritten();
+    }
+    
+    /**
+     * This is the writer of the connection. It writes queued messages until the queue is closed and
+     * empty, then it closes the connection. Stream is flushed only when there is nothing more to write.
+     * 
+     */
+    private void writeQueued() {
+        try {
+            OutboundQueue.Entry entry;
+            while ((entry = outbound.take()) != null) {
+                if (entry.bytes != null) {
+                    if (entry.bytes.hasArray()) {
+                        frameOutput.write(entry.bytes.array(), entry.bytes.arrayOffset() + entry.bytes.position(), entry.bytes.remaining());
+                    } else { // frames from history are read straight from mapped files
+                        byte[] copy = new byte[entry.bytes.remaining()];
+                        entry.bytes.duplicate().get(copy);
+                        frameOutput.write(copy);
+                    }
+                    bytesOut += entry.bytes.remaining();
+                    if (outbound.size() == 0)
+                        frameOutput.flush();
+                } else {
+                    managedOutput.writeMessage(entry.message);
+                    if (outbound.size() == 0)
+                        output.flush();
+                }
+            }
+        } catch (IOException e) {
+            System.out.println(e.getClass().toString()+" caught in writer of ServerConnector (" + e.getMessage() + ")");
+            outbound.discard();
+        } catch (InterruptedException e) {
+            outbound.discard();
+        }
+        closeStreams();
+    }
 
     /**
      * Closes {@link ObjectOutputStream}, {@link ObjectInputStream} and
-     * {@link Socket}.
+     * {@link Socket} once all queued messages have been written.
      *
      */
     public void close() {
-
+        closeGracefully();
+    }
+    
+    /**
+     * Does the same as {@link #close()}.
+     * 
+     * @return Returns the number of messages that were queued when connection was closed.
+     */
+    int closeGracefully() {
         System.out.println("Closing at " + this.toString());
         connected = false;
+        int queued = outbound.close();
+        if (output == null && frameOutput == null) // writer has not been started
+            closeStreams();
+        return queued;
+    }
+    
+    /**
+     * Returns true once the socket has been closed, either after the last queued message has been written or because
+     * connection was aborted or lost.
+     * 
+     */
+    boolean isClosed() {
+        return socket.isClosed();
+    }
+    
+    /**
+     * Closes the connection immediately and throws away all queued messages. Unlike {@link #close()}
+     * it does not mark the connection as closed intentionally, so other clients will be notified
+     * once reading fails.
+     * 
+     * @return Returns the number of messages that were thrown away.
+     */
+    int abort() {
+        int discarded = outbound.discard();
+        try {
+            socket.close();
+        } catch (IOException ex) {
+        }
+        return discarded;
+    }
+    
+    private void closeStreams() {
         try {
-            output.close();
+            if (output != null)
+                output.close();
+            else if (frameOutput != null)
+                frameOutput.close();
         } catch (IOException ex) {
             System.out.println("Exception 37");
         }
         try {
-            input.close();
+            if (input != null)
+                input.close();
         } catch (IOException ex) {
             System.out.println("Exception 38");
         }
@@ -0,0 +1,67 @@
+package server_api;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Is used by the Server class when the same {@link Message} is sent to many clients.<br>
+ * Message is encoded only once for every format (Java serialization or a version of {@link MessageCodec}),
+ * the first time a framed connection asks for it, and the same bytes are then written to every other framed
+ * connection that uses the same format. Connections that use an ordinary object stream
+ * still write the message itself, since their streams share handles between messages. They receive {@link SystemEvent}s
+ * in their old String form, which is also created only once.<br>
+ * It is meant to be used by a single Thread for the duration of one broadcast.
+ *
+ * @author KRIKKI
+ * @version 1
+ * @since 17. 10. 2026
+ */
+final class SharedFrame {
+    private final Message<?> message;
+    private final ByteBuffer[] frames = new ByteBuffer[MessageCodec.VERSION + 1]; // index is the version of format
+    private Message<?> legacyMessage;
+
+    /**
+     * Creates a new SharedFrame. Message is not serialized yet.
+     *
+     * @param message This is the message that will be sent.
+     */
+    SharedFrame(Message<?> message){
+        this.message = message;
+    }
+
+    /**
+     * Returns the message.
+     *
+     * @return Returns the message.
+     */
+    Message<?> getMessage(){
+        return message;
+    }
+
+    /**
+     * Returns the message that can be read by clients that do not support {@link SystemEvent}s.
+     *
+     * @return Returns the message with events in their old String form.
+     */
+    Message<?> getLegacyMessage(){
+        if(legacyMessage == null)
+            legacyMessage = SystemEvent.toLegacy(message);
+        return legacyMessage;
+    }
+
+    /**
+     * Returns the whole frame (length and payload) of the message. Message is encoded on the first call for
+     * given format, later calls return the same bytes. Every call returns its own buffer positioned at the beginning
+     * of the frame, so it can be consumed without affecting other recipients. Bytes must not be modified.
+     *
+     * @param codecVersion This is the version of {@link MessageCodec} or {@link MessageCodec#JAVA_SERIALIZATION}.
+     * @return Returns a buffer with the frame.
+     * @throws IOException If message could not be encoded.
+     */
+    ByteBuffer frame(int codecVersion) throws IOException{
+        if(frames[codecVersion] == null)
+            frames[codecVersion] = FrameCodec.encode(message, codecVersion);
+        return frames[codecVersion].duplicate();
+    }
+}
@@ -0,0 +1,167 @@
+package server_api;
+
+import java.io.Serializable;
+import java.util.Arrays;
+
+/**
+ * This is the object of messages of type {@link Message.Type#SYSTEM}. Server uses it to tell clients about
+ * users that have connected or disconnected, who is connected and similar events.<br>
+ * Every event has a name (like user-connect) and a list of values (like usernames). Clients that have agreed on
+ * a version of {@link MessageCodec} that supports events receive them as they are, others receive the old form
+ * of the same event as a String like: user-connect="John" (see {@link #toString()}).
+ *
+ * @author KRIKKI
+ * @version 1
+ * @since 17. 10. 2026
+ */
+public final class SystemEvent implements Serializable {
+    /**
+     * A user has connected, the only value is the username.
+     */
+    public static final String USER_CONNECT = "user-connect";
+    /**
+     * A user has disconnected, the only value is the username.
+     */
+    public static final String USER_DISCONNECT = "user-disconnect";
+    /**
+     * Values are usernames with + in front of clients that have connected and with - of clients that have disconnected.
+     * It is sent instead of {@link #USER_CONNECT} and {@link #USER_DISCONNECT} to clients that support events.
+     */
+    public static final String PRESENCE = "presence";
+    /**
+     * Values are usernames of all connected clients. It is a reply to /who -c.
+     */
+    public static final String CONNECTED_CLIENTS = "connected-clients";
+    /**
+     * It is a reply to /who -c version. The first value is the current version of the roster, the rest are usernames of all connected clients.
+     */
+    public static final String ROSTER = "roster";
+    /**
+     * It is a reply to /who -c version. The first value is the current version of the roster, the rest are usernames
+     * with + in front if client has connected since the given version or with - if it has disconnected.
+     */
+    public static final String ROSTER_DELTA = "roster-delta";
+    /**
+     * Values are usernames of recipients that did not exist when message was sent.
+     */
+    public static final String RECIPIENTS_NOT_EXIST = "recipients-not-exist";
+    /**
+     * Values are usernames of recipients that were not connected when message was sent. Message will be delivered when they log in
+     * (see {@link PrivateServerPreferences#getMailboxDirectory()}).
+     */
+    public static final String RECIPIENTS_OFFLINE = "recipients-offline";
+    /**
+     * Is sent after {@link Message.Type#LOGIN_SUCCESSFUL} if session can be resumed (see {@link PrivateServerPreferences#getSessionResumeWindow()}).
+     * Values are the token of the session and the number of messages ({@link Message.Type#DATA} and {@link Message.Type#DATA_STRING})
+     * sent in the session before this event. Client counts such messages from then on and, to resume the session,
+     * sends the same event with the number of messages it has received as the object of {@link Message.Type#LOGIN_REQUEST}.
+     */
+    public static final String SESSION = "session";
+    /**
+     * Client has been banned, the only value is the reason.
+     */
+    public static final String BAN = "ban";
+    /**
+     * Server is shutting down, the only value is the number of seconds after which client may try to connect again.
+     */
+    public static final String SHUTDOWN = "shutdown";
+    /**
+     * It is sent after messages from history that client has asked for with /history, the only value is the number of these messages.
+     */
+    public static final String HISTORY = "history";
+
+    private static final long serialVersionUID = 1L;
+    private final String name;
+    private final String[] values;
+
+    /**
+     * Creates a new event.
+     *
+     * @param name This is the name of the event (like {@link #USER_CONNECT}).
+     * @param values These are values of the event.
+     */
+    public SystemEvent(String name, String... values){
+        if(name == null)
+            throw new ServerException("Name of the event must not be null");
+        this.name = name;
+        this.values = values == null ? new String[0] : values.clone();
+    }
+
+    /**
+     * Returns the name of the event (like {@link #USER_CONNECT}).
+     *
+     * @return Returns the name of the event.
+     */
+    public String getName(){
+        return name;
+    }
+
+    /**
+     * Returns the first value of the event (like username with {@link #USER_CONNECT}) or "" if there are no values.
+     *
+     * @return Returns the first value.
+     */
+    public String getValue(){
+        return values.length == 0 ? "" : values[0];
+    }
+
+    /**
+     * Returns all values of the event (like usernames with {@link #CONNECTED_CLIENTS}).
+     *
+     * @return Returns a copy of values.
+     */
+    public String[] getValues(){
+        return values.clone();
+    }
+
+    /**
+     * Returns values joined in a single String, the same way as in the old String form of the event.
+     *
+     * @return Returns joined values.
+     */
+    public String getJoinedValues(){
+        return Server.printArray(values, separator());
+    }
+
+    /**
+     * Returns the old String form of the event, like: user-connect="John" or connected-clients="John,Ann".
+     *
+     * @return Returns the event as a String.
+     */
+    @Override
+    public String toString(){
+        return name + "=\"" + getJoinedValues() + "\"";
+    }
+
+    @Override
+    public boolean equals(Object obj){
+        if(!(obj instanceof SystemEvent))
+            return false;
+        SystemEvent other = (SystemEvent) obj;
+        return name.equals(other.name) && Arrays.equals(values, other.values);
+    }
+
+    @Override
+    public int hashCode(){
+        return 31 * name.hashCode() + Arrays.hashCode(values);
+    }
+
+    // separators used by the old String form
+    private String separator(){
+        return RECIPIENTS_NOT_EXIST.equals(name) || RECIPIENTS_OFFLINE.equals(name) ? ", " : ",";
+    }
+
+    /**
+     * Returns the message with the event replaced by its old String form, so that it can be read by clients
+     * that do not support events. Other messages are returned as they are.
+     *
+     * @param message This is the message.
+     * @return Returns the message that can be read by any client.
+     */
+    static Message<?> toLegacy(Message<?> message){
+        if(!(message.getMessageObject() instanceof SystemEvent))
+            return message;
+        return new Message<>(message.getMessageSender(), message.getMessageType(), message.getMessageObject().toString(),
+                message.getRecipients(), message.getReplyAllowed(), message.getTimeSentMillis());
+    }
+}
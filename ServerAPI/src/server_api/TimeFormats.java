@@ -0,0 +1,104 @@
+package server_api;
+
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Formats time stamps. For every format a single {@link DateTimeFormatter} is created and shared by all Threads,
+ * and the last formatted second is remembered, so printing many lines in the same second formats the time only once.<br>
+ * Formats are written the same way as for {@link java.text.SimpleDateFormat} (like dd.MM.yyyy HH:mm:ss), although
+ * a few rarely used letters have a different meaning (see {@link DateTimeFormatter}).
+ *
+ * @author KRIKKI
+ * @version 1
+ * @since 17. 10. 2026
+ */
+final class TimeFormats {
+    private static final int MAX_CACHED_FORMATS = 64;
+    private static final ConcurrentHashMap<String, CachedFormat> FORMATS = new ConcurrentHashMap<>();
+
+    private TimeFormats(){
+    }
+
+    /**
+     * Formats the time.
+     *
+     * @param format This is the format (like dd.MM.yyyy HH:mm:ss).
+     * @param millis This is the time in milliseconds since epoch.
+     * @return Returns the formatted time.
+     * @throws IllegalArgumentException If format is not valid.
+     */
+    static String format(String format, long millis) throws IllegalArgumentException{
+        CachedFormat cached = FORMATS.get(format);
+        if(cached == null){
+            cached = new CachedFormat(format);
+            if(FORMATS.size() < MAX_CACHED_FORMATS){
+                CachedFormat previous = FORMATS.putIfAbsent(format, cached);
+                if(previous != null)
+                    cached = previous;
+            }
+        }
+        return cached.format(millis);
+    }
+
+    /**
+     * Returns true if format is valid.
+     *
+     * @param format This is the format.
+     * @return Returns true if format is valid.
+     */
+    static boolean isValid(String format){
+        try{
+            format(format, 0);
+            return true;
+        }catch(IllegalArgumentException e){
+            return false;
+        }
+    }
+
+    private static final class CachedFormat {
+        private final DateTimeFormatter formatter;
+        private final boolean perSecond; // false if format shows fractions of a second
+        private volatile Formatted last;
+
+        CachedFormat(String format){
+            this.formatter = DateTimeFormatter.ofPattern(format).withZone(ZoneId.systemDefault());
+            this.perSecond = !hasFractions(format);
+        }
+
+        String format(long millis){
+            long second = Math.floorDiv(millis, 1000);
+            Formatted formatted = last;
+            if(perSecond && formatted != null && formatted.second == second)
+                return formatted.text;
+            String text = formatter.format(Instant.ofEpochMilli(millis));
+            if(perSecond)
+                last = new Formatted(second, text);
+            return text;
+        }
+
+        private static boolean hasFractions(String format){
+            boolean quoted = false;
+            for(int i = 0; i < format.length(); i++){
+                char c = format.charAt(i);
+                if(c == '\'')
+                    quoted = !quoted;
+                else if(!quoted && (c == 'S' || c == 'n' || c == 'N' || c == 'A'))
+                    return true;
+            }
+            return false;
+        }
+    }
+
+    private static final class Formatted {
+        final long second;
+        final String text;
+
+        Formatted(long second, String text){
+            this.second = second;
+            this.text = text;
+        }
+    }
+}
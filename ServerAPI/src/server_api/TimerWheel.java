@@ -0,0 +1,139 @@
+package server_api;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Runs tasks after a delay on a single Thread. It is used by the Server class for heartbeats and deadlines of
+ * connections, where there is a task for every client and most of them are cancelled or rescheduled long before they run.<br>
+ * Time is divided into ticks and tasks are kept in a ring of slots (a hashed timer wheel), one slot for every tick.
+ * Scheduling and cancelling therefore take constant time no matter how many tasks there are, while tasks run at most
+ * one tick late. Tasks can be scheduled from any Thread, but they all run on the Thread of the wheel, so they must be short.
+ *
+ * @author KRIKKI
+ * @version 1
+ * @since 17. 10. 2026
+ */
+final class TimerWheel implements Runnable {
+    private static final ThreadLocal<Boolean> TIMER_THREAD = new ThreadLocal<>();
+
+    private final long tickMillis;
+    private final ArrayList<Timeout>[] slots;
+    private final ConcurrentLinkedQueue<Timeout> added = new ConcurrentLinkedQueue<>();
+    private final Thread thread;
+    private final long startTime;
+    private volatile boolean running = true;
+    private long tick = 0; // only used by the Thread of the wheel
+
+    /**
+     * This is a scheduled task. It can be cancelled until it runs.
+     */
+    static final class Timeout {
+        private final Runnable task;
+        private final long deadline; // in milliseconds since the wheel was started
+        private volatile boolean cancelled = false;
+
+        private Timeout(Runnable task, long deadline){
+            this.task = task;
+            this.deadline = deadline;
+        }
+
+        /**
+         * Cancels the task. Nothing happens if it has already run.
+         */
+        void cancel(){
+            cancelled = true;
+        }
+    }
+
+    /**
+     * Creates and starts the wheel.
+     *
+     * @param name This is the name of the Thread.
+     * @param tickMillis This is the length of a tick in milliseconds.
+     * @param slots This is the number of slots. Tasks further away than one round of the wheel wait in their slot for more rounds.
+     */
+    TimerWheel(String name, long tickMillis, int slots){
+        this.tickMillis = tickMillis;
+        @SuppressWarnings("unchecked")
+        ArrayList<Timeout>[] array = (ArrayList<Timeout>[]) new ArrayList<?>[slots];
+        this.slots = array;
+        for(int i = 0; i < slots; i++)
+            this.slots[i] = new ArrayList<>();
+        this.startTime = System.nanoTime();
+        this.thread = new Thread(this, name);
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+
+    /**
+     * Schedules the task. It can be called from any Thread.
+     *
+     * @param task This is the task.
+     * @param delayMillis This is the delay in milliseconds.
+     * @return Returns the handle that can be used to cancel the task.
+     */
+    Timeout schedule(Runnable task, long delayMillis){
+        Timeout timeout = new Timeout(task, elapsed() + Math.max(0, delayMillis));
+        added.add(timeout);
+        return timeout;
+    }
+
+    /**
+     * Stops the wheel. Tasks that have not run yet never will.
+     */
+    void stop(){
+        running = false;
+        thread.interrupt();
+    }
+
+    /**
+     * Returns true if calling Thread belongs to a timer wheel.
+     *
+     * @return Returns true if called on the Thread of a wheel.
+     */
+    static boolean isTimerThread(){
+        return TIMER_THREAD.get() != null;
+    }
+
+    private long elapsed(){
+        return (System.nanoTime() - startTime) / 1000000;
+    }
+
+    @Override
+    public void run(){
+        TIMER_THREAD.set(Boolean.TRUE);
+        while(running){
+            long sleep = (tick + 1) * tickMillis - elapsed();
+            if(sleep > 0){
+                try{
+                    Thread.sleep(sleep);
+                }catch(InterruptedException e){
+                    continue; // running is checked again
+                }
+            }
+            tick++;
+            Timeout timeout;
+            while((timeout = added.poll()) != null){
+                if(!timeout.cancelled)
+                    slots[(int) (Math.max(tick, (timeout.deadline + tickMillis - 1) / tickMillis) % slots.length)].add(timeout);
+            }
+            long now = tick * tickMillis;
+            Iterator<Timeout> it = slots[(int) (tick % slots.length)].iterator();
+            while(it.hasNext()){
+                timeout = it.next();
+                if(timeout.cancelled){
+                    it.remove();
+                }else if(timeout.deadline <= now){
+                    it.remove();
+                    try{
+                        timeout.task.run();
+                    }catch(RuntimeException e){
+                        e.printStackTrace(System.err);
+                    }
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,88 @@
+package server_api;
+
+/**
+ * A token bucket that limits how often something may happen.<br>
+ * Bucket holds at most a given number of tokens (burst) and is refilled at a constant rate. Every event takes one
+ * token and is refused if there is none, so on average events may not happen more often than the rate allows,
+ * although up to burst of them may happen at once after a quiet period. It can be used from many Threads at once.
+ *
+ * @author KRIKKI
+ * @version 1
+ * @since 17. 10. 2026
+ */
+final class TokenBucket {
+    private final double tokensPerNano;
+    private final double burst;
+    private double tokens;
+    private long lastRefill;
+
+    /**
+     * Creates a full bucket.
+     *
+     * @param ratePerSecond This is the number of tokens added every second.
+     * @param burst This is the maximum number of tokens in the bucket (at least 1).
+     */
+    TokenBucket(double ratePerSecond, double burst){
+        this.tokensPerNano = ratePerSecond / 1e9;
+        this.burst = Math.max(1, burst);
+        this.tokens = this.burst;
+        this.lastRefill = System.nanoTime();
+    }
+
+    /**
+     * Takes a token if there is one.
+     *
+     * @return Returns true if token was taken and false if event must be refused.
+     */
+    synchronized boolean tryAcquire(){
+        refill();
+        if(tokens < 1)
+            return false;
+        tokens -= 1;
+        return true;
+    }
+
+    /**
+     * Takes given number of tokens if there are enough of them. An event that costs more than burst
+     * is allowed when bucket is full and leaves it in debt.
+     *
+     * @param cost This is the number of tokens the event costs.
+     * @return Returns true if tokens were taken and false if event must be refused.
+     */
+    synchronized boolean tryAcquire(double cost){
+        refill();
+        if(tokens < Math.min(cost, burst))
+            return false;
+        tokens -= cost;
+        return true;
+    }
+
+    /**
+     * Takes given number of tokens even if there are not enough of them and tells how long the event
+     * should be delayed, so that on average events do not happen more often than the rate allows.
+     *
+     * @param cost This is the number of tokens the event costs.
+     * @return Returns the delay in nanoseconds or 0 if event can happen immediately.
+     */
+    synchronized long reserve(double cost){
+        refill();
+        tokens -= cost;
+        return tokens >= 0 ? 0 : (long) Math.ceil(-tokens / tokensPerNano);
+    }
+
+    /**
+     * Returns true if bucket is full, which means it has not been used for a while.
+     *
+     * @return Returns true if bucket is full.
+     */
+    synchronized boolean isFull(){
+        refill();
+        return tokens >= burst;
+    }
+
+    private void refill(){
+        long now = System.nanoTime();
+        tokens = Math.min(burst, tokens + (now - lastRefill) * tokensPerNano);
+        lastRefill = now;
+    }
+}
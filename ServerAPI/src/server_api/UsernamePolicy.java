@@ -0,0 +1,110 @@
+package server_api;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+/**
+ * Is used by the Server class to check usernames of clients that are logging in, the same way {@link Client#login(String)}
+ * does, so that modified clients cannot pick names that are not allowed.<br>
+ * Regexes from preferences are compiled once. Since they are written by the administrator, they could backtrack for
+ * a very long time on some names, so every match may only look at characters a limited number of times and a name
+ * whose check takes longer is not allowed. Results are remembered for recently checked names, so a client that keeps
+ * retrying with the same name does not cause the regexes to run again.
+ *
+ * @author KRIKKI
+ * @version 1
+ * @since 17. 10. 2026
+ */
+final class UsernamePolicy {
+    private static final int CACHE_SIZE = 1024;
+    private static final String ALLOWED = ""; // cached result of allowed names
+
+    private final int minLength;
+    private final int maxLength;
+    private final String forbiddenSource;
+    private final String allowedSource;
+    private final Pattern forbidden;
+    private final Pattern allowed;
+    private final LinkedHashMap<String, String> cache = new LinkedHashMap<String, String>(64, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, String> eldest){
+            return size() > CACHE_SIZE;
+        }
+    };
+
+    /**
+     * Creates the policy from preferences.
+     *
+     * @param prefs These are the preferences of the server.
+     * @throws ServerException If regexes for usernames are not valid.
+     */
+    UsernamePolicy(PrivateServerPreferences prefs) throws ServerException{
+        this.minLength = prefs.getMinUsernameLength();
+        this.maxLength = prefs.getMaxUsernameLength();
+        this.forbiddenSource = prefs.getForbiddenUsernames();
+        this.allowedSource = prefs.getAllowedUsernames();
+        try{
+            this.forbidden = Pattern.compile(forbiddenSource);
+            this.allowed = Pattern.compile(allowedSource);
+        }catch(PatternSyntaxException e){
+            throw new ServerException("Regex for usernames is not valid: " + e.getDescription());
+        }
+    }
+
+    /**
+     * Returns true if the policy was created from the same values as given preferences have.
+     *
+     * @param prefs These are the preferences of the server.
+     * @return Returns true if policy does not need to be created again.
+     */
+    boolean isCurrent(PrivateServerPreferences prefs){
+        return minLength == prefs.getMinUsernameLength() && maxLength == prefs.getMaxUsernameLength()
+                && forbiddenSource.equals(prefs.getForbiddenUsernames()) && allowedSource.equals(prefs.getAllowedUsernames());
+    }
+
+    /**
+     * Checks the username.
+     *
+     * @param username This is the wanted username.
+     * @return Returns null if username is allowed or the reason why it is not.
+     */
+    String check(String username){
+        if(username == null)
+            return "This name is not allowed";
+        synchronized(cache){
+            String result = cache.get(username);
+            if(result != null)
+                return result == ALLOWED ? null : result;
+        }
+        String result = evaluate(username);
+        synchronized(cache){
+            cache.put(username, result == null ? ALLOWED : result);
+        }
+        return result;
+    }
+
+    private String evaluate(String username){
+        if(username.length() < minLength)
+            return "Your name must contain at least " + minLength + " signs";
+        if(username.length() > maxLength)
+            return "Your name is too long (max " + maxLength + " characters)";
+        for(int i = 0; i < username.length(); i++){
+            if(":\"'[]/\\<>,-".indexOf(username.charAt(i)) >= 0) // these signs are always forbidden
+                return "Name must not include following signs :/\\[]\"' ";
+        }
+        String lower = username.toLowerCase();
+        if(lower.equals("system") || lower.equals("error"))
+            return "You cannot use system or error as your username";
+        try{
+            if(forbidden.matcher(new BoundedCharSequence(lower)).matches() || !allowed.matcher(new BoundedCharSequence(username)).matches())
+                return "This name is not allowed";
+        }catch(BoundedCharSequence.TooManyStepsException e){
+            return "This name is not allowed";
+        }
+        return null;
+    }
+}
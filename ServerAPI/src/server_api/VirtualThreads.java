@@ -0,0 +1,68 @@
+package server_api;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Creates executors that run every task on its own virtual thread. Virtual threads are only available
+ * from Java 21 on, so they are looked up through reflection and on older JVMs a cached pool of
+ * daemon platform Threads is used instead.<br>
+ * Code running on virtual threads should not block while holding a monitor ({@code synchronized}),
+ * since that pins the virtual thread to its carrier thread. Use {@link java.util.concurrent.locks.ReentrantLock} instead.
+ *
+ * @author KRIKKI
+ * @version 1
+ * @since 17. 10. 2026
+ */
+final class VirtualThreads {
+    private static final Method NEW_VIRTUAL_THREAD_PER_TASK_EXECUTOR = lookup();
+
+    private VirtualThreads(){
+    }
+
+    private static Method lookup(){
+        try{
+            return Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+        }catch(NoSuchMethodException | SecurityException e){
+            return null;
+        }
+    }
+
+    /**
+     * Returns true if this JVM supports virtual threads.
+     *
+     * @return Returns true if virtual threads are supported.
+     */
+    static boolean isSupported(){
+        return NEW_VIRTUAL_THREAD_PER_TASK_EXECUTOR != null;
+    }
+
+    /**
+     * Creates an executor that starts a new virtual thread for every task. If virtual threads are not
+     * supported, it returns a cached pool of daemon Threads with names starting with given prefix.
+     *
+     * @param namePrefix This is the prefix for names of platform Threads (if they are used).
+     * @return Returns a new executor.
+     */
+    static ExecutorService newExecutor(String namePrefix){
+        if(NEW_VIRTUAL_THREAD_PER_TASK_EXECUTOR != null){
+            try{
+                return (ExecutorService) NEW_VIRTUAL_THREAD_PER_TASK_EXECUTOR.invoke(null);
+            }catch(ReflectiveOperationException | RuntimeException e){
+                // fall through to platform Threads
+            }
+        }
+        final AtomicInteger counter = new AtomicInteger();
+        return Executors.newCachedThreadPool(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r){
+                Thread thread = new Thread(r, namePrefix + counter.getAndIncrement());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+}
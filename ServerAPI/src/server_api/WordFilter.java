@@ -0,0 +1,323 @@
+package server_api;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+/**
+ * Is used by the Server class to find forbidden words (see {@link PublicServerPreferences#getForbiddenWords()}) in messages.<br>
+ * Forbidden words are given as a regex, which is usually just a list of words like "broccolis?|cauliflower[s]?". Such regex
+ * is expanded into all the words it describes and they are put into an Aho-Corasick automaton, which finds all of them
+ * in a single pass over the message, no matter how many words there are. If regex uses anything that cannot be expanded
+ * into a limited number of words (like * or .), it is compiled once and used as it is instead. Such regex could backtrack
+ * for a very long time on some messages, so it may only look at characters of a message a limited number of times
+ * (see {@link BoundedCharSequence}) and a message whose check takes longer is treated as if it was all forbidden.<br>
+ * Only whole words are found (they must not be preceded or followed by a letter or digit) and case is ignored.
+ * A filter never changes once it has been created, so it can be used from many Threads at once.
+ *
+ * @author KRIKKI
+ * @version 1
+ * @since 17. 10. 2026
+ */
+final class WordFilter {
+    private static final int MAX_WORDS = 4096;
+
+    private final String source;
+    private final Pattern pattern; // only used if regex could not be expanded
+    // automaton: transitions of node n for character class c are at delta[n * classes + c], class 0 is any other character
+    private final int classes;
+    private final int[] asciiClass = new int[128];
+    private final HashMap<Character, Integer> otherClass = new HashMap<>();
+    private final int[] delta;
+    private final int[] wordLength; // length of the word that ends in the node or 0
+    private final int[] outputLink; // next node on the failure path where a word ends or 0
+
+    /**
+     * Creates the filter.
+     *
+     * @param forbiddenWords This is the regex of forbidden words. If it is empty, nothing is forbidden.
+     * @throws ServerException If regex is not valid.
+     */
+    WordFilter(String forbiddenWords) throws ServerException{
+        this.source = forbiddenWords;
+        List<String> words = forbiddenWords.isEmpty() ? new ArrayList<String>() : expand(forbiddenWords);
+        if(words == null){
+            try{
+                pattern = Pattern.compile(forbiddenWords, Pattern.CASE_INSENSITIVE | Pattern.UNICODE_CASE);
+            }catch(PatternSyntaxException e){
+                throw new ServerException("Forbidden words are not a valid regex: " + e.getDescription());
+            }
+            classes = 0;
+            delta = wordLength = outputLink = null;
+            return;
+        }
+        pattern = null;
+
+        // every character that appears in words gets its own class
+        int n = 1;
+        int nodes = 1;
+        for(String word: words){
+            nodes += word.length();
+            for(int i = 0; i < word.length(); i++){
+                char c = word.charAt(i);
+                if(c < 128){
+                    if(asciiClass[c] == 0)
+                        asciiClass[c] = n++;
+                }else if(!otherClass.containsKey(c)){
+                    otherClass.put(c, n++);
+                }
+            }
+        }
+        classes = n;
+
+        // trie
+        int[] goTo = new int[nodes * classes];
+        int[] length = new int[nodes];
+        int count = 1;
+        for(String word: words){
+            int node = 0;
+            for(int i = 0; i < word.length(); i++){
+                int c = classOf(word.charAt(i));
+                if(goTo[node * classes + c] == 0)
+                    goTo[node * classes + c] = count++;
+                node = goTo[node * classes + c];
+            }
+            length[node] = word.length();
+        }
+
+        // failure links turn the trie into a complete automaton, nodes are visited in breadth first order
+        delta = Arrays.copyOf(goTo, count * classes);
+        wordLength = Arrays.copyOf(length, count);
+        outputLink = new int[count];
+        int[] fail = new int[count];
+        ArrayDeque<Integer> queue = new ArrayDeque<>();
+        for(int c = 0; c < classes; c++){
+            if(delta[c] != 0)
+                queue.add(delta[c]);
+        }
+        while(!queue.isEmpty()){
+            int node = queue.poll();
+            int f = fail[node];
+            outputLink[node] = wordLength[f] > 0 ? f : outputLink[f];
+            for(int c = 0; c < classes; c++){
+                int child = delta[node * classes + c];
+                if(child != 0){
+                    fail[child] = delta[f * classes + c];
+                    queue.add(child);
+                }else{
+                    delta[node * classes + c] = delta[f * classes + c];
+                }
+            }
+        }
+    }
+
+    private int classOf(char c){
+        if(c < 128)
+            return asciiClass[c];
+        Integer cls = otherClass.get(c);
+        return cls == null ? 0 : cls;
+    }
+
+    /**
+     * Returns the regex this filter was created from.
+     *
+     * @return Returns the regex of forbidden words.
+     */
+    String getSource(){
+        return source;
+    }
+
+    /**
+     * Returns true if text contains at least one forbidden word.
+     *
+     * @param text This is the text of the message.
+     * @return Returns true if a forbidden word was found.
+     */
+    boolean contains(String text){
+        return scan(text, null);
+    }
+
+    /**
+     * Replaces every character of forbidden words with *.
+     *
+     * @param text This is the text of the message.
+     * @return Returns the masked text or the same String if there are no forbidden words.
+     */
+    String mask(String text){
+        char[] masked = text.toCharArray();
+        return scan(text, masked) ? new String(masked) : text;
+    }
+
+    // finds words and masks them if masked is not null, otherwise it stops at the first one
+    private boolean scan(String text, char[] masked){
+        if(pattern != null)
+            return scanPattern(text, masked);
+        if(delta.length == classes) // no words
+            return false;
+        boolean found = false;
+        int node = 0;
+        for(int i = 0; i < text.length(); i++){
+            node = delta[node * classes + classOf(Character.toLowerCase(text.charAt(i)))];
+            for(int out = wordLength[node] > 0 ? node : outputLink[node]; out != 0; out = outputLink[out]){
+                int start = i + 1 - wordLength[out];
+                if(isWord(text, start, i + 1)){
+                    if(masked == null)
+                        return true;
+                    Arrays.fill(masked, start, i + 1, '*');
+                    found = true;
+                }
+            }
+        }
+        return found;
+    }
+
+    private boolean scanPattern(String text, char[] masked){
+        char[] lower = new char[text.length()]; // converted character by character, so positions do not change
+        for(int i = 0; i < lower.length; i++)
+            lower[i] = Character.toLowerCase(text.charAt(i));
+        Matcher matcher = pattern.matcher(new BoundedCharSequence(new String(lower)));
+        boolean found = false;
+        try{
+            while(matcher.find()){
+                if(matcher.end() > matcher.start() && isWord(text, matcher.start(), matcher.end())){
+                    if(masked == null)
+                        return true;
+                    Arrays.fill(masked, matcher.start(), matcher.end(), '*');
+                    found = true;
+                }
+            }
+        }catch(BoundedCharSequence.TooManyStepsException e){
+            if(masked != null)
+                Arrays.fill(masked, '*');
+            return true;
+        }
+        return found;
+    }
+
+    private static boolean isWord(String text, int start, int end){
+        return (start == 0 || !Character.isLetterOrDigit(text.charAt(start - 1)))
+                && (end == text.length() || !Character.isLetterOrDigit(text.charAt(end)));
+    }
+
+    /**
+     * Expands the regex into all words it describes. It understands literal characters, escaped symbols,
+     * character classes like [sz] or [a-c], groups, alternatives (|) and optional parts (?).
+     *
+     * @param regex This is the regex.
+     * @return Returns lower case words or null if regex uses anything else or describes too many words.
+     */
+    static List<String> expand(String regex){
+        String lower = regex.toLowerCase();
+        int[] pos = {0};
+        List<String> words = alternatives(lower, pos);
+        if(words == null || pos[0] != lower.length())
+            return null;
+        ArrayList<String> result = new ArrayList<>();
+        for(String word: words){
+            if(!word.isEmpty())
+                result.add(word);
+        }
+        return result;
+    }
+
+    private static List<String> alternatives(String regex, int[] pos){
+        List<String> words = sequence(regex, pos);
+        while(words != null && pos[0] < regex.length() && regex.charAt(pos[0]) == '|'){
+            pos[0]++;
+            List<String> next = sequence(regex, pos);
+            if(next == null || words.size() + next.size() > MAX_WORDS)
+                return null;
+            words.addAll(next);
+        }
+        return words;
+    }
+
+    private static List<String> sequence(String regex, int[] pos){
+        List<String> words = new ArrayList<>();
+        words.add("");
+        while(pos[0] < regex.length() && regex.charAt(pos[0]) != '|' && regex.charAt(pos[0]) != ')'){
+            List<String> atom = atom(regex, pos);
+            if(atom == null)
+                return null;
+            if(pos[0] < regex.length() && regex.charAt(pos[0]) == '?'){
+                pos[0]++;
+                if(!atom.contains(""))
+                    atom.add("");
+            }
+            if(words.size() * atom.size() > MAX_WORDS)
+                return null;
+            List<String> product = new ArrayList<>(words.size() * atom.size());
+            for(String prefix: words){
+                for(String suffix: atom)
+                    product.add(prefix + suffix);
+            }
+            words = product;
+        }
+        return words;
+    }
+
+    private static List<String> atom(String regex, int[] pos){
+        char c = regex.charAt(pos[0]++);
+        List<String> words = new ArrayList<>();
+        switch(c){
+            case '(':
+                if(regex.startsWith("?:", pos[0]))
+                    pos[0] += 2;
+                List<String> group = alternatives(regex, pos);
+                if(group == null || pos[0] >= regex.length() || regex.charAt(pos[0]) != ')')
+                    return null;
+                pos[0]++;
+                return group;
+            case '[':
+                return characterClass(regex, pos);
+            case '\\':
+                if(pos[0] >= regex.length() || Character.isLetterOrDigit(regex.charAt(pos[0])))
+                    return null; // like \d or \b
+                words.add(String.valueOf(regex.charAt(pos[0]++)));
+                return words;
+            case '.': case '*': case '+': case '{': case '}': case '^': case '$': case '?': case ']':
+                return null;
+            default:
+                words.add(String.valueOf(c));
+                return words;
+        }
+    }
+
+    private static List<String> characterClass(String regex, int[] pos){
+        List<String> words = new ArrayList<>();
+        if(pos[0] < regex.length() && regex.charAt(pos[0]) == '^')
+            return null;
+        while(pos[0] < regex.length() && regex.charAt(pos[0]) != ']'){
+            char c = regex.charAt(pos[0]++);
+            if(c == '\\'){
+                if(pos[0] >= regex.length() || Character.isLetterOrDigit(regex.charAt(pos[0])))
+                    return null;
+                c = regex.charAt(pos[0]++);
+            }else if(c == '['){
+                return null;
+            }
+            char last = c;
+            if(pos[0] + 1 < regex.length() && regex.charAt(pos[0]) == '-' && regex.charAt(pos[0] + 1) != ']'){
+                last = regex.charAt(pos[0] + 1);
+                pos[0] += 2;
+                if(last < c || last == '\\' || last == '[')
+                    return null;
+            }
+            if(words.size() + (last - c) >= MAX_WORDS)
+                return null;
+            for(int ch = c; ch <= last; ch++){
+                if(!words.contains(String.valueOf((char) ch)))
+                    words.add(String.valueOf((char) ch));
+            }
+        }
+        if(pos[0] >= regex.length() || words.isEmpty())
+            return null;
+        pos[0]++; // ]
+        return words;
+    }
+}